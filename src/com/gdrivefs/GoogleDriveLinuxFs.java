@@ -2,11 +2,20 @@ package com.gdrivefs;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nullable;
 
 import net.fusejna.DirectoryFiller;
 import net.fusejna.ErrorCodes;
@@ -20,25 +29,107 @@ import net.fusejna.types.TypeMode.ModeWrapper;
 import net.fusejna.types.TypeMode.NodeType;
 import net.fusejna.util.FuseFilesystemAdapterAssumeImplemented;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gdrivefs.internal.ControlNamespace;
+import com.gdrivefs.internal.FileHandle;
 import com.gdrivefs.internal.FileWriteCollector;
+import com.gdrivefs.internal.NegativeLookupCache;
+import com.gdrivefs.internal.PathCache;
+import com.gdrivefs.internal.StartupTimer;
 import com.gdrivefs.simplecache.Drive;
 import com.gdrivefs.simplecache.File;
+import com.gdrivefs.simplecache.FileAttributes;
+import com.gdrivefs.simplecache.internal.Histogram;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.RefreshScheduler.Priority;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer.Caller;
 import com.gdrivefs.util.Utils;
 import com.google.api.client.http.HttpTransport;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.Striped;
 
+/**
+ * Safe for multithreaded FUSE dispatch: operations on different files run in parallel.
+ * Writes, flushes and truncates of the same file are serialized on that file's FileWriteCollector, and renames on the files they touch;
+ * everything else relies on the (per-file) locking done by the simplecache.
+ */
 public class GoogleDriveLinuxFs extends FuseFilesystemAdapterAssumeImplemented
 {
 	public static final String IDENTICAL_FORWARD_SLASH_CHARACTER = "∕";
+	/** Extended attribute that pins a file or directory (see PinManager) when set, to any value, and unpins it when removed **/
+	public static final String PINNED_XATTR = "user.gdrivefs.pinned";
+	private static final int PATH_CACHE_SIZE = 10000;
+	private static final int NEGATIVE_LOOKUP_TTL_SECONDS = 5;
+	private static final int NEGATIVE_LOOKUP_DIRECTORIES = 1000;
+	private static final int RENAME_LOCK_STRIPES = 64;
+
+	/** If set (with -Dgdrivefs.trace=true), each operation that made remote calls is logged along with them **/
+	private static final boolean TRACE = Boolean.getBoolean("gdrivefs.trace");
+	private static final Logger logger = LoggerFactory.getLogger(GoogleDriveLinuxFs.class);
+
+	/** Latency histograms (fuse.<operation> in Metrics) for the operations we implement **/
+	private static final Map<String, Histogram> FUSE_LATENCIES = new HashMap<String, Histogram>();
+	static
+	{
+		for(String operation : new String[]{"create", "getattr", "mkdir", "open", "read", "readdir", "rename", "rmdir", "truncate", "unlink", "write", "flush", "fsync", "ftruncate", "release"})
+			FUSE_LATENCIES.put(operation, Metrics.get().histogram("fuse."+operation));
+	}
 
 	Drive drive;
 	
-	private Map<Long, File> fileHandles = new HashMap<Long, File>();  // TODO: Figure out when handles should be dropped
-	private Map<File, FileWriteCollector> openFiles = new HashMap<File, FileWriteCollector>();
-	private long nextFileHandleId = 1;
+	private final ConcurrentMap<Long, FileHandle> fileHandles = new ConcurrentHashMap<Long, FileHandle>();
+	private final ConcurrentMap<File, FileWriteCollector> openFiles = new ConcurrentHashMap<File, FileWriteCollector>();
+	private final AtomicLong nextFileHandleId = new AtomicLong(1);
+	private final PathCache pathCache = new PathCache(PATH_CACHE_SIZE);
+	private final NegativeLookupCache negativeLookups = new NegativeLookupCache(NEGATIVE_LOOKUP_TTL_SECONDS, TimeUnit.SECONDS, NEGATIVE_LOOKUP_DIRECTORIES);
+	private final ControlNamespace control;
+	/** Serializes renames that share a file or a parent directory (so also renames onto the same target) **/
+	private final Striped<Lock> renameLocks = Striped.lock(RENAME_LOCK_STRIPES);
+	private volatile StartupTimer startup;
 	
 	public GoogleDriveLinuxFs(Drive drive, HttpTransport transport)
 	{
 		this.drive = drive;
+		drive.addListener(pathCache);
+		drive.addListener(negativeLookups);
+		control = new ControlNamespace(new ControlNamespace.Actions()
+		{
+			@Override
+			public void flush() throws InterruptedException
+			{
+				GoogleDriveLinuxFs.this.drive.flush(true);
+			}
+
+			@Override
+			public boolean evict(String path) throws IOException
+			{
+				File file = getPath(path);
+				// Writes still buffered in a collector would be lost with the content they're based on
+				if(openFiles.containsKey(file)) return false;
+				return file.evictContent();
+			}
+
+			@Override
+			public void prefetch(String path) throws IOException
+			{
+				GoogleDriveLinuxFs.this.prefetch(path);
+			}
+
+			@Override
+			public void pin(String path) throws IOException
+			{
+				GoogleDriveLinuxFs.this.drive.getPins().pin(getPath(path));
+			}
+
+			@Override
+			public void unpin(String path) throws IOException
+			{
+				GoogleDriveLinuxFs.this.drive.getPins().unpin(getPath(path));
+			}
+		}, pathCache);
 	}
 
 	public GoogleDriveLinuxFs setLoggingStatus(boolean isEnabled)
@@ -47,6 +138,13 @@ public class GoogleDriveLinuxFs extends FuseFilesystemAdapterAssumeImplemented
 		return this;
 	}
 	
+	/** The first directory listing served is reported to the timer, as the end of startup from the user's point of view **/
+	public GoogleDriveLinuxFs setStartupTimer(StartupTimer startup)
+	{
+		this.startup = startup;
+		return this;
+	}
+	
 	public void flush(boolean flushUploads) throws InterruptedException
 	{
 		drive.flush(flushUploads);
@@ -65,7 +163,7 @@ public class GoogleDriveLinuxFs extends FuseFilesystemAdapterAssumeImplemented
 		}
 	}
 	
-	public synchronized File getRoot() throws IOException
+	public File getRoot() throws IOException
 	{
 		return drive.getRoot();
 	}
@@ -79,70 +177,98 @@ public class GoogleDriveLinuxFs extends FuseFilesystemAdapterAssumeImplemented
 	@Override
 	public int create(String path, final ModeWrapper mode, final FileInfoWrapper info)
 	{
-		while(path.endsWith("/")) path = path.substring(0, path.length()-1);
-		
+		long started = begin("create", path);
 		try
 		{
-			try { getPath(path); return -ErrorCodes.EEXIST(); }
-			catch(NoSuchElementException e) { /* Do nothing, the directory doesn't yet exist */ }
+			if(control.contains(path)) return -ErrorCodes.EACCES();
+			while(path.endsWith("/")) path = path.substring(0, path.length()-1);
+		
+			try
+			{
+				try { getPath(path); return -ErrorCodes.EEXIST(); }
+				catch(NoSuchElementException e) { /* Do nothing, the directory doesn't yet exist */ }
 			
-			File parent;
-			try { parent = getParentPath(path); }
-			catch(NoSuchElementException e) { return -ErrorCodes.ENOENT(); }
+				File parent;
+				try { parent = getParentPath(path); }
+				catch(NoSuchElementException e) { return -ErrorCodes.ENOENT(); }
 			
-			File newFile = parent.createFile(path.substring(path.lastIndexOf('/')+1));
-			info.fh(nextFileHandleId++);
-			fileHandles.put(info.fh(), newFile);
-			return 0;
+				File newFile = parent.createFile(path.substring(path.lastIndexOf('/')+1));
+				info.fh(openHandle(newFile, path).getId());
+				return 0;
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException(e);
+			}
 		}
-		catch(IOException e)
+		finally
 		{
-			throw new RuntimeException(e);
+			end("create", started);
 		}
 	}
 
+	/** stat may be null (when replaying a workload, where there's no FUSE to provide one), in which case the path is only resolved **/
 	@Override
-	public int getattr(final String path, final StatWrapper stat)
+	public int getattr(final String path, final @Nullable StatWrapper stat)
 	{
+		long started = begin("getattr", path);
 		try
 		{
-			File f = getPath(path);
-			
-			if(f.isDirectory())
+			if(control.contains(path))
 			{
-				stat.setMode(NodeType.DIRECTORY, true, true, true, false, false, false, false, false, false);
+				if(!control.exists(path)) return -ErrorCodes.ENOENT();
+				if(stat == null) return 0;
+				if(control.isDirectory(path)) stat.setMode(NodeType.DIRECTORY, true, false, true, false, false, false, false, false, false);
+				else if(control.isWritable(path)) stat.setMode(NodeType.FILE, false, true, false, false, false, false, false, false, false);
+				else stat.setMode(NodeType.FILE, true, false, false, false, false, false, false, false, false).size(control.getSize(path));
 				return 0;
 			}
-			else
+			try
 			{
-				long size = f.getSize();
-				
-				{ // There may be some unflushed writes that may have extended file length and need to be taken into account
-					FileWriteCollector wc = openFiles.get(f);
-					if(wc != null) size = Math.max(size, wc.getCurrentPosition());
+				File f = getPath(path);
+				FileAttributes attributes = f.getAttributes();
+			
+				if(stat == null) return 0;
+				if(attributes.isDirectory())
+				{
+					stat.setMode(NodeType.DIRECTORY, true, true, true, false, false, false, false, false, false);
+					return 0;
 				}
+				else
+				{
+					long size = attributes.getSize();
 				
-				stat.setMode(NodeType.FILE, true, true, false, false, false, false, false, false, false).size(size).mtime(f.getModified().getTime()/1000);
-				return 0;
+					{ // There may be some unflushed writes that may have extended file length and need to be taken into account
+						FileWriteCollector wc = openFiles.get(f);
+						if(wc != null) synchronized(wc) { size = Math.max(size, wc.getCurrentPosition()); }
+					}
+				
+					stat.setMode(NodeType.FILE, true, true, false, false, false, false, false, false, false).size(size).mtime(attributes.getModified()/1000);
+					return 0;
+				}
+			}
+			catch(NoSuchElementException e)
+			{
+				return -ErrorCodes.ENOENT();			
+			}
+			catch(AmbiguousPathException e)
+			{
+				return -ErrorCodes.ENOTUNIQ();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				throw new RuntimeException(e);
+			}
+			catch(Throwable e)
+			{
+				e.printStackTrace();
+				throw new RuntimeException(e);
 			}
 		}
-		catch(NoSuchElementException e)
-		{
-			return -ErrorCodes.ENOENT();			
-		}
-		catch(AmbiguousPathException e)
-		{
-			return -ErrorCodes.ENOTUNIQ();
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-			throw new RuntimeException(e);
-		}
-		catch(Throwable e)
+		finally
 		{
-			e.printStackTrace();
-			throw new RuntimeException(e);
+			end("getattr", started);
 		}
 	}
 	
@@ -170,407 +296,611 @@ public class GoogleDriveLinuxFs extends FuseFilesystemAdapterAssumeImplemented
 	@Override
 	public int mkdir(String path, final ModeWrapper mode)
 	{
-		System.out.println(path);
-		while(path.endsWith("/")) path = path.substring(0, path.length()-1);
-		
+		long started = begin("mkdir", path);
 		try
 		{
-			try { getPath(path); return -ErrorCodes.EEXIST(); }
-			catch(NoSuchElementException e) { /* Do nothing, the directory doesn't yet exist */ }
+			if(control.contains(path)) return -ErrorCodes.EACCES();
+			System.out.println(path);
+			while(path.endsWith("/")) path = path.substring(0, path.length()-1);
+		
+			try
+			{
+				try { getPath(path); return -ErrorCodes.EEXIST(); }
+				catch(NoSuchElementException e) { /* Do nothing, the directory doesn't yet exist */ }
 			
-			File parent;
-			try { parent = getParentPath(path); }
-			catch(NoSuchElementException e) { return -ErrorCodes.ENOENT(); }
+				File parent;
+				try { parent = getParentPath(path); }
+				catch(NoSuchElementException e) { return -ErrorCodes.ENOENT(); }
 			
-			parent.mkdir(path.substring(path.lastIndexOf('/')+1));
-			return 0;
+				parent.mkdir(path.substring(path.lastIndexOf('/')+1));
+				return 0;
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException(e);
+			}
 		}
-		catch(IOException e)
+		finally
 		{
-			throw new RuntimeException(e);
+			end("mkdir", started);
 		}
 	}
 
 	@Override
 	public int open(final String path, final FileInfoWrapper info)
 	{
+		long started = begin("open", path);
 		try
 		{
-			info.fh(nextFileHandleId++);
-			fileHandles.put(info.fh(), getPath(path));
-		}
-		catch(NoSuchElementException e)
-		{
-			return -ErrorCodes.ENOENT();
+			if(control.contains(path))
+			{
+				if(!control.exists(path)) return -ErrorCodes.ENOENT();
+				long id = nextFileHandleId.getAndIncrement();
+				control.open(path, id);
+				info.fh(id);
+				return 0;
+			}
+			try
+			{
+				info.fh(openHandle(getPath(path), path).getId());
+			}
+			catch(NoSuchElementException e)
+			{
+				return -ErrorCodes.ENOENT();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
+			}
+			return 0;
 		}
-		catch(IOException e)
+		finally
 		{
-			e.printStackTrace();
-			return -ErrorCodes.EIO();
+			end("open", started);
 		}
-		return 0;
 	}
 
 	@Override
 	public int read(final String path, final ByteBuffer buffer, final long size, final long offset, final FileInfoWrapper info)
 	{
+		long started = begin("read", path);
 		try
 		{
-			File f = info.fh() != 0 ? fileHandles.get(info.fh()) : getPath(path);
+			if(control.isOpen(info.fh())) return control.read(info.fh(), buffer, size, offset);
+			try
+			{
+				FileHandle handle = info.fh() != 0 ? fileHandles.get(info.fh()) : null;
+				if(info.fh() != 0 && handle == null) return -ErrorCodes.EBADF();
+				File f = handle != null ? handle.getFile() : getPath(path);
 
-			if(f.isDirectory()) return -ErrorCodes.EISDIR();
+				if(f.isDirectory()) return -ErrorCodes.EISDIR();
 
-			boolean isGoogleDoc = f.getMimeType().startsWith("application/vnd.google-apps.");
-			if(isGoogleDoc) return -ErrorCodes.EMEDIUMTYPE();
+				boolean isGoogleDoc = f.getMimeType().startsWith("application/vnd.google-apps.");
+				if(isGoogleDoc) return -ErrorCodes.EMEDIUMTYPE();
 			
-			FileWriteCollector collector = openFiles.get(f);
-			if (collector != null) {
-				// need to flush to the simplecache, so that
-				// the most up-to-date fragment is available for reads
-				collector.flushCurrentFragmentToDb();
-			}
-
-			long chunkStart = offset;
-			long end = offset + Math.min(size,  f.getSize()-offset);
-			do {
-				long chunkEnd = Math.min(Utils.roundUpToFragmentBoundary(chunkStart), end);
-				int len = (int)(chunkEnd - chunkStart);
-				byte[] chunk = f.read(len, chunkStart);
-				buffer.put(chunk);
-				chunkStart = chunkEnd;
-			} while (chunkStart < end);
-			return (int)(end-offset); // currently we always read exactly what is requested (up to file size)
-		}
-		catch(NoSuchElementException e)
-		{
-			return -ErrorCodes.ENOENT();
+				FileWriteCollector collector = openFiles.get(f);
+				if (collector != null) {
+					// need to flush to the simplecache, so that
+					// the most up-to-date fragment is available for reads
+					synchronized(collector) { collector.flushCurrentFragmentToDb(); }
+				}
+
+				long chunkStart = offset;
+				long end = offset + Math.min(size,  f.getSize()-offset);
+				do {
+					long chunkEnd = Math.min(Utils.roundUpToFragmentBoundary(chunkStart), end);
+					int len = (int)(chunkEnd - chunkStart);
+					byte[] chunk = f.read(len, chunkStart);
+					buffer.put(chunk);
+					chunkStart = chunkEnd;
+				} while (chunkStart < end);
+				return (int)(end-offset); // currently we always read exactly what is requested (up to file size)
+			}
+			catch(NoSuchElementException e)
+			{
+				return -ErrorCodes.ENOENT();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
+			}
 		}
-		catch(IOException e)
+		finally
 		{
-			e.printStackTrace();
-			return -ErrorCodes.EIO();
+			end("read", started);
 		}
 	}
 
 	@Override
 	public int readdir(final String path, final DirectoryFiller filler)
 	{
+		long started = begin("readdir", path);
 		try
 		{
-			File directory = getPath(path);
-			getParentPath(path).considerAsyncDirectoryRefresh(2, TimeUnit.MINUTES);
-			if(!directory.isDirectory()) return -ErrorCodes.ENOTDIR();
-			for(File child : directory.getChildren())
+			if(control.contains(path))
 			{
-				filler.add(forwardSlashHack(child.getTitle()));
+				if(!control.isDirectory(path)) return -ErrorCodes.ENOTDIR();
+				for(String name : control.list()) filler.add(name);
+				return 0;
 			}
+			try
+			{
+				File directory = getPath(path);
+				getParentPath(path).considerAsyncDirectoryRefresh(2, TimeUnit.MINUTES);
+				if(!directory.isDirectory()) return -ErrorCodes.ENOTDIR();
+				for(File child : directory.getChildren())
+				{
+					filler.add(forwardSlashHack(child.getTitle()));
+				}
+				StartupTimer startup = this.startup;
+				if(startup != null) startup.listed();
+			}
+			catch(NoSuchElementException e)
+			{
+				return -ErrorCodes.ENOENT();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
+			}
+        
+			return 0;
 		}
-		catch(NoSuchElementException e)
-		{
-			return -ErrorCodes.ENOENT();
-		}
-		catch(IOException e)
+		finally
 		{
-			e.printStackTrace();
-			return -ErrorCodes.EIO();
+			end("readdir", started);
 		}
-        
-		return 0;
 	}
 	
 	private File getPath(String localPath) throws IOException
 	{
 		if(!localPath.startsWith("/")) throw new IllegalArgumentException("Expected local path to start with a slash ("+localPath+")");
 		
-		String[] pathElements = localPath.split("/");
-		
-		for(int i = 0; i < pathElements.length; i++) {
-			pathElements[i] = forwardSlashHack(pathElements[i]);
+		List<String> names = new ArrayList<String>();
+		for(String element : localPath.split("/")) {
+			if(!"".equals(element)) names.add(forwardSlashHack(element));
 		}
+		String key = "/"+Joiner.on('/').join(names);
 		
-		File current = drive.getRoot();
-		for(int i = 1; i < pathElements.length; i++)
+		File current = pathCache.get(key);
+		if(current == null)
 		{
-			if("".equals(pathElements[i])) continue;
+			long generation = pathCache.getGeneration();
+			long missGeneration = negativeLookups.getGeneration();
 			
-			List<File> children = current.getChildren(pathElements[i]);
-			if(children.isEmpty()) throw new NoSuchElementException(localPath);
-			else if(children.size() == 1) current = children.get(0);
-			else throw new AmbiguousPathException(localPath);
+			// Lookups tend to cluster in a directory (eg. probing for several names), so start from the parent if we've resolved it recently
+			List<File> through = names.isEmpty() ? null : pathCache.getResolution("/"+Joiner.on('/').join(names.subList(0, names.size()-1)));
+			through = through != null ? new ArrayList<File>(through) : new ArrayList<File>(Collections.singletonList(drive.getRoot()));
+			current = through.get(through.size()-1);
+			for(String name : names.subList(through.size()-1, names.size()))
+			{
+				if(negativeLookups.isMissing(current, name)) throw new NoSuchElementException(localPath);
+				
+				List<File> children = current.getChildren(name);
+				if(children.isEmpty())
+				{
+					negativeLookups.putMissing(current, name, missGeneration);
+					throw new NoSuchElementException(localPath);
+				}
+				else if(children.size() == 1) current = children.get(0);
+				else throw new AmbiguousPathException(localPath);
+				through.add(current);
+			}
+			pathCache.put(key, through, generation);
 		}
 		
-		if(current.isDirectory()) current.considerAsyncDirectoryRefresh(1, TimeUnit.MINUTES);
+		if(current.getAttributes().isDirectory()) current.considerAsyncDirectoryRefresh(1, TimeUnit.MINUTES, Priority.USER_VISIBLE);
 		return current;
 	}
 
 	@Override
-	public synchronized int rename(final String oldPath, final String newPath)
+	public int rename(final String oldPath, final String newPath)
 	{
+		long started = begin("rename", oldPath);
 		try
 		{
-			File file = getPath(oldPath);
-			File oldParent = getParentPath(oldPath);
-			File newParent = getParentPath(newPath);
-			String oldName = getLastComponent(oldPath);
-			String newName = getLastComponent(newPath);
+			if(control.contains(oldPath) || control.contains(newPath)) return -ErrorCodes.EACCES();
+			try
+			{
+				File file = getPath(oldPath);
+				File oldParent = getParentPath(oldPath);
+				File newParent = getParentPath(newPath);
+				String oldName = getLastComponent(oldPath);
+				String newName = getLastComponent(newPath);
 			
-			if(!newParent.isDirectory()) return -ErrorCodes.ENOTDIR();
+				if(!newParent.isDirectory()) return -ErrorCodes.ENOTDIR();
 			
-			// Rename is typically atomic on Linux, so systems will use it as a way of doing atomic writes by overriding destination
-			try { getPath(newPath).trash(); }
-			catch(NoSuchElementException e) { /* destination didn't exist, which is fine */ }
+				// The steps below walk the tree and may talk to Google, so they can't run under the files' write locks;
+				// a separate lock per file keeps other renames of the same files (or into the same directory) from interleaving with them.
+				// Locks are looked up by local id, since one file can briefly have two File objects (and File has no hashCode).
+				Iterable<Lock> locks = renameLocks.bulkGet(Arrays.asList(file.getLocalId(), oldParent.getLocalId(), newParent.getLocalId()));
+				for(Lock lock : locks) lock.lock();
+				try
+				{
+					// Rename is typically atomic on Linux, so systems will use it as a way of doing atomic writes by overriding destination
+					try { getPath(newPath).trash(); }
+					catch(NoSuchElementException e) { /* destination didn't exist, which is fine */ }
+				
+					if(!oldParent.equals(newParent))
+					{
+						newParent.addChild(file);
+						oldParent.removeChild(file);
+					}
+				
+					if(!oldName.equals(newName))
+					{
+						file.setTitle(newName);
+					}
+				}
+				finally
+				{
+					for(Lock lock : locks) lock.unlock();
+				}
 			
-			if(!oldParent.equals(newParent))
+				return 0;
+			}
+			catch(NoSuchElementException e)
 			{
-				newParent.addChild(file);
-				oldParent.removeChild(file);
+				return -ErrorCodes.ENOENT();
 			}
-			
-			if(!oldName.equals(newName))
+			catch(IOException e)
 			{
-				file.setTitle(newName);
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
 			}
-			
-			return 0;
-		}
-		catch(NoSuchElementException e)
-		{
-			return -ErrorCodes.ENOENT();
 		}
-		catch(IOException e)
+		finally
 		{
-			e.printStackTrace();
-			return -ErrorCodes.EIO();
+			end("rename", started);
 		}
 	}
 
 	@Override
 	public int rmdir(final String path)
 	{
+		long started = begin("rmdir", path);
 		try
 		{
-			File directory = getPath(path);
-			if(!directory.isDirectory()) return -ErrorCodes.ENOTDIR();
+			if(control.contains(path)) return -ErrorCodes.EACCES();
+			try
+			{
+				File directory = getPath(path);
+				if(!directory.isDirectory()) return -ErrorCodes.ENOTDIR();
 			
-			if(directory.getParents().size() > 1) getParentPath(path).removeChild(directory);
-			else
+				if(directory.getParents().size() > 1) getParentPath(path).removeChild(directory);
+				else
+				{
+					// TODO: Decide what to do if parent is in trash, maybe add drive root as parent?
+					directory.trash();
+				}
+				return 0;
+			}
+			catch(NoSuchElementException e)
 			{
-				// TODO: Decide what to do if parent is in trash, maybe add drive root as parent?
-				directory.trash();
+				return -ErrorCodes.ENOENT();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
 			}
-			return 0;
 		}
-		catch(NoSuchElementException e)
+		finally
 		{
-			return -ErrorCodes.ENOENT();
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-			return -ErrorCodes.EIO();
+			end("rmdir", started);
 		}
 	}
 
 	@Override
 	public int truncate(final String path, final long offset)
 	{
-		// TODO: verify that the file at path is writable, in
-		// accordance w/ man pages. Perhaps this is always the case?
-		try {
-			getPath(path).truncate(offset);
-			FileWriteCollector collector = openFiles.get(path);
-			if (collector != null) {
-				collector.truncate(offset);
+		long started = begin("truncate", path);
+		try
+		{
+			if(control.contains(path)) return control.isWritable(path) ? 0 : -ErrorCodes.EACCES();
+			// TODO: verify that the file at path is writable, in
+			// accordance w/ man pages. Perhaps this is always the case?
+			try {
+				File file = getPath(path);
+				FileWriteCollector collector = openFiles.get(file);
+				if (collector == null) {
+					file.truncate(offset);
+				} else {
+					synchronized(collector) {
+						file.truncate(offset);
+						collector.truncate(offset);
+					}
+				}
+			} catch (NoSuchElementException e) {
+				return -ErrorCodes.ENOENT();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
-			return -ErrorCodes.EIO();
+			return 0;
+		}
+		finally
+		{
+			end("truncate", started);
 		}
-		return 0;
 	}
 
 	@Override
 	public int unlink(final String path)
 	{
+		long started = begin("unlink", path);
 		try
 		{
-			File file = getPath(path);
-			if(file.getParents().size() > 1) getParentPath(path).removeChild(file);
-			else
+			if(control.contains(path)) return -ErrorCodes.EACCES();
+			try
 			{
-				// TODO: Decide what to do if parent is in trash, maybe add drive root as parent?
-				System.out.println("unlink " + file.getTitle());
-				file.trash();
+				File file = getPath(path);
+				if(file.getParents().size() > 1) getParentPath(path).removeChild(file);
+				else
+				{
+					// TODO: Decide what to do if parent is in trash, maybe add drive root as parent?
+					System.out.println("unlink " + file.getTitle());
+					file.trash();
+				}
+				return 0;
+			}
+			catch(NoSuchElementException e)
+			{
+				return -ErrorCodes.ENOENT();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
 			}
-			return 0;
-		}
-		catch(NoSuchElementException e)
-		{
-			return -ErrorCodes.ENOENT();
 		}
-		catch(IOException e)
+		finally
 		{
-			e.printStackTrace();
-			return -ErrorCodes.EIO();
+			end("unlink", started);
 		}
 	}
 	
 	@Override
-	public synchronized int write(final String path, final ByteBuffer buf, final long bufSize, final long writeOffset, final FileInfoWrapper wrapper)
+	public int write(final String path, final ByteBuffer buf, final long bufSize, final long writeOffset, final FileInfoWrapper wrapper)
 	{
-		// Sanity check
-		if(wrapper.fh() == 0) throw new Error("File handle for "+path+" should be non-zero");
-		
-		FileWriteCollector collector = openFiles.get(fileHandles.get(wrapper.fh()));
+		long started = begin("write", path);
 		try
 		{
-			if(collector == null)
+			if(control.isOpen(wrapper.fh())) return writeControl(path, buf, bufSize);
+			// Sanity check
+			if(wrapper.fh() == 0) throw new Error("File handle for "+path+" should be non-zero");
+		
+			FileHandle handle = fileHandles.get(wrapper.fh());
+			if(handle == null) return -ErrorCodes.EBADF();
+			File file = handle.getFile();
+			FileWriteCollector collector = null;
+			try
 			{
-				collector = new FileWriteCollector(fileHandles.get(wrapper.fh()), path.substring(path.lastIndexOf('/')+1));
-				openFiles.put(fileHandles.get(wrapper.fh()), collector);
+				while(true)
+				{
+					collector = collectorFor(file, handle.getName());
+					synchronized(collector)
+					{
+						// A flush may have retired this collector while we were waiting for it
+						if(openFiles.get(file) != collector) continue;
+						collector.write(writeOffset, buf, bufSize);
+						return (int)bufSize;
+					}
+				}
+			}
+			catch(NoSuchElementException e)
+			{
+				retire(file, collector);
+				return -ErrorCodes.ENOENT();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				retire(file, collector);
+				return -ErrorCodes.EIO();
 			}
-			
-			collector.write(writeOffset, buf, bufSize);
-			
-			return (int)bufSize;
-		}
-		catch(NoSuchElementException e)
-		{
-			try{collector.getFile();}
-			catch(Throwable t){t.printStackTrace();}
-			openFiles.remove(path);
-			return -ErrorCodes.ENOENT();
 		}
-		catch(IOException e)
+		finally
 		{
-			e.printStackTrace();
-			try{collector.getFile();}
-			catch(Throwable t){t.printStackTrace();}
-			openFiles.remove(path);
-			return -ErrorCodes.EIO();
+			end("write", started);
 		}
 	}
 	
 	@Override
-	public synchronized int flush(String path, FileInfoWrapper info)
+	public int flush(String path, FileInfoWrapper info)
 	{
-		File f = fileHandles.get(info.fh());
-		if (f == null) {
-			return ErrorCodes.EBADF(); // bad fd
-		}
-		FileWriteCollector collector = openFiles.get(f);
-        if(collector == null) {
-        	// then there's definitely nothing to flush
-            return 0;
-        }
+		long started = begin("flush", path);
 		try
 		{
-			collector.flushCurrentFragmentToDb();
-			f.update(false);
-			openFiles.remove(f);
-			collector.getFile(); // TODO: Getters shouldn't have visible side effects; consider adding a close() or flush() method.
-			return 0;
+			if(control.isOpen(info.fh())) return 0;
+			FileHandle handle = fileHandles.get(info.fh());
+			if (handle == null) {
+				return ErrorCodes.EBADF(); // bad fd
+			}
+			File f = handle.getFile();
+			FileWriteCollector collector = openFiles.get(f);
+	        if(collector == null) {
+	        	// then there's definitely nothing to flush
+	            return 0;
+	        }
+			try
+			{
+				synchronized(collector)
+				{
+					// Somebody else flushed (and retired) this collector while we were waiting for it
+					if(openFiles.get(f) != collector) return 0;
+					collector.flushCurrentFragmentToDb();
+					f.update(false);
+					openFiles.remove(f, collector);
+					collector.getFile(); // TODO: Getters shouldn't have visible side effects; consider adding a close() or flush() method.
+				}
+				return 0;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
+			}
+			catch(RuntimeException e)
+			{
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
+			}
 		}
-		catch(IOException e)
+		finally
 		{
-			e.printStackTrace();
-			return -ErrorCodes.EIO();
+			end("flush", started);
 		}
-		catch(RuntimeException e)
+	}
+
+	private FileHandle openHandle(File file, String path)
+	{
+		FileHandle handle = new FileHandle(nextFileHandleId.getAndIncrement(), file, path.substring(path.lastIndexOf('/')+1));
+		fileHandles.put(handle.getId(), handle);
+		return handle;
+	}
+
+	/** The collector buffering the file's unflushed writes, creating one if there isn't one yet **/
+	private FileWriteCollector collectorFor(File file, String name) throws IOException
+	{
+		FileWriteCollector collector = openFiles.get(file);
+		if(collector != null) return collector;
+		collector = new FileWriteCollector(file, name);
+		FileWriteCollector existing = openFiles.putIfAbsent(file, collector);
+		return existing != null ? existing : collector;
+	}
+
+	/** Drops a collector whose writes failed **/
+	private void retire(File file, @Nullable FileWriteCollector collector)
+	{
+		if(collector == null) return;
+		synchronized(collector)
 		{
-			e.printStackTrace();
-			return -ErrorCodes.EIO();
+			try{collector.getFile();}
+			catch(Throwable t){t.printStackTrace();}
 		}
+		openFiles.remove(file, collector);
 	}
 
 	@Override
 	public int fsync(String path, int datasync, FileInfoWrapper info)
 	{
-		return flush(path, info);
+		long started = begin("fsync", path);
+		try
+		{
+			return flush(path, info);
+		}
+		finally
+		{
+			end("fsync", started);
+		}
 	}
 
 	@Override
 	public int getxattr(final String path, final String xattr, final XattrFiller filler, final long size, final long position)
 	{
-		return super.getxattr(path, xattr, filler, size, position);
-		/*
-		if (!path.equals(filename)) {
-			return -ErrorCodes.firstNonNull(ErrorCodes.ENOATTR(), ErrorCodes.ENOATTR(), ErrorCodes.ENODATA());
+		if(!PINNED_XATTR.equals(xattr) || control.contains(path)) return super.getxattr(path, xattr, filler, size, position);
+		try
+		{
+			if(!drive.getPins().isPinnedDirectly(getPath(path))) return -ErrorCodes.firstNonNull(ErrorCodes.ENOATTR(), ErrorCodes.ENODATA());
+			filler.set("1".getBytes());
+			return 0;
 		}
-		if (!helloTxtAttrs.containsKey(xattr)) {
-			return -ErrorCodes.firstNonNull(ErrorCodes.ENOATTR(), ErrorCodes.ENOATTR(), ErrorCodes.ENODATA());
+		catch(NoSuchElementException e)
+		{
+			return -ErrorCodes.ENOENT();
+		}
+		catch(IOException e)
+		{
+			logger.warn("Could not read "+xattr+" of "+path, e);
+			return -ErrorCodes.EIO();
 		}
-		filler.set(helloTxtAttrs.get(xattr));
-		return 0;
-		*/
 	}
 
 	@Override
 	public int listxattr(final String path, final XattrListFiller filler)
 	{
-		return super.listxattr(path, filler);
-		/*
-		if (!path.equals(filename)) {
-			return -ErrorCodes.ENOTSUP();
+		if(control.contains(path)) return super.listxattr(path, filler);
+		try
+		{
+			if(drive.getPins().isPinnedDirectly(getPath(path))) filler.add(PINNED_XATTR);
+			return 0;
+		}
+		catch(NoSuchElementException e)
+		{
+			return -ErrorCodes.ENOENT();
+		}
+		catch(IOException e)
+		{
+			logger.warn("Could not list attributes of "+path, e);
+			return -ErrorCodes.EIO();
 		}
-		filler.add(helloTxtAttrs.keySet());
-		return 0;
-		*/
 	}
 
 	@Override
 	public int removexattr(final String path, final String xattr)
 	{
-		return super.removexattr(path, xattr);
-		/*
-		if (!path.equals(filename)) {
-			return -ErrorCodes.ENOTSUP();
+		if(!PINNED_XATTR.equals(xattr) || control.contains(path)) return super.removexattr(path, xattr);
+		try
+		{
+			drive.getPins().unpin(getPath(path));
+			return 0;
 		}
-		if (!helloTxtAttrs.containsKey(xattr)) {
-			return -ErrorCodes.ENOATTR();
+		catch(NoSuchElementException e)
+		{
+			return -ErrorCodes.ENOENT();
+		}
+		catch(IOException e)
+		{
+			logger.warn("Could not unpin "+path, e);
+			return -ErrorCodes.EIO();
 		}
-		helloTxtAttrs.remove(xattr);
-		return 0;
-		*/
 	}
 
 	@Override
 	public int setxattr(final String path, final String xattrName, final ByteBuffer buf, final long size, final int flags,
 			final int position)
 	{
-		return super.setxattr(path, xattrName, buf, size, flags, position);
-		/*
-		if (!path.equals(filename)) {
-			return -ErrorCodes.ENOTSUP();
+		if(!PINNED_XATTR.equals(xattrName) || control.contains(path)) return super.setxattr(path, xattrName, buf, size, flags, position);
+		try
+		{
+			drive.getPins().pin(getPath(path));
+			return 0;
 		}
-		byte[] attr;
-		if (!helloTxtAttrs.containsKey(xattr)) {
-			attr = new byte[(int) (size + position)];
-			helloTxtAttrs.put(xattr, attr);
+		catch(NoSuchElementException e)
+		{
+			return -ErrorCodes.ENOENT();
 		}
-		else {
-			attr = helloTxtAttrs.get(xattr);
-			if (attr.length < size + position) {
-				attr = Arrays.copyOf(attr, (int) (size + position));
-			}
+		catch(IOException e)
+		{
+			logger.warn("Could not pin "+path, e);
+			return -ErrorCodes.EIO();
 		}
-		buf.get(attr, position, (int) size);
-		return 0;
-		*/
 	}
 	
 	@Override
 	public int ftruncate(String path, long offset, FileInfoWrapper info)
 	{
-		/*
-		 * N.B. from man pages:
-		 * With  ftruncate(),  the file must be open for writing; with truncate(), the file
-       	 * must be writable.
-		 */
-		if ((info.openMode().getBits() & OpenMode.WRITEONLY.getBits()) > 0) {
-			return truncate(path, offset);
-		} else {
-			return ErrorCodes.EACCES();
+		long started = begin("ftruncate", path);
+		try
+		{
+			/*
+			 * N.B. from man pages:
+			 * With  ftruncate(),  the file must be open for writing; with truncate(), the file
+	       	 * must be writable.
+			 */
+			if ((info.openMode().getBits() & OpenMode.WRITEONLY.getBits()) > 0) {
+				return truncate(path, offset);
+			} else {
+				return ErrorCodes.EACCES();
+			}
+		}
+		finally
+		{
+			end("ftruncate", started);
 		}
 	}
 
@@ -582,21 +912,57 @@ public class GoogleDriveLinuxFs extends FuseFilesystemAdapterAssumeImplemented
 	@Override
 	public int release(String path, FileInfoWrapper info)
 	{
-		File f = fileHandles.remove(info.fh());
-		if (f == null) {
-			return ErrorCodes.EBADF(); // bad fd
-		}
+		long started = begin("release", path);
 		try
 		{
-			f.close();
+			if(control.isOpen(info.fh()))
+			{
+				control.release(info.fh());
+				return 0;
+			}
+			FileHandle handle = fileHandles.remove(info.fh());
+			if (handle == null) {
+				return ErrorCodes.EBADF(); // bad fd
+			}
+			File f = handle.getFile();
+			try
+			{
+				f.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return ErrorCodes.EIO();
+			}
+			// Other handles may still be writing to the file through the same collector
+			for(FileHandle other : fileHandles.values())
+				if(other.getFile().equals(f)) return 0;
+			FileWriteCollector collector = openFiles.get(f);
+			if(collector == null) return 0;
+			try
+			{
+				// A handle opened since the scan above may already be writing through this collector, so flush rather than drop it;
+				// writers check the collector is still current under its monitor, so later writes start a new one.
+				synchronized(collector)
+				{
+					if(openFiles.get(f) != collector) return 0;
+					collector.flushCurrentFragmentToDb();
+					f.update(false);
+					openFiles.remove(f, collector);
+					collector.getFile();
+				}
+				return 0;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return -ErrorCodes.EIO();
+			}
 		}
-		catch(IOException e)
+		finally
 		{
-			e.printStackTrace();
-			return ErrorCodes.EIO();
+			end("release", started);
 		}
-		openFiles.remove(f);
-		return 0;
 	}
 	
 	@Override
@@ -605,7 +971,7 @@ public class GoogleDriveLinuxFs extends FuseFilesystemAdapterAssumeImplemented
 		try
 		{
 			for (FileWriteCollector collector : openFiles.values()) {
-				collector.flushCurrentFragmentToDb();
+				synchronized(collector) { collector.flushCurrentFragmentToDb(); }
 			}
 		}
 		catch(IOException e)
@@ -620,6 +986,63 @@ public class GoogleDriveLinuxFs extends FuseFilesystemAdapterAssumeImplemented
 		synchronized(this) { notifyAll(); }
 	}
 
+	/** Performs a control file's action (see ControlNamespace) **/
+	private int writeControl(String path, ByteBuffer buf, long bufSize)
+	{
+		if(!control.isWritable(path)) return -ErrorCodes.EACCES();
+		byte[] bytes = new byte[(int)bufSize];
+		buf.get(bytes);
+		try
+		{
+			return control.write(path, new String(bytes, "UTF-8")) ? (int)bufSize : -ErrorCodes.EBUSY();
+		}
+		catch(IllegalArgumentException e)
+		{
+			return -ErrorCodes.EINVAL();
+		}
+		catch(NoSuchElementException e)
+		{
+			return -ErrorCodes.ENOENT();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			return -ErrorCodes.EIO();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return -ErrorCodes.EINTR();
+		}
+	}
+
+	/** Reads the whole file (or lists the directory) in the background, so it is cached when it's wanted **/
+	private void prefetch(String path) throws IOException
+	{
+		File file = getPath(path);
+		if(file.isDirectory()) file.considerAsyncDirectoryRefresh(0, TimeUnit.SECONDS, Priority.PREFETCH);
+		else drive.getPins().prefetch(file);
+	}
+
+	/** Tags the remote calls this thread makes as being for the operation (see RemoteCallTracer), and returns the time it started **/
+	private static long begin(String operation, String path)
+	{
+		RemoteCallTracer.enter(Caller.FUSE, operation+" "+path);
+		if(TRACE) RemoteCallTracer.startTrace();
+		return System.nanoTime();
+	}
+
+	private static void end(String operation, long started)
+	{
+		FUSE_LATENCIES.get(operation).recordSince(started);
+		if(TRACE)
+		{
+			List<RemoteCallTracer.Call> calls = RemoteCallTracer.stopTrace();
+			if(!calls.isEmpty()) logger.info("{} took {}us and made {} remote calls: {}", operation, TimeUnit.NANOSECONDS.toMicros(System.nanoTime()-started), calls.size(), calls);
+		}
+		RemoteCallTracer.exit(null);
+	}
+
 	/**
 	 * Hack to support slashes in file names (swap in and out a nearly identical UTF-8 character)
 	 * @param s input string
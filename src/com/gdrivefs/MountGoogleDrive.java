@@ -6,10 +6,17 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -21,10 +28,15 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.fusejna.FuseException;
 import net.fusejna.FuseJna;
 
+import com.gdrivefs.internal.StartupTimer;
+import com.gdrivefs.internal.WorkloadTrace;
+import com.gdrivefs.simplecache.store.MetadataStore;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.auth.oauth2.StoredCredential;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
@@ -38,9 +50,17 @@ import com.google.api.client.util.store.DataStore;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.client.util.store.MemoryDataStoreFactory;
 import com.google.api.services.drive.DriveScopes;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class MountGoogleDrive
 {
+	/** Threads that run the startup phases that can overlap (booting the store, looking up the account, warming the cache) **/
+	private static final Logger logger = LoggerFactory.getLogger(MountGoogleDrive.class);
+	private static final int STARTUP_THREADS = 4;
+	private static final int WARMUP_THREADS = 4;
+	private static final StartupTimer startup = new StartupTimer();
+
 	public static void main(final String... args) throws FuseException, GeneralSecurityException, IOException, InterruptedException, ParseException
 	{
 		Options options = new Options();
@@ -49,6 +69,10 @@ public class MountGoogleDrive
 		options.addOption("d", true, "Specify data directory for internal drive state (default: ~/.googlefs/)");
 		options.addOption("c", true, "Specify cache directory (default is inside the data directory; ~/.googlefs/cache/)");
 		options.addOption("a", true, "Specify auth directory (default is inside the data/auth directory; ~/.googlefs/auth/[emailaddress]/)");
+		options.addOption("p", true, "Poll Google's changes feed every n seconds (default: 30; 0 disables the feed and falls back to re-listing directories)");
+		options.addOption("m", false, "Keep file metadata in memory, persisting it to the data directory in the background");
+		options.addOption("b", false, "Bootstrap: load metadata for the whole drive in the background after mounting (resumes if interrupted)");
+		options.addOption("r", true, "Record every filesystem call to the given file, to replay later (see WorkloadReplayer)");
 		
 		CommandLineParser parser = new BasicParser();
 		CommandLine cmd = parser.parse(options, args);
@@ -77,16 +101,35 @@ public class MountGoogleDrive
 			System.exit(1);
 		}
 
-		HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-
 		java.io.File dataDirectory = cmd.hasOption('d') ? new java.io.File(cmd.getOptionValue('d')) : new java.io.File(System.getProperty("user.home"), ".googlefs");
-		java.io.File authDirectory = cmd.hasOption('a') ? new java.io.File(cmd.getOptionValue('a')) : new java.io.File(dataDirectory, "auth");
+		final java.io.File authDirectory = cmd.hasOption('a') ? new java.io.File(cmd.getOptionValue('a')) : new java.io.File(dataDirectory, "auth");
 		java.io.File cacheDirectory = cmd.hasOption('c') ? new java.io.File(cmd.getOptionValue('c')) : new java.io.File(dataDirectory, "cache");
 		
+		final java.io.File dbdir = new java.io.File(dataDirectory, "/db");
+		dbdir.getParentFile().mkdirs();
+
+		// Boot the metadata store (on a slow disk, the slowest part of startup) while we authenticate
+		final ExecutorService startupExecutor = Executors.newFixedThreadPool(STARTUP_THREADS, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("startup-%d").build());
+		final boolean inMemoryMetadata = cmd.hasOption('m');
+		Future<MetadataStore> store = startupExecutor.submit(new Callable<MetadataStore>()
+		{
+			@Override
+			public MetadataStore call() throws IOException
+			{
+				long started = startup.begin();
+				MetadataStore store = com.gdrivefs.simplecache.Drive.openStore(dbdir, inMemoryMetadata);
+				startup.end("store", started);
+				return store;
+			}
+		});
+
+		long authStarted = startup.begin();
+		final HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+		
 		if(email != null) new java.io.File(authDirectory, email).mkdirs();
 		
 		// Create data store for user's credentials
-		DataStore<StoredCredential> credentialDataStore = new MemoryDataStoreFactory().getDataStore("StoredCredential");
+		final DataStore<StoredCredential> credentialDataStore = new MemoryDataStoreFactory().getDataStore("StoredCredential");
 		
 		// If we know the user's email, attempt to load their credentials
 		if(email != null)
@@ -98,28 +141,105 @@ public class MountGoogleDrive
 		JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 		GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(httpTransport, JSON_FACTORY, "930897891601-4mbqrmuu5osvk7j3vlkv8k59liot620f.apps.googleusercontent.com", "v18DcOoqIvmVgPVtisCijpTV", Collections.singleton(DriveScopes.DRIVE)).setCredentialDataStore(credentialDataStore).build();
 		Credential credential = new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
-		
-		java.io.File dbdir = new java.io.File(dataDirectory, "/db");
-		dbdir.getParentFile().mkdirs();
+		startup.end("auth", authStarted);
 
-		com.google.api.services.drive.Drive remote = new com.google.api.services.drive.Drive.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName("GDrive").build();
-		com.gdrivefs.simplecache.Drive drive = new com.gdrivefs.simplecache.Drive(remote, httpTransport, dbdir);
+		final com.google.api.services.drive.Drive remote = new com.google.api.services.drive.Drive.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName("GDrive").build();
+		final com.gdrivefs.simplecache.Drive drive = new com.gdrivefs.simplecache.Drive(remote, httpTransport, Futures.get(store, IOException.class));
 		
-		// Save the credentials using the account that the user ultimately authenticated with
-		email = remote.about().get().execute().getUser().getEmailAddress();
-		DataStore<StoredCredential> fileStore = new FileDataStoreFactory(new java.io.File(authDirectory, email)).getDataStore("StoredCredential");
-		for(String key : credentialDataStore.keySet()) fileStore.set(key, credentialDataStore.get(key));
+		// Follow the changes feed, so remote changes show up without re-listing directories
+		// (when bootstrapping, the feed is started once the bootstrap has set its cursor)
+		final long changePollSeconds = cmd.hasOption('p') ? Long.parseLong(cmd.getOptionValue('p')) : 30;
+		if(changePollSeconds > 0 && !cmd.hasOption('b')) drive.startTrackingChanges(changePollSeconds, TimeUnit.SECONDS);
 		
 		GoogleDriveLinuxFs filesystem = null;
 		
-		// Create and mount the filesystem
-		filesystem = new GoogleDriveLinuxFs(drive, httpTransport);
+		// Create and mount the filesystem; the root is served from the store (and its snapshot) until the warm-up below refreshes it
+		if(cmd.hasOption('r')) filesystem = new RecordingLinuxFs(drive, httpTransport, new WorkloadTrace.Writer(new java.io.File(cmd.getOptionValue('r'))));
+		else filesystem = new GoogleDriveLinuxFs(drive, httpTransport);
 		filesystem.setLoggingStatus(cmd.hasOption('v'));
+		filesystem.setStartupTimer(startup);
 		filesystem.mount(mountPoint, false);
-			
-		// Warm the cache by prefetching the drive root, which greatly improves the user experience
-		filesystem.getRoot().getChildren();
-		filesystem.getRoot().considerAsyncDirectoryRefresh(1, TimeUnit.HOURS);
+		startup.end("mount", startup.getStarted());
+
+		startupExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Save the credentials using the account that the user ultimately authenticated with
+				long started = startup.begin();
+				try
+				{
+					String account = remote.about().get().setFields("user/emailAddress").execute().getUser().getEmailAddress();
+					DataStore<StoredCredential> fileStore = new FileDataStoreFactory(new java.io.File(authDirectory, account)).getDataStore("StoredCredential");
+					for(String key : credentialDataStore.keySet()) fileStore.set(key, credentialDataStore.get(key));
+					startup.end("credentials", started);
+				}
+				catch(IOException e)
+				{
+					logger.warn("Could not save credentials (you will be asked to authorize again next time)", e);
+				}
+			}
+		});
+		startupExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				long started = startup.begin();
+				try
+				{
+					drive.checkRootId();
+					startup.end("rootId", started);
+				}
+				catch(IOException e)
+				{
+					logger.warn("Could not look up the root folder", e);
+				}
+			}
+		});
+		startupExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Warm the cache by listing the root, and every directory in it, which greatly improves the user experience
+				try
+				{
+					warmUp(drive);
+				}
+				catch(Exception e)
+				{
+					logger.warn("Could not warm the cache", e);
+				}
+				finally
+				{
+					startupExecutor.shutdown();
+				}
+			}
+		});
+		
+		if(cmd.hasOption('b'))
+		{
+			Thread bootstrapper = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						drive.bootstrap(false);
+					}
+					catch(Exception e)
+					{
+						logger.warn("Bootstrap failed (it will resume on the next mount)", e);
+					}
+					if(changePollSeconds > 0) drive.startTrackingChanges(changePollSeconds, TimeUnit.SECONDS);
+				}
+			}, "bootstrap");
+			bootstrapper.setDaemon(true);
+			bootstrapper.start();
+		}
 			
 		// Wait for filesystem to be unmounted by the user
 		synchronized(filesystem)
@@ -128,6 +248,55 @@ public class MountGoogleDrive
 		}
 	}
 	
+	/**
+	 * Lists the root and then, in parallel, each directory in it.  The listings get a pool of their own, since we wait for them here
+	 * (on a startup thread), and they must not queue behind this task or any other startup phase.
+	 */
+	private static void warmUp(com.gdrivefs.simplecache.Drive drive) throws IOException, InterruptedException
+	{
+		long started = startup.begin();
+		com.gdrivefs.simplecache.File root = drive.getRoot();
+		List<com.gdrivefs.simplecache.File> children = root.getChildren();
+		root.considerAsyncDirectoryRefresh(1, TimeUnit.HOURS);
+		startup.end("warmup.root", started);
+
+		ExecutorService executor = Executors.newFixedThreadPool(WARMUP_THREADS, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("warmup-%d").build());
+		try
+		{
+			List<Future<?>> listings = new ArrayList<Future<?>>();
+			for(final com.gdrivefs.simplecache.File child : children)
+			{
+				if(!child.isDirectory()) continue;
+				listings.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws IOException
+					{
+						child.getChildren();
+						return null;
+					}
+				}));
+			}
+			for(Future<?> listing : listings)
+			{
+				try
+				{
+					listing.get();
+				}
+				catch(ExecutionException e)
+				{
+					// One directory failing shouldn't stop the rest being warmed
+					logger.warn("Could not warm the cache", e.getCause());
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		startup.end("warmup.firstLevel", started);
+	}
+	
 	public static String checkArguments(String email, java.io.File mountPoint)
 	{
 		StringBuilder errors = new StringBuilder();
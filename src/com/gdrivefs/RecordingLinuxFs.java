@@ -0,0 +1,305 @@
+package com.gdrivefs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nullable;
+
+import net.fusejna.DirectoryFiller;
+import net.fusejna.StructFuseFileInfo.FileInfoWrapper;
+import net.fusejna.StructStat.StatWrapper;
+import net.fusejna.types.TypeMode.ModeWrapper;
+import net.fusejna.types.TypeMode.NodeType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gdrivefs.internal.WorkloadTrace;
+import com.gdrivefs.internal.WorkloadTrace.Op;
+import com.gdrivefs.simplecache.Drive;
+import com.google.api.client.http.HttpTransport;
+
+/**
+ * A GoogleDriveLinuxFs that records every call made to it (see WorkloadTrace), so the workload can be replayed later.
+ * Only the outermost call is recorded when one operation is implemented with another (eg. fsync with flush).
+ */
+public class RecordingLinuxFs extends GoogleDriveLinuxFs
+{
+	private static final Logger logger = LoggerFactory.getLogger(RecordingLinuxFs.class);
+	/** Recorded as the result of calls that threw **/
+	public static final int THREW = Integer.MIN_VALUE;
+
+	private final WorkloadTrace.Writer trace;
+	private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[1];
+		}
+	};
+
+	public RecordingLinuxFs(Drive drive, HttpTransport transport, WorkloadTrace.Writer trace)
+	{
+		super(drive, transport);
+		this.trace = trace;
+	}
+
+	@Override
+	public int getattr(String path, StatWrapper stat)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.getattr(path, stat);
+		}
+		finally
+		{
+			exit(Op.GETATTR, start, path, null, 0, result == 0 && stat != null && stat.type() == NodeType.DIRECTORY ? -1 : 0, 0, 0, result);
+		}
+	}
+
+	@Override
+	public int readdir(String path, DirectoryFiller filler)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.readdir(path, filler);
+		}
+		finally
+		{
+			exit(Op.READDIR, start, path, null, 0, 0, 0, 0, result);
+		}
+	}
+
+	@Override
+	public int open(String path, FileInfoWrapper info)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.open(path, info);
+		}
+		finally
+		{
+			exit(Op.OPEN, start, path, null, 0, 0, info.fh(), info.flags(), result);
+		}
+	}
+
+	@Override
+	public int create(String path, ModeWrapper mode, FileInfoWrapper info)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.create(path, mode, info);
+		}
+		finally
+		{
+			exit(Op.CREATE, start, path, null, 0, 0, info.fh(), info.flags(), result);
+		}
+	}
+
+	@Override
+	public int read(String path, ByteBuffer buffer, long size, long offset, FileInfoWrapper info)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.read(path, buffer, size, offset, info);
+		}
+		finally
+		{
+			exit(Op.READ, start, path, null, offset, size, info.fh(), 0, result);
+		}
+	}
+
+	@Override
+	public int write(String path, ByteBuffer buf, long bufSize, long writeOffset, FileInfoWrapper info)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.write(path, buf, bufSize, writeOffset, info);
+		}
+		finally
+		{
+			exit(Op.WRITE, start, path, null, writeOffset, bufSize, info.fh(), 0, result);
+		}
+	}
+
+	@Override
+	public int truncate(String path, long offset)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.truncate(path, offset);
+		}
+		finally
+		{
+			exit(Op.TRUNCATE, start, path, null, offset, 0, 0, 0, result);
+		}
+	}
+
+	@Override
+	public int ftruncate(String path, long offset, FileInfoWrapper info)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.ftruncate(path, offset, info);
+		}
+		finally
+		{
+			exit(Op.FTRUNCATE, start, path, null, offset, 0, info.fh(), 0, result);
+		}
+	}
+
+	@Override
+	public int flush(String path, FileInfoWrapper info)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.flush(path, info);
+		}
+		finally
+		{
+			exit(Op.FLUSH, start, path, null, 0, 0, info.fh(), 0, result);
+		}
+	}
+
+	@Override
+	public int fsync(String path, int datasync, FileInfoWrapper info)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.fsync(path, datasync, info);
+		}
+		finally
+		{
+			exit(Op.FSYNC, start, path, null, 0, 0, info.fh(), datasync, result);
+		}
+	}
+
+	@Override
+	public int release(String path, FileInfoWrapper info)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.release(path, info);
+		}
+		finally
+		{
+			exit(Op.RELEASE, start, path, null, 0, 0, info.fh(), 0, result);
+		}
+	}
+
+	@Override
+	public int mkdir(String path, ModeWrapper mode)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.mkdir(path, mode);
+		}
+		finally
+		{
+			exit(Op.MKDIR, start, path, null, 0, 0, 0, 0, result);
+		}
+	}
+
+	@Override
+	public int rmdir(String path)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.rmdir(path);
+		}
+		finally
+		{
+			exit(Op.RMDIR, start, path, null, 0, 0, 0, 0, result);
+		}
+	}
+
+	@Override
+	public int unlink(String path)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.unlink(path);
+		}
+		finally
+		{
+			exit(Op.UNLINK, start, path, null, 0, 0, 0, 0, result);
+		}
+	}
+
+	@Override
+	public int rename(String oldPath, String newPath)
+	{
+		long start = enter();
+		int result = THREW;
+		try
+		{
+			return result = super.rename(oldPath, newPath);
+		}
+		finally
+		{
+			exit(Op.RENAME, start, oldPath, newPath, 0, 0, 0, 0, result);
+		}
+	}
+
+	@Override
+	public void afterUnmount(java.io.File oldMountPoint)
+	{
+		super.afterUnmount(oldMountPoint);
+		try
+		{
+			trace.close();
+		}
+		catch(IOException e)
+		{
+			logger.warn("Could not finish writing the workload trace", e);
+		}
+	}
+
+	private long enter()
+	{
+		depth.get()[0]++;
+		return trace.now();
+	}
+
+	private void exit(Op op, long start, String path, @Nullable String newPath, long offset, long size, long handle, int flags, int result)
+	{
+		if(--depth.get()[0] > 0) return;
+		try
+		{
+			trace.write(op, start, path, newPath, offset, size, handle, flags, result);
+		}
+		catch(IOException e)
+		{
+			logger.warn("Could not record "+op+" "+path, e);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.gdrivefs.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.gdrivefs.simplecache.internal.Metrics;
+
+/**
+ * The hidden /.gdrivefs directory, for operators who can read files but can't attach to the JVM.
+ * Reading stats, latency, cache, pending or queues reports live state; writing to flush triggers a flush, and writing paths (one per line)
+ * to evict, prefetch, pin or unpin does that to each of them.  Reports are built from Metrics and the in-memory caches, so reading them never touches
+ * the database or Google.  The directory isn't listed in the root, and hides any real file of the same name.
+ */
+public class ControlNamespace
+{
+	public static final String DIRECTORY = "/.gdrivefs";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** What the writable control files do; implemented by the filesystem, which knows how to resolve paths **/
+	public interface Actions
+	{
+		void flush() throws InterruptedException;
+
+		/** Drops the cached content of the file; false if it can't be dropped yet (it has changes that haven't reached Google) **/
+		boolean evict(String path) throws IOException;
+
+		/** Starts fetching the file's content (or directory's listing) in the background **/
+		void prefetch(String path) throws IOException;
+
+		/** Keeps the content of the file, or everything under the directory, downloaded (see PinManager) **/
+		void pin(String path) throws IOException;
+
+		void unpin(String path) throws IOException;
+	}
+
+	/** Renders a read-only file **/
+	private interface Report
+	{
+		String render();
+	}
+
+	private final Actions actions;
+	private final PathCache pathCache;
+	private final Map<String, Report> reports = new LinkedHashMap<String, Report>();
+	private final List<String> controls = Arrays.asList("flush", "evict", "prefetch", "pin", "unpin");
+	/** Content of each open report, as it was when opened, so reads of one handle are consistent **/
+	private final ConcurrentMap<Long, byte[]> snapshots = new ConcurrentHashMap<Long, byte[]>();
+
+	public ControlNamespace(Actions actions, PathCache pathCache)
+	{
+		this.actions = actions;
+		this.pathCache = pathCache;
+
+		reports.put("stats", new Report()
+		{
+			@Override
+			public String render()
+			{
+				StringBuilder out = new StringBuilder();
+				for(Map.Entry<String, Long> value : Metrics.get().snapshot().entrySet()) out.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+				return out.toString();
+			}
+		});
+		reports.put("latency", new Report()
+		{
+			@Override
+			public String render()
+			{
+				SortedMap<String, Long> values = Metrics.get().snapshot();
+				StringBuilder out = new StringBuilder(String.format("%-32s %10s %10s %10s %10s%n", "operation", "count", "p50us", "p99us", "maxus"));
+				for(String key : values.keySet())
+				{
+					if(!key.endsWith(".p50Micros")) continue;
+					String name = key.substring(0, key.length()-".p50Micros".length());
+					out.append(String.format("%-32s %10d %10d %10d %10d%n", name, values.get(name+".count"), values.get(name+".p50Micros"),
+							values.get(name+".p99Micros"), values.get(name+".maxMicros")));
+				}
+				return out.toString();
+			}
+		});
+		reports.put("cache", new Report()
+		{
+			@Override
+			public String render()
+			{
+				SortedMap<String, Long> values = Metrics.get().snapshot();
+				long hits = value(values, "cache.hitBytes");
+				long misses = value(values, "cache.missBytes");
+				return "hitBytes "+hits+"\n"
+						+"missBytes "+misses+"\n"
+						+"hitPercent "+(hits+misses == 0 ? 0 : hits*100/(hits+misses))+"\n"
+						+"downloadBytes "+value(values, "download.bytes")+"\n"
+						+"uploadBytes "+value(values, "upload.bytes")+"\n"
+						+"cachedPaths "+ControlNamespace.this.pathCache.size()+"\n";
+			}
+		});
+		reports.put("pending", new Report()
+		{
+			@Override
+			public String render()
+			{
+				SortedMap<String, Long> values = Metrics.get().snapshot();
+				return "operations "+value(values, "updatelog.depth")+"\n"
+						+"oldestMillis "+value(values, "updatelog.ageMillis")+"\n"
+						+"uploadsWaiting "+value(values, "fileUpdater.queue")+"\n";
+			}
+		});
+		reports.put("queues", new Report()
+		{
+			@Override
+			public String render()
+			{
+				StringBuilder out = new StringBuilder();
+				for(Map.Entry<String, Long> value : Metrics.get().snapshot().entrySet())
+					if(value.getKey().endsWith(".queue")) out.append(value.getKey(), 0, value.getKey().length()-".queue".length()).append(' ').append(value.getValue()).append('\n');
+				return out.toString();
+			}
+		});
+	}
+
+	/** True if the path is the control directory or anything in it **/
+	public boolean contains(String path)
+	{
+		return path.equals(DIRECTORY) || path.startsWith(DIRECTORY+"/");
+	}
+
+	public boolean isDirectory(String path)
+	{
+		return path.equals(DIRECTORY) || path.equals(DIRECTORY+"/");
+	}
+
+	public boolean exists(String path)
+	{
+		return isDirectory(path) || reports.containsKey(name(path)) || controls.contains(name(path));
+	}
+
+	public boolean isWritable(String path)
+	{
+		return controls.contains(name(path));
+	}
+
+	public List<String> list()
+	{
+		List<String> names = new ArrayList<String>(reports.keySet());
+		names.addAll(controls);
+		return Collections.unmodifiableList(names);
+	}
+
+	/** Current size of a report (rendering it); control files are always empty **/
+	public long getSize(String path)
+	{
+		Report report = reports.get(name(path));
+		return report == null ? 0 : report.render().getBytes(UTF8).length;
+	}
+
+	/** Takes a snapshot of the report for the handle to read **/
+	public void open(String path, long handle)
+	{
+		Report report = reports.get(name(path));
+		snapshots.put(handle, report == null ? new byte[0] : report.render().getBytes(UTF8));
+	}
+
+	public boolean isOpen(long handle)
+	{
+		return snapshots.containsKey(handle);
+	}
+
+	/** Copies up to size bytes from offset of the handle's snapshot into the buffer, returning the number copied **/
+	public int read(long handle, ByteBuffer buffer, long size, long offset)
+	{
+		byte[] content = snapshots.get(handle);
+		if(content == null || offset >= content.length) return 0;
+		int length = (int)Math.min(size, content.length-offset);
+		buffer.put(content, (int)offset, length);
+		return length;
+	}
+
+	public void release(long handle)
+	{
+		snapshots.remove(handle);
+	}
+
+	/**
+	 * Performs the control file's action with the text written to it.
+	 * @return false if the action couldn't be performed yet (an evicted file still has changes to send)
+	 * @throws IllegalArgumentException if the file isn't writable, or the action needing paths was not given them
+	 */
+	public boolean write(String path, String text) throws IOException, InterruptedException
+	{
+		String name = name(path);
+		if("flush".equals(name))
+		{
+			actions.flush();
+			return true;
+		}
+		if(!controls.contains(name)) throw new IllegalArgumentException("Not a control file: "+path);
+
+		boolean performed = true;
+		for(String line : text.split("\n"))
+		{
+			String target = line.trim();
+			if(target.isEmpty()) continue;
+			if(!target.startsWith("/") || contains(target)) throw new IllegalArgumentException("Expected an absolute path on the drive: "+target);
+			if("evict".equals(name)) performed &= actions.evict(target);
+			else if("prefetch".equals(name)) actions.prefetch(target);
+			else if("pin".equals(name)) actions.pin(target);
+			else actions.unpin(target);
+		}
+		return performed;
+	}
+
+	private static @Nullable String name(String path)
+	{
+		if(!path.startsWith(DIRECTORY+"/")) return null;
+		return path.substring(DIRECTORY.length()+1);
+	}
+
+	private static long value(Map<String, Long> values, String name)
+	{
+		Long value = values.get(name);
+		return value == null ? 0 : value;
+	}
+}
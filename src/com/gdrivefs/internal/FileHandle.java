@@ -0,0 +1,43 @@
+package com.gdrivefs.internal;
+
+import com.gdrivefs.simplecache.File;
+
+/**
+ * State of a single open file handle (one per successful open or create).
+ * Handles are immutable; the write state they share with other handles to the same file lives in that file's FileWriteCollector.
+ */
+public final class FileHandle
+{
+	private final long id;
+	private final File file;
+	private final String name;
+
+	public FileHandle(long id, File file, String name)
+	{
+		this.id = id;
+		this.file = file;
+		this.name = name;
+	}
+
+	public long getId()
+	{
+		return id;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/** Name the file was opened under (the last component of the path) **/
+	public String getName()
+	{
+		return name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FileHandle("+id+", "+name+")";
+	}
+}
@@ -0,0 +1,88 @@
+package com.gdrivefs.internal;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gdrivefs.simplecache.DriveListener;
+import com.gdrivefs.simplecache.File;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers, for a short time, names that were looked up in a directory and not found.
+ * Editors, compilers and shells probe many paths that don't exist (lock files, include paths, .git); this turns each repeat into a hash probe.
+ * A directory's misses are dropped as soon as its children change, locally or through a refresh.
+ */
+public class NegativeLookupCache implements DriveListener
+{
+	private final long ttlMillis;
+	/** Misses by directory (local id), each name mapped to when it stops being trusted **/
+	private final Cache<UUID, ConcurrentMap<String, Long>> misses;
+	private final AtomicLong generation = new AtomicLong();
+
+	public NegativeLookupCache(long ttl, TimeUnit units, int maximumDirectories)
+	{
+		this.ttlMillis = units.toMillis(ttl);
+		this.misses = CacheBuilder.newBuilder().maximumSize(maximumDirectories).expireAfterWrite(ttl, units).build();
+	}
+
+	/** True if the name was recently found to be missing from the directory **/
+	public boolean isMissing(File directory, String name) throws IOException
+	{
+		Map<String, Long> names = misses.getIfPresent(directory.getLocalId());
+		if(names == null) return false;
+		Long expires = names.get(name);
+		if(expires == null) return false;
+		if(expires > System.currentTimeMillis()) return true;
+		names.remove(name);
+		return false;
+	}
+
+	/** Changes whenever any directory's misses are dropped; take it before looking the name up and hand it to putMissing **/
+	public long getGeneration()
+	{
+		return generation.get();
+	}
+
+	/** Records a miss, unless some directory changed since the lookup started (in which case the miss may already be wrong) **/
+	public void putMissing(File directory, String name, long generation) throws IOException
+	{
+		UUID id = directory.getLocalId();
+		ConcurrentMap<String, Long> names = misses.getIfPresent(id);
+		if(names == null)
+		{
+			misses.asMap().putIfAbsent(id, new ConcurrentHashMap<String, Long>());
+			names = misses.getIfPresent(id);
+			if(names == null) return;
+		}
+		names.put(name, System.currentTimeMillis()+ttlMillis);
+
+		// Checked after the put, so a change that raced with us either sees our entry or makes us take it back
+		if(this.generation.get() != generation) names.remove(name);
+	}
+
+	@Override
+	public void childrenChanged(File directory)
+	{
+		generation.incrementAndGet();
+		try
+		{
+			misses.invalidate(directory.getLocalId());
+		}
+		catch(IOException e)
+		{
+			misses.invalidateAll();
+		}
+	}
+
+	@Override
+	public void titleChanged(File file)
+	{
+		// Renaming a child also changes its parents' children (see File.titleChanged), which is what we care about
+	}
+}
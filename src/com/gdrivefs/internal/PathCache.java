@@ -0,0 +1,148 @@
+package com.gdrivefs.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import com.gdrivefs.simplecache.DriveListener;
+import com.gdrivefs.simplecache.File;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Bounded (least recently used) cache of resolved paths.
+ * Each entry remembers every file its resolution passed through, so a change to any of them (a directory's children, or a title)
+ * drops exactly the paths it could affect.  Resolutions that raced with a change are not cached (see getGeneration).
+ */
+public class PathCache implements DriveListener
+{
+	private final int maximumSize;
+	private final LinkedHashMap<String, Entry> paths;
+	private final SetMultimap<UUID, String> pathsThrough = HashMultimap.create();
+	private long generation = 0;
+
+	public PathCache(int maximumSize)
+	{
+		this.maximumSize = maximumSize;
+		this.paths = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+			{
+				if(size() <= PathCache.this.maximumSize) return false;
+				unindex(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	public synchronized @Nullable File get(String path)
+	{
+		Entry entry = paths.get(path);
+		return entry != null ? entry.through.get(entry.through.size()-1) : null;
+	}
+
+	/** Every file the cached resolution of the path passed through, from the root to the file itself; null if not cached **/
+	public synchronized @Nullable List<File> getResolution(String path)
+	{
+		Entry entry = paths.get(path);
+		return entry != null ? entry.through : null;
+	}
+
+	/** Changes whenever anything is invalidated; take it before resolving a path and hand it to put **/
+	public synchronized long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * @param through every file the resolution passed through, from the root to the file itself
+	 * @param generation the generation from before the path was resolved; if anything has been invalidated since, the path is not cached
+	 */
+	public synchronized void put(String path, List<File> through, long generation) throws IOException
+	{
+		if(generation != this.generation) return;
+		Entry previous = paths.remove(path);
+		if(previous != null) unindex(path, previous);
+
+		ImmutableList.Builder<UUID> ids = ImmutableList.builder();
+		for(File file : through) ids.add(file.getLocalId());
+		Entry entry = new Entry(ImmutableList.copyOf(through), ids.build());
+		for(UUID id : entry.ids) pathsThrough.put(id, path);
+		paths.put(path, entry);
+	}
+
+	public synchronized int size()
+	{
+		return paths.size();
+	}
+
+	public synchronized void clear()
+	{
+		paths.clear();
+		pathsThrough.clear();
+		generation++;
+	}
+
+	@Override
+	public void childrenChanged(File directory)
+	{
+		invalidate(directory);
+	}
+
+	@Override
+	public void titleChanged(File file)
+	{
+		invalidate(file);
+	}
+
+	private void invalidate(File file)
+	{
+		UUID id;
+		try
+		{
+			id = file.getLocalId();
+		}
+		catch(IOException e)
+		{
+			// Can't tell which paths are affected, so drop them all
+			clear();
+			return;
+		}
+
+		synchronized(this)
+		{
+			generation++;
+			for(String path : new ArrayList<String>(pathsThrough.get(id)))
+			{
+				Entry entry = paths.remove(path);
+				if(entry != null) unindex(path, entry);
+			}
+		}
+	}
+
+	private void unindex(String path, Entry entry)
+	{
+		for(UUID id : entry.ids) pathsThrough.remove(id, path);
+	}
+
+	private static class Entry
+	{
+		final List<File> through;
+		final List<UUID> ids;
+
+		Entry(List<File> through, List<UUID> ids)
+		{
+			this.through = through;
+			this.ids = ids;
+		}
+	}
+}
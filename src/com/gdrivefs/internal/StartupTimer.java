@@ -0,0 +1,61 @@
+package com.gdrivefs.internal;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gdrivefs.simplecache.internal.Metrics;
+
+/**
+ * Times the phases of mounting, which run partly in parallel, and how long after startup the first directory listing was served.
+ * Each phase is logged and recorded in Metrics as startup.<phase> (so it also shows up in /.gdrivefs/stats).
+ */
+public class StartupTimer
+{
+	private static final Logger logger = LoggerFactory.getLogger(StartupTimer.class);
+
+	private final long started = System.nanoTime();
+	private final AtomicBoolean listed = new AtomicBoolean(false);
+	/** Duration of each phase that has finished, in milliseconds, in the order they finished **/
+	private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+
+	/** When the timer was created, ie. (near enough) when the process started **/
+	public long getStarted()
+	{
+		return started;
+	}
+
+	/** Returns the start time to pass to end **/
+	public long begin()
+	{
+		return System.nanoTime();
+	}
+
+	public void end(String phase, long phaseStarted)
+	{
+		long now = System.nanoTime();
+		Metrics.get().histogram("startup."+phase).record(now-phaseStarted);
+		long millis = TimeUnit.NANOSECONDS.toMillis(now-phaseStarted);
+		phases.put(phase, millis);
+		logger.info("Startup phase {} took {}ms (done {}ms after start)", phase, millis, TimeUnit.NANOSECONDS.toMillis(now-started));
+	}
+
+	/** Records the time from startup to the first directory listing served; later listings are ignored **/
+	public void listed()
+	{
+		if(listed.compareAndSet(false, true)) end("firstReaddir", started);
+	}
+
+	public Map<String, Long> getPhases()
+	{
+		synchronized(phases)
+		{
+			return new LinkedHashMap<String, Long>(phases);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.gdrivefs.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Compact binary trace of the calls applications made to a mount, written by RecordingLinuxFs and read back to replay them.
+ *
+ * A trace is a header followed by records.  Paths are written once, the first time they are seen, and referred to by number after that;
+ * numbers are written as variable-length integers, so the common small values (offsets of zero, short deltas) take a single byte.
+ * Records are written as calls finish, so they are not in order of start time.
+ */
+public final class WorkloadTrace
+{
+	private static final int MAGIC = 0x47444654; // "GDFT"
+	private static final int VERSION = 1;
+	/** Record type introducing a path (as opposed to a call, which is written as Op.ordinal()+1) **/
+	private static final int PATH = 0;
+
+	/** The FUSE operations that are recorded **/
+	public enum Op
+	{
+		GETATTR, READDIR, OPEN, CREATE, READ, WRITE, TRUNCATE, FTRUNCATE, FLUSH, FSYNC, RELEASE, MKDIR, RMDIR, UNLINK, RENAME
+	}
+
+	/**
+	 * One call.  Which fields are meaningful depends on the operation: offset and size for reads and writes (and the offset of truncates),
+	 * handle for everything done through an open file (and the handle opened by open and create), flags for open and create
+	 * (and datasync for fsync).
+	 * For getattr, size is -1 if the path turned out to be a directory.
+	 */
+	public static final class Call
+	{
+		public final Op op;
+		/** When the call started and how long it took, in microseconds since the trace began **/
+		public final long startMicros;
+		public final long elapsedMicros;
+		public final String path;
+		/** Only set for rename **/
+		public final @Nullable String newPath;
+		public final long offset;
+		public final long size;
+		public final long handle;
+		public final int flags;
+		/** What the call returned: a byte count for reads and writes, zero or a negated errno otherwise **/
+		public final int result;
+
+		public Call(Op op, long startMicros, long elapsedMicros, String path, @Nullable String newPath, long offset, long size, long handle, int flags, int result)
+		{
+			this.op = op;
+			this.startMicros = startMicros;
+			this.elapsedMicros = elapsedMicros;
+			this.path = path;
+			this.newPath = newPath;
+			this.offset = offset;
+			this.size = size;
+			this.handle = handle;
+			this.flags = flags;
+			this.result = result;
+		}
+
+		@Override
+		public String toString()
+		{
+			return op.name().toLowerCase()+" "+path+(newPath == null ? "" : " "+newPath)+" offset="+offset+" size="+size+" fh="+handle+" -> "+result;
+		}
+	}
+
+	private WorkloadTrace()
+	{
+	}
+
+	/** Appends calls to a trace file; safe to call from many threads **/
+	public static final class Writer implements Closeable
+	{
+		private final DataOutputStream out;
+		private final long startNanos = System.nanoTime();
+		private final Map<String, Integer> paths = new HashMap<String, Integer>();
+		private long previousStart = 0;
+
+		public Writer(java.io.File file) throws IOException
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1<<16));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+		}
+
+		/** Microseconds since the trace began; the clock calls are timed against **/
+		public long now()
+		{
+			return (System.nanoTime()-startNanos)/1000;
+		}
+
+		public synchronized void write(Op op, long startMicros, String path, @Nullable String newPath, long offset, long size, long handle, int flags, int result) throws IOException
+		{
+			int pathId = pathId(path);
+			int newPathId = newPath == null ? 0 : pathId(newPath);
+			out.writeByte(op.ordinal()+1);
+			writeVarLong(out, zigzag(startMicros-previousStart));
+			writeVarLong(out, now()-startMicros);
+			writeVarLong(out, pathId);
+			if(op == Op.RENAME) writeVarLong(out, newPathId);
+			writeVarLong(out, zigzag(offset));
+			writeVarLong(out, zigzag(size));
+			writeVarLong(out, handle);
+			writeVarLong(out, flags & 0xffffffffL);
+			writeVarLong(out, zigzag(result));
+			previousStart = startMicros;
+		}
+
+		public synchronized void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		@Override
+		public synchronized void close() throws IOException
+		{
+			out.close();
+		}
+
+		private int pathId(String path) throws IOException
+		{
+			Integer id = paths.get(path);
+			if(id != null) return id;
+			id = paths.size()+1;
+			paths.put(path, id);
+			out.writeByte(PATH);
+			writeVarLong(out, id);
+			out.writeUTF(path);
+			return id;
+		}
+	}
+
+	/** Reads calls back, in the order they were written **/
+	public static final class Reader implements Closeable
+	{
+		private final DataInputStream in;
+		private final Map<Integer, String> paths = new HashMap<Integer, String>();
+		private long previousStart = 0;
+
+		public Reader(java.io.File file) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16));
+			if(in.readInt() != MAGIC) throw new IOException("Not a workload trace: "+file);
+			int version = in.readUnsignedByte();
+			if(version != VERSION) throw new IOException("Unsupported trace version "+version+": "+file);
+		}
+
+		/** The next call, or null at the end of the trace **/
+		public @Nullable Call next() throws IOException
+		{
+			int type;
+			while(true)
+			{
+				type = in.read();
+				if(type < 0) return null;
+				if(type != PATH) break;
+				int id = (int)readVarLong(in);
+				paths.put(id, in.readUTF());
+			}
+			if(type > Op.values().length) throw new IOException("Corrupt trace: unknown record type "+type);
+
+			Op op = Op.values()[type-1];
+			long start = previousStart+unzigzag(readVarLong(in));
+			long elapsed = readVarLong(in);
+			String path = path((int)readVarLong(in));
+			String newPath = op == Op.RENAME ? path((int)readVarLong(in)) : null;
+			long offset = unzigzag(readVarLong(in));
+			long size = unzigzag(readVarLong(in));
+			long handle = readVarLong(in);
+			int flags = (int)readVarLong(in);
+			int result = (int)unzigzag(readVarLong(in));
+			previousStart = start;
+			return new Call(op, start, elapsed, path, newPath, offset, size, handle, flags, result);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			in.close();
+		}
+
+		private String path(int id) throws IOException
+		{
+			String path = paths.get(id);
+			if(path == null) throw new IOException("Corrupt trace: undefined path "+id);
+			return path;
+		}
+	}
+
+	private static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException
+	{
+		while((value & ~0x7fL) != 0)
+		{
+			out.writeByte((int)(value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException
+	{
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.read();
+			if(b < 0) throw new EOFException("Truncated trace");
+			value |= (long)(b & 0x7f) << shift;
+			if((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Corrupt trace: variable-length number too long");
+	}
+}
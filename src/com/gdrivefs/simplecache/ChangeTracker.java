@@ -0,0 +1,191 @@
+package com.gdrivefs.simplecache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gdrivefs.simplecache.internal.RemoteCallTracer;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer.Caller;
+import com.gdrivefs.simplecache.store.FileRecord;
+import com.gdrivefs.simplecache.store.MetadataStore;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.ParentReference;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the cache up-to-date by following Google's changes feed, applying only what changed
+ * (to the metadata store and to any File objects in memory) instead of re-listing directories.
+ *
+ * The feed cursor is persisted in the metadata store, so changes made while we were unmounted are picked up on the next poll.
+ * Cached state fetched before we started following the feed (or while the feed is failing) is not covered,
+ * and continues to be refreshed by the per-directory polling in File.
+ */
+class ChangeTracker
+{
+	private static final Logger logger = LoggerFactory.getLogger(ChangeTracker.class);
+
+	/** Id of the next change we have yet to apply **/
+	static final String CURSOR_PROPERTY = "changes.nextChangeId";
+	/** Time (millis) from which the feed has been followed; state cached before this isn't covered **/
+	static final String TRACKED_SINCE_PROPERTY = "changes.trackedSince";
+	/** If this many polls in a row fail, stop vouching for the cache and fall back to polling directories **/
+	private static final int MAX_MISSED_POLLS = 5;
+
+	private final Drive drive;
+	private final long periodMillis;
+	private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("change-tracker").setDaemon(true).build());
+	private volatile long trackedSince = Long.MAX_VALUE;
+	private volatile long lastSuccessfulPoll = 0;
+
+	ChangeTracker(Drive drive, long period, TimeUnit units)
+	{
+		this.drive = drive;
+		this.periodMillis = units.toMillis(period);
+	}
+
+	void start()
+	{
+		poller.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				RemoteCallTracer.Context previous = RemoteCallTracer.enter(Caller.CHANGES, "poll");
+				try
+				{
+					poll();
+				}
+				catch(Exception e)
+				{
+					logger.warn("Unable to poll the changes feed", e);
+				}
+				finally
+				{
+					RemoteCallTracer.exit(previous);
+				}
+			}
+		}, 0, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	void stop()
+	{
+		poller.shutdownNow();
+	}
+
+	/** True if cached state fetched at the given time is being kept up-to-date by the feed **/
+	boolean covers(@Nullable Date asof)
+	{
+		if(asof == null) return false;
+		if(System.currentTimeMillis()-lastSuccessfulPoll > MAX_MISSED_POLLS*periodMillis) return false;
+		return asof.getTime() >= trackedSince;
+	}
+
+	/** Applies every change since the last poll **/
+	void poll() throws IOException
+	{
+		MetadataStore store = drive.getStore();
+		String cursor = store.getProperty(CURSOR_PROPERTY);
+		String since = store.getProperty(TRACKED_SINCE_PROPERTY);
+
+		if(cursor == null || since == null)
+		{
+			// First time following the feed; start from the current change
+			long now = System.currentTimeMillis();
+			long next = drive.getRemote().getLargestChangeId()+1;
+			store.setProperty(TRACKED_SINCE_PROPERTY, Long.toString(now));
+			store.setProperty(CURSOR_PROPERTY, Long.toString(next));
+			trackedSince = now;
+			lastSuccessfulPoll = now;
+			logger.info("Following changes feed from change {}", next);
+			return;
+		}
+
+		trackedSince = Long.parseLong(since);
+		long next = Long.parseLong(cursor);
+		String pageToken = null;
+		int applied = 0;
+		do
+		{
+			Date asof = new Date();
+			ChangeList page = drive.getRemote().getChanges(next, pageToken);
+			long pageNext = next;
+			if(page.getItems() != null) for(Change change : page.getItems())
+			{
+				apply(change, asof);
+				applied++;
+				pageNext = Math.max(pageNext, change.getId()+1);
+			}
+
+			pageToken = page.getNextPageToken();
+			if((pageToken == null || pageToken.isEmpty()) && page.getLargestChangeId() != null) pageNext = Math.max(pageNext, page.getLargestChangeId()+1);
+			if(pageNext != next) store.setProperty(CURSOR_PROPERTY, Long.toString(pageNext));
+			next = pageNext;
+		} while(pageToken != null && !pageToken.isEmpty());
+
+		lastSuccessfulPoll = System.currentTimeMillis();
+		if(applied > 0) logger.debug("Applied {} changes; next change is {}", applied, next);
+	}
+
+	private void apply(Change change, Date asof) throws IOException
+	{
+		MetadataStore store = drive.getStore();
+		String id = change.getFileId();
+		com.google.api.services.drive.model.File remoteFile = change.getFile();
+		boolean removed = Boolean.TRUE.equals(change.getDeleted()) || remoteFile == null
+				|| (remoteFile.getLabels() != null && Boolean.TRUE.equals(remoteFile.getLabels().getTrashed()));
+
+		List<String> oldParents = store.getParentIds(id);
+		List<String> newParents = new ArrayList<String>();
+		if(!removed && remoteFile.getParents() != null)
+			for(ParentReference parent : remoteFile.getParents()) newParents.add(parent.getId());
+
+		// Nothing in the cache refers to this file, so there is nothing to update
+		if(!store.hasFile(id) && oldParents.isEmpty() && !anyListed(store, newParents)) return;
+
+		if(removed)
+		{
+			store.removeFile(id);
+		}
+		else
+		{
+			store.setParentIds(id, newParents);
+			drive.getFile(remoteFile, asof);
+			drive.getPins().changed(id);
+		}
+
+		// Directories that gained or lost this file need their in-memory listing rebuilt from the store (each takes its own lock)
+		Set<String> affected = new HashSet<String>(oldParents);
+		affected.addAll(newParents);
+		for(String parent : oldParents) if(newParents.contains(parent)) affected.remove(parent);
+		for(String parentId : affected)
+		{
+			File parent = drive.googleFiles.getIfPresent(parentId);
+			if(parent != null) parent.invalidateChildren();
+		}
+		File file = drive.googleFiles.getIfPresent(id);
+		if(file != null) file.invalidateParents();
+	}
+
+	/** True if any of the directories have had their children listed (and so are expected to be complete) **/
+	private static boolean anyListed(MetadataStore store, List<String> directories)
+	{
+		for(String directory : directories)
+		{
+			FileRecord record = store.getFile(directory);
+			if(record != null && record.getChildrenRefreshed() != null) return true;
+		}
+		return false;
+	}
+}
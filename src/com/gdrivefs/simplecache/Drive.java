@@ -3,17 +3,38 @@ package com.gdrivefs.simplecache;
 import java.io.Closeable;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
 
-import org.apache.derby.jdbc.ClientDriver;
-import org.apache.derby.jdbc.EmbeddedDriver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.gdrivefs.simplecache.internal.DriveExecutorService;
+import com.gdrivefs.simplecache.internal.HedgedDownloader;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.RefreshScheduler;
+import com.gdrivefs.simplecache.internal.RefreshScheduler.Priority;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer.Caller;
+import com.gdrivefs.simplecache.internal.RemoteExecutor;
+import com.gdrivefs.simplecache.store.DerbyMetadataStore;
+import com.gdrivefs.simplecache.store.MemoryMetadataStore;
+import com.gdrivefs.simplecache.store.MetadataStore;
+import com.gdrivefs.simplecache.store.SnapshotMetadataStore;
+import com.gdrivefs.simplecache.store.PendingOperation;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.services.drive.model.Property;
 import com.google.common.base.Supplier;
@@ -21,10 +42,8 @@ import com.google.common.base.Suppliers;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.jimsproch.sql.Database;
-import com.jimsproch.sql.IllegalOperationError;
-import com.jimsproch.sql.MemoryDatabase;
 
 /**
  * Represents a cached version of the GoogleDrive for a particular user.
@@ -36,7 +55,11 @@ import com.jimsproch.sql.MemoryDatabase;
  */
 public class Drive implements Closeable
 {
-	private Database db;
+	/** Id of the user's root folder, as last reported by Google **/
+	static final String ROOT_ID_PROPERTY = "rootId";
+	private static final Pattern LOCAL_ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+	private MetadataStore store;
     private HttpTransport transport;
 	private RemoteDriveWrapper remote;
     Logger logger = LoggerFactory.getLogger(Drive.class);
@@ -45,110 +68,95 @@ public class Drive implements Closeable
 	LoadingCache<UUID, File> unsyncedFiles;
 
 	DriveExecutorService logPlayer = new DriveExecutorService();
-	DriveExecutorService fileUpdateWorker = new DriveExecutorService(new ThreadFactoryBuilder().setDaemon(true).build());
+	/** Background refreshes; sized with the gdrivefs.refresh.threads and gdrivefs.refresh.queueSize system properties **/
+	final RefreshScheduler refreshScheduler = new RefreshScheduler(Integer.getInteger("gdrivefs.refresh.threads", 2),
+			Integer.getInteger("gdrivefs.refresh.queueSize", 10000), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gdrivefs-refresh-%d").build());
+
+	/**
+	 * Throttles and retries every request to Google.  The default rate sits just under Drive's default quota of 1000 requests per 100 seconds;
+	 * tune with the gdrivefs.remote.qps, gdrivefs.remote.metadataThreads, gdrivefs.remote.downloadThreads and gdrivefs.remote.uploadThreads system properties.
+	 */
+	final RemoteExecutor remoteExecutor = new RemoteExecutor(Double.parseDouble(System.getProperty("gdrivefs.remote.qps", "9.5")),
+			Integer.getInteger("gdrivefs.remote.metadataThreads", 8), Integer.getInteger("gdrivefs.remote.downloadThreads", 4),
+			Integer.getInteger("gdrivefs.remote.uploadThreads", 2), 8, 500, 32000);
+	/** Hedges range downloads slower than the 95th percentile of the last 200, spending at most one extra request per 20 downloads **/
+	final HedgedDownloader downloader = new HedgedDownloader(200, 0.95, 2000, 0.05, 5);
 
-	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/** Guards the identity maps above; never held while taking a file's lock or doing network io **/
+	private final Object filesLock = new Object();
+	private volatile ChangeTracker changeTracker;
+	private final List<DriveListener> listeners = new CopyOnWriteArrayList<DriveListener>();
+	/** When each pending operation in the update log was appended (or, for those left from a previous run, when we started) **/
+	private final ConcurrentSkipListMap<Long, Long> pendingSince = new ConcurrentSkipListMap<Long, Long>();
+	/** Local ids of the files each pending operation refers to, and how many pending operations refer to each file **/
+	private final ConcurrentMap<Long, List<String>> pendingFiles = new ConcurrentHashMap<Long, List<String>>();
+	private final ConcurrentHashMultiset<String> pendingFileCounts = ConcurrentHashMultiset.create();
+	private final Map<String, Metrics.Gauge> gauges = new LinkedHashMap<String, Metrics.Gauge>();
+	private final PinManager pins;
 	
+	/** The root's id is remembered across mounts, so the root can be listed from the store before Google has been asked for it **/
 	Supplier<String> rootId = Suppliers.memoize(new Supplier<String>(){
 		@Override
 		public String get()
 		{
+			String id = getStore().getProperty(ROOT_ID_PROPERTY);
+			if(id != null) return id;
 			try
 			{
-				return getRemote().getRootFileId();
+				id = getRemote().getRootFileId();
 			}
 			catch(IOException e2)
 			{
 				throw new RuntimeException(e2);
 			}
+			getStore().setProperty(ROOT_ID_PROPERTY, id);
+			return id;
 		}});
 	
 	public Drive(com.google.api.services.drive.Drive remote, HttpTransport transport)
 	{
-		this(remote, transport, createMemoryDatabase());
+		this(remote, transport, DerbyMetadataStore.open(DerbyMetadataStore.MEMORY_URL_PREFIX+"gdrivefs-"+UUID.randomUUID()));
 	}
 	
 	public Drive(com.google.api.services.drive.Drive remote, HttpTransport transport, java.io.File dbdir)
 	{
-		this(remote, transport, createDiskDatabase(dbdir));
+		this(remote, transport, openSnapshotStore(dbdir));
 	}
 	
-	private static Database createMemoryDatabase()
+	/**
+	 * @param inMemoryMetadata - if true, the full metadata working set is held in memory and persisted to the database in the background
+	 *                           (through a write-ahead log that lives next to the database directory); otherwise the hot part of the
+	 *                           tree is cached, and snapshotted next to the database directory so it is warm after a restart
+	 */
+	public Drive(com.google.api.services.drive.Drive remote, HttpTransport transport, java.io.File dbdir, boolean inMemoryMetadata) throws IOException
 	{
-		MemoryDatabase db = new MemoryDatabase();
-		
-		buildTables(db);
-		
-		return db;
+		this(remote, transport, openStore(dbdir, inMemoryMetadata));
 	}
 	
-	private static Database createDiskDatabase(java.io.File dbdir)
+	/** Opens the store the dbdir constructors would, so it can be booted (eg. in parallel with authentication) before the drive is created **/
+	public static MetadataStore openStore(java.io.File dbdir, boolean inMemoryMetadata) throws IOException
 	{
-		try { Class.forName(ClientDriver.class.getCanonicalName()); }
-		catch(ClassNotFoundException e) { throw new Error(); }
-		
-		Database db = new Database(EmbeddedDriver.class.getCanonicalName(), "jdbc:derby:"+dbdir.getAbsolutePath()+";create=true", "APP", "APP", "VALUES 1");
-		
-		buildTables(db);
-		
-		return db;
+		return inMemoryMetadata ? openMemoryStore(dbdir) : openSnapshotStore(dbdir);
 	}
 	
-	private static void buildTables(Database db)
+	private static MetadataStore openSnapshotStore(java.io.File dbdir)
 	{
-		try
-		{
-			db.execute("CREATE TABLE FILES("
-					+ "ID VARCHAR(255), "
-					+ "LOCALID CHAR(36) NOT NULL, "
-					+ "TITLE VARCHAR(255) NOT NULL, "
-					+ "MIMETYPE VARCHAR(255) NOT NULL, "
-					+ "MD5HEX CHAR(32), "
-					+ "SIZE BIGINT, "
-					+ "MTIME TIMESTAMP, "
-					+ "DOWNLOADURL CLOB, "
-					+ "METADATAREFRESHED TIMESTAMP, "
-					+ "CHILDRENREFRESHED TIMESTAMP, "
-					+ "PARENTSREFRESHED TIMESTAMP"
-					+ ")");
-			
-			db.execute("CREATE TABLE RELATIONSHIPS(PARENT VARCHAR(255), CHILD VARCHAR(255))");
-
-			db.execute("CREATE TABLE FRAGMENTS(LOCALID CHAR(36) NOT NULL, "
-					+ "FILEMD5 CHAR(32), "
-					+ "CHUNKMD5 CHAR(32) NOT NULL, "
-					+ "STARTBYTE BIGINT NOT NULL, "
-					+ "ENDBYTE BIGINT NOT NULL)");
-			
-			// UPDATELOG contains operations that have logically happened on the local 
-			// memory model but may not have been synced with Google's servers.
-			// The persistent database tables represent the state of the world,
-			// and the memory model represents the logical state of localhost (the difference is stored in this table)
-			// When updating the memory model, you must select from the other tables and then iterate over this table 
-			// to replay changes that have yet to be sync'd
-			// Rows from this table may be played somewhat out of order 
-			// (eg. uploads take a long time and might be delayed, while deletes might happen immediately), though in-order is ideal)
-			// so long as it doesn't break any individual file's logical view of the world
-			// ID allows the table to be sorted by logical event ID for replaying, isdone indicates
-			// if Google should be aware of the change, and details stores details of the task
-			db.execute("CREATE TABLE UPDATELOG(ID INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1), COMMAND VARCHAR(64), ISDONE SMALLINT DEFAULT 0, DETAILS CLOB)");
+		DerbyMetadataStore derby = DerbyMetadataStore.open("jdbc:derby:"+dbdir.getAbsolutePath());
+		return new SnapshotMetadataStore(derby, new java.io.File(dbdir.getAbsoluteFile().getParentFile(), dbdir.getName()+".snapshot"));
+	}
 	
-			db.execute("CREATE UNIQUE INDEX FILE_ID ON FILES(ID)");
-			db.execute("CREATE UNIQUE INDEX RELATIONSHIPS_CHILD_PARENT ON RELATIONSHIPS(CHILD, PARENT)");
-	//		db.execute("CREATE INDEX FRAGMENTS_FILEMD5 ON FRAGMENTS(FILEMD5)");
-		}
-		catch(IllegalOperationError e)
-		{
-			if(e.getCause().getMessage().contains("already exists in Schema")) /* do nothing */;
-			else throw e;
-		}
+	private static MetadataStore openMemoryStore(java.io.File dbdir) throws IOException
+	{
+		DerbyMetadataStore derby = DerbyMetadataStore.open("jdbc:derby:"+dbdir.getAbsolutePath());
+		SnapshotMetadataStore.discardSnapshot(derby);
+		return new MemoryMetadataStore(derby, new java.io.File(dbdir.getAbsoluteFile().getParentFile(), dbdir.getName()+".wal"));
 	}
 	
-	public Drive(com.google.api.services.drive.Drive remote, HttpTransport transport, Database db)
+	public Drive(com.google.api.services.drive.Drive remote, HttpTransport transport, MetadataStore store)
 	{
-		this.remote = new RemoteDriveWrapper(this, remote);
+		this.remote = new RemoteDriveWrapper(this, remote, remoteExecutor, downloader);
 		this.transport = transport;
-		this.db = db;
+		this.store = store;
 
 		java.io.File home = new java.io.File(System.getProperty("user.home"), ".googlefs");
 		new java.io.File(home, "cache").mkdirs();
@@ -171,6 +179,63 @@ public class Drive implements Closeable
 				return null;
 			}
 		});
+
+		long now = System.currentTimeMillis();
+		for(PendingOperation operation : store.peekPendingOperations(Integer.MAX_VALUE)) trackPendingOperation(operation.getId(), now, operation.getDetails());
+		pins = new PinManager(this);
+		registerGauges();
+	}
+
+	/** Publishes the depth of this drive's queues (replacing those of any drive opened before it) **/
+	private void registerGauges()
+	{
+		gauges.put("updatelog.depth", new Metrics.Gauge(){
+			@Override
+			public long get()
+			{
+				return pendingSince.size();
+			}});
+		gauges.put("updatelog.ageMillis", new Metrics.Gauge(){
+			@Override
+			public long get()
+			{
+				Map.Entry<Long, Long> oldest = pendingSince.firstEntry();
+				return oldest == null ? 0 : System.currentTimeMillis()-oldest.getValue();
+			}});
+		gauges.put("logPlayer.queue", new Metrics.Gauge(){
+			@Override
+			public long get()
+			{
+				return logPlayer.getQueueSize();
+			}});
+		gauges.put("fileUpdater.queue", new Metrics.Gauge(){
+			@Override
+			public long get()
+			{
+				return ((ThreadPoolExecutor)File.updaterService).getQueue().size();
+			}});
+		gauges.put("pin.count", new Metrics.Gauge(){
+			@Override
+			public long get()
+			{
+				return pins.getPinnedIds().size();
+			}});
+		gauges.put("refresh.queue", new Metrics.Gauge(){
+			@Override
+			public long get()
+			{
+				return refreshScheduler.getQueueDepth();
+			}});
+		for(final RemoteExecutor.Pool pool : RemoteExecutor.Pool.values())
+			gauges.put("remote."+pool.name().toLowerCase()+".queue", new Metrics.Gauge(){
+				@Override
+				public long get()
+				{
+					return remoteExecutor.getQueueDepth(pool);
+				}});
+
+		for(Map.Entry<String, Metrics.Gauge> gauge : gauges.entrySet()) Metrics.get().gauge(gauge.getKey(), gauge.getValue());
+		Metrics.get().exportToJmx();
 	}
 	
 	RemoteDriveWrapper getRemote()
@@ -178,10 +243,81 @@ public class Drive implements Closeable
 		return remote;
 	}
 	
-	Database getDatabase()
+	MetadataStore getStore()
+	{
+		if(store == null) throw new IllegalStateException("Can not fetch metadata store after drive is closed");
+		return store;
+	}
+	
+	/**
+	 * Starts following Google's changes feed, polling it at the given interval.
+	 * Once tracking, directories no longer need to be periodically re-listed to pick up remote changes.
+	 */
+	public synchronized void startTrackingChanges(long period, TimeUnit units)
+	{
+		if(changeTracker != null) return;
+		changeTracker = new ChangeTracker(this, period, units);
+		changeTracker.start();
+	}
+	
+	/** Pinned files and directories, whose content is kept downloaded **/
+	public PinManager getPins()
+	{
+		return pins;
+	}
+	
+	@Nullable ChangeTracker getChangeTracker()
+	{
+		return changeTracker;
+	}
+	
+	public void addListener(DriveListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	public void removeListener(DriveListener listener)
+	{
+		listeners.remove(listener);
+	}
+	
+	void fireChildrenChanged(File directory)
+	{
+		for(DriveListener listener : listeners) listener.childrenChanged(directory);
+	}
+	
+	void fireTitleChanged(File file)
+	{
+		for(DriveListener listener : listeners) listener.titleChanged(file);
+	}
+	
+	/**
+	 * Loads metadata for the whole drive in bulk (see DriveBootstrap), resuming an interrupted bootstrap if there is one.
+	 * Does nothing if a previous bootstrap completed and the changes feed has kept the cache current since, unless force is set.
+	 * Does network io for a long time on large drives; call it from a background thread.
+	 */
+	public void bootstrap(boolean force) throws IOException
+	{
+		if(!force && DriveBootstrap.isCurrent(getStore())) return;
+		new DriveBootstrap(this).run();
+	}
+	
+	/** Number of background refreshes waiting for a worker **/
+	public int getRefreshQueueDepth()
+	{
+		return refreshScheduler.getQueueDepth();
+	}
+	
+	/** True if any change made locally has yet to be sent to Google **/
+	public boolean hasPendingOperations()
 	{
-		if(db == null) throw new IllegalStateException("Can not fetch database connection after drive is closed");
-		return db;
+		return !pendingSince.isEmpty();
+	}
+	
+	/** True if a local change to the given file (its content, metadata, or place in the tree) has yet to be sent to Google **/
+	public boolean hasPendingOperations(File file) throws IOException
+	{
+		return pendingFileCounts.contains(file.getLocalId().toString());
 	}
 	
 	public boolean isShutdown()
@@ -191,32 +327,36 @@ public class Drive implements Closeable
 	
 	public File getRoot() throws IOException
 	{
-		lock.readLock().lock();
-		try
+		String rootId = this.rootId.get();
+		synchronized(filesLock)
 		{
-			String rootId = this.rootId.get();
 			File rootFile = googleFiles.getIfPresent(rootId);
 			if(rootFile != null) return rootFile;
 			rootFile = File.fromGoogleId(this, rootId);
 			googleFiles.put(rootId, rootFile);
 			return rootFile;
 		}
-		finally
-		{
-			lock.readLock().unlock();
-		}
+	}
+	
+	/**
+	 * Asks Google for the root's id and remembers it for the next mount.  Returns false if it differs from the id this drive is using
+	 * (ie. the store was last used with another account), in which case the root only changes on the next mount.
+	 */
+	public boolean checkRootId() throws IOException
+	{
+		String id = getRemote().getRootFileId();
+		if(!id.equals(getStore().getProperty(ROOT_ID_PROPERTY))) getStore().setProperty(ROOT_ID_PROPERTY, id);
+		if(id.equals(rootId.get())) return true;
+		logger.warn("Root folder is now {} (was {}); remount to pick it up", id, rootId.get());
+		return false;
 	}
 	
 	File getFile(final com.google.api.services.drive.model.File remoteFile, final Date asof) throws IOException
 	{
-		lock.readLock().lock();
-		try
+		File file;
+		synchronized(filesLock)
 		{
-			if(lock.getReadLockCount() == 0 && !lock.isWriteLockedByCurrentThread()) {
-				throw new Error("Read or write lock required");
-			}
-			
-			File file = googleFiles.getIfPresent(remoteFile.getId());
+			file = googleFiles.getIfPresent(remoteFile.getId());
 			if(file == null && remoteFile.getProperties() != null) {
 				for(Property property : remoteFile.getProperties())
 				{
@@ -248,48 +388,25 @@ public class Drive implements Closeable
 				file = File.fromGoogleId(this, remoteFile.getId());
 				googleFiles.put(remoteFile.getId(), file);
 			}
+		}
 			
-			// Now the file is guaranteed to exist, to be in the google cache, and not in the unsynced map.
-			// TODO (smacke): googleid seems sort of decoupled from the rest
-			// of the metadata now; should we fix this?
-//			if (file.googleFileId == null) {
-//				file.googleFileId = remoteFile.getId();
-//			} else if (!file.googleFileId.equals(remoteFile.getId())) {
-//				throw new Error("file id mismatch!");
-//			}
+		// Now the file is guaranteed to exist, to be in the google cache, and not in the unsynced map.
+		// TODO (smacke): googleid seems sort of decoupled from the rest
+		// of the metadata now; should we fix this?
+//		if (file.googleFileId == null) {
+//			file.googleFileId = remoteFile.getId();
+//		} else if (!file.googleFileId.equals(remoteFile.getId())) {
+//			throw new Error("file id mismatch!");
+//		}
 			
-			lock.readLock().lock();
+		// If we have a invalid cache, we can refresh, otherwise schedule an async refresh.
+		final File fileReference = file;
+		if(!file.metadata.get().isInited())
+		{
+			file.lock.readLock();
 			try
 			{
-				// If we have a invalid cache, we can refresh, otherwise schedule an async refresh.
-				final File fileReference = file;
-				if(!file.metadata.get().isInited())
-				{
-					file.refresh(remoteFile, asof);
-				}
-				else
-				{
-					fileUpdateWorker.execute(new Runnable()
-					{
-						@Override
-						public void run()
-						{
-							lock.writeLock().lock();
-							try
-							{
-								fileReference.refresh(remoteFile, asof);
-							}
-							catch(IOException | SQLException e)
-							{
-								throw new RuntimeException(e);
-							}
-							finally
-							{
-								lock.writeLock().unlock();
-							}
-						}
-					});
-				}
+				file.refresh(remoteFile, asof);
 			}
 			catch(SQLException e)
 			{
@@ -297,51 +414,56 @@ public class Drive implements Closeable
 			}
 			finally
 			{
-				lock.readLock().unlock();
+				file.lock.readUnlock();
 			}
-			
-			return file;
 		}
-		finally
+		else
 		{
-			lock.readLock().unlock();
+			file.scheduleRefresh("metadata", Priority.NORMAL, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					fileReference.lock.writeLock();
+					try
+					{
+						fileReference.refresh(remoteFile, asof);
+					}
+					catch(IOException | SQLException e)
+					{
+						throw new RuntimeException(e);
+					}
+					finally
+					{
+						fileReference.lock.writeUnlock();
+					}
+				}
+			});
 		}
-		
+			
+		return file;
 	}
 	
 	File getCachedFile(String googleId)
 	{
-		lock.readLock().lock();
-		try
+		if (googleId == null) {
+			throw new Error("Can't get cached file for null googleid");
+		}
+		synchronized(filesLock)
 		{
-			if(lock.getReadLockCount() == 0 && !lock.isWriteLockedByCurrentThread()) {
-				throw new Error("Read or write lock required");
-			}
-			if (googleId == null) {
-				throw new Error("Can't get cached file for null googleid");
-			}
 			File file = googleFiles.getIfPresent(googleId);
 			if(file != null) return file;
 			file = File.fromGoogleId(this, googleId);
 			googleFiles.put(googleId, file);
 			return file;
 		}
-		finally
-		{
-			lock.readLock().unlock();
-		}
 	}
 	
 	File getFile(UUID id) throws IOException
 	{
-		lock.readLock().lock();
-		try
+		String googleId = File.getGoogleId(this, id);
+		synchronized(filesLock)
 		{
-			if(lock.getReadLockCount() == 0 && !lock.isWriteLockedByCurrentThread()) {
-				throw new Error("Read or write lock required");
-			}
-			String googleId = File.getGoogleId(this, id);
-			
 			if(googleId != null)
 			{
 				File file = googleFiles.getIfPresent(googleId);
@@ -368,10 +490,6 @@ public class Drive implements Closeable
 			unsyncedFiles.invalidate(id);
 			return file;
 		}
-		finally
-		{
-			lock.readLock().unlock();
-		}
 	}
 	
 	HttpTransport getTransport()
@@ -380,6 +498,29 @@ public class Drive implements Closeable
 		return transport;
 	}
 	
+	void appendPendingOperation(String command, String... details)
+	{
+		trackPendingOperation(getStore().appendPendingOperation(command, details), System.currentTimeMillis(), details);
+	}
+
+	void removePendingOperation(long id)
+	{
+		getStore().removePendingOperation(id);
+		pendingSince.remove(id);
+		List<String> files = pendingFiles.remove(id);
+		if(files != null) for(String file : files) pendingFileCounts.remove(file);
+	}
+
+	/** Operations refer to files by local id, alongside other details (titles, sizes, md5s) that never look like one **/
+	private void trackPendingOperation(long id, long since, String... details)
+	{
+		List<String> files = new ArrayList<String>();
+		for(String detail : details)
+			if(detail != null && detail.length() == 36 && LOCAL_ID.matcher(detail).matches()) files.add(detail);
+		if(pendingFiles.putIfAbsent(id, files) == null) pendingFileCounts.addAll(files);
+		pendingSince.put(id, since);
+	}
+
 	void pokeLogPlayer()
 	{
 		final Drive drive = this;
@@ -394,9 +535,17 @@ public class Drive implements Closeable
 					{
 						try
 						{
-							synchronized(logPlayer)
+							RemoteCallTracer.Context previous = RemoteCallTracer.enter(Caller.LOG_REPLAY, "");
+							try
+							{
+								synchronized(logPlayer)
+								{
+									if(!logPlayer.isShutdown()) File.playLogEntryOnRemote(drive);
+								}
+							}
+							finally
 							{
-								if(!logPlayer.isShutdown()) File.playLogEntryOnRemote(drive);
+								RemoteCallTracer.exit(previous);
 							}
 						}
 						catch(IOException e)
@@ -429,27 +578,31 @@ public class Drive implements Closeable
 	@Override
 	public void close() throws IOException
 	{
-		if(db == null) return; // already closed
+		if(store == null) return; // already closed
 		logger.info("Closing drive: {}", this);
 		
+		if(changeTracker != null) changeTracker.stop();
+		pins.close();
 		logPlayer.shutdownNow();
-		fileUpdateWorker.shutdownNow();
+		refreshScheduler.shutdownNow();
 		
 		try
 		{
 			// Wait up to a minute for the logPlayer.
-			// If the logPlayer finished in less than six seconds, give the fileUpdateWorker up to those six seconds to finish.
+			// If the logPlayer finished in less than six seconds, give the refresh workers up to those six seconds to finish.
 			long end = System.currentTimeMillis()+30*1000;
 			logPlayer.awaitTermination(60, TimeUnit.SECONDS);
-			fileUpdateWorker.awaitTermination(Math.max(end-System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+			refreshScheduler.awaitTermination(Math.max(end-System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
 		}
 		catch(InterruptedException e)
 		{
 			e.printStackTrace();
 		}
+		remoteExecutor.shutdownNow();
+		for(Map.Entry<String, Metrics.Gauge> gauge : gauges.entrySet()) Metrics.get().removeGauge(gauge.getKey(), gauge.getValue());
 		
-		db.close();
-		db = null;
+		store.close();
+		store = null;
 		logger.info("Drive closed: {}", this);
 	}
 }
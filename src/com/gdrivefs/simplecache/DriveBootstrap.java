@@ -0,0 +1,193 @@
+package com.gdrivefs.simplecache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gdrivefs.simplecache.store.FileRecord;
+import com.gdrivefs.simplecache.store.MetadataStore;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+import com.google.api.services.drive.model.Property;
+
+/**
+ * Loads the metadata of every file in the drive by paging through a single listing, rather than discovering directories one at a time.
+ * Once the listing is complete, every directory is marked as fresh as of the moment the listing started,
+ * and the changes feed cursor is set to that moment so nothing that changed during the listing is lost.
+ *
+ * Progress is saved after each page, so an interrupted bootstrap resumes where it left off the next time it is run.
+ */
+class DriveBootstrap
+{
+	private static final Logger logger = LoggerFactory.getLogger(DriveBootstrap.class);
+
+	/** Token of the next page to load, while a bootstrap is in progress **/
+	static final String PAGE_TOKEN_PROPERTY = "bootstrap.pageToken";
+	/** Time (millis) the in-progress bootstrap started; everything it loads is considered fresh as of this time **/
+	static final String STARTED_PROPERTY = "bootstrap.startedAt";
+	/** First change the in-progress bootstrap may have missed **/
+	static final String CHANGE_ID_PROPERTY = "bootstrap.changeId";
+	/** Start time (millis) of the last bootstrap that ran to completion **/
+	static final String COMPLETED_PROPERTY = "bootstrap.completedAt";
+
+	private final Drive drive;
+	private volatile long filesLoaded = 0;
+	private volatile int pagesLoaded = 0;
+
+	DriveBootstrap(Drive drive)
+	{
+		this.drive = drive;
+	}
+
+	/** True if a bootstrap has completed, and the changes feed has been keeping it current since **/
+	static boolean isCurrent(MetadataStore store)
+	{
+		return store.getProperty(COMPLETED_PROPERTY) != null && store.getProperty(STARTED_PROPERTY) == null && store.getProperty(ChangeTracker.CURSOR_PROPERTY) != null;
+	}
+
+	long getFilesLoaded()
+	{
+		return filesLoaded;
+	}
+
+	void run() throws IOException
+	{
+		MetadataStore store = drive.getStore();
+		String started = store.getProperty(STARTED_PROPERTY);
+		if(started != null)
+		{
+			String pageToken = store.getProperty(PAGE_TOKEN_PROPERTY);
+			logger.info("Resuming bootstrap started at {}", new Date(Long.parseLong(started)));
+			try
+			{
+				load(new Date(Long.parseLong(started)), pageToken);
+				return;
+			}
+			catch(GoogleJsonResponseException e)
+			{
+				// Page tokens don't last forever; start over
+				if(pageToken == null || e.getStatusCode() != 400) throw e;
+				logger.info("Could not resume bootstrap ({}); starting over", e.getMessage());
+			}
+		}
+
+		Date snapshot = new Date();
+		store.setProperty(CHANGE_ID_PROPERTY, Long.toString(drive.getRemote().getLargestChangeId()+1));
+		store.setProperty(PAGE_TOKEN_PROPERTY, null);
+		store.setProperty(STARTED_PROPERTY, Long.toString(snapshot.getTime()));
+		load(snapshot, null);
+	}
+
+	private void load(Date snapshot, @Nullable String pageToken) throws IOException
+	{
+		MetadataStore store = drive.getStore();
+
+		// The root isn't part of any listing
+		store(Collections.singletonList(drive.getRemote().getFileMetadata(drive.rootId.get())), snapshot);
+
+		do
+		{
+			FileList page = drive.getRemote().listAllFiles(pageToken);
+			if(page.getItems() != null) store(page.getItems(), snapshot);
+			pageToken = page.getNextPageToken() != null && !page.getNextPageToken().isEmpty() ? page.getNextPageToken() : null;
+			store.setProperty(PAGE_TOKEN_PROPERTY, pageToken);
+			pagesLoaded++;
+			logger.info("Bootstrap loaded {} files ({} pages)", filesLoaded, pagesLoaded);
+		} while(pageToken != null);
+
+		finish(snapshot);
+	}
+
+	/** Writes one page of files and their parents in bulk **/
+	private void store(List<com.google.api.services.drive.model.File> remoteFiles, Date snapshot)
+	{
+		MetadataStore store = drive.getStore();
+		List<FileRecord> records = new ArrayList<FileRecord>(remoteFiles.size());
+		Map<String, List<String>> parentIds = new HashMap<String, List<String>>();
+		for(com.google.api.services.drive.model.File remoteFile : remoteFiles)
+		{
+			FileRecord existing = store.getFile(remoteFile.getId());
+
+			// Someone fetched a newer copy while we were listing
+			if(existing != null && existing.getMetadataRefreshed() != null && existing.getMetadataRefreshed().after(snapshot)) continue;
+
+			UUID localId = existing != null ? existing.getLocalId() : store.getLocalId(remoteFile.getId());
+			if(localId == null)
+			{
+				UUID createdLocally = getGdrivefsId(remoteFile);
+				// Created here, and the log player hasn't caught up with it yet; it will bind the ids when it does
+				if(createdLocally != null && store.getGoogleId(createdLocally) == null) continue;
+				localId = UUID.randomUUID();
+			}
+
+			records.add(new FileRecord(remoteFile.getId(), localId, remoteFile.getTitle(), remoteFile.getMimeType(),
+					remoteFile.getMd5Checksum(), remoteFile.getFileSize(),
+					remoteFile.getModifiedDate() != null ? new Date(remoteFile.getModifiedDate().getValue()) : null, remoteFile.getDownloadUrl(),
+					snapshot, existing != null ? existing.getChildrenRefreshed() : null, snapshot));
+
+			List<String> parents = new ArrayList<String>();
+			if(remoteFile.getParents() != null) for(ParentReference parent : remoteFile.getParents()) parents.add(parent.getId());
+			parentIds.put(remoteFile.getId(), parents);
+		}
+		store.putFiles(records, parentIds);
+		filesLoaded += records.size();
+	}
+
+	private static @Nullable UUID getGdrivefsId(com.google.api.services.drive.model.File remoteFile)
+	{
+		if(remoteFile.getProperties() != null)
+			for(Property property : remoteFile.getProperties())
+				if("com.gdrivefs.id".equals(property.getKey())) return UUID.fromString(property.getValue());
+		if(remoteFile.getDescription() != null && remoteFile.getDescription().startsWith("gdrivefsid="))
+			return UUID.fromString(remoteFile.getDescription().substring("gdrivefsid=".length()));
+		return null;
+	}
+
+	/** Drops files the listing didn't return, marks every directory fresh, and hands over to the changes feed **/
+	private void finish(Date snapshot)
+	{
+		MetadataStore store = drive.getStore();
+		List<String> directories = store.getGoogleIdsWithMimeType(File.MIME_FOLDER);
+
+		Set<String> stale = new LinkedHashSet<String>();
+		for(String directory : directories)
+			for(String child : store.getChildIds(directory))
+			{
+				FileRecord record = store.getFile(child);
+				if(record == null || record.getMetadataRefreshed() == null || record.getMetadataRefreshed().before(snapshot)) stale.add(child);
+			}
+		for(String file : stale) store.removeFile(file);
+
+		for(String directory : directories)
+			if(!stale.contains(directory)) store.setChildrenRefreshed(directory, snapshot);
+
+		// Changes made while we were listing are picked up by the feed, starting from when we began
+		long changeId = Long.parseLong(store.getProperty(CHANGE_ID_PROPERTY));
+		String cursor = store.getProperty(ChangeTracker.CURSOR_PROPERTY);
+		if(cursor == null || Long.parseLong(cursor) <= changeId)
+		{
+			String trackedSince = store.getProperty(ChangeTracker.TRACKED_SINCE_PROPERTY);
+			if(cursor == null) store.setProperty(ChangeTracker.CURSOR_PROPERTY, Long.toString(changeId));
+			if(trackedSince == null || Long.parseLong(trackedSince) > snapshot.getTime()) store.setProperty(ChangeTracker.TRACKED_SINCE_PROPERTY, Long.toString(snapshot.getTime()));
+		}
+
+		store.setProperty(COMPLETED_PROPERTY, Long.toString(snapshot.getTime()));
+		store.setProperty(STARTED_PROPERTY, null);
+		store.setProperty(PAGE_TOKEN_PROPERTY, null);
+		store.setProperty(CHANGE_ID_PROPERTY, null);
+		logger.info("Bootstrap complete: {} files, {} directories, {} stale entries removed", filesLoaded, directories.size(), stale.size());
+	}
+}
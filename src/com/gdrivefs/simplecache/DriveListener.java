@@ -0,0 +1,14 @@
+package com.gdrivefs.simplecache;
+
+/**
+ * Notified of changes to the shape of the cached tree, so caches built on top of it (eg. of path lookups) can be invalidated.
+ * Callbacks may be made while file locks are held, so implementations must be quick and must not call back into the drive.
+ */
+public interface DriveListener
+{
+	/** Children were added to or removed from the directory, or its listing was reloaded **/
+	void childrenChanged(File directory);
+
+	/** The file's title changed, locally or remotely **/
+	void titleChanged(File file);
+}
@@ -10,16 +10,22 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -30,6 +36,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.gdrivefs.ConflictingOperationInProgressException;
+import com.gdrivefs.simplecache.internal.LockStats;
+import com.gdrivefs.simplecache.internal.ProfiledLock;
+import com.gdrivefs.simplecache.internal.RefreshScheduler.Priority;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer.Caller;
+import com.gdrivefs.simplecache.store.FileRecord;
+import com.gdrivefs.simplecache.store.PendingOperation;
 import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
@@ -37,10 +50,9 @@ import com.google.api.services.drive.model.Property;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.jimsproch.sql.Database;
-import com.jimsproch.sql.DatabaseRow;
-import com.jimsproch.sql.Transaction;
-import com.thoughtworks.xstream.XStream;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * File represents a particular remote file (as represented by Google's file ID),
@@ -54,22 +66,38 @@ public class File implements Closeable
 
 	public static final String MIME_FOLDER = "application/vnd.google-apps.folder";
 	private static final int MAX_UPDATE_THREADS = 5;
+	private static final LockStats UPLOAD_LOCK_STATS = new LockStats("upload");
 	static ExecutorService updaterService = Executors.newFixedThreadPool(MAX_UPDATE_THREADS);
 	private static long WRITE_THRESHOLD_MILLIS = 10000;
+	/** Attribute snapshots older than this are still served, but are re-read from the store in the background **/
+	private static final long ATTRIBUTES_REVALIDATE_MILLIS = 30000;
 
-	@Nullable String googleFileId;
-	UUID localFileId;
+	@Nullable volatile String googleFileId;
+	volatile UUID localFileId;
 	final Drive drive;
 	FileContent content;
 
+	// Guards all of the below; see FileLock for the rules on holding more than one file's lock
+	final FileLock lock;
+
 	// Cache (null indicates field must be fetched from db)
-	DuplicateRejectingList children;
-	DuplicateRejectingList parents;
-	Date childrenAsOfDate;
-	Date parentsAsOfDate;
-	AtomicReference<SimpleFileMetadata> metadata;
+	volatile DuplicateRejectingList children;
+	volatile DuplicateRejectingList parents;
+	volatile Date childrenAsOfDate;
+	volatile Date parentsAsOfDate;
+	// Immutable snapshot, replaced whole so getters can read it without locking; changes are made under the write lock, while
+	// re-reads from the store (readBasicMetadata) may race under the read lock and so swap it in with compareAndSet
+	final AtomicReference<SimpleFileMetadata> metadata;
+	// Snapshot of metadata for stat calls, replaced whenever metadata changes; null until metadata is first read
+	private volatile FileAttributes attributes;
+
+	// Children by title, built on demand; stale once childIndexVersion has moved past the version it was built at
+	private volatile ChildIndex childIndex;
+	private final AtomicLong childIndexVersion = new AtomicLong();
+	// Directories whose child index includes this file, and so must be told when our title changes
+	private final Set<File> indexedBy = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
 	
-	final ReentrantLock uploadLock = new ReentrantLock();
+	final ReentrantLock uploadLock = new ProfiledLock(UPLOAD_LOCK_STATS);
 	final ExponentialBackOff uploadBackoff = new ExponentialBackOff.Builder()
 		    .setInitialIntervalMillis(500)
 		    .setMaxElapsedTimeMillis(900000)
@@ -109,14 +137,9 @@ public class File implements Closeable
 	public static File fromGoogleId(Drive drive, String googleId) {
 		Preconditions.checkNotNull(drive);
 		Preconditions.checkNotNull(googleId);
-		UUID localFileId;
-		try {
-			localFileId = drive.getDatabase().getUuid("SELECT LOCALID FROM FILES WHERE ID=?", googleId);
-		} catch (NoSuchElementException e) {
-			/* proceed with random uuid; TODO: Parse from description */
-			localFileId = UUID.randomUUID();
-		}
-		return new File(drive, localFileId, googleId);
+		UUID localFileId = drive.getStore().getLocalId(googleId);
+		/* if absent, proceed with random uuid; TODO: Parse from description */
+		return new File(drive, localFileId != null ? localFileId : UUID.randomUUID(), googleId);
 	}
 
 	private File(Drive drive, UUID localFileId, String googleId) {
@@ -129,14 +152,16 @@ public class File implements Closeable
 		Preconditions.checkNotNull(id);
 		this.drive = drive;
 		this.localFileId = id;
+		this.lock = new FileLock(id);
 		SimpleFileMetadata simpleMetadata = new SimpleFileMetadata();
 		metadata = new AtomicReference<SimpleFileMetadata>(simpleMetadata);
-		this.content = new FileContent(drive, localFileId, metadata);
+		this.content = new FileContent(drive, localFileId, metadata, lock);
 	}
 
 	/** Reads basic metadata from the cache, throwing an exception if the file metadata isn't in our database **/
 	private void readBasicMetadata() throws IOException
 	{
+		SimpleFileMetadata previous = this.metadata.get();
 		SimpleFileMetadata newMetadata;
 		
 		if(googleFileId == null) {
@@ -149,48 +174,55 @@ public class File implements Closeable
 			if(!hasReadOrWriteLock())  {
 				throw new Error("Read or write lock required");
 			}
-			List<DatabaseRow> rows = drive.getDatabase().getRows(
-					"SELECT * FROM FILES WHERE ID=?", googleFileId);
-			if(rows.size() == 0) {
+			FileRecord row = drive.getStore().getFile(googleFileId);
+			if(row == null) {
 				logger.debug("Requesting file metadata from Google for file id: {}", googleFileId);
 				Date asof = new Date();
 				com.google.api.services.drive.model.File metadata = drive.getRemote().getFileMetadata(googleFileId);
 				try { refresh(metadata, asof); }
 				catch(SQLException e) {}
-				rows = drive.getDatabase().getRows("SELECT * FROM FILES WHERE ID=?", googleFileId);
+				row = drive.getStore().getFile(googleFileId);
 			}
 
-			DatabaseRow row = rows.get(0);
-			newMetadata = new SimpleFileMetadata.Builder(row.getTimestamp("METADATAREFRESHED").getTime())
-    			.title(row.getString("TITLE"))
-    			.mimeType(row.getString("MIMETYPE"))
-    			.size(row.getLong("SIZE"))
-    			.lastModified(row.getTimestamp("MTIME"))
-    			.fileMd5(row.getString("MD5HEX"))
-    			.url(row.getString("DOWNLOADURL") != null ? new URL(row.getString("DOWNLOADURL")) : null)
+			newMetadata = new SimpleFileMetadata.Builder(row.getMetadataRefreshed().getTime())
+    			.title(row.getTitle())
+    			.mimeType(row.getMimeType())
+    			.size(row.getSize())
+    			.lastModified(row.getModifiedTime() != null ? new Timestamp(row.getModifiedTime().getTime()) : null)
+    			.fileMd5(row.getMd5())
+    			.url(row.getDownloadUrl() != null ? new URL(row.getDownloadUrl()) : null)
     			.build();
-			childrenAsOfDate = row.getTimestamp("CHILDRENREFRESHED");
-			parentsAsOfDate = row.getTimestamp("PARENTSREFRESHED");
-			localFileId = row.getUuid("LOCALID");
+			childrenAsOfDate = row.getChildrenRefreshed();
+			parentsAsOfDate = row.getParentsRefreshed();
+			localFileId = row.getLocalId();
 		}
 
-		newMetadata.playLogOnMetadata(this);
-		this.metadata.set(newMetadata);
+		newMetadata = newMetadata.playLogOnMetadata(this);
+		// Readers holding only the read lock may get here together; they read the same rows, so only the first swap needs to count
+		if(!this.metadata.compareAndSet(previous, newMetadata)) return;
+		attributes = FileAttributes.of(newMetadata);
+		if(previous.title != null && !previous.title.equals(newMetadata.title)) titleChanged();
 	}
 
 	static void playLogEntryOnRemote(Drive drive) throws IOException, SQLException
 	{
-		DatabaseRow row = null;
-		try { row = drive.getDatabase().getRow("SELECT * FROM UPDATELOG ORDER BY ID ASC FETCH NEXT ROW ONLY"); }
-		catch(NoSuchElementException e) { /* row doesn't exist; shouldn't happen on modern copies of jimboxutilities (which now just returns null) */ }
+		List<PendingOperation> head = drive.getStore().peekPendingOperations(RemoteBatch.MAX_BATCH_SIZE);
 
-		if(row == null) {
+		if(head.isEmpty()) {
 			return;  // We're done processing queue, just return (no need to continue poking the log player either).
 		}
 
+		PendingOperation operation = head.get(0);
+		if(isBatchable(operation))
+		{
+			playBatchOnRemote(drive, head);
+			drive.pokeLogPlayer();
+			return;
+		}
+
 		try {
-            playOnRemote(drive, row.getString("COMMAND"), (String[])new XStream().fromXML(row.getString("DETAILS")));
-            drive.getDatabase().execute("DELETE FROM UPDATELOG WHERE ID=?", row.getInteger("ID"));
+            playOnRemote(drive, operation.getCommand(), operation.getDetails());
+            drive.removePendingOperation(operation.getId());
 		} catch (ConflictingOperationInProgressException e) {
 			// in this case, we refuse to delete from the update log
 			// and will retry the most recent log entry, w/ some
@@ -199,6 +231,69 @@ public class File implements Closeable
 		drive.pokeLogPlayer();
 	}
 
+	/** Renames and relationship changes are single metadata requests that can share a round trip with their neighbours in the log **/
+	private static boolean isBatchable(PendingOperation operation)
+	{
+		String command = operation.getCommand();
+		return "setTitle".equals(command) || "addRelationship".equals(command) || "removeRelationship".equals(command);
+	}
+
+	/**
+	 * Plays the run of batchable operations at the head of the log as a single batch.
+	 * The run stops before any operation touching a file already in the batch, because Google may apply a batch in any order.
+	 */
+	private static void playBatchOnRemote(Drive drive, List<PendingOperation> head) throws IOException
+	{
+		RemoteBatch batch = drive.getRemote().newBatch();
+		List<PendingOperation> played = new ArrayList<PendingOperation>();
+		List<ListenableFuture<?>> results = new ArrayList<ListenableFuture<?>>();
+		Set<String> touched = new HashSet<String>();
+		for(PendingOperation operation : head)
+		{
+			if(!isBatchable(operation)) break;
+			String[] logEntry = operation.getDetails();
+			// setTitle details are [file, oldTitle, newTitle]; relationship details are [parent, child]
+			String subject = "setTitle".equals(operation.getCommand()) ? logEntry[0] : logEntry[1];
+			if(!touched.add(subject)) break;
+
+			if("setTitle".equals(operation.getCommand()))
+			{
+				String googleFileId = getGoogleId(drive, UUID.fromString(logEntry[0]));
+				if(googleFileId == null) throw new Error("googleFileId id should not be null at this point for "+logEntry[0]);
+				results.add(batch.setTitle(googleFileId, logEntry[2]));
+			}
+			else
+			{
+				String parentGoogleFileId = getGoogleId(drive, UUID.fromString(logEntry[0]));
+				String childGoogleFileId = getGoogleId(drive, UUID.fromString(logEntry[1]));
+				if(parentGoogleFileId == null) throw new Error("parentGoogleFileId id should not be null at this point for "+logEntry[0]);
+				if(childGoogleFileId == null) throw new Error("childGoogleFileId id should not be null at this point for "+logEntry[1]);
+				if("addRelationship".equals(operation.getCommand())) results.add(batch.insertParent(childGoogleFileId, parentGoogleFileId));
+				else results.add(batch.deleteParent(childGoogleFileId, parentGoogleFileId));
+			}
+			played.add(operation);
+		}
+
+		logger.debug("Playing {} log entries on remote as one batch", played.size());
+		batch.flush();
+
+		// Only the operations that succeeded leave the log; failures stay at the head of the log to be retried
+		IOException failure = null;
+		for(int i = 0; i < played.size(); i++)
+		{
+			try
+			{
+				getBatched(results.get(i));
+				drive.removePendingOperation(played.get(i).getId());
+			}
+			catch(IOException e)
+			{
+				if(failure == null) failure = e;
+			}
+		}
+		if(failure != null) throw failure;
+	}
+
 	public void refresh() throws IOException
 	{
 		logger.debug("Refreshing: {} {}", googleFileId, localFileId);
@@ -219,27 +314,25 @@ public class File implements Closeable
 				{
 					childrenAsOfDate = null;
 					parentsAsOfDate = null;
-					drive.getDatabase().execute("UPDATE FILES SET CHILDRENREFRESHED = NULL, PARENTSREFRESHED = NULL WHERE ID=?", googleFileId);
+					drive.getStore().clearRelationshipsRefreshed(googleFileId);
 					final File f = this;
-						if(!drive.fileUpdateWorker.isShutdown())
-							drive.fileUpdateWorker.execute(new Runnable()
+					scheduleRefresh("relationships", Priority.NORMAL, new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							try
 							{
-								@Override
-								public void run()
-								{
-									try
-									{
-										if(drive.fileUpdateWorker.isShutdown()) return;
-										if(f.isDirectory()) f.getChildren();
-										if(drive.fileUpdateWorker.isShutdown()) return;
-										f.getParents();
-									}
-									catch(IOException e)
-									{
-										throw new RuntimeException(e);
-									}
-								}
-							});
+								if(f.isDirectory()) f.getChildren();
+								if(drive.refreshScheduler.isShutdown()) return;
+								f.getParents();
+							}
+							catch(IOException e)
+							{
+								throw new RuntimeException(e);
+							}
+						}
+					});
 				}
 			}
 			catch(SQLException e)
@@ -264,6 +357,7 @@ public class File implements Closeable
 	public void considerSynchronousDirectoryRefresh(long threshold, TimeUnit units) throws IOException
 	{
 		if(!isDirectory()) throw new Error("This method must not be called on non-directories; called on "+googleFileId+"; consider calling method on this file's parent");
+		if(isKeptFreshByChangeFeed()) return;
 
 		Date updateThreshold = new Date(System.currentTimeMillis()-units.toMillis(threshold));
 		if(getMetadataDate().before(updateThreshold)) refresh();
@@ -274,130 +368,204 @@ public class File implements Closeable
 	 * Asynchronously refresh this file if the file hasn't been refreshed recently (within threshold).
 	 */
 	public void considerAsyncDirectoryRefresh(final long threshold, final TimeUnit units)
+	{
+		considerAsyncDirectoryRefresh(threshold, units, Priority.NORMAL);
+	}
+
+	/**
+	 * Asynchronously refresh this file if the file hasn't been refreshed recently (within threshold).
+	 * Only one refresh per directory is ever queued; asking again while one is queued just raises its priority if need be.
+	 */
+	public void considerAsyncDirectoryRefresh(final long threshold, final TimeUnit units, Priority priority)
 	{
 		// Sanity check that we are in fact calling this method on a directory.
 		// We do the mimecheck ourselves instead of calling isDirectory() to avoid potentially doing I/O on an asynchronous code path
 		if(Boolean.FALSE.equals(isDirectoryNoIO()))
 			throw new Error("This method must not be called on non-directories; called on "+googleFileId+"; consider calling method on this file's parent");
+		if(isKeptFreshByChangeFeed()) return;
 
-		try
+		// If the scheduler drops it (shutting down, or too busy), we don't care.
+		// We're only required to consider a refresh, so consider this considered :).
+		scheduleRefresh("directory", priority, new Runnable()
 		{
-			drive.fileUpdateWorker.execute(new Runnable()
+			@Override
+			public void run()
 			{
-				@Override
-				public void run()
+				try
 				{
-					try
-					{
-						if(drive.fileUpdateWorker.isShutdown()) return;
-						considerSynchronousDirectoryRefresh(threshold, units);
-					}
-					catch(IOException e)
-					{
-						throw new RuntimeException(e);
-					}
+					considerSynchronousDirectoryRefresh(threshold, units);
 				}
-			});
-		}
-		catch(Exception e)
+				catch(IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	/** Schedules background work on this file; at most one task of each kind is ever pending per file (the latest one scheduled) **/
+	void scheduleRefresh(final String kind, Priority priority, final Runnable work)
+	{
+		drive.refreshScheduler.schedule(kind+" "+localFileId, priority, new Runnable()
 		{
-			// do nothing.  Probably the worker is shutting down and we don't care.
-			// We're only required to consider a refresh, so consider this considered :).
-			System.out.println("Note: skipping refresh due to: "+e.getMessage());
+			@Override
+			public void run()
+			{
+				RemoteCallTracer.Context previous = RemoteCallTracer.enter(Caller.REFRESH, kind);
+				try
+				{
+					work.run();
+				}
+				finally
+				{
+					RemoteCallTracer.exit(previous);
+				}
+			}
+		});
+	}
+
+	/** True if the drive's change feed is keeping this directory's cached metadata and children up-to-date, so there is no need to poll **/
+	private boolean isKeptFreshByChangeFeed()
+	{
+		ChangeTracker tracker = drive.getChangeTracker();
+		if(tracker == null) return false;
+		Optional<Long> asof = metadata.get().asOfDate;
+		if(!asof.isPresent() || !tracker.covers(new Date(asof.get()))) return false;
+		Date childrenAsOf = childrenAsOfDate;
+		return childrenAsOf == null || tracker.covers(childrenAsOf);
+	}
+
+	/** Drops the in-memory list of children, so it is rebuilt from the store (and the pending log) on next access **/
+	void invalidateChildren()
+	{
+		acquireWrite();
+		try
+		{
+			children = null;
+			childrenChanged();
 		}
+		finally { releaseWrite(); }
+	}
+
+	/** Drops the in-memory list of parents, so it is fetched again on next access **/
+	void invalidateParents()
+	{
+		acquireWrite();
+		try { parents = null; }
+		finally { releaseWrite(); }
 	}
 
+	/** Children with the given title; looked up in an index that is only rebuilt when the children (or their titles) change **/
 	public List<File> getChildren(String title) throws IOException
 	{
-		List<File> children = new ArrayList<File>();
-		for(File child : getChildren()) {
-			if(title.equals(child.getTitle())) {
-				children.add(child);
-			}
+		ChildIndex index = childIndex;
+		if(index == null || index.version != childIndexVersion.get()) {
+			index = buildChildIndex();
+		}
+		return index.children.get(title);
+	}
+
+	private ChildIndex buildChildIndex() throws IOException
+	{
+		// Taken before reading the children, so anything that changes while we build leaves the index stale rather than wrong
+		long version = childIndexVersion.get();
+		ImmutableListMultimap.Builder<String, File> children = ImmutableListMultimap.builder();
+		for(File child : getChildren())
+		{
+			child.indexedBy.add(this); // before reading the title, so a concurrent rename still invalidates us
+			children.put(child.getTitle(), child);
+		}
+		ChildIndex index = new ChildIndex(version, children.build());
+		childIndex = index;
+		return index;
+	}
+
+	/** Call whenever children are added, removed or reloaded **/
+	private void childrenChanged()
+	{
+		childIndexVersion.incrementAndGet();
+		drive.fireChildrenChanged(this);
+	}
+
+	private void titleChanged()
+	{
+		for(File directory : indexedBy)
+		{
+			indexedBy.remove(directory);
+			directory.childrenChanged();
+		}
+		drive.fireTitleChanged(this);
+	}
+
+	private static class ChildIndex
+	{
+		final long version;
+		final ImmutableListMultimap<String, File> children;
+
+		ChildIndex(long version, ImmutableListMultimap<String, File> children)
+		{
+			this.version = version;
+			this.children = children;
 		}
-		return children;
 	}
 
 	public List<File> getChildren() throws IOException
 	{
+		List<File> children = null;
 		acquireRead();
 		try
 		{
-			if(children != null)
+			if(this.children != null)
 			{
-				considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
-				for(File child : children) {
-					if(child.isDirectory()) {
-						child.considerAsyncDirectoryRefresh(30, TimeUnit.MINUTES);
-					}
-				}
-				return ImmutableList.copyOf(children);
-			}
-
-			if(!isDirectory()) {
-				return ImmutableList.copyOf(children);
+				children = ImmutableList.copyOf(this.children);
 			}
-
-			try
+			else
 			{
+				if(!isDirectory()) {
+					return ImmutableList.copyOf(this.children);
+				}
+
 				if(childrenAsOfDate == null && !metadata.get().isInited()) {
 					readBasicMetadata(); // See if maybe it's just not in the memory cache (DB faster than Google)
 				}
 				// TODO (smacke): what's the reasoning here exactly??
 				if(googleFileId == null || childrenAsOfDate != null)
 				{
-					DuplicateRejectingList children = drive.getDatabase().execute(new Transaction<DuplicateRejectingList>()
-					{
-						@Override
-						public DuplicateRejectingList run(Database db) throws Throwable
-						{
-							DuplicateRejectingList children = new DuplicateRejectingList();
-							List<String> files = drive.getDatabase().getStrings(
-									"SELECT CHILD FROM RELATIONSHIPS WHERE PARENT=?", googleFileId);
-							for(String file : files) {
-								children.add(drive.getCachedFile(file));
-							}
-
-							considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
-							for(File child : children)
-								if(child.isDirectory()) {
-									child.considerAsyncDirectoryRefresh(30, TimeUnit.MINUTES);
-								}
-							return children;
-						}
-					});
-					playLogOnChildrenList(children);
-					this.children = children;
-					return ImmutableList.copyOf(children);
-				}
-			}
-			catch(SQLException e1)
-			{
-				e1.printStackTrace();
-				throw new RuntimeException(e1);
-			}
-
-			updateChildrenFromRemote();
-			considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
-			for(File child : children) {
-				if(child.isDirectory()) {
-					child.considerAsyncDirectoryRefresh(30, TimeUnit.MINUTES);
+					DuplicateRejectingList fromStore = new DuplicateRejectingList();
+					List<String> files = drive.getStore().getChildIds(googleFileId);
+					for(String file : files) {
+						fromStore.add(drive.getCachedFile(file));
+					}
+					playLogOnChildrenList(fromStore);
+					this.children = fromStore;
+					children = ImmutableList.copyOf(fromStore);
 				}
 			}
-
-			return ImmutableList.copyOf(children);
 		}
 		finally
 		{
 			releaseRead();
 		}
+
+		// Listing remotely and looking at the children both involve other files' locks, so neither can happen while we hold ours
+		if(children == null) {
+			children = updateChildrenFromRemote();
+		}
+
+		considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
+		for(File child : children) {
+			if(child.isDirectory()) {
+				child.considerAsyncDirectoryRefresh(30, TimeUnit.MINUTES, Priority.PREFETCH);
+			}
+		}
+		return children;
 	}
 
-	private void updateChildrenFromRemote()
+	private List<File> updateChildrenFromRemote()
 	{
 		logger.debug("Updating children of {} from remote", googleFileId);
-		if(children != null && !hasWriteLock()) {
-			throw new Error("Children cached, so doing a remote fetch requires a write lock!");
+		if(lock.isHeldByCurrentThread()) {
+			throw new Error("Must not hold the directory's lock while listing it remotely");
 		}
 
 		try
@@ -410,62 +578,53 @@ public class File implements Closeable
 				children.add(drive.getFile(child, childrenUpdateDate));
 			}
 
-			drive.getDatabase().execute(new Transaction<Void>()
-			{
-				@Override
-				public Void run(Database arg0) throws Throwable
-				{
-					drive.getDatabase().execute("DELETE FROM RELATIONSHIPS WHERE PARENT=?", googleFileId);
-					for(com.google.api.services.drive.model.File child : googleChildren) {
-						drive.getDatabase().execute("INSERT INTO RELATIONSHIPS(PARENT, CHILD) VALUES(?,?)", getId(), child.getId());
-					}
-					return null;
-				}
-			});
-			playLogOnChildrenList(children);
-			this.children = children;
+			List<String> childIds = new ArrayList<String>();
+			for(com.google.api.services.drive.model.File child : googleChildren) {
+				childIds.add(child.getId());
+			}
+			drive.getStore().setChildIds(googleFileId, childIds);
 
 			// Ok, dirty trick... we have the data anyway, and we can update without a lock if the child doesn't have a metadata date.  Ewww!
 			for(final com.google.api.services.drive.model.File child : googleChildren)
 			{
 				final File f = drive.getFile(child, childrenUpdateDate);
 
-				try
-				{
-					if(!drive.fileUpdateWorker.isShutdown())
-						drive.fileUpdateWorker.execute(new Runnable(){
-							@Override
-							public void run()
-							{
-								try
-								{
-									if(drive.fileUpdateWorker.isShutdown()) return;
-
-									if(drive.fileUpdateWorker.isShutdown()) return;
-									f.acquireWrite();
-									try {f.refresh(child, childrenUpdateDate); }
-									finally { f.releaseWrite(); }
-								}
-								catch(IOException e)
-								{
-									throw new RuntimeException(e);
-								}
-								catch(SQLException e)
-								{
-									throw new RuntimeException(e);
-								}
-							}});
-				}
-				catch(Exception e)
-				{
-					// worker is probably shutting down; it was just a convenience update anyway
-					System.out.println("skipping adding due to: "+e.getMessage());
-				}
+				// If the scheduler drops it (shutting down, or too busy), that's fine; it was just a convenience update anyway
+				f.scheduleRefresh("metadata", Priority.NORMAL, new Runnable(){
+					@Override
+					public void run()
+					{
+						try
+						{
+							f.acquireWrite();
+							try {f.refresh(child, childrenUpdateDate); }
+							finally { f.releaseWrite(); }
+						}
+						catch(IOException e)
+						{
+							throw new RuntimeException(e);
+						}
+						catch(SQLException e)
+						{
+							throw new RuntimeException(e);
+						}
+					}});
 			}
 
-			// Sketchy as hell, but I can't think of any way that updating the timestamp could cause a fatal race condition
-			drive.getDatabase().execute("UPDATE FILES SET CHILDRENREFRESHED = ? WHERE ID = ?", childrenUpdateDate, googleFileId);
-			this.childrenAsOfDate = childrenUpdateDate;
+			acquireWrite();
+			try
+			{
+				playLogOnChildrenList(children);
+				this.children = children;
+				childrenChanged();
+				drive.getStore().setChildrenRefreshed(googleFileId, childrenUpdateDate);
+				this.childrenAsOfDate = childrenUpdateDate;
+				return ImmutableList.copyOf(children);
+			}
+			finally
+			{
+				releaseWrite();
+			}
 		}
 		catch(Exception e)
 		{
@@ -496,86 +655,90 @@ public class File implements Closeable
 //		GregorianCalendar nextUpdateTimestamp = new GregorianCalendar();
 //		nextUpdateTimestamp.add(Calendar.DAY_OF_YEAR, 1);
 
-		drive.getDatabase().execute(new Transaction<Void>()
-		{
-			@Override
-			public Void run(Database db) throws Throwable
-			{
-				db.execute("DELETE FROM FILES WHERE ID=?", file.getId());
-				db.execute("INSERT INTO FILES"
-						+ "(ID, LOCALID, TITLE, MIMETYPE, MD5HEX, SIZE, MTIME, DOWNLOADURL, METADATAREFRESHED, CHILDRENREFRESHED) "
-						+ "VALUES(?,?,?,?,?,?,?,?,?,?)",
-						file.getId(), localFileId, file.getTitle(), file.getMimeType(), // MIMETYPE
-						file.getMd5Checksum(), file.getFileSize(), // SIZE
-						new Date(file.getModifiedDate().getValue()), file.getDownloadUrl(), // DOWNLOADURL
-						new Date(asof), childrenAsOfDate != null ? childrenAsOfDate : null);
-				return null;
-			}
-		});
+		drive.getStore().putFile(new FileRecord(
+				file.getId(), localFileId, file.getTitle(), file.getMimeType(),
+				file.getMd5Checksum(), file.getFileSize(),
+				new Date(file.getModifiedDate().getValue()), file.getDownloadUrl(),
+				new Date(asof), childrenAsOfDate, null));
 
 		readBasicMetadata();
 	}
 
-	public String getTitle() throws IOException
+	/**
+	 * Attributes for stat calls.  Once the file's metadata has been read, this never takes a lock or blocks on the store or network:
+	 * local changes replace the snapshot as they happen, and snapshots older than a few seconds are re-read from the store in the background.
+	 */
+	public FileAttributes getAttributes() throws IOException
 	{
-		acquireRead();
-		try
+		FileAttributes attributes = this.attributes;
+		if(attributes == null)
 		{
-			if(!metadata.get().isInited()) {
-				readBasicMetadata();
-			}
-
-			// Somebody appears to be watching this file; let's keep it up-to-date
-			if(isDirectory()) {
-				considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
-			}
-			else if(parents != null) {
-				for(File file : parents) {
-					file.considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
+			acquireRead();
+			try
+			{
+				if(!metadata.get().isInited()) {
+					readBasicMetadata();
 				}
+				attributes = this.attributes;
+				if(attributes == null) attributes = this.attributes = FileAttributes.of(metadata.get());
+				return attributes;
+			}
+			finally
+			{
+				releaseRead();
 			}
-
-			return metadata.get().title;
 		}
-		finally
-		{
-			releaseRead();
+
+		if(System.currentTimeMillis()-attributes.getSnapshotTime() > ATTRIBUTES_REVALIDATE_MILLIS) {
+			revalidateAttributes();
 		}
+		return attributes;
 	}
 
-	public String getMimeType() throws IOException
+	private void revalidateAttributes()
 	{
-		acquireRead();
-		try
+		// If the scheduler drops it, serving the old snapshot is fine
+		scheduleRefresh("attributes", Priority.NORMAL, new Runnable()
 		{
-			if(!metadata.get().isInited()) {
-				readBasicMetadata();
+			@Override
+			public void run()
+			{
+				try
+				{
+					acquireRead();
+					try { readBasicMetadata(); }
+					finally { releaseRead(); }
+				}
+				catch(IOException e)
+				{
+					throw new RuntimeException(e);
+				}
 			}
-			return metadata.get().mimeType;
-		}
-		finally
-		{
-			releaseRead();
-		}
+		});
 	}
 
-	Boolean isDirectoryNoIO()
+	/** Call (holding the write lock) after changing metadata in memory **/
+	private void attributesChanged()
 	{
-		Long asof = metadata.get().asOfDate.get();
-		String mimeType = metadata.get().mimeType;
-		if(asof == null && mimeType == null) return null;
-		return MIME_FOLDER.equals(mimeType);
+		attributes = FileAttributes.of(metadata.get());
 	}
 
-	public boolean isDirectory() throws IOException
+	/**
+	 * The current metadata snapshot.  Snapshots are immutable and replaced whole, so once the metadata has been loaded this takes no lock;
+	 * readers racing with a local change see the snapshot from either before or after it.
+	 */
+	private SimpleFileMetadata readMetadata() throws IOException
 	{
+		SimpleFileMetadata current = metadata.get();
+		if(current.isInited()) return current;
+
 		acquireRead();
 		try
 		{
 			if(!metadata.get().isInited()) {
 				readBasicMetadata();
 			}
-			return MIME_FOLDER.equals(metadata.get().mimeType);
+			return metadata.get();
 		}
 		finally
 		{
@@ -583,89 +746,72 @@ public class File implements Closeable
 		}
 	}
 
-	public long getSize() throws IOException
+	public String getTitle() throws IOException
 	{
-		acquireRead();
-		try
-		{
-			if(!metadata.get().isInited()) {
-				readBasicMetadata();
-			}
-			return metadata.get().size == null ? 0 : metadata.get().size;
+		SimpleFileMetadata metadata = readMetadata();
+
+		// Somebody appears to be watching this file; let's keep it up-to-date
+		if(MIME_FOLDER.equals(metadata.mimeType)) {
+			considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
 		}
-		finally
-		{
-			releaseRead();
+		else {
+			List<File> parents = this.parents;
+			if(parents != null) {
+				for(File file : parents) {
+					file.considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
+				}
+			}
 		}
+
+		return metadata.title;
+	}
+
+	public String getMimeType() throws IOException
+	{
+		return readMetadata().mimeType;
+	}
+
+	Boolean isDirectoryNoIO()
+	{
+		SimpleFileMetadata current = metadata.get();
+		if(!current.isInited() && current.mimeType == null) return null;
+		return MIME_FOLDER.equals(current.mimeType);
+	}
+
+	public boolean isDirectory() throws IOException
+	{
+		return MIME_FOLDER.equals(readMetadata().mimeType);
+	}
+
+	public long getSize() throws IOException
+	{
+		SimpleFileMetadata metadata = readMetadata();
+		return metadata.size == null ? 0 : metadata.size;
 	}
 
 	public Date getMetadataDate() throws IOException
 	{
-		acquireRead();
-		try
-		{
-			if(!metadata.get().isInited()) {
-				readBasicMetadata();
-			}
-			return new Date(metadata.get().asOfDate.get());
-		}
-		finally
-		{
-			releaseRead();
-		}
+		return new Date(readMetadata().asOfDate.get());
 	}
 
 	public Timestamp getModified() throws IOException
 	{
-		acquireRead();
-		try
-		{
-			if(!metadata.get().isInited()) {
-				readBasicMetadata();
-			}
-			return metadata.get().modifiedTime;
-		}
-		finally
-		{
-			releaseRead();
-		}
+		return readMetadata().modifiedTime;
 	}
 
 	public URL getDownloadUrl() throws IOException
 	{
-		acquireRead();
-		try
-		{
-			if(!metadata.get().isInited()) {
-				readBasicMetadata();
-			}
-			return metadata.get().downloadUrl;
-		}
-		finally
-		{
-			releaseRead();
-		}
+		return readMetadata().downloadUrl;
 	}
 
 	public String getMd5Checksum() throws IOException
 	{
-		acquireRead();
-		try
-		{
-			if(isDirectory()) return null;
+		if(isDirectory()) return null;
 
-			// Somebody appears to be watching this file; let's keep it up-to-date
-			for(File file : getParents()) file.considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
+		// Somebody appears to be watching this file; let's keep it up-to-date
+		for(File file : getParents()) file.considerAsyncDirectoryRefresh(10, TimeUnit.MINUTES);
 
-			if(!metadata.get().isInited()) {
-				readBasicMetadata();
-			}
-			return metadata.get().fileMd5;
-		}
-		finally
-		{
-			releaseRead();
-		}
+		return readMetadata().fileMd5;
 	}
 
 	public File mkdir(String name) throws IOException
@@ -677,8 +823,9 @@ public class File implements Closeable
 			long creationTime = System.currentTimeMillis();
 
 			playOnDatabase("mkdir", this.getLocalId().toString(), newDirectory.getLocalId().toString(), name, Long.toString(creationTime));
-			metadata.get().playOnInMemoryMetadata(this, "mkdir", this.getLocalId().toString(), newDirectory.getLocalId().toString(), name, Long.toString(creationTime));
+			playOnInMemoryMetadata("mkdir", this.getLocalId().toString(), newDirectory.getLocalId().toString(), name, Long.toString(creationTime));
 			playOnChildrenList(children, "mkdir", this.getLocalId().toString(), newDirectory.getLocalId().toString(), name, Long.toString(creationTime));
+			childrenChanged();
 
 		    return newDirectory;
 		}
@@ -696,8 +843,9 @@ public class File implements Closeable
 			File newFile = drive.getFile(UUID.randomUUID());
 			long creationTime = System.currentTimeMillis();
 			playOnDatabase("createFile", this.getLocalId().toString(), newFile.getLocalId().toString(), name, Long.toString(creationTime));
-			metadata.get().playOnInMemoryMetadata(this, "createFile", this.getLocalId().toString(), newFile.getLocalId().toString(), name, Long.toString(creationTime));
+			playOnInMemoryMetadata("createFile", this.getLocalId().toString(), newFile.getLocalId().toString(), name, Long.toString(creationTime));
 			playOnChildrenList(children, "createFile", this.getLocalId().toString(), newFile.getLocalId().toString(), name, Long.toString(creationTime));
+			childrenChanged();
 			playOnParentsList(newFile.parents, "createFile", this.getLocalId().toString(), newFile.getLocalId().toString(), name, Long.toString(creationTime));
 
 			return newFile;
@@ -745,7 +893,8 @@ public class File implements Closeable
 			// just be uploading a more up-to-date file to Google.
 			String[] logEntry = new String[]{this.getLocalId().toString(), Long.toString(asofSize), fileMd5};
 			playOnDatabase("update", logEntry);
-			metadata.get().playOnInMemoryMetadata(this, "update", logEntry);
+			playOnInMemoryMetadata("update", logEntry);
+			attributesChanged();
 		}
 		finally
 		{
@@ -758,7 +907,7 @@ public class File implements Closeable
 		acquireRead();
 		try
 		{
-			System.out.printf("read %d bytes at offset %d for file %s\n", size, offset, getTitle());
+			logger.trace("read {} bytes at offset {} of {}", size, offset, localFileId);
 			byte[] data = content.getBytesByAnyMeans(offset, offset + size);
 			if(data.length != size) throw new Error("expected: " + size + " actual: " + data.length + " " + new String(data));
 			return data;
@@ -788,7 +937,8 @@ public class File implements Closeable
                 content.dropFragmentsStartingAtOrAfter(offset);
                 // extend by 0 if necessary
                 content.storeFragmentNoMerges(truncatedMd5.get(), oldSize, new byte[(int)Math.max(0, offset-oldSize)]);
-                metadata.get().playOnInMemoryMetadata(this, "truncate", this.getLocalId().toString(), Long.toString(offset), truncatedMd5.get());
+                playOnInMemoryMetadata("truncate", this.getLocalId().toString(), Long.toString(offset), truncatedMd5.get());
+                attributesChanged();
                 playOnDatabase("truncate", this.getLocalId().toString(), Long.toString(offset), truncatedMd5.get());
             }
             finally {
@@ -801,7 +951,8 @@ public class File implements Closeable
                 content.dropFragmentsStartingAtOrAfter(offset);
                 // extend by 0 if necessary
                 content.storeFragment(null, oldSize, new byte[(int)Math.max(0, offset-oldSize)]);
-    			metadata.get().playOnInMemoryMetadata(this, "truncate", this.getLocalId().toString(), Long.toString(offset), "null");
+    			playOnInMemoryMetadata("truncate", this.getLocalId().toString(), Long.toString(offset), "null");
+    			attributesChanged();
     		} finally {
     			releaseWrite();
     		}
@@ -823,12 +974,13 @@ public class File implements Closeable
         }
         try
         {
-        	System.out.printf("write %d bytes at offset %d for file %s\n", bytes.length, offset, getTitle());
+        	logger.trace("write {} bytes at offset {} of {}", bytes.length, offset, localFileId);
         	lastWriteTime = System.currentTimeMillis();
         	freshWrite.set(true);
         	content.storeFragment(null, offset, bytes);
         	playOnDatabase("write", this.getLocalId().toString(), Long.toString(offset), Long.toString(bytes.length), chunkMd5, "null");
-        	metadata.get().playOnInMemoryMetadata(this, "write", this.getLocalId().toString(), Long.toString(offset), Long.toString(bytes.length), chunkMd5, "null");
+        	playOnInMemoryMetadata("write", this.getLocalId().toString(), Long.toString(offset), Long.toString(bytes.length), chunkMd5, "null");
+        	attributesChanged();
         }
         finally
         {
@@ -858,7 +1010,7 @@ public class File implements Closeable
     		if(DigestUtils.md5Hex(data).equals(chunkMd5)) return data;
 
     		// Something went horribly wrong, delete the fragment record and return not-found
-    		drive.getDatabase().execute("DELETE FROM FRAGMENTS WHERE fileMd5=? AND chunkMd5=?", fileMd5, chunkMd5);
+    		drive.getStore().deleteFragmentsWithChunk(chunkMd5);
     		throw new NoSuchElementException("Could not load chunk "+fileMd5+"."+chunkMd5+"("+startPosition+"-"+endPosition+")");
     	}
     	finally
@@ -868,15 +1020,21 @@ public class File implements Closeable
     }
 
 
+	/** Doesn't take the lock once the id is known (which it nearly always is), since it is called on other files from within locked sections **/
 	public UUID getLocalId() throws IOException
 	{
+		UUID localFileId = this.localFileId;
+		if(localFileId != null) {
+			return localFileId;
+		}
+
 		acquireRead();
 		try
 		{
-			if(localFileId == null) {
+			if(this.localFileId == null) {
 				readBasicMetadata();
 			}
-			return localFileId;
+			return this.localFileId;
 		}
 		finally
 		{
@@ -889,6 +1047,7 @@ public class File implements Closeable
     	acquireWrite();
     	try {
 	    	playEverywhere("setTitle", this.getLocalId().toString(), getTitle(), title);
+	    	titleChanged();
     	}
     	finally
     	{
@@ -896,10 +1055,17 @@ public class File implements Closeable
     	}
     }
 
+    /** Replaces the metadata snapshot with one that has the operation applied; call holding the write lock **/
+    private void playOnInMemoryMetadata(String command, String... logEntry) throws IOException
+    {
+    	metadata.set(metadata.get().playOnInMemoryMetadata(this, command, logEntry));
+    }
+
     /** Writes the action to the database to be replayed on Google's servers later, plays transaction on local memory **/
     void playEverywhere(String command, String... logEntry) throws IOException
     {
-    	metadata.get().playOnInMemoryMetadata(this, command, logEntry);
+    	playOnInMemoryMetadata(command, logEntry);
+    	attributesChanged();
     	playOnDatabase(command, logEntry);
     }
 
@@ -911,7 +1077,7 @@ public class File implements Closeable
     		throw new Error("Must acquire write lock if you're doing writes!");
     	}
 
-    	drive.getDatabase().execute("INSERT INTO UPDATELOG(COMMAND, DETAILS) VALUES(?,?)", command, new XStream().toXML(logEntry));
+    	drive.appendPendingOperation(command, logEntry);
     	drive.pokeLogPlayer();
     }
 
@@ -972,14 +1138,8 @@ public class File implements Closeable
 
 	private void playLogOnParentsList(DuplicateRejectingList parents) throws IOException
 	{
-		for(DatabaseRow row : drive.getDatabase().getRows(
-				"SELECT * FROM UPDATELOG "
-				+ "WHERE COMMAND='addRelationship' OR "
-				+ "COMMAND='removeRelationship' OR "
-				+ "COMMAND='mkdir' OR "
-				+ "COMMAND='createFile' "
-				+ "ORDER BY ID ASC")) {
-			playOnParentsList(parents, row.getString("COMMAND"), (String[])new XStream().fromXML(row.getString("DETAILS")));
+		for(PendingOperation operation : drive.getStore().getPendingOperations("addRelationship", "removeRelationship", "mkdir", "createFile")) {
+			playOnParentsList(parents, operation.getCommand(), operation.getDetails());
 		}
 	}
 
@@ -1058,15 +1218,8 @@ public class File implements Closeable
 
 	private void playLogOnChildrenList(DuplicateRejectingList children) throws IOException
 	{
-		for(DatabaseRow row : drive.getDatabase().getRows(
-				"SELECT * FROM UPDATELOG "
-				+ "WHERE COMMAND='addRelationship' OR "
-				+ "COMMAND='removeRelationship' OR "
-				+ "COMMAND='mkdir' OR "
-				+ "COMMAND='createFile' OR "
-				+ "COMMAND='trash' "
-				+ "ORDER BY ID ASC")) {
-			playOnChildrenList(children, row.getString("COMMAND"), (String[])new XStream().fromXML(row.getString("DETAILS")));
+		for(PendingOperation operation : drive.getStore().getPendingOperations("addRelationship", "removeRelationship", "mkdir", "createFile", "trash")) {
+			playOnChildrenList(children, operation.getCommand(), operation.getDetails());
 		}
 	}
 
@@ -1080,8 +1233,7 @@ public class File implements Closeable
 			if(googleFileId == null) throw new Error("googleFileId id should not be null at this point for "+logEntry[0]);
 			com.google.api.services.drive.model.File file = drive.getRemote().getFileMetadata(googleFileId);
 			if(!file.getTitle().equals(logEntry[1]) && !file.getTitle().equals(logEntry[2])) new Throwable("WARNING: Title does not match title from logs (expected: " + logEntry[1] + " was: " + file.getTitle() + ")").printStackTrace();
-			file.setTitle(logEntry[2]);
-			drive.getRemote().updateFile(googleFileId, file);
+			drive.getRemote().setTitle(googleFileId, logEntry[2]);
 		}
 		else if("addRelationship".equals(command))
 		{
@@ -1122,7 +1274,7 @@ public class File implements Closeable
 			try { newLocalDirectory.refresh(newRemoteDirectory, asof); }
 			finally { newLocalDirectory.releaseRead(); }
 
-			drive.lock.writeLock().lock();
+			newLocalDirectory.acquireWrite();
 			try
 			{
 				// Fetching the file by old ID will cause the new google identifier to be found and the cache updated
@@ -1130,12 +1282,12 @@ public class File implements Closeable
 				newLocalDirectory.metadata.set(new SimpleFileMetadata());
 				newLocalDirectory.childrenAsOfDate = null;
 				newLocalDirectory.parentsAsOfDate = null;
-				drive.getFile(newRemoteDirectory, asof);
 			}
 			finally
 			{
-				drive.lock.writeLock().unlock();
+				newLocalDirectory.releaseWrite();
 			}
+			drive.getFile(newRemoteDirectory, asof);
 
 
 			if(getGoogleId(drive, UUID.fromString(logEntry[1])) == null) throw new Error("GoogleId should not be null at this point for: "+logEntry[1]);
@@ -1166,19 +1318,19 @@ public class File implements Closeable
 			try { newLocalDirectory.refresh(newRemoteFile, asof); }
 			finally { newLocalDirectory.releaseRead(); }
 
-			drive.lock.writeLock().lock();
+			newLocalDirectory.acquireWrite();
 			try
 			{
 				// Fetching the file by old ID will cause the new google identifier to be found and the cache updated
 				newLocalDirectory.metadata.set(new SimpleFileMetadata());
 				newLocalDirectory.childrenAsOfDate = null;
 				newLocalDirectory.parentsAsOfDate = null;
-				drive.getFile(newRemoteFile, asof);
 			}
 			finally
 			{
-				drive.lock.writeLock().unlock();
+				newLocalDirectory.releaseWrite();
 			}
+			drive.getFile(newRemoteFile, asof);
 		}
 		else if("trash".equals(command))
 		{
@@ -1213,6 +1365,7 @@ public class File implements Closeable
 				@Override
 				public void run()
 				{
+					RemoteCallTracer.Context previous = RemoteCallTracer.enter(Caller.LOG_REPLAY, command);
 					try
 					{
 						logger.info("Attempting to {} {}", command, file.getId());
@@ -1242,6 +1395,10 @@ public class File implements Closeable
 					{
 						throw new RuntimeException(e);
 					}
+					finally
+					{
+						RemoteCallTracer.exit(previous);
+					}
 				}
 			});
 			synchronized(file) {
@@ -1279,8 +1436,7 @@ public class File implements Closeable
 
 	static String getGoogleId(Drive drive, UUID localId)
 	{
-		try { return drive.getDatabase().getString("SELECT ID FROM FILES WHERE LOCALID=?", localId.toString()); }
-		catch(NoSuchElementException e) { return null; }
+		return drive.getStore().getGoogleId(localId);
 	}
 
 	public List<File> getParents() throws IOException
@@ -1297,65 +1453,95 @@ public class File implements Closeable
 			{
 				// Fetch from database
 				DuplicateRejectingList parents = new DuplicateRejectingList();
-				List<String> files = drive.getDatabase().getStrings("SELECT CHILD FROM RELATIONSHIPS WHERE CHILD=?", googleFileId);
+				List<String> files = drive.getStore().getParentIds(googleFileId);
 
 				for(String file : files) parents.add(drive.getCachedFile(file));
 				playLogOnParentsList(parents);
 				this.parents = parents;
 				return ImmutableList.copyOf(parents);
 			}
-
-			updateParentsFromRemote();
-			return ImmutableList.copyOf(parents);
 		}
 		finally
 		{
 			releaseRead();
 		}
+
+		return updateParentsFromRemote();
 	}
 
-	private void updateParentsFromRemote() throws IOException
+	private List<File> updateParentsFromRemote() throws IOException
 	{
-		if(parents != null && !hasWriteLock()) {
-			throw new Error("Must have write lock");
-		}
-		if(parents == null && !hasReadOrWriteLock()) {
-			throw new Error("Must have read or write lock");
+		if(lock.isHeldByCurrentThread()) {
+			throw new Error("Must not hold the file's lock while fetching its parents remotely");
 		}
 		DuplicateRejectingList parents = new DuplicateRejectingList();
-		for(ParentReference parent : drive.getRemote().getParents(googleFileId))
+		List<ParentReference> parentReferences = drive.getRemote().getParents(googleFileId);
+
+		// Fetch metadata for all the parents we haven't seen before in one round trip
+		Date asof = new Date();
+		RemoteBatch batch = drive.getRemote().newBatch();
+		List<ListenableFuture<com.google.api.services.drive.model.File>> fetched = new ArrayList<ListenableFuture<com.google.api.services.drive.model.File>>();
+		for(ParentReference parent : parentReferences)
+			fetched.add(drive.getStore().hasFile(parent.getId()) ? null : batch.getFileMetadata(parent.getId()));
+		batch.flush();
+
+		for(int i = 0; i < parentReferences.size(); i++)
 		{
-			int rowsInDb = drive.getDatabase().getInteger("SELECT COUNT(*) FROM FILES WHERE ID=?", parent.getId());
-			Date asof = new Date();
-			if(rowsInDb > 0) parents.add(drive.getCachedFile(parent.getId()));
-			else parents.add(drive.getFile(drive.getRemote().getFileMetadata(parent.getId()), asof));
+			if(fetched.get(i) == null) parents.add(drive.getCachedFile(parentReferences.get(i).getId()));
+			else parents.add(drive.getFile(getBatched(fetched.get(i)), asof));
 		}
 
-		playLogOnParentsList(parents);
-		this.parents = parents;
+		acquireWrite();
+		try
+		{
+			playLogOnParentsList(parents);
+			this.parents = parents;
+			return ImmutableList.copyOf(parents);
+		}
+		finally
+		{
+			releaseWrite();
+		}
 	}
 
-	public void addChild(File child) throws IOException
+	/** Result of a request sent by RemoteBatch.flush() **/
+	static <T> T getBatched(ListenableFuture<T> future) throws IOException
 	{
-		acquireWrite();
 		try
 		{
-			if(child.getParents().contains(this)) return;
-			if(this.equals(child) || parentsContainNode(child)) {
-				throw new RuntimeException("Can not add a child to one of the node's parents (direct or indirect)");
-			}
+			return Uninterruptibles.getUninterruptibly(future);
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
 
-			if(!isDirectory()) {
-				throw new UnsupportedOperationException("Can not add child to non-directory");
-			}
+	public void addChild(File child) throws IOException
+	{
+		// Checks walk up the tree (taking other files' locks), so they happen before we lock the two files we're changing
+		if(child.getParents().contains(this)) return;
+		if(this.equals(child) || parentsContainNode(child)) {
+			throw new RuntimeException("Can not add a child to one of the node's parents (direct or indirect)");
+		}
+
+		if(!isDirectory()) {
+			throw new UnsupportedOperationException("Can not add child to non-directory");
+		}
 
+		List<FileLock> locks = Arrays.asList(this.lock, child.lock);
+		FileLock.writeLockAll(locks);
+		try
+		{
 			playOnDatabase("addRelationship", this.getLocalId().toString(), child.getLocalId().toString());
 			playOnChildrenList(children, "addRelationship", this.getLocalId().toString(), child.getLocalId().toString());
 			child.playOnParentsList(child.parents, "addRelationship", this.getLocalId().toString(), child.getLocalId().toString());
+			childrenChanged();
 		}
 		finally
 		{
-			releaseWrite();
+			FileLock.writeUnlockAll(locks);
 		}
 	}
 
@@ -1374,23 +1560,25 @@ public class File implements Closeable
 
 	public void removeChild(File child) throws IOException
 	{
-		acquireWrite();
+		if(!this.getChildren().contains(child)) {
+			return;
+		}
+		if(child.getParents().size() <= 1) {
+			throw new UnsupportedOperationException("Child must have at least one parent");
+		}
+
+		List<FileLock> locks = Arrays.asList(this.lock, child.lock);
+		FileLock.writeLockAll(locks);
 		try
 		{
-			if(!this.getChildren().contains(child)) {
-				return;
-			}
-			if(child.getParents().size() <= 1) {
-				throw new UnsupportedOperationException("Child must have at least one parent");
-			}
-
 			playOnDatabase("removeRelationship", this.getLocalId().toString(), child.getLocalId().toString());
 			playOnChildrenList(children, "removeRelationship", this.getLocalId().toString(), child.getLocalId().toString());
 			child.playOnParentsList(child.parents, "removeRelationship", this.getLocalId().toString(), child.getLocalId().toString());
+			childrenChanged();
 		}
 		finally
 		{
-			releaseWrite();
+			FileLock.writeUnlockAll(locks);
 		}
 	}
 
@@ -1398,28 +1586,82 @@ public class File implements Closeable
 	{
 		if(this.equals(drive.getRoot())) throw new UnsupportedOperationException("Can not trash the root node");
 
-		acquireWrite();
+		List<File> parents = getParents();
+		List<FileLock> locks = new ArrayList<FileLock>();
+		locks.add(lock);
+		for(File parent : parents) locks.add(parent.lock);
+
+		FileLock.writeLockAll(locks);
 		try
 		{
-			List<File> parents = getParents();
 			String[] logEntry = new String[parents.size()+1];
 			logEntry[0] = this.getLocalId().toString();
 			for(int i = 0; i < parents.size(); i++) logEntry[i+1] = parents.get(i).getLocalId().toString();
 			playOnDatabase("trash", logEntry);
 			for(File parent : parents)
 			{
-				parent.acquireWrite();
-				try { parent.playOnChildrenList(parent.children, "trash", logEntry); }
-				finally { parent.releaseWrite(); }
+				parent.playOnChildrenList(parent.children, "trash", logEntry);
+				parent.childrenChanged();
 			}
 			content.dropFragmentsFromDb();
 		}
 		finally
 		{
-			releaseWrite();
+			FileLock.writeUnlockAll(locks);
 		}
 	}
 
+	/**
+	 * Drops the cached content of the file, so it is downloaded again when next read.
+	 * Refuses (returning false) for pinned files (see PinManager), and while the file has changes that haven't reached Google,
+	 * since the cache may hold their only copy.
+	 */
+	public boolean evictContent() throws IOException
+	{
+		if(isDirectory() || drive.getPins().isPinned(this)) return false;
+		acquireWrite();
+		try
+		{
+			if(drive.hasPendingOperations(this)) return false;
+			content.dropFragmentsFromDb();
+			return true;
+		}
+		finally { releaseWrite(); }
+	}
+
+	/** True if all of the file's current content is cached, so reading it won't touch the network **/
+	public boolean isContentCached() throws IOException
+	{
+		acquireRead();
+		try { return content.isFullyCached(); }
+		finally { releaseRead(); }
+	}
+
+	/**
+	 * Drops cached content downloaded from an older version of the file (it has since changed remotely), so the current version is
+	 * downloaded in its place.  Returns false, leaving the cache alone, if there is nothing stale or the file has changes that haven't
+	 * reached Google.
+	 */
+	boolean dropStaleContent() throws IOException
+	{
+		acquireWrite();
+		try
+		{
+			if(drive.hasPendingOperations(this) || !content.hasStaleFragments()) return false;
+			content.dropFragmentsFromDb();
+			return true;
+		}
+		finally { releaseWrite(); }
+	}
+
+	/** Downloads whatever parts of bytes [start, end) aren't cached, returning the number of bytes downloaded **/
+	long cacheRange(long start, long end) throws IOException
+	{
+		acquireRead();
+		try { return content.fillInGapsBetween(start, end); }
+		finally { releaseRead(); }
+	}
+
 	/**
 	 * Preconditions: there already exists a remote file on Google's end with
 	 * this cached File's googleid. By avoiding getting a File from a GET request,
@@ -1470,34 +1712,30 @@ public class File implements Closeable
 
 	private void acquireRead()
 	{
-		drive.lock.readLock().lock();
+		lock.readLock();
 	}
 
 	private void acquireWrite()
 	{
-		drive.lock.writeLock().lock();
+		lock.writeLock();
 	}
 
 	private void releaseRead()
 	{
-		drive.lock.readLock().unlock();
+		lock.readUnlock();
 	}
 
 	private void releaseWrite()
 	{
-		drive.lock.writeLock().unlock();
-	}
-	
-	private boolean hasReadLock() {
-		return drive.lock.getReadHoldCount() > 0;
+		lock.writeUnlock();
 	}
 	
 	private boolean hasWriteLock() {
-		return drive.lock.isWriteLockedByCurrentThread();
+		return lock.isWriteLockedByCurrentThread();
 	}
 	
 	private boolean hasReadOrWriteLock() {
-		return hasReadLock() || hasWriteLock();
+		return lock.isHeldByCurrentThread();
 	}
 
 	/**
@@ -0,0 +1,64 @@
+package com.gdrivefs.simplecache;
+
+import javax.annotation.Nullable;
+
+/**
+ * Immutable snapshot of the attributes a stat call needs, taken from a file's metadata at a point in time.
+ * Snapshots are published through a volatile field, so they can be read without taking the file's lock.
+ */
+public final class FileAttributes
+{
+	private final boolean directory;
+	private final long size;
+	private final long modified;
+	private final @Nullable String mimeType;
+	private final long snapshotTime;
+
+	FileAttributes(boolean directory, long size, long modified, @Nullable String mimeType, long snapshotTime)
+	{
+		this.directory = directory;
+		this.size = size;
+		this.modified = modified;
+		this.mimeType = mimeType;
+		this.snapshotTime = snapshotTime;
+	}
+
+	static FileAttributes of(SimpleFileMetadata metadata)
+	{
+		return new FileAttributes(File.MIME_FOLDER.equals(metadata.mimeType), metadata.size == null ? 0 : metadata.size,
+				metadata.modifiedTime == null ? 0 : metadata.modifiedTime.getTime(), metadata.mimeType, System.currentTimeMillis());
+	}
+
+	public boolean isDirectory()
+	{
+		return directory;
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	/** Last modification time in milliseconds since the epoch (0 if unknown) **/
+	public long getModified()
+	{
+		return modified;
+	}
+
+	public @Nullable String getMimeType()
+	{
+		return mimeType;
+	}
+
+	/** When (millis) the snapshot was taken **/
+	public long getSnapshotTime()
+	{
+		return snapshotTime;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FileAttributes("+(directory ? "directory" : mimeType)+", "+size+", "+modified+")";
+	}
+}
@@ -1,9 +1,9 @@
 package com.gdrivefs.simplecache;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
@@ -13,29 +13,38 @@ import javax.annotation.Nullable;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestFactory;
-import com.google.api.client.http.HttpResponse;
-import com.jimsproch.sql.DatabaseRow;
+import com.gdrivefs.simplecache.internal.LockStats;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.ProfiledLock;
+import com.gdrivefs.simplecache.internal.StripedCounter;
+import com.gdrivefs.simplecache.store.Fragment;
 
 public class FileContent {
 	public static final int FRAGMENT_BOUNDARY = 1<<25; //32 MiB
 
+	private static final Logger logger = LoggerFactory.getLogger(FileContent.class);
+	private static final StripedCounter cacheHitBytes = Metrics.get().counter("cache.hitBytes");
+	private static final StripedCounter cacheMissBytes = Metrics.get().counter("cache.missBytes");
+	private static final LockStats SCRATCH_SPACE_LOCK_STATS = new LockStats("scratchSpace");
+
 	private final Drive drive;
 	private final UUID localFileId;
 	private final ReentrantLock scratchSpaceLock; // MUST ALWAYS BE ACQUIRED BEFORE WRITELOCK IF ACQUIRED IN SUCCESSION
 	private final AtomicReference<SimpleFileMetadata> metadata;
+	private final FileLock lock; // the owning file's lock
 
-	public FileContent(Drive drive,
+	FileContent(Drive drive,
 			UUID localFileId,
-			AtomicReference<SimpleFileMetadata> metadata) {
+			AtomicReference<SimpleFileMetadata> metadata,
+			FileLock lock) {
 		this.drive = drive;
 		this.localFileId = localFileId;
 		this.metadata = metadata;
-		scratchSpaceLock = new ReentrantLock();
+		this.lock = lock;
+		scratchSpaceLock = new ProfiledLock(SCRATCH_SPACE_LOCK_STATS);
 	}
 	
 	public String storeTruncatedFileToUploadFile(long truncateOffset) throws IOException {
@@ -76,24 +85,20 @@ public class FileContent {
 			throw new Error("this method expects us to be holding the scratch space lock");
 		}
 		java.io.File scratchFile = getScratchFile();
-    	List<DatabaseRow> rows = drive.getDatabase().getRows(
-    			"SELECT * FROM FRAGMENTS "
-    			+ "WHERE LOCALID=? "
-    			+ "ORDER BY STARTBYTE ASC, ENDBYTE DESC",
-    			localFileId);
+    	List<Fragment> rows = drive.getStore().getFragments(localFileId);
 
     	try (FileOutputStream out = new FileOutputStream(scratchFile)) {
     		long position = 0;
-    		for (DatabaseRow row : rows) {
-    			long startByte = row.getLong("STARTBYTE");
+    		for (Fragment row : rows) {
+    			long startByte = row.getStartByte();
     			if (startByte > position) {
     				throw new Error("unexpected gap");
     			}
-    			long endByte = row.getLong("ENDBYTE");
+    			long endByte = row.getEndByte();
     			if (endByte <= position) {
     				continue;
     			}
-    			byte[] chunk = FileUtils.readFileToByteArray(getCacheFile(row.getString("CHUNKMD5")));
+    			byte[] chunk = FileUtils.readFileToByteArray(getCacheFile(row.getChunkMd5()));
     			// sanity check
     			if (chunk.length != endByte-startByte) {
     				throw new Error("unexpected byte array from file");
@@ -124,27 +129,26 @@ public class FileContent {
 	public byte[] getBytesByAnyMeans(long start, long end) throws IOException
 	{
 		// this will be holding a read lock
-		if (drive.lock.getReadHoldCount() <= 0) {
+		if (!lock.isHeldByCurrentThread()) {
 			throw new Error("need a read lock to do reads!");
 		}
-		fillInGapsBetween(start, end);
+		long downloaded = fillInGapsBetween(start, end);
+		cacheMissBytes.add(downloaded);
+		cacheHitBytes.add(end-start-downloaded);
 		byte[] output = new byte[(int)(end-start)];
-		List<DatabaseRow> fragments = drive.getDatabase().getRows(
-				"SELECT * FROM FRAGMENTS "
-				+ "WHERE LOCALID=? AND STARTBYTE < ? AND ENDBYTE > ? "
-				+ "ORDER BY STARTBYTE ASC", localFileId, end, start);
+		List<Fragment> fragments = drive.getStore().getFragments(localFileId, start, end);
 
 		long currentPosition = start;
-		for(DatabaseRow fragment : fragments)
+		for(Fragment fragment : fragments)
 		{
-			long startbyte = fragment.getInteger("STARTBYTE");
-			long endbyte = fragment.getInteger("ENDBYTE");
-			String chunkMd5 = fragment.getString("CHUNKMD5");
+			long startbyte = fragment.getStartByte();
+			long endbyte = fragment.getEndByte();
+			String chunkMd5 = fragment.getChunkMd5();
 			java.io.File cachedChunkFile = getCacheFile(chunkMd5);
 
 			if(!cachedChunkFile.exists() || cachedChunkFile.length() != endbyte-startbyte)
 			{
-				drive.getDatabase().execute("DELETE FROM FRAGMENTS WHERE CHUNKMD5=?", chunkMd5);
+				drive.getStore().deleteFragmentsWithChunk(chunkMd5);
 				continue;
 			}
 
@@ -154,11 +158,14 @@ public class FileContent {
 
 			// Consume the fragment
 			int copyStart = (int)(currentPosition-startbyte);
-			System.out.println("endbyte"+endbyte+" "+"currentPosition"+currentPosition+" "+"startbyte"+startbyte+" "+"readend"+end);
 			int copyEnd = Math.min((int)(endbyte-startbyte), (int)(end-startbyte));
-			System.out.println("readstart"+start+" "+"readend"+end+" "+"copyStart"+copyStart+" "+"copyEnd"+copyEnd+" "+"destpos"+(currentPosition-start)+" "+"length"+(copyEnd-copyStart)+" ");
-			System.out.println("outputlength"+output.length+" "+"fragmentlength"+FileUtils.readFileToByteArray(cachedChunkFile).length);
-			System.arraycopy(FileUtils.readFileToByteArray(cachedChunkFile), copyStart, output, (int)(currentPosition-start), copyEnd-copyStart);
+			logger.trace("copying bytes [{}, {}) of chunk {} to offset {}", copyStart, copyEnd, chunkMd5, currentPosition-start);
+			// Only the part of the chunk we need is read, straight into the output
+			try(RandomAccessFile chunk = new RandomAccessFile(cachedChunkFile, "r"))
+			{
+				chunk.seek(copyStart);
+				chunk.readFully(output, (int)(currentPosition-start), copyEnd-copyStart);
+			}
 			currentPosition += copyEnd-copyStart;
 
 			if (currentPosition >= end) {
@@ -176,24 +183,23 @@ public class FileContent {
 		return output;
 	}
 
-	void fillInGapsBetween(long start, long end) throws IOException
+	/** Downloads whatever parts of bytes [start, end) aren't cached, returning the number of bytes downloaded **/
+	long fillInGapsBetween(long start, long end) throws IOException
 	{
-		List<DatabaseRow> fragments = drive.getDatabase().getRows("SELECT * FROM FRAGMENTS "
-				+ "WHERE LOCALID=? AND STARTBYTE < ? AND ENDBYTE > ? "
-				+ "ORDER BY STARTBYTE ASC",
-				localFileId, end, start);
+		List<Fragment> fragments = drive.getStore().getFragments(localFileId, start, end);
 
+		long downloaded = 0;
 		long currentPosition = start;
-		for(DatabaseRow fragment : fragments)
+		for(Fragment fragment : fragments)
 		{
-			long startbyte = fragment.getLong("STARTBYTE");
-			long endbyte = fragment.getLong("ENDBYTE");
-			String chunkMd5 = fragment.getString("CHUNKMD5");
+			long startbyte = fragment.getStartByte();
+			long endbyte = fragment.getEndByte();
+			String chunkMd5 = fragment.getChunkMd5();
 			java.io.File cachedChunkFile = getCacheFile(chunkMd5);
 
 			if(!cachedChunkFile.exists() || cachedChunkFile.length() != endbyte-startbyte)
 			{
-				drive.getDatabase().execute("DELETE FROM FRAGMENTS WHERE CHUNKMD5=?", chunkMd5);
+				drive.getStore().deleteFragmentsWithChunk(chunkMd5);
 				continue;
 			}
 
@@ -205,13 +211,16 @@ public class FileContent {
 				long gapEnd = Math.min(startbyte, end);
 //				logger.info("gap discovered for {} ({}) between bytes {} and {}",
 //						getGoogleId(), getTitle(), currentPosition, gapEnd);
-				currentPosition += downloadFragment(currentPosition, gapEnd);
+				int gap = downloadFragment(currentPosition, gapEnd);
+				downloaded += gap;
+				currentPosition += gap;
 			}
 
 			// Consume the fragment
 			currentPosition += Math.min(endbyte - currentPosition, end - currentPosition);
 		}
-		currentPosition += downloadFragment(currentPosition, end);
+		downloaded += downloadFragment(currentPosition, end);
+		return downloaded;
 	}
 
     /**
@@ -225,28 +234,12 @@ public class FileContent {
 	{
     	String md5 = metadata.get().fileMd5;
     	
-    	System.out.println("Downloading for " + metadata.get().title + " " +md5+" "+startPosition+" "+endPosition);
+    	logger.debug("downloading bytes [{}, {}) of {} ({})", startPosition, endPosition, localFileId, md5);
 		if(startPosition > endPosition) throw new IllegalArgumentException("startPosition (" + startPosition + ") must not be greater than endPosition (" + endPosition + ")");
 		if(startPosition > endPosition) throw new IllegalArgumentException("startPosition (" + startPosition + ") must not be greater than endPosition (" + endPosition + ")");
 		if(startPosition == endPosition) return 0;
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-		HttpRequestFactory requestFactory = drive.getTransport().createRequestFactory(drive.getRemote().getRequestFactory().getInitializer());
-
-		HttpRequest request = requestFactory.buildGetRequest(new GenericUrl(metadata.get().downloadUrl)); // TODO: query dynamically
-		request.getHeaders().setRange("bytes=" + (startPosition) + "-" + (endPosition - 1));
-		HttpResponse response = request.execute();
-		try
-		{
-			IOUtils.copy(response.getContent(), out);
-		}
-		finally
-		{
-			response.disconnect();
-		}
-
-        byte[] bytes = out.toByteArray();
+        byte[] bytes = drive.getRemote().downloadRange(localFileId.toString(), metadata.get().downloadUrl, startPosition, endPosition); // TODO: query dynamically
 
         storeFragmentNoMerges(md5, startPosition, bytes);
 
@@ -277,24 +270,17 @@ public class FileContent {
     	// this allows for a slight optimization during merging --
     	// we use the fragment that spans more data when possible,
     	// if two fragments start in the same place (fewer I/O calls)
-    	List<DatabaseRow> rows = drive.getDatabase().getRows(
-    			"SELECT * FROM FRAGMENTS "
-    			+ "WHERE LOCALID=? AND "
-    			+ "((ENDBYTE > ? AND ENDBYTE <= ?) "
-    			+ "OR (STARTBYTE >= ? AND STARTBYTE < ?) "
-    			+ "OR (STARTBYTE <= ? AND ENDBYTE >= ?)) "
-    			+ "ORDER BY STARTBYTE ASC, ENDBYTE DESC",
-    			localFileId, start, end, start, end, start, end);
+    	List<Fragment> rows = drive.getStore().getFragments(localFileId, start, end);
 
     	long globalStartByte = start;
     	long globalEndByte = end;
-    	for (DatabaseRow row : rows) {
-    		globalEndByte = Math.max(globalEndByte, row.getLong("ENDBYTE"));
+    	for (Fragment row : rows) {
+    		globalEndByte = Math.max(globalEndByte, row.getEndByte());
     	}
 
     	byte[] merged;
     	if (rows.size() > 0) {
-    		globalStartByte = Math.min(globalStartByte, rows.get(0).getLong("STARTBYTE"));
+    		globalStartByte = Math.min(globalStartByte, rows.get(0).getStartByte());
     		merged = new byte[(int)(globalEndByte - globalStartByte)];
 
     		System.arraycopy(fragment, 0, merged, (int)(start-globalStartByte), fragment.length);
@@ -306,12 +292,12 @@ public class FileContent {
     			position = end;
     		}
     		for (int chunk=0; chunk<rows.size(); chunk++) {
-    			long chunkEnd = rows.get(chunk).getLong("ENDBYTE");
+    			long chunkEnd = rows.get(chunk).getEndByte();
     			if (position >= chunkEnd) {
     				continue;
     			}
-    			String chunkMd5 = rows.get(chunk).getString("CHUNKMD5");
-    			long chunkStart = rows.get(chunk).getLong("STARTBYTE");
+    			String chunkMd5 = rows.get(chunk).getChunkMd5();
+    			long chunkStart = rows.get(chunk).getStartByte();
     			if (position < chunkStart) {
     				throw new Error("inexplicable gap");
     			}
@@ -329,13 +315,7 @@ public class FileContent {
     			}
     		}
 
-    		drive.getDatabase().execute(
-    				"DELETE FROM FRAGMENTS "
-    				+ "WHERE LOCALID=? AND "
-    				+ "((ENDBYTE > ? AND ENDBYTE <= ?) OR "
-    				+ "(STARTBYTE >= ? AND STARTBYTE < ?) OR "
-    				+ "(STARTBYTE <= ? AND ENDBYTE >= ?))",
-    				localFileId.toString(), start, end, start, end, start, end);
+    		drive.getStore().deleteFragments(localFileId, start, end);
     	} else {
     		merged = fragment;
     	}
@@ -349,28 +329,55 @@ public class FileContent {
 
     	String chunkMd5 = DigestUtils.md5Hex(fragment);
     	FileUtils.writeByteArrayToFile(getCacheFile(chunkMd5), fragment);
-    	drive.getDatabase().execute(
-    			"INSERT INTO FRAGMENTS"
-    			+ "(LOCALID, FILEMD5, CHUNKMD5, STARTBYTE, ENDBYTE)"
-    			+ "VALUES(?,?,?,?,?)",
-    			localFileId, fileMd5, chunkMd5, fragmentStartByte, fragmentStartByte + fragment.length);
+    	drive.getStore().insertFragment(new Fragment(localFileId, fileMd5, chunkMd5, fragmentStartByte, fragmentStartByte + fragment.length));
     }
 
     public void dropFragmentsStartingAtOrAfter(long offset) throws IOException {
-    	if (!drive.lock.writeLock().isHeldByCurrentThread()) {
+    	if (!lock.isWriteLockedByCurrentThread()) {
     		throw new Error("need write lock to do writes");
     	}
-    	drive.getDatabase().execute("DELETE FROM FRAGMENTS "
-    			+ "WHERE LOCALID=? AND STARTBYTE>=?",
-    			localFileId, offset);
+    	drive.getStore().deleteFragmentsStartingAtOrAfter(localFileId, offset);
     }
 
+	/** True if fragments cover all of the file's current content (none of them downloaded from an older version of it) **/
+	boolean isFullyCached() {
+		SimpleFileMetadata current = metadata.get();
+		long size = current.size == null ? 0 : current.size;
+		long position = 0;
+		for (Fragment fragment : drive.getStore().getFragments(localFileId)) {
+			if (position >= size) {
+				break;
+			}
+			if (isStale(fragment, current) || fragment.getStartByte() > position) {
+				return false;
+			}
+			position = Math.max(position, fragment.getEndByte());
+		}
+		return position >= size;
+	}
+
+	/** True if any fragment was downloaded from a version of the file other than the current one **/
+	boolean hasStaleFragments() {
+		SimpleFileMetadata current = metadata.get();
+		for (Fragment fragment : drive.getStore().getFragments(localFileId)) {
+			if (isStale(fragment, current)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isStale(Fragment fragment, SimpleFileMetadata current) {
+		// Fragments from local writes have no md5, and neither do files Google doesn't checksum (eg. Google Docs)
+		return fragment.getFileMd5() != null && current.fileMd5 != null && !fragment.getFileMd5().equals(current.fileMd5);
+	}
+
 	void dropFragmentsFromDb() throws IOException {
-		drive.lock.writeLock().lock();
+		lock.writeLock();
 		try {
-			drive.getDatabase().execute("DELETE FROM FRAGMENTS WHERE LOCALID=?", localFileId);
+			drive.getStore().deleteFragments(localFileId);
 		} finally {
-			drive.lock.writeLock().unlock();
+			lock.writeUnlock();
 		}
 	}
 	
@@ -0,0 +1,183 @@
+package com.gdrivefs.simplecache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gdrivefs.simplecache.internal.LockStats;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.StripedCounter;
+
+/**
+ * Read/write lock guarding the cached state of a single File (its metadata, its content, and for directories its list of children).
+ *
+ * Every lock has a place in a global order, by the local id of its file (so it doesn't depend on which File objects happened to be
+ * built first).  Operations that span several files (eg. addChild, trash) take all their locks up front with writeLockAll, which
+ * takes them in that order, so they can't deadlock with one another.  Taking a lock while holding one that comes after it is a bug
+ * that could deadlock; it is logged and counted as lock.file.orderViolations (and fails an assertion when they're enabled) rather
+ * than killing the thread.  Upgrading a read lock to a write lock throws an Error, since it would always deadlock.
+ * Re-acquiring a lock the thread already holds is always allowed.
+ *
+ * Wait and hold times are recorded in Metrics, as lock.file.read.* and lock.file.write.* (see LockStats).
+ */
+final class FileLock
+{
+	private static final Logger logger = LoggerFactory.getLogger(FileLock.class);
+	private static final AtomicLong nextTiebreak = new AtomicLong();
+
+	/** Every acquisition the current thread has not yet released, oldest first **/
+	private static final ThreadLocal<List<FileLock>> held = new ThreadLocal<List<FileLock>>()
+	{
+		@Override
+		protected List<FileLock> initialValue()
+		{
+			return new ArrayList<FileLock>();
+		}
+	};
+
+	/** Number of file write locks held by the current thread **/
+	private static final ThreadLocal<int[]> writesHeld = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[1];
+		}
+	};
+
+	private static final Comparator<FileLock> ORDER = new Comparator<FileLock>()
+	{
+		@Override
+		public int compare(FileLock a, FileLock b)
+		{
+			int byKey = a.key.compareTo(b.key);
+			return byKey != 0 ? byKey : Long.compare(a.tiebreak, b.tiebreak);
+		}
+	};
+
+	private static final LockStats readStats = new LockStats("file.read");
+	private static final LockStats writeStats = new LockStats("file.write");
+
+	private static final StripedCounter orderViolations = Metrics.get().counter("lock.file.orderViolations");
+
+	/** The file's local id **/
+	private final UUID key;
+	/** Orders locks of the same file (one file can briefly have two File objects) **/
+	private final long tiebreak = nextTiebreak.getAndIncrement();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	FileLock(UUID key)
+	{
+		this.key = key;
+	}
+
+	void readLock()
+	{
+		checkOrder();
+		long started = System.nanoTime();
+		lock.readLock().lock();
+		if(lock.getReadHoldCount() == 1) readStats.acquired(started);
+		held.get().add(this);
+	}
+
+	void readUnlock()
+	{
+		if(lock.getReadHoldCount() == 1) readStats.released();
+		lock.readLock().unlock();
+		release();
+	}
+
+	void writeLock()
+	{
+		if(lock.getReadHoldCount() > 0 && !lock.isWriteLockedByCurrentThread()) throw new Error("Can not upgrade a read lock to a write lock");
+		checkOrder();
+		long started = System.nanoTime();
+		lock.writeLock().lock();
+		if(lock.getWriteHoldCount() == 1) writeStats.acquired(started);
+		held.get().add(this);
+		writesHeld.get()[0]++;
+	}
+
+	void writeUnlock()
+	{
+		if(lock.getWriteHoldCount() == 1) writeStats.released();
+		lock.writeLock().unlock();
+		release();
+		writesHeld.get()[0]--;
+	}
+
+	boolean isWriteLockedByCurrentThread()
+	{
+		return lock.isWriteLockedByCurrentThread();
+	}
+
+	boolean isHeldByCurrentThread()
+	{
+		return lock.isWriteLockedByCurrentThread() || lock.getReadHoldCount() > 0;
+	}
+
+	/** True if the current thread holds the write lock of any file; such threads must not do network io **/
+	static boolean holdsAnyWriteLock()
+	{
+		return writesHeld.get()[0] > 0;
+	}
+
+	/** Call before doing network io: it must never happen while holding a file's write lock, and is counted against any other lock held **/
+	static void checkNetworkIo()
+	{
+		if(holdsAnyWriteLock()) throw new Error("Should not be holding write lock while doing network io");
+		LockStats.checkNetworkIo();
+	}
+
+	/** Write-locks all the given files' locks, in order; release each with writeUnlock (or all of them with writeUnlockAll) **/
+	static void writeLockAll(Collection<FileLock> locks)
+	{
+		List<FileLock> sorted = new ArrayList<FileLock>(locks);
+		Collections.sort(sorted, ORDER);
+		FileLock previous = null;
+		for(FileLock lock : sorted)
+		{
+			if(lock != previous) lock.writeLock();
+			previous = lock;
+		}
+	}
+
+	static void writeUnlockAll(Collection<FileLock> locks)
+	{
+		List<FileLock> sorted = new ArrayList<FileLock>(locks);
+		Collections.sort(sorted, Collections.reverseOrder(ORDER));
+		FileLock previous = null;
+		for(FileLock lock : sorted)
+		{
+			if(lock != previous) lock.writeUnlock();
+			previous = lock;
+		}
+	}
+
+	private void checkOrder()
+	{
+		if(isHeldByCurrentThread()) return;
+		for(FileLock other : held.get())
+			if(ORDER.compare(other, this) > 0)
+			{
+				orderViolations.increment();
+				logger.warn("Lock ordering violation: acquiring file lock "+key+" while holding "+other.key, new Throwable());
+				assert false : "Lock ordering violation: acquiring file lock "+key+" while holding "+other.key;
+				return;
+			}
+	}
+
+	private void release()
+	{
+		List<FileLock> locks = held.get();
+		locks.remove(locks.lastIndexOf(this));
+	}
+}
@@ -0,0 +1,328 @@
+package com.gdrivefs.simplecache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer.Caller;
+import com.gdrivefs.simplecache.internal.RemoteExecutor;
+import com.gdrivefs.simplecache.internal.StripedCounter;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the content of pinned files, and of everything under pinned directories, downloaded, so it can be read without the network.
+ *
+ * Pins are kept (by Google id, so they follow renames) in the metadata store.  A background worker sweeps every pinned subtree when it
+ * is pinned, every gdrivefs.pin.sweepSeconds (default 300) after that, and shortly after the changes feed reports a change to a file;
+ * each sweep downloads whatever isn't cached, including files whose cached content is from a version that has since changed remotely.
+ * Pinned content is never evicted (see File.evictContent).
+ *
+ * Downloads are made in small pieces, limited to gdrivefs.pin.bytesPerSecond (default 4 MiB/s), and pause while reads are waiting for
+ * a download thread, so prefetching never starves the reads applications are waiting on.  One-off prefetches (see prefetch) share the
+ * same worker and budget.
+ */
+public class PinManager
+{
+	private static final Logger logger = LoggerFactory.getLogger(PinManager.class);
+	/** Google ids of the pinned files and directories, one per line **/
+	static final String PINS_PROPERTY = "pins";
+	/** Content is fetched in pieces of this size; it divides the fragment size, so pieces never span fragments **/
+	private static final int PIECE_SIZE = 1<<22;
+	private static final long SWEEP_SECONDS = Long.getLong("gdrivefs.pin.sweepSeconds", 300);
+	/** Changes are swept after a delay, giving the drive time to refresh the file's metadata **/
+	private static final long CHANGE_DELAY_SECONDS = 5;
+	private static final long FOREGROUND_PAUSE_MILLIS = 50;
+	/** Deepest directory nesting that is walked; deeper trees are almost certainly cycles **/
+	private static final int MAX_DEPTH = 64;
+
+	private static final StripedCounter fetchedBytes = Metrics.get().counter("pin.bytes");
+	private static final StripedCounter fetchedFiles = Metrics.get().counter("pin.files");
+	private static final StripedCounter failures = Metrics.get().counter("pin.failures");
+
+	private final Drive drive;
+	private final RateLimiter budget = RateLimiter.create(Double.parseDouble(System.getProperty("gdrivefs.pin.bytesPerSecond", Integer.toString(4<<20))));
+	private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gdrivefs-pin-%d").build());
+	/** Guarded by this **/
+	private final Set<String> pinned = new LinkedHashSet<String>();
+	private boolean sweeping = false;
+
+	PinManager(Drive drive)
+	{
+		this.drive = drive;
+		String pins = drive.getStore().getProperty(PINS_PROPERTY);
+		if(pins != null) for(String id : Splitter.on('\n').omitEmptyStrings().split(pins)) pinned.add(id);
+		if(!pinned.isEmpty()) startSweeping();
+	}
+
+	/** Pins the file or directory (and so everything under it), and starts downloading its content **/
+	public void pin(File file) throws IOException
+	{
+		final String id = file.getId();
+		if(id == null) throw new IOException("Can not pin "+file+" until it has been created on Google");
+		synchronized(this)
+		{
+			if(!pinned.add(id)) return;
+			savePins();
+			startSweeping();
+		}
+		submit(id);
+	}
+
+	/** Unpins the file or directory; content already downloaded stays cached, but may now be evicted **/
+	public void unpin(File file)
+	{
+		String id = file.getId();
+		synchronized(this)
+		{
+			if(id == null || !pinned.remove(id)) return;
+			savePins();
+		}
+	}
+
+	/** True if the file or directory itself was pinned (as opposed to being under a pinned directory) **/
+	public synchronized boolean isPinnedDirectly(File file)
+	{
+		return file.getId() != null && pinned.contains(file.getId());
+	}
+
+	/** True if the file or any directory above it is pinned **/
+	public boolean isPinned(File file) throws IOException
+	{
+		synchronized(this)
+		{
+			if(pinned.isEmpty()) return false;
+		}
+		return isPinned(file, new HashSet<File>(), 0);
+	}
+
+	private boolean isPinned(File file, Set<File> visited, int depth) throws IOException
+	{
+		if(isPinnedDirectly(file)) return true;
+		if(depth >= MAX_DEPTH || !visited.add(file)) return false;
+		for(File parent : file.getParents())
+			if(isPinned(parent, visited, depth+1)) return true;
+		return false;
+	}
+
+	/** Google ids of everything pinned **/
+	public synchronized List<String> getPinnedIds()
+	{
+		return Collections.unmodifiableList(new ArrayList<String>(pinned));
+	}
+
+	/** Downloads the file's content in the background, within the same budget as pinned content, without pinning it **/
+	public void prefetch(final File file)
+	{
+		worker.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				RemoteCallTracer.Context previous = RemoteCallTracer.enter(Caller.REFRESH, "prefetch "+file);
+				try
+				{
+					fetch(file);
+				}
+				catch(Exception e)
+				{
+					failures.increment();
+					logger.warn("Could not prefetch "+file, e);
+				}
+				finally
+				{
+					RemoteCallTracer.exit(previous);
+				}
+			}
+		});
+	}
+
+	/** Called when the changes feed reports that the file changed; if it is pinned, its new content is fetched shortly **/
+	void changed(String googleId)
+	{
+		synchronized(this)
+		{
+			if(pinned.isEmpty()) return;
+		}
+		final File file = drive.googleFiles.getIfPresent(googleId);
+		if(file == null) return; // Nothing we've seen, so nothing we've fetched; the next sweep picks it up if it's pinned
+		worker.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				RemoteCallTracer.Context previous = RemoteCallTracer.enter(Caller.REFRESH, "pin "+file);
+				try
+				{
+					if(!drive.isShutdown() && isPinned(file)) sweep(file, new HashSet<File>(), 0);
+				}
+				catch(Exception e)
+				{
+					failures.increment();
+					logger.warn("Could not fetch changed pinned file "+file, e);
+				}
+				finally
+				{
+					RemoteCallTracer.exit(previous);
+				}
+			}
+		}, CHANGE_DELAY_SECONDS, TimeUnit.SECONDS);
+	}
+
+	void close()
+	{
+		worker.shutdownNow();
+	}
+
+	private void savePins()
+	{
+		drive.getStore().setProperty(PINS_PROPERTY, pinned.isEmpty() ? null : Joiner.on('\n').join(pinned));
+	}
+
+	/** Starts the periodic sweep, if it isn't running; call holding this **/
+	private void startSweeping()
+	{
+		if(sweeping) return;
+		sweeping = true;
+		worker.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for(String id : getPinnedIds())
+				{
+					if(drive.isShutdown()) return;
+					sweepPin(id);
+				}
+			}
+		}, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private void submit(final String id)
+	{
+		worker.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				sweepPin(id);
+			}
+		});
+	}
+
+	private void sweepPin(String id)
+	{
+		synchronized(this)
+		{
+			if(!pinned.contains(id)) return;
+		}
+		RemoteCallTracer.Context previous = RemoteCallTracer.enter(Caller.REFRESH, "pin "+id);
+		try
+		{
+			sweep(drive.getCachedFile(id), new HashSet<File>(), 0);
+		}
+		catch(Exception e)
+		{
+			failures.increment();
+			logger.warn("Could not fetch pinned "+id, e);
+		}
+		finally
+		{
+			RemoteCallTracer.exit(previous);
+		}
+	}
+
+	private void sweep(File file, Set<File> visited, int depth) throws IOException, InterruptedException
+	{
+		if(depth >= MAX_DEPTH || !visited.add(file) || Thread.currentThread().isInterrupted()) return;
+		if(!file.isDirectory())
+		{
+			fetch(file);
+			return;
+		}
+		for(File child : file.getChildren())
+		{
+			try
+			{
+				sweep(child, visited, depth+1);
+			}
+			catch(IOException e)
+			{
+				// One file failing shouldn't stop the rest of the tree being fetched
+				failures.increment();
+				logger.warn("Could not fetch pinned "+child, e);
+			}
+		}
+	}
+
+	/** Downloads whatever of the file's current content isn't cached **/
+	private void fetch(File file) throws IOException, InterruptedException
+	{
+		file.dropStaleContent();
+		if(file.isContentCached()) return;
+
+		long size = file.getSize();
+		long downloaded = 0;
+		for(long position = 0; position < size; position += PIECE_SIZE)
+		{
+			yieldToForeground();
+			long bytes = file.cacheRange(position, Math.min(position+PIECE_SIZE, size));
+			// Charged after the fact (the cached parts of a piece are free), which delays the next piece instead
+			if(bytes > 0) budget.acquire((int)bytes);
+			downloaded += bytes;
+		}
+		fetchedBytes.add(downloaded);
+		if(downloaded > 0) fetchedFiles.increment();
+	}
+
+	/** Waits while reads are queued for a download thread, so they don't queue behind us **/
+	private void yieldToForeground() throws InterruptedException
+	{
+		while(drive.remoteExecutor.getQueueDepth(RemoteExecutor.Pool.DOWNLOAD) > 0)
+		{
+			if(drive.isShutdown()) throw new InterruptedException("Drive closed");
+			Thread.sleep(FOREGROUND_PAUSE_MILLIS);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PinManager("+getPinnedIds()+")";
+	}
+
+	/** Waits until the worker has finished everything submitted so far (not counting delayed or periodic sweeps) **/
+	public void awaitIdle(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+	{
+		try
+		{
+			worker.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+				}
+			}).get(timeout, unit);
+		}
+		catch(ExecutionException e)
+		{
+			throw new Error(e);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.gdrivefs.simplecache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gdrivefs.simplecache.internal.RemoteCallTracer;
+import com.gdrivefs.simplecache.internal.RemoteExecutor;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Collects Drive API requests and sends them through Google's multipart batch endpoint, up to MAX_BATCH_SIZE per HTTP round trip.
+ * Nothing is sent until flush(); each queued request's future completes (or fails with its own error) once its batch has been executed.
+ * Google does not guarantee the order in which requests within a batch are applied, so don't queue requests that depend on one another.
+ */
+public class RemoteBatch
+{
+	private static final Logger logger = LoggerFactory.getLogger(RemoteBatch.class);
+
+	/** Google rejects batches of more than 100 requests **/
+	public static final int MAX_BATCH_SIZE = 100;
+
+	private final com.google.api.services.drive.Drive remote;
+	private final @Nullable RemoteExecutor executor;
+	private List<Queued<?>> queued = new ArrayList<Queued<?>>();
+
+	public RemoteBatch(com.google.api.services.drive.Drive remote)
+	{
+		this(remote, null);
+	}
+
+	/** @param executor if not null, each queued request takes a permit from its rate limiter before its batch is sent **/
+	public RemoteBatch(com.google.api.services.drive.Drive remote, @Nullable RemoteExecutor executor)
+	{
+		this.remote = remote;
+		this.executor = executor;
+	}
+
+	public ListenableFuture<File> getFileMetadata(String googleFileId) throws IOException
+	{
+		return queue("files.get", googleFileId, remote.files().get(googleFileId).setFields(RemoteFields.FILE));
+	}
+
+	public ListenableFuture<ParentReference> insertParent(String childGoogleFileId, String parentGoogleFileId) throws IOException
+	{
+		return queue("parents.insert", childGoogleFileId, remote.parents().insert(childGoogleFileId, new ParentReference().setId(parentGoogleFileId)).setFields("id"));
+	}
+
+	public ListenableFuture<Void> deleteParent(String childGoogleFileId, String parentGoogleFileId) throws IOException
+	{
+		return queue("parents.delete", childGoogleFileId, remote.parents().delete(childGoogleFileId, parentGoogleFileId));
+	}
+
+	public ListenableFuture<File> trash(String googleFileId) throws IOException
+	{
+		return queue("files.trash", googleFileId, remote.files().trash(googleFileId).setFields(RemoteFields.FILE));
+	}
+
+	/** Renames the file; only the title is sent, so other metadata changed concurrently is left alone **/
+	public ListenableFuture<File> setTitle(String googleFileId, String title) throws IOException
+	{
+		return queue("files.patch", googleFileId, remote.files().patch(googleFileId, new File().setTitle(title)).setFields(RemoteFields.FILE));
+	}
+
+	/** Number of requests queued since the last flush **/
+	public int size()
+	{
+		return queued.size();
+	}
+
+	/**
+	 * Sends every queued request, in batches of at most MAX_BATCH_SIZE.
+	 * Throws only if a batch could not be sent at all; failures of individual requests are reported through their futures.
+	 */
+	public void flush() throws IOException
+	{
+		// Flushing does network io, which must never happen while holding a file's write lock
+		FileLock.checkNetworkIo();
+
+		List<Queued<?>> pending = queued;
+		queued = new ArrayList<Queued<?>>();
+		for(int start = 0; start < pending.size(); start += MAX_BATCH_SIZE)
+		{
+			List<Queued<?>> chunk = pending.subList(start, Math.min(pending.size(), start+MAX_BATCH_SIZE));
+			BatchRequest batch = remote.batch();
+			for(Queued<?> request : chunk) request.queueOn(batch);
+			// Each request in a batch counts against the quota on its own
+			if(executor != null) executor.acquire(chunk.size());
+			try
+			{
+				logger.debug("Executing batch of {} requests", chunk.size());
+				batch.execute();
+			}
+			catch(IOException e)
+			{
+				// Fail everything that was never sent (the callbacks of anything that was sent have already run)
+				for(Queued<?> request : pending.subList(start, pending.size())) request.future.setException(e);
+				throw e;
+			}
+		}
+	}
+
+	/** Queues the request, traced (as batch.type) from now until its response arrives **/
+	private <T> ListenableFuture<T> queue(String type, String fileId, AbstractGoogleJsonClientRequest<T> request)
+	{
+		Queued<T> entry = new Queued<T>(request);
+		queued.add(entry);
+		return RemoteCallTracer.trace("batch."+type, fileId, entry.future);
+	}
+
+	private static class Queued<T>
+	{
+		final AbstractGoogleJsonClientRequest<T> request;
+		final SettableFuture<T> future = SettableFuture.create();
+
+		Queued(AbstractGoogleJsonClientRequest<T> request)
+		{
+			this.request = request;
+		}
+
+		void queueOn(BatchRequest batch) throws IOException
+		{
+			request.queue(batch, new JsonBatchCallback<T>()
+			{
+				@Override
+				public void onSuccess(T result, HttpHeaders responseHeaders)
+				{
+					future.set(result);
+				}
+
+				@Override
+				public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders)
+				{
+					future.setException(new IOException(error.getCode()+" "+error.getMessage()));
+				}
+			});
+		}
+	}
+}
@@ -1,94 +1,291 @@
 package com.gdrivefs.simplecache;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
+import com.gdrivefs.simplecache.internal.HedgedDownloader;
+import com.gdrivefs.simplecache.internal.HedgedDownloader.RangeBuffer;
+import com.gdrivefs.simplecache.internal.Histogram;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer;
+import com.gdrivefs.simplecache.internal.RemoteExecutor;
+import com.gdrivefs.simplecache.internal.RemoteExecutor.Pool;
+import com.gdrivefs.simplecache.internal.StripedCounter;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
+import com.google.common.util.concurrent.ListenableFuture;
 
-/** Simple API for performing remote requests that require IO.  Makes it easier to audit code to make sure we're not holding locks while doing io, do remote request logging, etc **/
+/**
+ * Simple API for performing remote requests that require IO.  Makes it easier to audit code to make sure we're not holding locks while doing io, do remote request logging, etc
+ * Requests are throttled and retried by a RemoteExecutor; the *Async methods return immediately, and the rest wait for their request to complete.
+ * Every request is timed and attributed to whoever asked for it by the RemoteCallTracer.
+ **/
 public class RemoteDriveWrapper
 {
+	private static final StripedCounter downloadBytes = Metrics.get().counter("download.bytes");
+	private static final Histogram downloadLatency = Metrics.get().histogram("download");
+	private static final StripedCounter uploadBytes = Metrics.get().counter("upload.bytes");
+	private static final Histogram uploadLatency = Metrics.get().histogram("upload");
+
+	static
+	{
+		// Average transfer rates while transferring, so idle time doesn't dilute them
+		Metrics.get().gauge("download.bytesPerSecond", new Metrics.Gauge()
+		{
+			@Override
+			public long get()
+			{
+				return bytesPerSecond(downloadBytes, downloadLatency);
+			}
+		});
+		Metrics.get().gauge("upload.bytesPerSecond", new Metrics.Gauge()
+		{
+			@Override
+			public long get()
+			{
+				return bytesPerSecond(uploadBytes, uploadLatency);
+			}
+		});
+	}
+
 	private Drive local;
 	private com.google.api.services.drive.Drive remote;
+	private final RemoteExecutor executor;
+	private final HedgedDownloader downloader;
 	
-	public RemoteDriveWrapper(Drive local, com.google.api.services.drive.Drive remote)
+	public RemoteDriveWrapper(Drive local, com.google.api.services.drive.Drive remote, RemoteExecutor executor, HedgedDownloader downloader)
 	{
 		this.local = local;
 		this.remote = remote;
+		this.executor = executor;
+		this.downloader = downloader;
 	}
 	
 	public String getRootFileId() throws IOException
 	{
-		if(local.lock.isWriteLockedByCurrentThread()) throw new Error("Should not be holding write lock while doing network io");
-		return remote.about().get().execute().getRootFolderId();
+		return await(getAboutAsync()).getRootFolderId();
+	}
+
+	/** Id of the most recent change to the user's drive; changes after this id have not happened yet **/
+	public long getLargestChangeId() throws IOException
+	{
+		return await(getAboutAsync()).getLargestChangeId();
+	}
+	
+	private ListenableFuture<About> getAboutAsync() throws IOException
+	{
+		return RemoteCallTracer.trace("about.get", null, executor.submit(Pool.METADATA, true, remote.about().get().setFields(RemoteFields.ABOUT)));
+	}
+	
+	/** One page of the changes feed, starting at (and including) startChangeId; pageToken is null for the first page **/
+	public ChangeList getChanges(long startChangeId, @Nullable String pageToken) throws IOException
+	{
+		com.google.api.services.drive.Drive.Changes.List lst = remote.changes().list()
+				.setStartChangeId(startChangeId)
+				.setIncludeDeleted(true)
+				.setIncludeSubscribed(true)
+				.setMaxResults(RemoteFields.MAX_LIST_RESULTS)
+				.setFields(RemoteFields.CHANGE_LIST);
+		if(pageToken != null) lst.setPageToken(pageToken);
+		return await(RemoteCallTracer.trace("changes.list", null, executor.submit(Pool.METADATA, true, lst)));
 	}
 
 	public com.google.api.services.drive.model.File getFileMetadata(String googleFileId) throws IOException
 	{
-		if(local.lock.isWriteLockedByCurrentThread()) throw new Error("Should not be holding write lock while doing network io");
-		return remote.files().get(googleFileId).execute();
+		return await(getFileMetadataAsync(googleFileId));
+	}
+	
+	public ListenableFuture<com.google.api.services.drive.model.File> getFileMetadataAsync(String googleFileId) throws IOException
+	{
+		return RemoteCallTracer.trace("files.get", googleFileId, executor.submit(Pool.METADATA, true, remote.files().get(googleFileId).setFields(RemoteFields.FILE)));
 	}
 	
 	public List<com.google.api.services.drive.model.File> getChildren(String googleFileId) throws IOException
 	{
-		com.google.api.services.drive.Drive.Files.List lst = remote.files().list().setQ("'"+googleFileId+"' in parents and trashed=false");
+		return await(getChildrenAsync(googleFileId));
+	}
+	
+	/** Every untrashed child of the directory; each page of the listing is throttled and retried on its own **/
+	public ListenableFuture<List<com.google.api.services.drive.model.File>> getChildrenAsync(String googleFileId) throws IOException
+	{
+		final com.google.api.services.drive.Drive.Files.List lst = remote.files().list()
+				.setQ("'"+googleFileId+"' in parents and trashed=false")
+				.setMaxResults(RemoteFields.MAX_LIST_RESULTS)
+				.setFields(RemoteFields.FILE_LIST);
 
-		final List<com.google.api.services.drive.model.File> googleChildren = new ArrayList<com.google.api.services.drive.model.File>();
-		do
+		return RemoteCallTracer.trace("files.list", googleFileId, executor.submitEach(Pool.METADATA, new Callable<List<com.google.api.services.drive.model.File>>()
 		{
-			FileList files = lst.execute();
-			for(com.google.api.services.drive.model.File child : files.getItems()) {
-				googleChildren.add(child);
+			@Override
+			public List<com.google.api.services.drive.model.File> call() throws IOException
+			{
+				final List<com.google.api.services.drive.model.File> googleChildren = new ArrayList<com.google.api.services.drive.model.File>();
+				do
+				{
+					FileList files = executor.call(true, lst);
+					for(com.google.api.services.drive.model.File child : files.getItems()) {
+						googleChildren.add(child);
+					}
+					lst.setPageToken(files.getNextPageToken());
+				} while(lst.getPageToken() != null && lst.getPageToken().length() > 0);
+
+				return googleChildren;
 			}
-			lst.setPageToken(files.getNextPageToken());
-		} while(lst.getPageToken() != null && lst.getPageToken().length() > 0);
+		}));
+	}
 
-		return googleChildren;
+	/** One page of every (untrashed) file in the drive; pageToken is null for the first page **/
+	public FileList listAllFiles(@Nullable String pageToken) throws IOException
+	{
+		com.google.api.services.drive.Drive.Files.List lst = remote.files().list()
+				.setQ("trashed=false")
+				.setMaxResults(RemoteFields.MAX_LIST_RESULTS)
+				.setFields(RemoteFields.FILE_LIST);
+		if(pageToken != null) lst.setPageToken(pageToken);
+		return await(RemoteCallTracer.trace("files.list", null, executor.submit(Pool.METADATA, true, lst)));
 	}
 
 	public List<ParentReference> getParents(String googleFileId) throws IOException
 	{
-		return remote.files().get(googleFileId).execute().getParents();
+		return await(getParentsAsync(googleFileId)).getParents();
+	}
+	
+	public ListenableFuture<File> getParentsAsync(String googleFileId) throws IOException
+	{
+		return RemoteCallTracer.trace("files.get", googleFileId, executor.submit(Pool.METADATA, true, remote.files().get(googleFileId).setFields(RemoteFields.PARENTS)));
 	}
 	
 	public void trash(String googleFileId) throws IOException
 	{
-		remote.files().trash(googleFileId).execute();
+		await(RemoteCallTracer.trace("files.trash", googleFileId, executor.submit(Pool.METADATA, true, remote.files().trash(googleFileId).setFields(RemoteFields.FILE))));
 	}
 	
-	public HttpRequestFactory getRequestFactory()
+	/** Bytes [start, end) of the file at downloadUrl; slow downloads are hedged (see HedgedDownloader).  fileId only tags the requests for tracing **/
+	public byte[] downloadRange(final String fileId, final URL downloadUrl, long start, long end) throws IOException
 	{
-		return remote.getRequestFactory();
+		FileLock.checkNetworkIo();
+		long started = System.nanoTime();
+		byte[] bytes = downloader.download(new HedgedDownloader.RangeSource()
+		{
+			@Override
+			public ListenableFuture<?> download(long start, long end, RangeBuffer into) throws IOException
+			{
+				return downloadRangeAsync(fileId, downloadUrl, start, end, into);
+			}
+		}, start, end);
+		downloadLatency.recordSince(started);
+		downloadBytes.add(bytes.length);
+		return bytes;
+	}
+	
+	/** Downloads bytes [start, end) of the file at downloadUrl into the buffer, with no hedging **/
+	public ListenableFuture<?> downloadRangeAsync(String fileId, URL downloadUrl, final long start, final long end, final RangeBuffer into) throws IOException
+	{
+		HttpRequestFactory requestFactory = local.getTransport().createRequestFactory(remote.getRequestFactory().getInitializer());
+		final HttpRequest request = requestFactory.buildGetRequest(new GenericUrl(downloadUrl));
+		request.getHeaders().setRange("bytes=" + start + "-" + (end - 1));
+		return RemoteCallTracer.trace("download", fileId, executor.submit(Pool.DOWNLOAD, true, new Callable<Void>()
+		{
+			@Override
+			public Void call() throws IOException
+			{
+				final HttpResponse response = request.execute();
+				try
+				{
+					into.readFrom(response.getContent(), new Closeable()
+					{
+						@Override
+						public void close() throws IOException
+						{
+							response.disconnect();
+						}
+					});
+					return null;
+				}
+				finally
+				{
+					response.disconnect();
+				}
+			}
+		}));
 	}
 	
 	public File update(String googleFileId, com.google.api.services.drive.model.File newRemoteDirectory, com.google.api.client.http.FileContent mediaContent) throws IOException
 	{
-		return remote.files().update(googleFileId, newRemoteDirectory, mediaContent).execute();
+		return await(updateAsync(googleFileId, newRemoteDirectory, mediaContent));
 	}
 	
-	public void updateFile(String googleFileId, com.google.api.services.drive.model.File file) throws IOException
+	/** Replaces the file's metadata and content; runs on the upload pool, since the content may be large **/
+	public ListenableFuture<File> updateAsync(String googleFileId, com.google.api.services.drive.model.File newRemoteDirectory, final com.google.api.client.http.FileContent mediaContent) throws IOException
 	{
-		remote.files().update(googleFileId, file).execute();
+		final com.google.api.services.drive.Drive.Files.Update request = remote.files().update(googleFileId, newRemoteDirectory, mediaContent).setFields(RemoteFields.FILE);
+		return RemoteCallTracer.trace("files.update", googleFileId, executor.submit(Pool.UPLOAD, true, new Callable<File>()
+		{
+			@Override
+			public File call() throws IOException
+			{
+				long started = System.nanoTime();
+				File updated = request.execute();
+				uploadLatency.recordSince(started);
+				uploadBytes.add(mediaContent.getLength());
+				return updated;
+			}
+		}));
+	}
+	
+	/** Renames the file; only the title is sent, so other metadata changed concurrently is left alone **/
+	public File setTitle(String googleFileId, String title) throws IOException
+	{
+		return await(RemoteCallTracer.trace("files.patch", googleFileId, executor.submit(Pool.METADATA, true, remote.files().patch(googleFileId, new File().setTitle(title)).setFields(RemoteFields.FILE))));
 	}
 	
 	public void insertParent(String childGoogleFileId, String parentGoogleFileId) throws IOException
 	{
 		ParentReference newParent = new ParentReference();
 		newParent.setId(parentGoogleFileId);
-		remote.parents().insert(childGoogleFileId, newParent).execute();
+		await(RemoteCallTracer.trace("parents.insert", childGoogleFileId, executor.submit(Pool.METADATA, true, remote.parents().insert(childGoogleFileId, newParent).setFields("id"))));
 	}
 	
 	public void deleteParent(String childGoogleFileId, String parentGoogleFileId) throws IOException
 	{
-		remote.parents().delete(childGoogleFileId, parentGoogleFileId).execute();
+		await(RemoteCallTracer.trace("parents.delete", childGoogleFileId, executor.submit(Pool.METADATA, true, remote.parents().delete(childGoogleFileId, parentGoogleFileId))));
+	}
+	
+	/** Starts collecting requests to be sent together; see RemoteBatch **/
+	public RemoteBatch newBatch()
+	{
+		return new RemoteBatch(remote, executor);
 	}
 	
+	/** Not retried on server errors: Google may have created the file before failing, and a retry would create a second one **/
 	public com.google.api.services.drive.model.File insertFile(com.google.api.services.drive.model.File file) throws IOException
 	{
-		return remote.files().insert(file).execute();
+		return await(RemoteCallTracer.trace("files.insert", null, executor.submit(Pool.METADATA, false, remote.files().insert(file).setFields(RemoteFields.FILE))));
+	}
+	
+	private static long bytesPerSecond(StripedCounter bytes, Histogram latency)
+	{
+		long millis = latency.getTotal(TimeUnit.MILLISECONDS);
+		return millis == 0 ? 0 : bytes.sum()*1000/millis;
+	}
+	
+	/** Waits for a request; waiting does network io (by proxy), which must never happen while holding a file's write lock **/
+	private static <T> T await(ListenableFuture<T> future) throws IOException
+	{
+		FileLock.checkNetworkIo();
+		return RemoteExecutor.await(future);
 	}
 }
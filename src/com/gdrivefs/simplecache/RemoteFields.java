@@ -0,0 +1,26 @@
+package com.gdrivefs.simplecache;
+
+/**
+ * Partial-response field selectors for every metadata request we make, so Google only sends (and we only parse) what the cache uses.
+ * If you start reading another field of a remote File, add it to FILE or it will silently come back null.
+ */
+final class RemoteFields
+{
+	/** Everything simplecache reads from a File resource (see File.refresh and Drive.getFile) **/
+	static final String FILE = "id,title,mimeType,md5Checksum,fileSize,modifiedDate,downloadUrl,description,labels/trashed,parents/id,properties(key,value,visibility)";
+
+	static final String FILE_LIST = "nextPageToken,items("+FILE+")";
+
+	static final String PARENTS = "parents/id";
+
+	static final String CHANGE_LIST = "largestChangeId,nextPageToken,items(id,fileId,deleted,file("+FILE+"))";
+
+	static final String ABOUT = "rootFolderId,largestChangeId";
+
+	/** Listing pages are cheap once projected, so ask for as many entries per page as Google allows **/
+	static final int MAX_LIST_RESULTS = 1000;
+
+	private RemoteFields()
+	{
+	}
+}
@@ -6,29 +6,32 @@ import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.UUID;
 
-import javax.annotation.Nullable;
-
 import org.apache.commons.codec.digest.DigestUtils;
 
+import com.gdrivefs.simplecache.store.PendingOperation;
 import com.google.common.base.Optional;
-import com.jimsproch.sql.DatabaseRow;
-import com.thoughtworks.xstream.XStream;
 
-public class SimpleFileMetadata
+/**
+ * Immutable snapshot of a file's basic metadata.  Local operations and refreshes never change a snapshot; they build a new one and swap it in
+ * (see File.metadata), so readers can use whichever snapshot they see without taking the file's lock.
+ */
+public final class SimpleFileMetadata
 {
 
-	Optional<Long> asOfDate = Optional.absent(); // empty indicates not initialized
-	String title = null;
-	String fileMd5 = null;
-	URL downloadUrl = null;
-	String mimeType = null;
-	Long size = null;
-	Timestamp modifiedTime = null;
+	final Optional<Long> asOfDate; // empty indicates not initialized
+	final String title;
+	final String fileMd5;
+	final URL downloadUrl;
+	final String mimeType;
+	final Long size;
+	final Timestamp modifiedTime;
 	
-	public SimpleFileMetadata() {} // all fields uninitialized
+	public SimpleFileMetadata() { // all fields uninitialized
+		this(Optional.<Long>absent(), null, null, null, null, null, null);
+	}
 
 	private SimpleFileMetadata(
-			@Nullable Long metadataAsOfDate,
+			Optional<Long> asOfDate,
 			String title,
 			String fileMd5,
 			URL downloadUrl,
@@ -38,7 +41,7 @@ public class SimpleFileMetadata
 			size,
 			Timestamp
 			modifiedTime) {
-		this.asOfDate = Optional.fromNullable(metadataAsOfDate);
+		this.asOfDate = asOfDate;
 		this.title = title;
 		this.fileMd5 = fileMd5;
 		this.downloadUrl = downloadUrl;
@@ -51,103 +54,80 @@ public class SimpleFileMetadata
 		return asOfDate.isPresent();
 	}
 
+	private SimpleFileMetadata withContent(Long size, String fileMd5) {
+		return new SimpleFileMetadata(asOfDate, title, fileMd5, downloadUrl, mimeType, size, modifiedTime);
+	}
+
+	/** This metadata with every pending local change to the file applied **/
 	// TODO: get rid of File dependency
-	public void playLogOnMetadata(File file) throws IOException
+	public SimpleFileMetadata playLogOnMetadata(File file) throws IOException
 	{
-		for(DatabaseRow row : file.drive.getDatabase().getRows(
-				"SELECT * FROM UPDATELOG "
-				+ "WHERE COMMAND='setTitle' OR "
-				+ "COMMAND='mkdir' OR COMMAND='createFile' "
-				+ "OR COMMAND='truncate' "
-				+ "OR COMMAND='write' OR "
-				+ "COMMAND='update' "
-				+ "ORDER BY ID ASC"))
-			playOnInMemoryMetadata(file, row.getString("COMMAND"), (String[])new XStream().fromXML(row.getString("DETAILS")));
+		SimpleFileMetadata result = this;
+		for(PendingOperation operation : file.drive.getStore().getPendingOperations("setTitle", "mkdir", "createFile", "truncate", "write", "update"))
+			result = result.playOnInMemoryMetadata(file, operation.getCommand(), operation.getDetails());
+		return result;
 	}
 
+	/** This metadata with the operation applied (or this metadata, if the operation is for some other file) **/
 	// TODO: get rid of File dependency
-	public void playOnInMemoryMetadata(File file, String command, String... logEntry) throws IOException
+	public SimpleFileMetadata playOnInMemoryMetadata(File file, String command, String... logEntry) throws IOException
 	{
 		if("setTitle".equals(command))
 		{
 			// Sanity checks
 			if(!file.getLocalId().equals(UUID.fromString(logEntry[0]))) {
-				return;
+				return this;
 			}
-			if(!title.equals(logEntry[1])) new Throwable("WARNING: Title does not match title from logs (expected: " + logEntry[1] + " was: " + file.getTitle() + ")").printStackTrace();
+			if(!title.equals(logEntry[1])) new Throwable("WARNING: Title does not match title from logs (expected: " + logEntry[1] + " was: " + title + ")").printStackTrace();
 
 			// Perform update
-			title = logEntry[2];
+			return new SimpleFileMetadata(asOfDate, logEntry[2], fileMd5, downloadUrl, mimeType, size, modifiedTime);
 		}
 		else if("mkdir".equals(command))
 		{
 			// Sanity checks
 			if(!file.getLocalId().equals(UUID.fromString(logEntry[1]))) {
-				return;
+				return this;
 			}
 
 			// Perform update
-			title = logEntry[2];
-
-			mimeType = File.MIME_FOLDER;
-			size = null;
-			modifiedTime = new Timestamp(Long.parseLong(logEntry[3]));
-			asOfDate = Optional.of(new Timestamp(Long.parseLong(logEntry[3])).getTime());
 			file.childrenAsOfDate = null;
 			file.parentsAsOfDate = null;
 			file.localFileId = UUID.fromString(logEntry[1]);
-			fileMd5 = null;
-			downloadUrl = null;
+			Timestamp created = new Timestamp(Long.parseLong(logEntry[3]));
+			return new SimpleFileMetadata(Optional.of(created.getTime()), logEntry[2], null, null, File.MIME_FOLDER, null, created);
 		}
 		else if("createFile".equals(command))
 		{
 			// Sanity checks
 			if(!file.getLocalId().equals(UUID.fromString(logEntry[1]))) {
-				return;
+				return this;
 			}
 
 			// Perform update
-			title = logEntry[2];
-
-			mimeType = "application/octet-stream";
-			size = 0L;
-			modifiedTime = new Timestamp(Long.parseLong(logEntry[3]));
-			asOfDate = Optional.of(new Timestamp(Long.parseLong(logEntry[3])).getTime());
 			file.childrenAsOfDate = null;
 			file.parentsAsOfDate = null;
 			file.localFileId = UUID.fromString(logEntry[1]);
-			fileMd5 = DigestUtils.md5Hex("");
-			downloadUrl = null;
+			Timestamp created = new Timestamp(Long.parseLong(logEntry[3]));
+			return new SimpleFileMetadata(Optional.of(created.getTime()), logEntry[2], DigestUtils.md5Hex(""), null, "application/octet-stream", 0L, created);
 		}
-		else if("update".equals(command))
+		else if("update".equals(command) || "truncate".equals(command))
 		{
 			if(!file.getLocalId().equals(UUID.fromString(logEntry[0]))) {
-				return;
+				return this;
 			}
-			size = Long.parseLong(logEntry[1]);
-			fileMd5 = "null".equals(logEntry[2]) ? null : logEntry[2];
-		}
-		else if("truncate".equals(command))
-		{
-			if(!file.getLocalId().equals(UUID.fromString(logEntry[0]))) {
-				return;
-			}
-			size = Long.parseLong(logEntry[1]);
-			fileMd5 = "null".equals(logEntry[2]) ? null : logEntry[2];
+			return withContent(Long.parseLong(logEntry[1]), "null".equals(logEntry[2]) ? null : logEntry[2]);
 		}
 		else if("write".equals(command))
 		{
 			if(!file.getLocalId().equals(UUID.fromString(logEntry[0]))) {
-				return;
+				return this;
 			}
 			long offset = Long.parseLong(logEntry[1]);
 			long length = Long.parseLong(logEntry[2]);
-			if (size == null) { // N.B. (smacke): can't call getSize() or we will infinite recurse
-				size = offset+length;
-			} else {
-				size = Math.max(size, offset+length);
-			}
-			fileMd5 = "null".equals(logEntry[4]) ? null : logEntry[4];
+			// N.B. (smacke): can't call getSize() or we will infinite recurse
+			long newSize = size == null ? offset+length : Math.max(size, offset+length);
+			return withContent(newSize, "null".equals(logEntry[4]) ? null : logEntry[4]);
 		}
 		else {
 			throw new Error("Unknown log entry: "+Arrays.toString(logEntry));
@@ -191,7 +171,7 @@ public class SimpleFileMetadata
 			return this;
 		}
 		public SimpleFileMetadata build() {
-			return new SimpleFileMetadata(metadataAsOfDate, title, fileMd5, downloadUrl, mimeType, size, modifiedTime);
+			return new SimpleFileMetadata(Optional.fromNullable(metadataAsOfDate), title, fileMd5, downloadUrl, mimeType, size, modifiedTime);
 		}
 	}
 }
@@ -0,0 +1,166 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+/**
+ * Pool of JDBC connections to the drive's metadata database.
+ *
+ * Writes (and anything that needs a transaction) continue to go through the shared Database handle.
+ * Lookups go through this pool instead, so they don't serialize on the shared handle.  They run at READ_UNCOMMITTED, so they
+ * take no row locks and never wait on rows locked by an open write transaction (such as a background refresh); the price is
+ * that a lookup can see a write that is later rolled back, which only happens when the write itself failed.
+ * Each lookup borrows a read-only connection for just that query and returns it afterwards, so long-lived threads don't
+ * hold connections between lookups; DBCP caches prepared statements per connection, so repeated lookups aren't recompiled.
+ */
+public class ConnectionPool implements Closeable
+{
+	private static final Histogram queryLatency = Metrics.get().histogram("derby.query");
+
+	/** Maps the current row of a result set to a value **/
+	public interface RowMapper<T>
+	{
+		T map(ResultSet row) throws SQLException;
+	}
+
+	public static final RowMapper<String> STRING = new RowMapper<String>()
+	{
+		@Override
+		public String map(ResultSet row) throws SQLException
+		{
+			return row.getString(1);
+		}
+	};
+
+	public static final RowMapper<Integer> INTEGER = new RowMapper<Integer>()
+	{
+		@Override
+		public Integer map(ResultSet row) throws SQLException
+		{
+			return row.getInt(1);
+		}
+	};
+
+	private final String url;
+	private final BasicDataSource readWrite;
+	private final BasicDataSource readOnly;
+	private volatile boolean closed = false;
+
+	public ConnectionPool(String driverClassName, String url, String username, String password, int maxReaders)
+	{
+		this.url = url;
+		this.readWrite = createDataSource(driverClassName, url, username, password, false);
+		this.readOnly = createDataSource(driverClassName, url, username, password, true);
+		this.readOnly.setMaxActive(maxReaders);
+		this.readOnly.setMaxIdle(maxReaders);
+		this.readOnly.setDefaultTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+	}
+
+	private static BasicDataSource createDataSource(String driverClassName, String url, String username, String password, boolean readOnly)
+	{
+		BasicDataSource source = new BasicDataSource();
+		source.setDriverClassName(driverClassName);
+		source.setUrl(url);
+		source.setUsername(username);
+		source.setPassword(password);
+		source.setValidationQuery("VALUES 1");
+		source.setDefaultAutoCommit(true);
+		source.setDefaultReadOnly(readOnly);
+		source.setDefaultTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+		source.setPoolPreparedStatements(true);
+		source.setMaxOpenPreparedStatements(64);
+		source.setMaxWait(30000);
+		return source;
+	}
+
+	public String getUrl()
+	{
+		return url;
+	}
+
+	/**
+	 * Borrows a read-write connection from the pool; the caller must close it to return it to the pool.
+	 * Most callers should be using the shared Database handle for writes instead.
+	 */
+	public Connection getConnection() throws SQLException
+	{
+		if(closed) throw new IllegalStateException("Connection pool is closed");
+		return readWrite.getConnection();
+	}
+
+	/** Runs a read-only query on a pooled connection, mapping every row of the result **/
+	public <T> List<T> query(String sql, RowMapper<T> mapper, Object... args)
+	{
+		if(closed) throw new IllegalStateException("Connection pool is closed");
+		long started = System.nanoTime();
+		try(Connection connection = readOnly.getConnection(); PreparedStatement statement = connection.prepareStatement(sql))
+		{
+			bind(statement, args);
+			try(ResultSet rows = statement.executeQuery())
+			{
+				List<T> results = new ArrayList<T>();
+				while(rows.next()) results.add(mapper.map(rows));
+				return results;
+			}
+		}
+		catch(SQLException e)
+		{
+			throw new RuntimeException("Lookup failed: "+sql, e);
+		}
+		finally
+		{
+			queryLatency.recordSince(started);
+		}
+	}
+
+	/** Runs a read-only query on a pooled connection, returning the first row or null if there were no results **/
+	public <T> T queryFirst(String sql, RowMapper<T> mapper, Object... args)
+	{
+		List<T> results = query(sql, mapper, args);
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	private static void bind(PreparedStatement statement, Object... args) throws SQLException
+	{
+		for(int i = 0; i < args.length; i++)
+		{
+			Object arg = args[i];
+			if(arg instanceof UUID) statement.setString(i+1, arg.toString());
+			else if(arg instanceof Date && !(arg instanceof Timestamp)) statement.setTimestamp(i+1, new Timestamp(((Date)arg).getTime()));
+			else statement.setObject(i+1, arg);
+		}
+	}
+
+	/** Number of read-only connections currently borrowed by lookups **/
+	public int getActiveReaders()
+	{
+		return readOnly.getNumActive();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(closed) return;
+		closed = true;
+		try
+		{
+			readOnly.close();
+			readWrite.close();
+		}
+		catch(SQLException e)
+		{
+			throw new IOException(e);
+		}
+	}
+}
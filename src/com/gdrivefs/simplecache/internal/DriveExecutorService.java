@@ -35,6 +35,12 @@ public class DriveExecutorService implements ExecutorService
 		delegate.allowCoreThreadTimeOut(true);
 	}
 
+	/** Number of tasks waiting to run **/
+	public int getQueueSize()
+	{
+		return delegate.getQueue().size();
+	}
+
 	@Override
 	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
 	{
@@ -0,0 +1,278 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Downloads byte ranges, hedging requests that are taking much longer than usual.
+ *
+ * Latencies of recent downloads are tracked (per MiB requested, so large ranges aren't mistaken for slow ones).  When a download runs past
+ * the chosen percentile of that distribution, a second request is sent for the bytes the first has not yet received, and whichever finishes
+ * first is used; the other is cancelled.  Hedges are paid for out of a budget that grows by a fixed fraction of a hedge with every download,
+ * so at most that fraction of extra requests is ever sent, even when everything is slow.
+ */
+public class HedgedDownloader
+{
+	private static final Logger logger = LoggerFactory.getLogger(HedgedDownloader.class);
+
+	/** Closes the connections of cancelled downloads **/
+	private static final Executor aborter = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gdrivefs-download-abort-%d").build());
+
+	/** Latencies are tracked per this many bytes requested (rounded up) **/
+	static final long UNIT_BYTES = 1<<20;
+
+	/** Starts an asynchronous download of bytes [start, end) into the buffer **/
+	public interface RangeSource
+	{
+		ListenableFuture<?> download(long start, long end, RangeBuffer into) throws IOException;
+	}
+
+	private final LatencyTracker latencies;
+	private final double percentile;
+	private final long minDelayMillis;
+	private final double budgetPerDownload;
+	private final double maxBudget;
+	private double budget;
+
+	private final AtomicLong downloads = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	/**
+	 * @param percentile downloads slower than this percentile (0 to 1) of recent downloads are hedged
+	 * @param minDelayMillis never hedge a download (per MiB) sooner than this, however fast downloads usually are
+	 * @param budgetPerDownload fraction of a hedge each download adds to the budget; the long-run limit on extra requests
+	 * @param maxBudget hedges that can be saved up for a burst of slow downloads (also the budget we start with)
+	 */
+	public HedgedDownloader(int window, double percentile, long minDelayMillis, double budgetPerDownload, double maxBudget)
+	{
+		this.latencies = new LatencyTracker(window);
+		this.percentile = percentile;
+		this.minDelayMillis = minDelayMillis;
+		this.budgetPerDownload = budgetPerDownload;
+		this.maxBudget = maxBudget;
+		this.budget = maxBudget;
+	}
+
+	/** Bytes [start, end), from one request or, if it is slow, a request and a hedge **/
+	public byte[] download(RangeSource source, long start, long end) throws IOException
+	{
+		int length = (int)(end-start);
+		long units = Math.max(1, (length+UNIT_BYTES-1)/UNIT_BYTES);
+		downloads.incrementAndGet();
+		synchronized(this)
+		{
+			budget = Math.min(maxBudget, budget+budgetPerDownload);
+		}
+
+		RangeBuffer primaryBuffer = new RangeBuffer(length);
+		long primaryStarted = System.currentTimeMillis();
+		ListenableFuture<?> primary = source.download(start, end, primaryBuffer);
+		try
+		{
+			primary.get(getHedgeDelayMillis()*units, TimeUnit.MILLISECONDS);
+			latencies.record((System.currentTimeMillis()-primaryStarted)/units);
+			return primaryBuffer.toByteArray();
+		}
+		catch(TimeoutException e)
+		{
+			// Slow; consider hedging below
+		}
+		catch(InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch(ExecutionException e)
+		{
+			RemoteExecutor.await(primary); // rethrows the failure, unwrapped
+		}
+
+		int received = primaryBuffer.getReceived();
+		if(received >= length || !takeBudget())
+		{
+			RemoteExecutor.await(primary);
+			latencies.record((System.currentTimeMillis()-primaryStarted)/units);
+			return primaryBuffer.toByteArray();
+		}
+
+		logger.debug("Hedging slow download of bytes {}-{} (received {} so far)", start, end, received);
+		hedges.incrementAndGet();
+		RangeBuffer hedgeBuffer = new RangeBuffer(length-received);
+		long hedgeStarted = System.currentTimeMillis();
+		ListenableFuture<?> hedge = source.download(start+received, end, hedgeBuffer);
+
+		if(firstToSucceed(primary, hedge))
+		{
+			hedgeBuffer.cancel();
+			hedge.cancel(true);
+			latencies.record((System.currentTimeMillis()-primaryStarted)/units);
+			return primaryBuffer.toByteArray();
+		}
+		primaryBuffer.cancel();
+		primary.cancel(true);
+		hedgeWins.incrementAndGet();
+		latencies.record((System.currentTimeMillis()-hedgeStarted)/Math.max(1, (length-received+UNIT_BYTES-1)/UNIT_BYTES));
+
+		byte[] hedged = hedgeBuffer.toByteArray();
+		byte[] result = new byte[received+hedged.length];
+		System.arraycopy(primaryBuffer.bytes, 0, result, 0, received);
+		System.arraycopy(hedged, 0, result, received, hedged.length);
+		return result;
+	}
+
+	/** Waits for the first of the two to succeed; true if it was the primary.  Throws the primary's failure if both fail. **/
+	private static boolean firstToSucceed(final ListenableFuture<?> primary, ListenableFuture<?> hedge) throws IOException
+	{
+		final SettableFuture<Boolean> winner = SettableFuture.create();
+		final AtomicInteger failures = new AtomicInteger();
+		for(final ListenableFuture<?> request : new ListenableFuture<?>[]{primary, hedge})
+			Futures.addCallback(request, new FutureCallback<Object>()
+			{
+				@Override
+				public void onSuccess(Object result)
+				{
+					winner.set(request == primary);
+				}
+
+				@Override
+				public void onFailure(Throwable t)
+				{
+					if(failures.incrementAndGet() == 2) winner.set(true); // report the primary's failure
+				}
+			});
+		boolean primaryWon = RemoteExecutor.await(winner);
+		if(primaryWon) RemoteExecutor.await(primary);
+		return primaryWon;
+	}
+
+	private synchronized boolean takeBudget()
+	{
+		if(budget < 1) return false;
+		budget--;
+		return true;
+	}
+
+	/** How long (per MiB) a download may run before it is hedged **/
+	public long getHedgeDelayMillis()
+	{
+		long observed = latencies.percentile(percentile);
+		return Math.max(minDelayMillis, observed);
+	}
+
+	public long getDownloadCount()
+	{
+		return downloads.get();
+	}
+
+	/** Downloads that were slow enough (and had budget) to be hedged **/
+	public long getHedgeCount()
+	{
+		return hedges.get();
+	}
+
+	/** Hedged downloads where the hedge finished first **/
+	public long getHedgeWinCount()
+	{
+		return hedgeWins.get();
+	}
+
+	/**
+	 * Destination of a single range request.  Tracks how many bytes have arrived, so a hedge can skip them,
+	 * and can be cancelled from another thread, which aborts the transfer.
+	 */
+	public static class RangeBuffer
+	{
+		final byte[] bytes;
+		private volatile int received = 0;
+		private volatile boolean cancelled = false;
+		private volatile Closeable connection;
+
+		RangeBuffer(int length)
+		{
+			this.bytes = new byte[length];
+		}
+
+		public int getReceived()
+		{
+			return received;
+		}
+
+		/** Reads the response body into the buffer (from the start; each retry calls this again), closing the connection if cancelled **/
+		public void readFrom(InputStream in, Closeable connection) throws IOException
+		{
+			this.connection = connection;
+			if(cancelled) throw new InterruptedIOException("Download cancelled");
+			received = 0;
+			try
+			{
+				int count = 0;
+				while(count < bytes.length)
+				{
+					int read = in.read(bytes, count, bytes.length-count);
+					if(read < 0) break;
+					count += read;
+					received = count;
+				}
+			}
+			catch(IOException e)
+			{
+				if(cancelled) throw new InterruptedIOException("Download cancelled");
+				throw e;
+			}
+			finally
+			{
+				this.connection = null;
+			}
+		}
+
+		void cancel()
+		{
+			cancelled = true;
+			final Closeable connection = this.connection;
+			if(connection == null) return;
+			// Closing can block until the stalled read returns (HttpURLConnection serializes them), so don't make the caller wait
+			aborter.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						connection.close();
+					}
+					catch(IOException e)
+					{
+						logger.debug("Failed to abort cancelled download: {}", e.getMessage());
+					}
+				}
+			});
+		}
+
+		byte[] toByteArray()
+		{
+			int length = received;
+			if(length == bytes.length) return bytes;
+			byte[] truncated = new byte[length];
+			System.arraycopy(bytes, 0, truncated, 0, length);
+			return truncated;
+		}
+	}
+}
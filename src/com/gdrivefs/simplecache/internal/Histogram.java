@@ -0,0 +1,99 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations (in nanoseconds), cheap enough to record on every filesystem operation.
+ *
+ * Values are counted in log-linear buckets (four per power of two, so percentiles are within 25%), and each thread counts into its own
+ * stripe of buckets, as StripedCounter does, so concurrent recording doesn't contend.
+ */
+public final class Histogram
+{
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = SUB_BUCKETS*62;
+	private static final int STRIPES = Math.min(StripedCounter.STRIPES, 8);
+
+	private final AtomicLongArray buckets = new AtomicLongArray(STRIPES*BUCKETS);
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos)
+	{
+		if(nanos < 0) nanos = 0;
+		buckets.getAndIncrement((StripedCounter.stripe() & (STRIPES-1))*BUCKETS+bucket(nanos));
+		total.add(nanos);
+		long previous;
+		while(nanos > (previous = max.get()) && !max.compareAndSet(previous, nanos)) { /* retry */ }
+	}
+
+	/** Records the time since startNanos (a System.nanoTime() reading) **/
+	public void recordSince(long startNanos)
+	{
+		record(System.nanoTime()-startNanos);
+	}
+
+	public long getCount()
+	{
+		long count = 0;
+		for(int i = 0; i < buckets.length(); i++) count += buckets.get(i);
+		return count;
+	}
+
+	public long getTotal(TimeUnit unit)
+	{
+		return unit.convert(total.sum(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMax(TimeUnit unit)
+	{
+		return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMean(TimeUnit unit)
+	{
+		long count = getCount();
+		return count == 0 ? 0 : unit.convert(total.sum()/count, TimeUnit.NANOSECONDS);
+	}
+
+	/** Approximately the given percentile (0 to 1) of the recorded values, or 0 if there are none **/
+	public long getPercentile(double percentile, TimeUnit unit)
+	{
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for(int i = 0; i < buckets.length(); i++)
+		{
+			counts[i % BUCKETS] += buckets.get(i);
+			count += buckets.get(i);
+		}
+		if(count == 0) return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(percentile*count));
+		long seen = 0;
+		for(int bucket = 0; bucket < BUCKETS; bucket++)
+		{
+			seen += counts[bucket];
+			if(seen < rank) continue;
+			long upper = bucket+1 < BUCKETS ? lowerBound(bucket+1) : lowerBound(bucket);
+			return unit.convert(Math.min(max.get(), lowerBound(bucket)/2+upper/2), TimeUnit.NANOSECONDS);
+		}
+		return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+	}
+
+	static int bucket(long value)
+	{
+		if(value < SUB_BUCKETS) return (int)value;
+		int exponent = 63-Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent-2)) & (SUB_BUCKETS-1);
+		return Math.min(BUCKETS-1, SUB_BUCKETS*(exponent-1)+sub);
+	}
+
+	static long lowerBound(int bucket)
+	{
+		if(bucket < SUB_BUCKETS) return bucket;
+		int exponent = bucket/SUB_BUCKETS+1;
+		return (long)(SUB_BUCKETS+bucket % SUB_BUCKETS) << (exponent-2);
+	}
+}
@@ -0,0 +1,41 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.util.Arrays;
+
+/**
+ * Percentiles over a sliding window of the most recent latency samples.
+ */
+public class LatencyTracker
+{
+	private final long[] samples;
+	private int count = 0;
+	private int next = 0;
+
+	/** @param window number of recent samples percentiles are computed over **/
+	public LatencyTracker(int window)
+	{
+		this.samples = new long[window];
+	}
+
+	public synchronized void record(long millis)
+	{
+		samples[next] = millis;
+		next = (next+1) % samples.length;
+		if(count < samples.length) count++;
+	}
+
+	/** The given percentile (0 to 1) of the samples in the window, or -1 if there are none yet **/
+	public synchronized long percentile(double percentile)
+	{
+		if(count == 0) return -1;
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(percentile*count)-1;
+		return sorted[Math.max(0, Math.min(count-1, index))];
+	}
+
+	public synchronized int getSampleCount()
+	{
+		return count;
+	}
+}
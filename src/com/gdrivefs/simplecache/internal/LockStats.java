@@ -0,0 +1,148 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wait and hold times of one kind of lock (eg. every File's upload lock), recorded in Metrics as lock.<name>.wait and lock.<name>.hold.
+ *
+ * Holds longer than gdrivefs.lock.slowHoldMillis (default 200) are counted as lock.<name>.slowHolds, and a sample of them is logged
+ * with the stack of the releasing thread, which is normally still in the method that took the lock.  Network io done while holding
+ * the lock is counted as lock.<name>.networkIo (see checkNetworkIo).  With -Dgdrivefs.lock.profile=true, waits and holds are also
+ * broken down by where the lock was taken, as lock.<name>.at.<Class.method>.wait and .hold; that takes a stack trace per acquisition,
+ * so it is off by default.
+ */
+public final class LockStats
+{
+	private static final Logger logger = LoggerFactory.getLogger(LockStats.class);
+	private static final boolean PROFILE = Boolean.getBoolean("gdrivefs.lock.profile");
+	private static final long SLOW_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("gdrivefs.lock.slowHoldMillis", 200));
+	/** Each lock logs slow holds and network io at most this often, so a pathological workload doesn't flood the log **/
+	private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+	/** Frames skipped when looking for the call site that took a lock **/
+	private static final Set<String> LOCKING_CLASSES = new HashSet<String>(Arrays.asList(LockStats.class.getName(), ProfiledLock.class.getName(),
+			"com.gdrivefs.simplecache.FileLock"));
+
+	/** The profiled locks the current thread holds, in the order it took them **/
+	private static final ThreadLocal<List<Hold>> held = new ThreadLocal<List<Hold>>()
+	{
+		@Override
+		protected List<Hold> initialValue()
+		{
+			return new ArrayList<Hold>();
+		}
+	};
+
+	private static final class Hold
+	{
+		final LockStats stats;
+		final long acquiredNanos;
+		final @Nullable String site;
+
+		Hold(LockStats stats, long acquiredNanos, @Nullable String site)
+		{
+			this.stats = stats;
+			this.acquiredNanos = acquiredNanos;
+			this.site = site;
+		}
+	}
+
+	private final String name;
+	private final Histogram wait;
+	private final Histogram hold;
+	private final StripedCounter slowHolds;
+	private final StripedCounter networkIo;
+	private final AtomicLong lastLogged = new AtomicLong(System.nanoTime()-LOG_INTERVAL_NANOS);
+
+	public LockStats(String name)
+	{
+		this.name = name;
+		wait = Metrics.get().histogram("lock."+name+".wait");
+		hold = Metrics.get().histogram("lock."+name+".hold");
+		slowHolds = Metrics.get().counter("lock."+name+".slowHolds");
+		networkIo = Metrics.get().counter("lock."+name+".networkIo");
+	}
+
+	/** Records that the current thread took the lock, having started waiting for it at startNanos; only call for the outermost acquisition **/
+	public void acquired(long startNanos)
+	{
+		long now = System.nanoTime();
+		wait.record(now-startNanos);
+		String site = null;
+		if(PROFILE)
+		{
+			site = callSite();
+			Metrics.get().histogram("lock."+name+".at."+site+".wait").record(now-startNanos);
+		}
+		held.get().add(new Hold(this, now, site));
+	}
+
+	/** Records that the current thread is releasing its (outermost) hold on the lock **/
+	public void released()
+	{
+		List<Hold> holds = held.get();
+		for(int i = holds.size()-1; i >= 0; i--)
+		{
+			if(holds.get(i).stats != this) continue;
+			Hold released = holds.remove(i);
+			long elapsed = System.nanoTime()-released.acquiredNanos;
+			hold.record(elapsed);
+			if(released.site != null) Metrics.get().histogram("lock."+name+".at."+released.site+".hold").record(elapsed);
+			if(elapsed >= SLOW_HOLD_NANOS)
+			{
+				slowHolds.increment();
+				if(shouldLog()) logger.info("Held the "+name+" lock for "+TimeUnit.NANOSECONDS.toMillis(elapsed)+"ms", new Throwable("Released here"));
+			}
+			return;
+		}
+	}
+
+	/** Counts network io against every profiled lock the current thread holds; call before doing the io **/
+	public static void checkNetworkIo()
+	{
+		List<Hold> holds = held.get();
+		for(int i = 0; i < holds.size(); i++)
+		{
+			LockStats stats = holds.get(i).stats;
+			if(heldEarlier(holds, i, stats)) continue;
+			stats.networkIo.increment();
+			if(logger.isDebugEnabled() && stats.shouldLog()) logger.debug("Network io while holding the "+stats.name+" lock", new Throwable("Network io here"));
+		}
+	}
+
+	private static boolean heldEarlier(List<Hold> holds, int index, LockStats stats)
+	{
+		for(int i = 0; i < index; i++)
+			if(holds.get(i).stats == stats) return true;
+		return false;
+	}
+
+	private boolean shouldLog()
+	{
+		long now = System.nanoTime();
+		long last = lastLogged.get();
+		return now-last >= LOG_INTERVAL_NANOS && lastLogged.compareAndSet(last, now);
+	}
+
+	/** The first method on the stack that isn't part of the locking code, as Class.method **/
+	private static String callSite()
+	{
+		for(StackTraceElement frame : new Throwable().getStackTrace())
+		{
+			if(LOCKING_CLASSES.contains(frame.getClassName())) continue;
+			String className = frame.getClassName();
+			return className.substring(className.lastIndexOf('.')+1)+"."+frame.getMethodName();
+		}
+		return "unknown";
+	}
+}
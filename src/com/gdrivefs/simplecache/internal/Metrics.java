@@ -0,0 +1,178 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The process-wide registry of counters, histograms and gauges describing what the filesystem and cache are doing.
+ * Metrics are created on first use by name (dotted, eg. "fuse.read"), and are exported over JMX as com.gdrivefs:type=Metrics.
+ *
+ * Recording is meant to be cheap enough for hot paths: look the metric up once and keep it in a field, then record into it.
+ */
+public final class Metrics
+{
+	private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+	private static final Metrics instance = new Metrics();
+
+	public static final String OBJECT_NAME = "com.gdrivefs:type=Metrics";
+
+	/** A value read when the metrics are, eg. the length of a queue **/
+	public interface Gauge
+	{
+		long get();
+	}
+
+	private final ConcurrentMap<String, StripedCounter> counters = new ConcurrentHashMap<String, StripedCounter>();
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private boolean exported = false;
+
+	public static Metrics get()
+	{
+		return instance;
+	}
+
+	public StripedCounter counter(String name)
+	{
+		StripedCounter counter = counters.get(name);
+		if(counter != null) return counter;
+		counters.putIfAbsent(name, new StripedCounter());
+		return counters.get(name);
+	}
+
+	public Histogram histogram(String name)
+	{
+		Histogram histogram = histograms.get(name);
+		if(histogram != null) return histogram;
+		histograms.putIfAbsent(name, new Histogram());
+		return histograms.get(name);
+	}
+
+	/** Registers the gauge, replacing any other of the same name **/
+	public void gauge(String name, Gauge gauge)
+	{
+		gauges.put(name, gauge);
+	}
+
+	/** Unregisters the gauge, unless it has since been replaced by another **/
+	public void removeGauge(String name, Gauge gauge)
+	{
+		gauges.remove(name, gauge);
+	}
+
+	/** Current value of every metric; histograms contribute count, mean, percentiles and max (in microseconds) under their name **/
+	public SortedMap<String, Long> snapshot()
+	{
+		SortedMap<String, Long> values = new TreeMap<String, Long>();
+		for(Map.Entry<String, StripedCounter> counter : counters.entrySet()) values.put(counter.getKey(), counter.getValue().sum());
+		for(Map.Entry<String, Gauge> gauge : gauges.entrySet())
+		{
+			try
+			{
+				values.put(gauge.getKey(), gauge.getValue().get());
+			}
+			catch(RuntimeException e)
+			{
+				logger.debug("Failed to read gauge {}: {}", gauge.getKey(), e.toString());
+			}
+		}
+		for(Map.Entry<String, Histogram> entry : histograms.entrySet())
+		{
+			String name = entry.getKey();
+			Histogram histogram = entry.getValue();
+			values.put(name+".count", histogram.getCount());
+			values.put(name+".meanMicros", histogram.getMean(TimeUnit.MICROSECONDS));
+			values.put(name+".p50Micros", histogram.getPercentile(0.5, TimeUnit.MICROSECONDS));
+			values.put(name+".p99Micros", histogram.getPercentile(0.99, TimeUnit.MICROSECONDS));
+			values.put(name+".maxMicros", histogram.getMax(TimeUnit.MICROSECONDS));
+		}
+		return values;
+	}
+
+	/** Registers the metrics with the platform MBean server, if they aren't already **/
+	public synchronized void exportToJmx()
+	{
+		if(exported) return;
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(!server.isRegistered(name)) server.registerMBean(new MetricsMBean(), name);
+			exported = true;
+		}
+		catch(JMException e)
+		{
+			logger.warn("Could not export metrics over JMX", e);
+		}
+	}
+
+	/** Exposes the snapshot as read-only attributes, one per value **/
+	private class MetricsMBean implements DynamicMBean
+	{
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException
+		{
+			Long value = snapshot().get(attribute);
+			if(value == null) throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes)
+		{
+			SortedMap<String, Long> values = snapshot();
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes)
+				if(values.containsKey(attribute)) list.add(new Attribute(attribute, values.get(attribute)));
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException("Metrics are read-only: "+attribute.getName());
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature)
+		{
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo()
+		{
+			SortedMap<String, Long> values = snapshot();
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+			int i = 0;
+			for(String name : values.keySet()) attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+			return new MBeanInfo(Metrics.class.getName(), "gdrivefs filesystem and cache metrics", attributes, null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+		}
+	}
+}
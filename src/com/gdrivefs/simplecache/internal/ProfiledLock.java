@@ -0,0 +1,61 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ReentrantLock whose wait and hold times are recorded in the given LockStats (normally shared by every lock of the same kind).
+ * Only the outermost acquisition by a thread is recorded; re-entrant acquisitions never wait and are part of the outer hold.
+ */
+public class ProfiledLock extends ReentrantLock
+{
+	private static final long serialVersionUID = 1L;
+
+	private final transient LockStats stats;
+
+	public ProfiledLock(LockStats stats)
+	{
+		this.stats = stats;
+	}
+
+	@Override
+	public void lock()
+	{
+		long started = System.nanoTime();
+		super.lock();
+		if(getHoldCount() == 1) stats.acquired(started);
+	}
+
+	@Override
+	public void lockInterruptibly() throws InterruptedException
+	{
+		long started = System.nanoTime();
+		super.lockInterruptibly();
+		if(getHoldCount() == 1) stats.acquired(started);
+	}
+
+	@Override
+	public boolean tryLock()
+	{
+		long started = System.nanoTime();
+		if(!super.tryLock()) return false;
+		if(getHoldCount() == 1) stats.acquired(started);
+		return true;
+	}
+
+	@Override
+	public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long started = System.nanoTime();
+		if(!super.tryLock(timeout, unit)) return false;
+		if(getHoldCount() == 1) stats.acquired(started);
+		return true;
+	}
+
+	@Override
+	public void unlock()
+	{
+		if(getHoldCount() == 1) stats.released();
+		super.unlock();
+	}
+}
@@ -0,0 +1,230 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs background refreshes on a small pool of workers, with at most one pending task per key.
+ *
+ * Scheduling a task for a key that already has one pending replaces the pending task's work (the latest request wins, since it
+ * has the freshest view of what needs doing) and raises its priority if the new request's priority is higher; it never adds a
+ * second entry.  Higher priorities run first; within a priority, tasks run in the order they were first scheduled.
+ * The queue is bounded: when it is full, a new task either displaces the lowest-priority pending task (if it outranks it) or is dropped.
+ * Dropping is always safe, since refreshes are only ever an optimization; the next access will ask again.
+ */
+public class RefreshScheduler
+{
+	private static final Logger logger = LoggerFactory.getLogger(RefreshScheduler.class);
+
+	public enum Priority
+	{
+		/** Speculative work, eg. directories the user might open next **/
+		PREFETCH,
+		/** Keeping things the user has recently seen up to date **/
+		NORMAL,
+		/** Something the user is looking at right now **/
+		USER_VISIBLE
+	}
+
+	private final int capacity;
+	private final ThreadPoolExecutor workers;
+	private final ConcurrentMap<Object, Task> pending = new ConcurrentHashMap<Object, Task>();
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final AtomicLong scheduled = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+
+	public RefreshScheduler(int threads, int capacity, ThreadFactory threadFactory)
+	{
+		this.capacity = capacity;
+		this.workers = new ThreadPoolExecutor(threads, threads, 100, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+		this.workers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Schedules work to be run in the background, unless the scheduler has been shut down.
+	 * @return false if the work was dropped (queue full or shut down)
+	 */
+	public boolean schedule(Object key, Priority priority, Runnable work)
+	{
+		if(workers.isShutdown()) return false;
+
+		synchronized(this)
+		{
+			Task existing = pending.get(key);
+			if(existing != null)
+			{
+				existing.work = work;
+				coalesced.incrementAndGet();
+				if(priority.compareTo(existing.priority) <= 0) return true;
+
+				// Re-queue with the higher priority (keeping its place among tasks of that priority)
+				if(!workers.getQueue().remove(existing)) return true; // a worker has already picked it up
+				Task raised = new Task(key, priority, existing.sequence, work);
+				pending.put(key, raised);
+				workers.execute(raised);
+				return true;
+			}
+
+			if(pending.size() >= capacity && !evictBelow(priority))
+			{
+				dropped.incrementAndGet();
+				return false;
+			}
+
+			Task task = new Task(key, priority, sequence.getAndIncrement(), work);
+			pending.put(key, task);
+			scheduled.incrementAndGet();
+			try
+			{
+				workers.execute(task);
+			}
+			catch(RuntimeException e)
+			{
+				// Shut down between our check and now
+				pending.remove(key, task);
+				dropped.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/** Drops the lowest-priority pending task if it ranks below the given priority; true if room was made **/
+	private boolean evictBelow(Priority priority)
+	{
+		Task lowest = null;
+		for(Iterator<Runnable> i = workers.getQueue().iterator(); i.hasNext();)
+		{
+			Task task = (Task)i.next();
+			if(lowest == null || task.compareTo(lowest) > 0) lowest = task;
+		}
+		if(lowest == null || lowest.priority.compareTo(priority) >= 0) return false;
+		if(!workers.getQueue().remove(lowest)) return false;
+		pending.remove(lowest.key, lowest);
+		dropped.incrementAndGet();
+		return true;
+	}
+
+	/** Number of tasks waiting to run **/
+	public int getQueueDepth()
+	{
+		return workers.getQueue().size();
+	}
+
+	/** Number of tasks currently running **/
+	public int getActiveCount()
+	{
+		return workers.getActiveCount();
+	}
+
+	/** Requests that created a new pending task **/
+	public long getScheduledCount()
+	{
+		return scheduled.get();
+	}
+
+	/** Requests folded into a task that was already pending **/
+	public long getCoalescedCount()
+	{
+		return coalesced.get();
+	}
+
+	/** Requests (or pending tasks) dropped because the queue was full or the scheduler was shut down **/
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	public long getCompletedCount()
+	{
+		return completed.get();
+	}
+
+	public boolean isShutdown()
+	{
+		return workers.isShutdown();
+	}
+
+	/** Drops everything pending and stops accepting work; running tasks are not interrupted **/
+	public void shutdownNow()
+	{
+		synchronized(this)
+		{
+			workers.getQueue().clear();
+			pending.clear();
+			workers.shutdown();
+		}
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return workers.awaitTermination(timeout, unit);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RefreshScheduler(queued="+getQueueDepth()+", active="+getActiveCount()+", scheduled="+scheduled+", coalesced="+coalesced+", dropped="+dropped+")";
+	}
+
+	private class Task implements Runnable, Comparable<Task>
+	{
+		final Object key;
+		final Priority priority;
+		final long sequence;
+		volatile Runnable work;
+
+		Task(Object key, Priority priority, long sequence, Runnable work)
+		{
+			this.key = key;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.work = work;
+		}
+
+		@Override
+		public void run()
+		{
+			Runnable work;
+			synchronized(RefreshScheduler.this)
+			{
+				// From here on a new request for the key needs a new task, since this one may have already read its state
+				pending.remove(key, this);
+				work = this.work;
+			}
+			try
+			{
+				work.run();
+			}
+			catch(RuntimeException e)
+			{
+				logger.warn("Background refresh failed: {}", e.getMessage(), e);
+			}
+			finally
+			{
+				completed.incrementAndGet();
+			}
+		}
+
+		/** Orders the queue: highest priority first, then first scheduled first **/
+		@Override
+		public int compareTo(Task other)
+		{
+			int byPriority = other.priority.compareTo(priority);
+			if(byPriority != 0) return byPriority;
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+}
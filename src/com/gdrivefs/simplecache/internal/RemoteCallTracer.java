@@ -0,0 +1,211 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Times every request we make to Google, tagged with its type, the file it concerns and who asked for it, so quota consumption can be attributed.
+ *
+ * Threads say who they are working for with enter()/exit(); the tag is captured when a request is submitted, so requests run by the
+ * RemoteExecutor's pools are still attributed to the thread that wanted them.  Each call is counted in Metrics as remote.calls.<caller>.<type>,
+ * timed in the remote.<type> histogram, and logged if slower than gdrivefs.remote.slowMillis (default 2000).
+ * A thread may also collect a trace of the calls it triggers, between startTrace() and stopTrace().
+ */
+public final class RemoteCallTracer
+{
+	private static final Logger logger = LoggerFactory.getLogger(RemoteCallTracer.class);
+	private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("gdrivefs.remote.slowMillis", 2000));
+	private static final ThreadLocal<Context> context = new ThreadLocal<Context>();
+
+	/** Who a remote call was made for **/
+	public enum Caller
+	{
+		/** A filesystem operation that the user is waiting on **/
+		FUSE,
+		/** A background refresh of cached metadata or listings **/
+		REFRESH,
+		/** Replaying the update log (including uploads) **/
+		LOG_REPLAY,
+		/** Following the changes feed **/
+		CHANGES,
+		/** Anything that didn't say **/
+		OTHER
+	}
+
+	/** What the current thread is doing; operation is eg. the FUSE operation and path **/
+	public static final class Context
+	{
+		final Caller caller;
+		final String operation;
+		@Nullable List<Call> trace;
+
+		Context(Caller caller, String operation, @Nullable List<Call> trace)
+		{
+			this.caller = caller;
+			this.operation = operation;
+			this.trace = trace;
+		}
+	}
+
+	/** A single remote call; elapsed is set once it completes **/
+	public static final class Call
+	{
+		private final String type;
+		private final String fileId;
+		private final Caller caller;
+		private final String operation;
+		private final long startNanos = System.nanoTime();
+		private volatile long elapsedNanos = -1;
+		private volatile boolean failed;
+
+		Call(String type, @Nullable String fileId, Caller caller, String operation)
+		{
+			this.type = type;
+			this.fileId = fileId;
+			this.caller = caller;
+			this.operation = operation;
+		}
+
+		public String getType()
+		{
+			return type;
+		}
+
+		public @Nullable String getFileId()
+		{
+			return fileId;
+		}
+
+		public Caller getCaller()
+		{
+			return caller;
+		}
+
+		public String getOperation()
+		{
+			return operation;
+		}
+
+		/** How long the call took (including time queued and retries), or -1 if it hasn't finished **/
+		public long getElapsed(TimeUnit unit)
+		{
+			long elapsed = elapsedNanos;
+			return elapsed < 0 ? -1 : unit.convert(elapsed, TimeUnit.NANOSECONDS);
+		}
+
+		public boolean isFailed()
+		{
+			return failed;
+		}
+
+		/** Records the outcome; calls after the first are ignored **/
+		public void end(boolean failed)
+		{
+			if(elapsedNanos >= 0) return;
+			this.failed = failed;
+			elapsedNanos = System.nanoTime()-startNanos;
+
+			Metrics.get().histogram("remote."+type).record(elapsedNanos);
+			Metrics.get().counter("remote.calls."+caller.name().toLowerCase()+"."+type).increment();
+			if(failed) Metrics.get().counter("remote."+type+".failures").increment();
+			if(elapsedNanos >= SLOW_NANOS) logger.warn("Slow remote call: {}", this);
+		}
+
+		@Override
+		public String toString()
+		{
+			long elapsed = getElapsed(TimeUnit.MILLISECONDS);
+			return type+(fileId == null ? "" : " "+fileId)+" for "+caller+(operation.isEmpty() ? "" : " "+operation)
+					+(elapsed < 0 ? " (running)" : " in "+elapsed+"ms")+(failed ? " (failed)" : "");
+		}
+	}
+
+	private RemoteCallTracer()
+	{
+	}
+
+	/**
+	 * Tags remote calls made by this thread as being for caller until exit() is called with the returned (previous) context.
+	 * Any trace the thread is collecting carries on.
+	 */
+	public static @Nullable Context enter(Caller caller, String operation)
+	{
+		Context previous = context.get();
+		context.set(new Context(caller, operation, previous == null ? null : previous.trace));
+		return previous;
+	}
+
+	public static void exit(@Nullable Context previous)
+	{
+		Context current = context.get();
+		if(previous != null && current != null) previous.trace = current.trace;
+		if(previous == null) context.remove();
+		else context.set(previous);
+	}
+
+	/** Starts collecting the calls made by this thread (under its current tag) **/
+	public static void startTrace()
+	{
+		Context current = context.get();
+		if(current == null) context.set(current = new Context(Caller.OTHER, "", null));
+		current.trace = Collections.synchronizedList(new ArrayList<Call>());
+	}
+
+	/** The calls made since startTrace(), in the order they were made; empty if the thread wasn't tracing **/
+	public static List<Call> stopTrace()
+	{
+		Context current = context.get();
+		if(current == null || current.trace == null) return Collections.emptyList();
+		List<Call> trace;
+		synchronized(current.trace)
+		{
+			trace = new ArrayList<Call>(current.trace);
+		}
+		current.trace = null;
+		return trace;
+	}
+
+	/** Starts timing a call on behalf of the current thread; the caller must end() it **/
+	public static Call begin(String type, @Nullable String fileId)
+	{
+		Context current = context.get();
+		Call call = current == null ? new Call(type, fileId, Caller.OTHER, "") : new Call(type, fileId, current.caller, current.operation);
+		if(current != null && current.trace != null) current.trace.add(call);
+		return call;
+	}
+
+	/** Times the submitted request from now until the future completes **/
+	public static <T> ListenableFuture<T> trace(String type, @Nullable String fileId, final ListenableFuture<T> future)
+	{
+		final Call call = begin(type, fileId);
+		future.addListener(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				boolean failed;
+				try
+				{
+					future.get();
+					failed = false;
+				}
+				catch(Exception e)
+				{
+					failed = true;
+				}
+				call.end(failed);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		return future;
+	}
+}
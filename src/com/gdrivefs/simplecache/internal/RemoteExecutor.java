@@ -0,0 +1,287 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Runs requests against the Drive API, keeping the request rate under the account's quota and retrying the requests Google pushes back on.
+ *
+ * Every attempt (including each retry, and each page of a paged listing) takes a permit from a single token bucket shared by all traffic,
+ * so bursts are smoothed out before they reach Google instead of being rejected and retried.  Requests run on one of three pools, so a
+ * backlog of uploads or downloads can't starve the metadata requests that directory listings wait on.
+ * Rate limit responses (403 rateLimitExceeded/userRateLimitExceeded, 429) are retried after a jittered exponential backoff; so are
+ * server errors (5xx), but only for idempotent requests, since Google may have applied the request before failing.
+ */
+public class RemoteExecutor
+{
+	private static final Logger logger = LoggerFactory.getLogger(RemoteExecutor.class);
+
+	public enum Pool
+	{
+		/** Small, latency sensitive requests (metadata, listings, renames) **/
+		METADATA,
+		/** File content downloads **/
+		DOWNLOAD,
+		/** File content uploads **/
+		UPLOAD
+	}
+
+	private final RateLimiter rateLimiter;
+	private final Map<Pool, ThreadPoolExecutor> workers = new EnumMap<Pool, ThreadPoolExecutor>(Pool.class);
+	private final Map<Pool, ListeningExecutorService> pools = new EnumMap<Pool, ListeningExecutorService>(Pool.class);
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong rateLimited = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param requestsPerSecond sustained request rate; should sit just under the Drive quota, so Google rarely needs to push back
+	 * @param maxAttempts attempts (including the first) before a retryable failure is given up on
+	 */
+	public RemoteExecutor(double requestsPerSecond, int metadataThreads, int downloadThreads, int uploadThreads,
+			int maxAttempts, long initialBackoffMillis, long maxBackoffMillis)
+	{
+		this.rateLimiter = RateLimiter.create(requestsPerSecond);
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		createPool(Pool.METADATA, metadataThreads);
+		createPool(Pool.DOWNLOAD, downloadThreads);
+		createPool(Pool.UPLOAD, uploadThreads);
+	}
+
+	private void createPool(Pool pool, int threads)
+	{
+		ThreadPoolExecutor executor = (ThreadPoolExecutor)Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gdrivefs-remote-"+pool.name().toLowerCase()+"-%d").build());
+		executor.setKeepAliveTime(1, TimeUnit.SECONDS);
+		executor.allowCoreThreadTimeOut(true);
+		workers.put(pool, executor);
+		pools.put(pool, MoreExecutors.listeningDecorator(executor));
+	}
+
+	/** Runs the request on the given pool, with rate limiting and retries (see call) **/
+	public <T> ListenableFuture<T> submit(Pool pool, final boolean idempotent, final Callable<T> request)
+	{
+		return pools.get(pool).submit(new Callable<T>()
+		{
+			@Override
+			public T call() throws Exception
+			{
+				return RemoteExecutor.this.call(idempotent, request);
+			}
+		});
+	}
+
+	public <T> ListenableFuture<T> submit(Pool pool, boolean idempotent, AbstractGoogleClientRequest<T> request)
+	{
+		return submit(pool, idempotent, executing(request));
+	}
+
+	/**
+	 * Runs work made up of several API calls (eg. a paged listing) on the given pool.
+	 * The work should make each of its API calls through call, so each is rate limited and retried on its own.
+	 */
+	public <T> ListenableFuture<T> submitEach(Pool pool, Callable<T> work)
+	{
+		return pools.get(pool).submit(work);
+	}
+
+	/**
+	 * Runs the request on the current thread, after taking a permit from the rate limiter, retrying it while it fails with a retryable error.
+	 * Requests made up of several API calls (eg. paged listings) should go through here once per API call.
+	 */
+	public <T> T call(boolean idempotent, Callable<T> request) throws IOException
+	{
+		for(int attempt = 1; ; attempt++)
+		{
+			rateLimiter.acquire();
+			attempts.incrementAndGet();
+			try
+			{
+				return request.call();
+			}
+			catch(IOException e)
+			{
+				boolean limited = isRateLimited(e);
+				if(limited) rateLimited.incrementAndGet();
+				if(attempt >= maxAttempts || !(limited || (idempotent && isServerError(e))))
+				{
+					failures.incrementAndGet();
+					throw e;
+				}
+				long backoff = backoffMillis(attempt);
+				logger.debug("Retrying remote request in {}ms (attempt {}): {}", backoff, attempt, e.getMessage());
+				retries.incrementAndGet();
+				try
+				{
+					Thread.sleep(backoff);
+				}
+				catch(InterruptedException e1)
+				{
+					throw new RuntimeException(e1);
+				}
+			}
+			catch(RuntimeException e)
+			{
+				failures.incrementAndGet();
+				throw e;
+			}
+			catch(Exception e)
+			{
+				failures.incrementAndGet();
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public <T> T call(boolean idempotent, AbstractGoogleClientRequest<T> request) throws IOException
+	{
+		return call(idempotent, executing(request));
+	}
+
+	private static <T> Callable<T> executing(final AbstractGoogleClientRequest<T> request)
+	{
+		return new Callable<T>()
+		{
+			@Override
+			public T call() throws IOException
+			{
+				return request.execute();
+			}
+		};
+	}
+
+	/** Waits for a request submitted to one of the pools, rethrowing its failure as it was thrown **/
+	public static <T> T await(ListenableFuture<T> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch(InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			if(e.getCause() instanceof Error) throw (Error)e.getCause();
+			throw new UncheckedExecutionException(e.getCause());
+		}
+	}
+
+	/** Takes permits for requests that don't go through call (eg. each request in a batch counts against the quota) **/
+	public void acquire(int permits)
+	{
+		if(permits > 0) rateLimiter.acquire(permits);
+	}
+
+	/**
+	 * Backoff before the given retry: exponential in the attempt number, capped, with the upper half randomized
+	 * so clients that were rejected together don't all come back together.
+	 */
+	long backoffMillis(int attempt)
+	{
+		long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt-1, 30));
+		return ceiling/2 + ThreadLocalRandom.current().nextLong(ceiling/2+1);
+	}
+
+	/** 429, or a 403 whose reason says we are over quota (other 403s are permission errors, and won't go away by retrying) **/
+	public static boolean isRateLimited(IOException e)
+	{
+		if(!(e instanceof HttpResponseException)) return false;
+		int status = ((HttpResponseException)e).getStatusCode();
+		if(status == 429) return true;
+		if(status != 403 || !(e instanceof GoogleJsonResponseException)) return false;
+		GoogleJsonError details = ((GoogleJsonResponseException)e).getDetails();
+		if(details == null || details.getErrors() == null) return false;
+		for(GoogleJsonError.ErrorInfo error : details.getErrors())
+			if("rateLimitExceeded".equals(error.getReason()) || "userRateLimitExceeded".equals(error.getReason())) return true;
+		return false;
+	}
+
+	public static boolean isServerError(IOException e)
+	{
+		return e instanceof HttpResponseException && ((HttpResponseException)e).getStatusCode() >= 500;
+	}
+
+	/** Requests waiting for a thread in the given pool **/
+	public int getQueueDepth(Pool pool)
+	{
+		return workers.get(pool).getQueue().size();
+	}
+
+	/** Requests currently running (or backing off) in the given pool **/
+	public int getActiveCount(Pool pool)
+	{
+		return workers.get(pool).getActiveCount();
+	}
+
+	/** Attempts sent to Google, including retries **/
+	public long getAttemptCount()
+	{
+		return attempts.get();
+	}
+
+	public long getRetryCount()
+	{
+		return retries.get();
+	}
+
+	/** Attempts Google rejected as over quota **/
+	public long getRateLimitedCount()
+	{
+		return rateLimited.get();
+	}
+
+	/** Requests that failed for good (not retryable, or out of attempts) **/
+	public long getFailureCount()
+	{
+		return failures.get();
+	}
+
+	public double getRequestsPerSecond()
+	{
+		return rateLimiter.getRate();
+	}
+
+	/** Stops accepting requests; requests that are running are interrupted **/
+	public void shutdownNow()
+	{
+		for(ThreadPoolExecutor executor : workers.values()) executor.shutdownNow();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RemoteExecutor(rate="+rateLimiter.getRate()+"/s, attempts="+attempts+", retries="+retries+", rateLimited="+rateLimited+", failures="+failures+")";
+	}
+}
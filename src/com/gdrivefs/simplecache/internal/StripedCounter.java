@@ -0,0 +1,49 @@
+package com.gdrivefs.simplecache.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to at once without contending (a stand-in for Java 8's LongAdder).
+ * Each thread adds to one of several cells, spaced a cache line apart; reading the counter sums the cells.
+ */
+public final class StripedCounter
+{
+	static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+	/** Longs per cache line, so neighbouring cells don't share one **/
+	private static final int SPACING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES*SPACING);
+
+	public void add(long amount)
+	{
+		cells.getAndAdd(stripe()*SPACING, amount);
+	}
+
+	public void increment()
+	{
+		add(1);
+	}
+
+	public long sum()
+	{
+		long sum = 0;
+		for(int i = 0; i < STRIPES; i++) sum += cells.get(i*SPACING);
+		return sum;
+	}
+
+	/** The current thread's cell, out of STRIPES **/
+	static int stripe()
+	{
+		long id = Thread.currentThread().getId();
+		return (int)((id ^ (id >>> 16)) & (STRIPES-1));
+	}
+
+	/** A power of two, about twice the number of processors **/
+	private static int stripes(int processors)
+	{
+		int stripes = 1;
+		while(stripes < processors*2 && stripes < 64) stripes <<= 1;
+		return stripes;
+	}
+}
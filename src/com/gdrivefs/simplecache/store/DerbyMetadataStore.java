@@ -0,0 +1,619 @@
+package com.gdrivefs.simplecache.store;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.derby.jdbc.ClientDriver;
+import org.apache.derby.jdbc.EmbeddedDriver;
+
+import com.gdrivefs.simplecache.internal.ConnectionPool;
+import com.gdrivefs.simplecache.internal.Histogram;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.google.common.base.Joiner;
+import com.jimsproch.sql.Database;
+import com.jimsproch.sql.IllegalOperationError;
+import com.jimsproch.sql.Transaction;
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Metadata store backed by an (embedded) Derby database.
+ * Lookups run on pooled read-only connections; writes go through the shared Database handle.
+ */
+public class DerbyMetadataStore implements MetadataStore
+{
+	public static final String MEMORY_URL_PREFIX = "jdbc:derby:memory:";
+	private static final int MAX_DATABASE_READERS = 16;
+	private static final XStream xstream = new XStream();
+	private static final Histogram updateLatency = Metrics.get().histogram("derby.update");
+	private static final Histogram transactionLatency = Metrics.get().histogram("derby.transaction");
+	private static final Histogram schemaLatency = Metrics.get().histogram("derby.schema");
+
+	private static final ConnectionPool.RowMapper<FileRecord> FILE = new ConnectionPool.RowMapper<FileRecord>()
+	{
+		@Override
+		public FileRecord map(ResultSet row) throws SQLException
+		{
+			long size = row.getLong("SIZE");
+			return new FileRecord(row.getString("ID"),
+					UUID.fromString(row.getString("LOCALID")),
+					row.getString("TITLE"),
+					row.getString("MIMETYPE"),
+					row.getString("MD5HEX"),
+					row.wasNull() ? null : size,
+					row.getTimestamp("MTIME"),
+					row.getString("DOWNLOADURL"),
+					row.getTimestamp("METADATAREFRESHED"),
+					row.getTimestamp("CHILDRENREFRESHED"),
+					row.getTimestamp("PARENTSREFRESHED"));
+		}
+	};
+
+	private static final ConnectionPool.RowMapper<Fragment> FRAGMENT = new ConnectionPool.RowMapper<Fragment>()
+	{
+		@Override
+		public Fragment map(ResultSet row) throws SQLException
+		{
+			return new Fragment(UUID.fromString(row.getString("LOCALID")), row.getString("FILEMD5"), row.getString("CHUNKMD5"), row.getLong("STARTBYTE"), row.getLong("ENDBYTE"));
+		}
+	};
+
+	private static final ConnectionPool.RowMapper<PendingOperation> PENDING_OPERATION = new ConnectionPool.RowMapper<PendingOperation>()
+	{
+		@Override
+		public PendingOperation map(ResultSet row) throws SQLException
+		{
+			return new PendingOperation(row.getLong("ID"), row.getString("COMMAND"), (String[])xstream.fromXML(row.getString("DETAILS")));
+		}
+	};
+
+	private static final ConnectionPool.RowMapper<String[]> RELATIONSHIP = new ConnectionPool.RowMapper<String[]>()
+	{
+		@Override
+		public String[] map(ResultSet row) throws SQLException
+		{
+			return new String[]{row.getString("PARENT"), row.getString("CHILD")};
+		}
+	};
+
+	private static final ConnectionPool.RowMapper<String[]> PROPERTY = new ConnectionPool.RowMapper<String[]>()
+	{
+		@Override
+		public String[] map(ResultSet row) throws SQLException
+		{
+			return new String[]{row.getString("NAME"), row.getString("VAL")};
+		}
+	};
+
+	private Database db;
+	private ConnectionPool pool;
+
+	public DerbyMetadataStore(Database db, ConnectionPool pool)
+	{
+		this.db = db;
+		this.pool = pool;
+	}
+
+	/** Opens (creating if necessary) the Derby database at the given JDBC url, eg. jdbc:derby:/path/to/db **/
+	public static DerbyMetadataStore open(String jdbcUrl)
+	{
+		try { Class.forName(ClientDriver.class.getCanonicalName()); }
+		catch(ClassNotFoundException e) { throw new Error(); }
+
+		Database db = new Database(EmbeddedDriver.class.getCanonicalName(), jdbcUrl+";create=true", "APP", "APP", "VALUES 1");
+		ConnectionPool pool = new ConnectionPool(EmbeddedDriver.class.getCanonicalName(), jdbcUrl, "APP", "APP", MAX_DATABASE_READERS);
+		long started = System.nanoTime();
+		buildTables(db, pool);
+		schemaLatency.recordSince(started);
+
+		return new DerbyMetadataStore(db, pool);
+	}
+
+	/** Creates whichever tables are missing; an existing database costs one catalog query rather than a failed CREATE per table **/
+	private static void buildTables(Database db, ConnectionPool pool)
+	{
+		Set<String> tables = new HashSet<String>(pool.query("SELECT TABLENAME FROM SYS.SYSTABLES WHERE TABLETYPE='T'", ConnectionPool.STRING));
+		if(!tables.contains("FILES")) createTables(db);
+		// Added after the original schema, so databases created by older versions need it created separately
+		if(!tables.contains("PROPERTIES")) createTable(db, "CREATE TABLE PROPERTIES(NAME VARCHAR(255) NOT NULL PRIMARY KEY, VAL CLOB)");
+		// Likewise the id the write-ahead log gives each pending operation (see MemoryMetadataStore)
+		List<String> logColumns = pool.query("SELECT c.COLUMNNAME FROM SYS.SYSCOLUMNS c JOIN SYS.SYSTABLES t ON c.REFERENCEID=t.TABLEID "
+				+ "WHERE t.TABLENAME='UPDATELOG' AND c.COLUMNNAME='LOGID'", ConnectionPool.STRING);
+		if(logColumns.isEmpty()) db.execute("ALTER TABLE UPDATELOG ADD COLUMN LOGID CHAR(36)");
+	}
+
+	private static void createTables(Database db)
+	{
+		try
+		{
+			db.execute("CREATE TABLE FILES("
+					+ "ID VARCHAR(255), "
+					+ "LOCALID CHAR(36) NOT NULL, "
+					+ "TITLE VARCHAR(255) NOT NULL, "
+					+ "MIMETYPE VARCHAR(255) NOT NULL, "
+					+ "MD5HEX CHAR(32), "
+					+ "SIZE BIGINT, "
+					+ "MTIME TIMESTAMP, "
+					+ "DOWNLOADURL CLOB, "
+					+ "METADATAREFRESHED TIMESTAMP, "
+					+ "CHILDRENREFRESHED TIMESTAMP, "
+					+ "PARENTSREFRESHED TIMESTAMP"
+					+ ")");
+
+			db.execute("CREATE TABLE RELATIONSHIPS(PARENT VARCHAR(255), CHILD VARCHAR(255))");
+
+			db.execute("CREATE TABLE FRAGMENTS(LOCALID CHAR(36) NOT NULL, "
+					+ "FILEMD5 CHAR(32), "
+					+ "CHUNKMD5 CHAR(32) NOT NULL, "
+					+ "STARTBYTE BIGINT NOT NULL, "
+					+ "ENDBYTE BIGINT NOT NULL)");
+
+			// UPDATELOG contains operations that have logically happened on the local
+			// memory model but may not have been synced with Google's servers.
+			// The persistent database tables represent the state of the world,
+			// and the memory model represents the logical state of localhost (the difference is stored in this table)
+			// When updating the memory model, you must select from the other tables and then iterate over this table
+			// to replay changes that have yet to be sync'd
+			// Rows from this table may be played somewhat out of order
+			// (eg. uploads take a long time and might be delayed, while deletes might happen immediately), though in-order is ideal)
+			// so long as it doesn't break any individual file's logical view of the world
+			// ID allows the table to be sorted by logical event ID for replaying, isdone indicates
+			// if Google should be aware of the change, and details stores details of the task
+			db.execute("CREATE TABLE UPDATELOG(ID INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1), COMMAND VARCHAR(64), ISDONE SMALLINT DEFAULT 0, DETAILS CLOB, LOGID CHAR(36))");
+
+			db.execute("CREATE UNIQUE INDEX FILE_ID ON FILES(ID)");
+			db.execute("CREATE UNIQUE INDEX RELATIONSHIPS_CHILD_PARENT ON RELATIONSHIPS(CHILD, PARENT)");
+	//		db.execute("CREATE INDEX FRAGMENTS_FILEMD5 ON FRAGMENTS(FILEMD5)");
+		}
+		catch(IllegalOperationError e)
+		{
+			if(e.getCause().getMessage().contains("already exists in Schema")) /* do nothing */;
+			else throw e;
+		}
+	}
+
+	private static void createTable(Database db, String sql)
+	{
+		try
+		{
+			db.execute(sql);
+		}
+		catch(IllegalOperationError e)
+		{
+			if(e.getCause().getMessage().contains("already exists in Schema")) /* do nothing */;
+			else throw e;
+		}
+	}
+
+	private Database getDatabase()
+	{
+		if(db == null) throw new IllegalStateException("Can not fetch database connection after store is closed");
+		return db;
+	}
+
+	private ConnectionPool getConnectionPool()
+	{
+		if(pool == null) throw new IllegalStateException("Can not fetch database connection after store is closed");
+		return pool;
+	}
+
+	@Override
+	public FileRecord getFile(String googleId)
+	{
+		return getConnectionPool().queryFirst("SELECT * FROM FILES WHERE ID=?", FILE, googleId);
+	}
+
+	@Override
+	public boolean hasFile(String googleId)
+	{
+		return getConnectionPool().queryFirst("SELECT COUNT(*) FROM FILES WHERE ID=?", ConnectionPool.INTEGER, googleId) > 0;
+	}
+
+	@Override
+	public UUID getLocalId(String googleId)
+	{
+		String localId = getConnectionPool().queryFirst("SELECT LOCALID FROM FILES WHERE ID=?", ConnectionPool.STRING, googleId);
+		return localId != null ? UUID.fromString(localId) : null;
+	}
+
+	@Override
+	public String getGoogleId(UUID localId)
+	{
+		return getConnectionPool().queryFirst("SELECT ID FROM FILES WHERE LOCALID=?", ConnectionPool.STRING, localId);
+	}
+
+	@Override
+	public void putFile(final FileRecord file)
+	{
+		execute(new Transaction<Void>()
+		{
+			@Override
+			public Void run(Database db) throws Throwable
+			{
+				writeFile(db, file);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void putFiles(final List<FileRecord> files, final Map<String, List<String>> parentIds)
+	{
+		execute(new Transaction<Void>()
+		{
+			@Override
+			public Void run(Database db) throws Throwable
+			{
+				for(FileRecord file : files) writeFile(db, file);
+				for(Map.Entry<String, List<String>> entry : parentIds.entrySet()) writeParentIds(db, entry.getKey(), entry.getValue());
+				return null;
+			}
+		});
+	}
+
+	private static void writeFile(Database db, FileRecord file)
+	{
+		db.execute("DELETE FROM FILES WHERE ID=?", file.getGoogleId());
+		db.execute("INSERT INTO FILES"
+				+ "(ID, LOCALID, TITLE, MIMETYPE, MD5HEX, SIZE, MTIME, DOWNLOADURL, METADATAREFRESHED, CHILDRENREFRESHED, PARENTSREFRESHED) "
+				+ "VALUES(?,?,?,?,?,?,?,?,?,?,?)",
+				file.getGoogleId(), file.getLocalId(), file.getTitle(), file.getMimeType(),
+				file.getMd5(), file.getSize(),
+				file.getModifiedTime(), file.getDownloadUrl(),
+				file.getMetadataRefreshed(), file.getChildrenRefreshed(), file.getParentsRefreshed());
+	}
+
+	@Override
+	public List<String> getGoogleIdsWithMimeType(String mimeType)
+	{
+		return getConnectionPool().query("SELECT ID FROM FILES WHERE MIMETYPE=?", ConnectionPool.STRING, mimeType);
+	}
+
+	@Override
+	public void setChildrenRefreshed(String googleId, Date childrenRefreshed)
+	{
+		execute("UPDATE FILES SET CHILDRENREFRESHED = ? WHERE ID = ?", childrenRefreshed, googleId);
+	}
+
+	@Override
+	public void clearRelationshipsRefreshed(String googleId)
+	{
+		execute("UPDATE FILES SET CHILDRENREFRESHED = NULL, PARENTSREFRESHED = NULL WHERE ID=?", googleId);
+	}
+
+	@Override
+	public void removeFile(final String googleId)
+	{
+		execute(new Transaction<Void>()
+		{
+			@Override
+			public Void run(Database db) throws Throwable
+			{
+				db.execute("DELETE FROM FILES WHERE ID=?", googleId);
+				db.execute("DELETE FROM RELATIONSHIPS WHERE CHILD=? OR PARENT=?", googleId, googleId);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public List<String> getChildIds(String parentGoogleId)
+	{
+		return getConnectionPool().query("SELECT CHILD FROM RELATIONSHIPS WHERE PARENT=?", ConnectionPool.STRING, parentGoogleId);
+	}
+
+	@Override
+	public List<String> getParentIds(String childGoogleId)
+	{
+		return getConnectionPool().query("SELECT PARENT FROM RELATIONSHIPS WHERE CHILD=?", ConnectionPool.STRING, childGoogleId);
+	}
+
+	@Override
+	public void setChildIds(final String parentGoogleId, final List<String> childGoogleIds)
+	{
+		execute(new Transaction<Void>()
+		{
+			@Override
+			public Void run(Database db) throws Throwable
+			{
+				db.execute("DELETE FROM RELATIONSHIPS WHERE PARENT=?", parentGoogleId);
+				for(String child : childGoogleIds) {
+					db.execute("INSERT INTO RELATIONSHIPS(PARENT, CHILD) VALUES(?,?)", parentGoogleId, child);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void setParentIds(final String childGoogleId, final List<String> parentGoogleIds)
+	{
+		execute(new Transaction<Void>()
+		{
+			@Override
+			public Void run(Database db) throws Throwable
+			{
+				writeParentIds(db, childGoogleId, parentGoogleIds);
+				return null;
+			}
+		});
+	}
+
+	private static void writeParentIds(Database db, String childGoogleId, List<String> parentGoogleIds)
+	{
+		db.execute("DELETE FROM RELATIONSHIPS WHERE CHILD=?", childGoogleId);
+		for(String parent : parentGoogleIds) {
+			db.execute("INSERT INTO RELATIONSHIPS(PARENT, CHILD) VALUES(?,?)", parent, childGoogleId);
+		}
+	}
+
+	@Override
+	public List<Fragment> getFragments(UUID localId)
+	{
+		return getConnectionPool().query(
+				"SELECT * FROM FRAGMENTS "
+				+ "WHERE LOCALID=? "
+				+ "ORDER BY STARTBYTE ASC, ENDBYTE DESC",
+				FRAGMENT, localId);
+	}
+
+	@Override
+	public List<Fragment> getFragments(UUID localId, long start, long end)
+	{
+		return getConnectionPool().query(
+				"SELECT * FROM FRAGMENTS "
+				+ "WHERE LOCALID=? AND STARTBYTE < ? AND ENDBYTE > ? "
+				+ "ORDER BY STARTBYTE ASC, ENDBYTE DESC",
+				FRAGMENT, localId, end, start);
+	}
+
+	/** Inserting a fragment that is already stored leaves a single copy, so replaying a write-ahead log doesn't duplicate fragments **/
+	@Override
+	public void insertFragment(final Fragment fragment)
+	{
+		execute(new Transaction<Void>()
+		{
+			@Override
+			public Void run(Database db) throws Throwable
+			{
+				db.execute("DELETE FROM FRAGMENTS WHERE LOCALID=? AND CHUNKMD5=? AND STARTBYTE=? AND ENDBYTE=?",
+						fragment.getLocalId(), fragment.getChunkMd5(), fragment.getStartByte(), fragment.getEndByte());
+				db.execute(
+						"INSERT INTO FRAGMENTS"
+						+ "(LOCALID, FILEMD5, CHUNKMD5, STARTBYTE, ENDBYTE)"
+						+ "VALUES(?,?,?,?,?)",
+						fragment.getLocalId(), fragment.getFileMd5(), fragment.getChunkMd5(), fragment.getStartByte(), fragment.getEndByte());
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void deleteFragments(UUID localId)
+	{
+		execute("DELETE FROM FRAGMENTS WHERE LOCALID=?", localId);
+	}
+
+	@Override
+	public void deleteFragments(UUID localId, long start, long end)
+	{
+		execute("DELETE FROM FRAGMENTS WHERE LOCALID=? AND STARTBYTE < ? AND ENDBYTE > ?", localId, end, start);
+	}
+
+	@Override
+	public void deleteFragmentsStartingAtOrAfter(UUID localId, long offset)
+	{
+		execute("DELETE FROM FRAGMENTS WHERE LOCALID=? AND STARTBYTE>=?", localId, offset);
+	}
+
+	@Override
+	public void deleteFragmentsWithChunk(String chunkMd5)
+	{
+		execute("DELETE FROM FRAGMENTS WHERE CHUNKMD5=?", chunkMd5);
+	}
+
+	@Override
+	public long appendPendingOperation(String command, String... details)
+	{
+		return appendPendingOperation(null, command, details);
+	}
+
+	/**
+	 * Appends the operation, unless an operation with the same log id (see Mutation) was already appended, in which case that
+	 * operation's id is returned; this is what makes replaying a write-ahead log that was partly persisted safe.
+	 */
+	long appendPendingOperation(String logId, String command, String... details)
+	{
+		if(logId != null)
+		{
+			Integer existing = getConnectionPool().queryFirst("SELECT ID FROM UPDATELOG WHERE LOGID=?", ConnectionPool.INTEGER, logId);
+			if(existing != null) return existing;
+		}
+
+		// Borrow a connection of our own so we can read back the generated id
+		long started = System.nanoTime();
+		try
+		{
+			Connection connection = getConnectionPool().getConnection();
+			try
+			{
+				PreparedStatement insert = connection.prepareStatement("INSERT INTO UPDATELOG(COMMAND, DETAILS, LOGID) VALUES(?,?,?)", Statement.RETURN_GENERATED_KEYS);
+				try
+				{
+					insert.setString(1, command);
+					insert.setString(2, xstream.toXML(details));
+					insert.setString(3, logId);
+					insert.executeUpdate();
+					ResultSet keys = insert.getGeneratedKeys();
+					try
+					{
+						if(!keys.next()) throw new SQLException("No id generated for log entry");
+						return keys.getLong(1);
+					}
+					finally
+					{
+						keys.close();
+					}
+				}
+				finally
+				{
+					insert.close();
+				}
+			}
+			finally
+			{
+				connection.close();
+			}
+		}
+		catch(SQLException e)
+		{
+			throw new RuntimeException(e);
+		}
+		finally
+		{
+			updateLatency.recordSince(started);
+		}
+	}
+
+	@Override
+	public PendingOperation peekPendingOperation()
+	{
+		return getConnectionPool().queryFirst("SELECT * FROM UPDATELOG ORDER BY ID ASC FETCH NEXT ROW ONLY", PENDING_OPERATION);
+	}
+
+	@Override
+	public List<PendingOperation> peekPendingOperations(int limit)
+	{
+		if(limit < 1) throw new IllegalArgumentException("Expected a positive limit: "+limit);
+		return getConnectionPool().query("SELECT * FROM UPDATELOG ORDER BY ID ASC FETCH FIRST "+limit+" ROWS ONLY", PENDING_OPERATION);
+	}
+
+	@Override
+	public List<PendingOperation> getPendingOperations(String... commands)
+	{
+		if(commands.length == 0) throw new IllegalArgumentException("Expected at least one command");
+		String placeholders = Joiner.on(",").join(Collections.nCopies(commands.length, "?"));
+		return getConnectionPool().query("SELECT * FROM UPDATELOG WHERE COMMAND IN ("+placeholders+") ORDER BY ID ASC", PENDING_OPERATION, (Object[])commands);
+	}
+
+	@Override
+	public void removePendingOperation(long id)
+	{
+		execute("DELETE FROM UPDATELOG WHERE ID=?", id);
+	}
+
+	@Override
+	public String getProperty(String name)
+	{
+		return getConnectionPool().queryFirst("SELECT VAL FROM PROPERTIES WHERE NAME=?", ConnectionPool.STRING, name);
+	}
+
+	@Override
+	public void setProperty(final String name, final String value)
+	{
+		execute(new Transaction<Void>()
+		{
+			@Override
+			public Void run(Database db) throws Throwable
+			{
+				db.execute("DELETE FROM PROPERTIES WHERE NAME=?", name);
+				if(value != null) db.execute("INSERT INTO PROPERTIES(NAME, VAL) VALUES(?,?)", name, value);
+				return null;
+			}
+		});
+	}
+
+	/** Every file in the store; used to load the full working set into memory **/
+	public List<FileRecord> getAllFiles()
+	{
+		return getConnectionPool().query("SELECT * FROM FILES", FILE);
+	}
+
+	/** Every relationship in the store, as {parent, child} pairs **/
+	public List<String[]> getAllRelationships()
+	{
+		return getConnectionPool().query("SELECT PARENT, CHILD FROM RELATIONSHIPS", RELATIONSHIP);
+	}
+
+	public List<Fragment> getAllFragments()
+	{
+		return getConnectionPool().query("SELECT * FROM FRAGMENTS", FRAGMENT);
+	}
+
+	public List<PendingOperation> getAllPendingOperations()
+	{
+		return getConnectionPool().query("SELECT * FROM UPDATELOG ORDER BY ID ASC", PENDING_OPERATION);
+	}
+
+	/** Every property in the store, as {name, value} pairs **/
+	public List<String[]> getAllProperties()
+	{
+		return getConnectionPool().query("SELECT NAME, VAL FROM PROPERTIES", PROPERTY);
+	}
+
+	private <T> T execute(Transaction<T> transaction)
+	{
+		long started = System.nanoTime();
+		try
+		{
+			return getDatabase().execute(transaction);
+		}
+		catch(SQLException e)
+		{
+			throw new RuntimeException(e);
+		}
+		finally
+		{
+			transactionLatency.recordSince(started);
+		}
+	}
+
+	private void execute(String sql, Object... args)
+	{
+		long started = System.nanoTime();
+		try
+		{
+			getDatabase().execute(sql, args);
+		}
+		finally
+		{
+			updateLatency.recordSince(started);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(db == null) return; // already closed
+		String url = pool.getUrl();
+		pool.close();
+		db.close();
+		pool = null;
+		db = null;
+		if(url.startsWith(MEMORY_URL_PREFIX)) dropMemoryDatabase(url);
+	}
+
+	private static void dropMemoryDatabase(String jdbcUrl)
+	{
+		try
+		{
+			DriverManager.getConnection(jdbcUrl+";drop=true").close();
+		}
+		catch(SQLException e)
+		{
+			// Derby reports a successful drop as an exception (SQLState 08006)
+			if(!"08006".equals(e.getSQLState())) throw new RuntimeException(e);
+		}
+	}
+}
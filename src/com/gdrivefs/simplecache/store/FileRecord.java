@@ -0,0 +1,111 @@
+package com.gdrivefs.simplecache.store;
+
+import java.util.Date;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Persistent metadata for a single remote file, as last fetched from Google.
+ * Instances are immutable; use the with* methods to derive updated records.
+ */
+public final class FileRecord
+{
+	private final String googleId;
+	private final UUID localId;
+	private final String title;
+	private final String mimeType;
+	private final @Nullable String md5;
+	private final @Nullable Long size;
+	private final @Nullable Date modifiedTime;
+	private final @Nullable String downloadUrl;
+	private final Date metadataRefreshed;
+	private final @Nullable Date childrenRefreshed;
+	private final @Nullable Date parentsRefreshed;
+
+	public FileRecord(String googleId, UUID localId, String title, String mimeType, @Nullable String md5, @Nullable Long size, @Nullable Date modifiedTime, @Nullable String downloadUrl, Date metadataRefreshed, @Nullable Date childrenRefreshed, @Nullable Date parentsRefreshed)
+	{
+		this.googleId = googleId;
+		this.localId = localId;
+		this.title = title;
+		this.mimeType = mimeType;
+		this.md5 = md5;
+		this.size = size;
+		this.modifiedTime = modifiedTime;
+		this.downloadUrl = downloadUrl;
+		this.metadataRefreshed = metadataRefreshed;
+		this.childrenRefreshed = childrenRefreshed;
+		this.parentsRefreshed = parentsRefreshed;
+	}
+
+	public String getGoogleId()
+	{
+		return googleId;
+	}
+
+	public UUID getLocalId()
+	{
+		return localId;
+	}
+
+	public String getTitle()
+	{
+		return title;
+	}
+
+	public String getMimeType()
+	{
+		return mimeType;
+	}
+
+	public @Nullable String getMd5()
+	{
+		return md5;
+	}
+
+	public @Nullable Long getSize()
+	{
+		return size;
+	}
+
+	public @Nullable Date getModifiedTime()
+	{
+		return modifiedTime;
+	}
+
+	public @Nullable String getDownloadUrl()
+	{
+		return downloadUrl;
+	}
+
+	public Date getMetadataRefreshed()
+	{
+		return metadataRefreshed;
+	}
+
+	public @Nullable Date getChildrenRefreshed()
+	{
+		return childrenRefreshed;
+	}
+
+	public @Nullable Date getParentsRefreshed()
+	{
+		return parentsRefreshed;
+	}
+
+	public FileRecord withChildrenRefreshed(@Nullable Date childrenRefreshed)
+	{
+		return new FileRecord(googleId, localId, title, mimeType, md5, size, modifiedTime, downloadUrl, metadataRefreshed, childrenRefreshed, parentsRefreshed);
+	}
+
+	public FileRecord withParentsRefreshed(@Nullable Date parentsRefreshed)
+	{
+		return new FileRecord(googleId, localId, title, mimeType, md5, size, modifiedTime, downloadUrl, metadataRefreshed, childrenRefreshed, parentsRefreshed);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FileRecord("+googleId+", "+localId+", "+title+")";
+	}
+}
@@ -0,0 +1,68 @@
+package com.gdrivefs.simplecache.store;
+
+import java.util.Comparator;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/** A cached byte range [startByte, endByte) of a file, stored on disk under its chunk md5 **/
+public final class Fragment
+{
+	/** Sorts by start byte ascending, then end byte descending (so the fragment spanning more data comes first) **/
+	public static final Comparator<Fragment> ORDER = new Comparator<Fragment>()
+	{
+		@Override
+		public int compare(Fragment a, Fragment b)
+		{
+			if(a.startByte != b.startByte) return a.startByte < b.startByte ? -1 : 1;
+			if(a.endByte != b.endByte) return a.endByte > b.endByte ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private final UUID localId;
+	private final @Nullable String fileMd5;
+	private final String chunkMd5;
+	private final long startByte;
+	private final long endByte;
+
+	public Fragment(UUID localId, @Nullable String fileMd5, String chunkMd5, long startByte, long endByte)
+	{
+		this.localId = localId;
+		this.fileMd5 = fileMd5;
+		this.chunkMd5 = chunkMd5;
+		this.startByte = startByte;
+		this.endByte = endByte;
+	}
+
+	public UUID getLocalId()
+	{
+		return localId;
+	}
+
+	/** Md5 of the file this fragment was downloaded from, or null if the fragment came from a local write **/
+	public @Nullable String getFileMd5()
+	{
+		return fileMd5;
+	}
+
+	public String getChunkMd5()
+	{
+		return chunkMd5;
+	}
+
+	public long getStartByte()
+	{
+		return startByte;
+	}
+
+	public long getEndByte()
+	{
+		return endByte;
+	}
+
+	public boolean overlaps(long start, long end)
+	{
+		return startByte < end && endByte > start;
+	}
+}
@@ -0,0 +1,640 @@
+package com.gdrivefs.simplecache.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the full working set of a DerbyMetadataStore in memory, so lookups never touch the database.
+ *
+ * Writes are applied in memory, appended to a write-ahead log, and then persisted to the Derby store by a single background thread (in order).
+ * On startup, anything left in the log is replayed into Derby before the working set is loaded.  After a crash the log normally still
+ * holds writes that were persisted, so replaying is idempotent (see Mutation).
+ * Only pending operations are forced to disk before a write returns; everything else is cached Google state that can be fetched again.
+ */
+public class MemoryMetadataStore implements MetadataStore
+{
+	private static final Logger logger = LoggerFactory.getLogger(MemoryMetadataStore.class);
+
+	/** The log is truncated once everything has been persisted and it has grown past this size **/
+	private static final long CHECKPOINT_BYTES = 4*1024*1024;
+
+	private final DerbyMetadataStore delegate;
+	private final WriteAheadLog wal;
+	private final ExecutorService persister = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("metadata-persister").setDaemon(true).build());
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, FileRecord> files = new HashMap<String, FileRecord>();
+	private final Map<UUID, String> googleIds = new HashMap<UUID, String>();
+	private final SetMultimap<String, String> childrenByParent = LinkedHashMultimap.create();
+	private final SetMultimap<String, String> parentsByChild = LinkedHashMultimap.create();
+	private final Map<UUID, List<Fragment>> fragments = new HashMap<UUID, List<Fragment>>();
+	private final TreeMap<Long, PendingOperation> pendingOperations = new TreeMap<Long, PendingOperation>();
+	private long nextOperationId = 1;
+	private final Map<String, String> properties = new HashMap<String, String>();
+
+	/** Mutations that have been logged but not yet persisted to the delegate **/
+	private final AtomicLong unpersisted = new AtomicLong();
+	/** Ids the delegate assigned to pending operations, where they differ from ours; only touched by the persister **/
+	private final Map<Long, Long> operationIds = new HashMap<Long, Long>();
+	private volatile boolean persistFailed = false;
+
+	public MemoryMetadataStore(DerbyMetadataStore delegate, java.io.File walFile) throws IOException
+	{
+		this.delegate = delegate;
+		this.wal = new WriteAheadLog(walFile);
+
+		List<Mutation> recovered = wal.read();
+		if(!recovered.isEmpty())
+		{
+			logger.info("Replaying {} unpersisted metadata writes from {}", recovered.size(), walFile);
+			Map<Long, Long> recoveredIds = new HashMap<Long, Long>();
+			for(Mutation mutation : recovered) mutation.apply(delegate, recoveredIds);
+		}
+		wal.truncate();
+
+		load();
+	}
+
+	private void load()
+	{
+		long start = System.currentTimeMillis();
+		for(FileRecord file : delegate.getAllFiles())
+		{
+			files.put(file.getGoogleId(), file);
+			googleIds.put(file.getLocalId(), file.getGoogleId());
+		}
+		for(String[] relationship : delegate.getAllRelationships())
+		{
+			childrenByParent.put(relationship[0], relationship[1]);
+			parentsByChild.put(relationship[1], relationship[0]);
+		}
+		for(Fragment fragment : delegate.getAllFragments()) addFragment(fragment);
+		for(String[] property : delegate.getAllProperties()) properties.put(property[0], property[1]);
+		for(PendingOperation operation : delegate.getAllPendingOperations())
+		{
+			pendingOperations.put(operation.getId(), operation);
+			nextOperationId = Math.max(nextOperationId, operation.getId()+1);
+		}
+		logger.info("Loaded {} files, {} relationships and {} pending operations in {}ms", files.size(), childrenByParent.size(), pendingOperations.size(), System.currentTimeMillis()-start);
+	}
+
+	/** Number of writes that have been logged but not yet persisted to Derby **/
+	public long getUnpersistedMutations()
+	{
+		return unpersisted.get();
+	}
+
+	/** Logs the mutation and queues it for persistence; must be called while holding the write lock, so the log stays in memory order **/
+	private void log(final Mutation mutation)
+	{
+		if(!lock.isWriteLockedByCurrentThread()) throw new Error("Write lock required");
+		try
+		{
+			wal.append(mutation);
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		unpersisted.incrementAndGet();
+		persister.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if(!persistFailed) mutation.apply(delegate, operationIds);
+				}
+				catch(RuntimeException e)
+				{
+					// Leave the log alone from here on, so the write is replayed on the next startup
+					logger.error("Unable to persist metadata write; it will be replayed from the log on restart", e);
+					persistFailed = true;
+				}
+				if(unpersisted.decrementAndGet() == 0) checkpoint(false);
+			}
+		});
+	}
+
+	private void checkpoint(boolean force)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if(persistFailed || unpersisted.get() != 0) return;
+			if(!force && wal.size() < CHECKPOINT_BYTES) return;
+			wal.truncate();
+			for(Map.Entry<Long, Long> id : operationIds.entrySet()) wal.append(Mutation.operationId(id.getKey(), id.getValue()));
+		}
+		catch(IOException e)
+		{
+			logger.warn("Unable to checkpoint write-ahead log", e);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public FileRecord getFile(String googleId)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return files.get(googleId);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean hasFile(String googleId)
+	{
+		return getFile(googleId) != null;
+	}
+
+	@Override
+	public UUID getLocalId(String googleId)
+	{
+		FileRecord file = getFile(googleId);
+		return file != null ? file.getLocalId() : null;
+	}
+
+	@Override
+	public String getGoogleId(UUID localId)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return googleIds.get(localId);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void putFile(FileRecord file)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			FileRecord previous = files.put(file.getGoogleId(), file);
+			if(previous != null && !previous.getLocalId().equals(file.getLocalId())) googleIds.remove(previous.getLocalId());
+			googleIds.put(file.getLocalId(), file.getGoogleId());
+			log(Mutation.putFile(file));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void putFiles(List<FileRecord> files, Map<String, List<String>> parentIds)
+	{
+		// Each write is logged individually; they all reach memory before anyone else can read
+		lock.writeLock().lock();
+		try
+		{
+			for(FileRecord file : files) putFile(file);
+			for(Map.Entry<String, List<String>> entry : parentIds.entrySet()) setParentIds(entry.getKey(), entry.getValue());
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> getGoogleIdsWithMimeType(String mimeType)
+	{
+		lock.readLock().lock();
+		try
+		{
+			List<String> ids = new ArrayList<String>();
+			for(FileRecord file : files.values()) if(mimeType.equals(file.getMimeType())) ids.add(file.getGoogleId());
+			return ids;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void setChildrenRefreshed(String googleId, Date childrenRefreshed)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			FileRecord file = files.get(googleId);
+			if(file != null) files.put(googleId, file.withChildrenRefreshed(childrenRefreshed));
+			log(Mutation.setChildrenRefreshed(googleId, childrenRefreshed));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void clearRelationshipsRefreshed(String googleId)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			FileRecord file = files.get(googleId);
+			if(file != null) files.put(googleId, file.withChildrenRefreshed(null).withParentsRefreshed(null));
+			log(Mutation.clearRelationshipsRefreshed(googleId));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void removeFile(String googleId)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			FileRecord previous = files.remove(googleId);
+			if(previous != null) googleIds.remove(previous.getLocalId());
+			for(String parent : parentsByChild.removeAll(googleId)) childrenByParent.remove(parent, googleId);
+			for(String child : childrenByParent.removeAll(googleId)) parentsByChild.remove(child, googleId);
+			log(Mutation.removeFile(googleId));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> getChildIds(String parentGoogleId)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return ImmutableList.copyOf(childrenByParent.get(parentGoogleId));
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> getParentIds(String childGoogleId)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return ImmutableList.copyOf(parentsByChild.get(childGoogleId));
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void setChildIds(String parentGoogleId, List<String> childGoogleIds)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			for(String child : childrenByParent.removeAll(parentGoogleId)) parentsByChild.remove(child, parentGoogleId);
+			for(String child : childGoogleIds)
+			{
+				childrenByParent.put(parentGoogleId, child);
+				parentsByChild.put(child, parentGoogleId);
+			}
+			log(Mutation.setChildIds(parentGoogleId, childGoogleIds));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void setParentIds(String childGoogleId, List<String> parentGoogleIds)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			for(String parent : parentsByChild.removeAll(childGoogleId)) childrenByParent.remove(parent, childGoogleId);
+			for(String parent : parentGoogleIds)
+			{
+				parentsByChild.put(childGoogleId, parent);
+				childrenByParent.put(parent, childGoogleId);
+			}
+			log(Mutation.setParentIds(childGoogleId, parentGoogleIds));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Fragment> getFragments(UUID localId)
+	{
+		lock.readLock().lock();
+		try
+		{
+			List<Fragment> list = fragments.get(localId);
+			return list != null ? ImmutableList.copyOf(list) : Collections.<Fragment>emptyList();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Fragment> getFragments(UUID localId, long start, long end)
+	{
+		lock.readLock().lock();
+		try
+		{
+			List<Fragment> list = fragments.get(localId);
+			if(list == null) return Collections.emptyList();
+			List<Fragment> overlapping = new ArrayList<Fragment>();
+			for(Fragment fragment : list)
+			{
+				if(fragment.getStartByte() >= end) break; // sorted by start byte
+				if(fragment.overlaps(start, end)) overlapping.add(fragment);
+			}
+			return overlapping;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private void addFragment(Fragment fragment)
+	{
+		List<Fragment> list = fragments.get(fragment.getLocalId());
+		if(list == null)
+		{
+			list = new ArrayList<Fragment>(2);
+			fragments.put(fragment.getLocalId(), list);
+		}
+		int index = Collections.binarySearch(list, fragment, Fragment.ORDER);
+		list.add(index >= 0 ? index : -index-1, fragment);
+	}
+
+	@Override
+	public void insertFragment(Fragment fragment)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			addFragment(fragment);
+			log(Mutation.insertFragment(fragment));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteFragments(UUID localId)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			fragments.remove(localId);
+			log(Mutation.deleteFragments(localId));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteFragments(UUID localId, long start, long end)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			List<Fragment> list = fragments.get(localId);
+			if(list != null)
+			{
+				Iterator<Fragment> iterator = list.iterator();
+				while(iterator.hasNext()) if(iterator.next().overlaps(start, end)) iterator.remove();
+			}
+			log(Mutation.deleteFragments(localId, start, end));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteFragmentsStartingAtOrAfter(UUID localId, long offset)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			List<Fragment> list = fragments.get(localId);
+			if(list != null)
+			{
+				Iterator<Fragment> iterator = list.iterator();
+				while(iterator.hasNext()) if(iterator.next().getStartByte() >= offset) iterator.remove();
+			}
+			log(Mutation.deleteFragmentsStartingAtOrAfter(localId, offset));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteFragmentsWithChunk(String chunkMd5)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			for(List<Fragment> list : fragments.values())
+			{
+				Iterator<Fragment> iterator = list.iterator();
+				while(iterator.hasNext()) if(iterator.next().getChunkMd5().equals(chunkMd5)) iterator.remove();
+			}
+			log(Mutation.deleteFragmentsWithChunk(chunkMd5));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public long appendPendingOperation(String command, String... details)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			PendingOperation operation = new PendingOperation(nextOperationId++, command, details.clone());
+			pendingOperations.put(operation.getId(), operation);
+			log(Mutation.appendPendingOperation(operation));
+			return operation.getId();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public PendingOperation peekPendingOperation()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return pendingOperations.isEmpty() ? null : pendingOperations.firstEntry().getValue();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<PendingOperation> peekPendingOperations(int limit)
+	{
+		lock.readLock().lock();
+		try
+		{
+			List<PendingOperation> head = new ArrayList<PendingOperation>();
+			for(PendingOperation operation : pendingOperations.values())
+			{
+				if(head.size() >= limit) break;
+				head.add(operation);
+			}
+			return head;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<PendingOperation> getPendingOperations(String... commands)
+	{
+		Set<String> wanted = new HashSet<String>(Arrays.asList(commands));
+		lock.readLock().lock();
+		try
+		{
+			List<PendingOperation> matching = new ArrayList<PendingOperation>();
+			for(PendingOperation operation : pendingOperations.values())
+				if(wanted.contains(operation.getCommand())) matching.add(operation);
+			return matching;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void removePendingOperation(long id)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if(pendingOperations.remove(id) == null) return;
+			log(Mutation.removePendingOperation(id));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String getProperty(String name)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return properties.get(name);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void setProperty(String name, String value)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if(value == null) properties.remove(name);
+			else properties.put(name, value);
+			log(Mutation.setProperty(name, value));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		persister.shutdown();
+		try
+		{
+			if(!persister.awaitTermination(60, TimeUnit.SECONDS)) logger.warn("Timed out persisting metadata; remaining writes will be replayed from the log on restart");
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		checkpoint(true);
+		wal.close();
+		delegate.close();
+	}
+}
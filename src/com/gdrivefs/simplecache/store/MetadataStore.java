@@ -0,0 +1,100 @@
+package com.gdrivefs.simplecache.store;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Persistent state of the drive cache: file metadata, parent/child relationships,
+ * cached content fragments, and operations pending replay on Google's servers.
+ *
+ * The simplecache package goes through this interface rather than issuing SQL directly,
+ * so the storage engine can be swapped out (see DerbyMetadataStore and MemoryMetadataStore).
+ * Implementations must be thread-safe; each method is atomic with respect to the others.
+ */
+public interface MetadataStore extends Closeable
+{
+	// Files
+
+	@Nullable FileRecord getFile(String googleId);
+
+	boolean hasFile(String googleId);
+
+	@Nullable UUID getLocalId(String googleId);
+
+	@Nullable String getGoogleId(UUID localId);
+
+	/** Inserts the record, replacing any existing record for the same google id **/
+	void putFile(FileRecord file);
+
+	/** Bulk version of putFile and setParentIds (keyed by child), applied together where the engine supports transactions **/
+	void putFiles(List<FileRecord> files, Map<String, List<String>> parentIds);
+
+	List<String> getGoogleIdsWithMimeType(String mimeType);
+
+	void setChildrenRefreshed(String googleId, @Nullable Date childrenRefreshed);
+
+	/** Marks both the children and the parents of the file as never having been fetched **/
+	void clearRelationshipsRefreshed(String googleId);
+
+	/** Forgets the file (eg. because it was deleted remotely), along with every relationship it is part of **/
+	void removeFile(String googleId);
+
+	// Relationships
+
+	List<String> getChildIds(String parentGoogleId);
+
+	List<String> getParentIds(String childGoogleId);
+
+	/** Replaces every relationship of the parent with the given children **/
+	void setChildIds(String parentGoogleId, List<String> childGoogleIds);
+
+	/** Replaces every relationship of the child with the given parents **/
+	void setParentIds(String childGoogleId, List<String> parentGoogleIds);
+
+	// Fragments
+
+	/** All fragments of the file, in Fragment.ORDER **/
+	List<Fragment> getFragments(UUID localId);
+
+	/** Fragments of the file that overlap the byte range [start, end), in Fragment.ORDER **/
+	List<Fragment> getFragments(UUID localId, long start, long end);
+
+	void insertFragment(Fragment fragment);
+
+	void deleteFragments(UUID localId);
+
+	/** Deletes fragments of the file that overlap the byte range [start, end) **/
+	void deleteFragments(UUID localId, long start, long end);
+
+	void deleteFragmentsStartingAtOrAfter(UUID localId, long offset);
+
+	void deleteFragmentsWithChunk(String chunkMd5);
+
+	// Pending operations
+
+	/** Appends an operation to the end of the log, returning its id **/
+	long appendPendingOperation(String command, String... details);
+
+	/** The oldest pending operation, or null if the log is empty **/
+	@Nullable PendingOperation peekPendingOperation();
+
+	/** Up to limit pending operations from the head of the log, oldest first **/
+	List<PendingOperation> peekPendingOperations(int limit);
+
+	/** Pending operations with any of the given commands, oldest first **/
+	List<PendingOperation> getPendingOperations(String... commands);
+
+	void removePendingOperation(long id);
+
+	// Properties
+
+	/** Small named values that need to survive restarts (eg. the change feed cursor) **/
+	@Nullable String getProperty(String name);
+
+	void setProperty(String name, @Nullable String value);
+}
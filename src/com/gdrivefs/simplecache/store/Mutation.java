@@ -0,0 +1,400 @@
+package com.gdrivefs.simplecache.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A single write against a MetadataStore, in a form that can be written to (and read back from) the write-ahead log.
+ * Pending operation ids are those assigned by the in-memory store; apply() translates them to the ids assigned by the target.
+ *
+ * After a crash the whole log is replayed, including mutations that had already been persisted, so applying a mutation
+ * again must leave the target as it was: every mutation is a blind overwrite or delete, except appending an operation,
+ * which carries a unique log id the target uses to recognize (and not repeat) an append it has already applied.
+ */
+final class Mutation
+{
+	private static final byte PUT_FILE = 1;
+	private static final byte SET_CHILDREN_REFRESHED = 2;
+	private static final byte CLEAR_RELATIONSHIPS_REFRESHED = 3;
+	private static final byte SET_CHILD_IDS = 4;
+	private static final byte INSERT_FRAGMENT = 5;
+	private static final byte DELETE_FRAGMENTS = 6;
+	private static final byte DELETE_FRAGMENT_RANGE = 7;
+	private static final byte DELETE_FRAGMENTS_AFTER = 8;
+	private static final byte DELETE_CHUNK = 9;
+	private static final byte APPEND_OPERATION = 10;
+	private static final byte REMOVE_OPERATION = 11;
+	/** Records that an operation appended before the last checkpoint was given a different id by the target **/
+	private static final byte OPERATION_ID = 12;
+	private static final byte REMOVE_FILE = 13;
+	private static final byte SET_PARENT_IDS = 14;
+	private static final byte SET_PROPERTY = 15;
+
+	private final byte type;
+	private FileRecord file;
+	private String googleId;
+	private Date date;
+	private List<String> ids;
+	private Fragment fragment;
+	private UUID localId;
+	private long start;
+	private long end;
+	private String chunkMd5;
+	private String name;
+	private String value;
+	private PendingOperation operation;
+	private String logId;
+	private long operationId;
+	private long targetOperationId;
+
+	private Mutation(byte type)
+	{
+		this.type = type;
+	}
+
+	static Mutation putFile(FileRecord file)
+	{
+		Mutation m = new Mutation(PUT_FILE);
+		m.file = file;
+		return m;
+	}
+
+	static Mutation setChildrenRefreshed(String googleId, Date childrenRefreshed)
+	{
+		Mutation m = new Mutation(SET_CHILDREN_REFRESHED);
+		m.googleId = googleId;
+		m.date = childrenRefreshed;
+		return m;
+	}
+
+	static Mutation clearRelationshipsRefreshed(String googleId)
+	{
+		Mutation m = new Mutation(CLEAR_RELATIONSHIPS_REFRESHED);
+		m.googleId = googleId;
+		return m;
+	}
+
+	static Mutation setChildIds(String parentGoogleId, List<String> childGoogleIds)
+	{
+		Mutation m = new Mutation(SET_CHILD_IDS);
+		m.googleId = parentGoogleId;
+		m.ids = new ArrayList<String>(childGoogleIds);
+		return m;
+	}
+
+	static Mutation removeFile(String googleId)
+	{
+		Mutation m = new Mutation(REMOVE_FILE);
+		m.googleId = googleId;
+		return m;
+	}
+
+	static Mutation setParentIds(String childGoogleId, List<String> parentGoogleIds)
+	{
+		Mutation m = new Mutation(SET_PARENT_IDS);
+		m.googleId = childGoogleId;
+		m.ids = new ArrayList<String>(parentGoogleIds);
+		return m;
+	}
+
+	static Mutation setProperty(String name, String value)
+	{
+		Mutation m = new Mutation(SET_PROPERTY);
+		m.name = name;
+		m.value = value;
+		return m;
+	}
+
+	static Mutation insertFragment(Fragment fragment)
+	{
+		Mutation m = new Mutation(INSERT_FRAGMENT);
+		m.fragment = fragment;
+		return m;
+	}
+
+	static Mutation deleteFragments(UUID localId)
+	{
+		Mutation m = new Mutation(DELETE_FRAGMENTS);
+		m.localId = localId;
+		return m;
+	}
+
+	static Mutation deleteFragments(UUID localId, long start, long end)
+	{
+		Mutation m = new Mutation(DELETE_FRAGMENT_RANGE);
+		m.localId = localId;
+		m.start = start;
+		m.end = end;
+		return m;
+	}
+
+	static Mutation deleteFragmentsStartingAtOrAfter(UUID localId, long offset)
+	{
+		Mutation m = new Mutation(DELETE_FRAGMENTS_AFTER);
+		m.localId = localId;
+		m.start = offset;
+		return m;
+	}
+
+	static Mutation deleteFragmentsWithChunk(String chunkMd5)
+	{
+		Mutation m = new Mutation(DELETE_CHUNK);
+		m.chunkMd5 = chunkMd5;
+		return m;
+	}
+
+	static Mutation appendPendingOperation(PendingOperation operation)
+	{
+		Mutation m = new Mutation(APPEND_OPERATION);
+		m.operation = operation;
+		m.logId = UUID.randomUUID().toString();
+		return m;
+	}
+
+	static Mutation removePendingOperation(long id)
+	{
+		Mutation m = new Mutation(REMOVE_OPERATION);
+		m.operationId = id;
+		return m;
+	}
+
+	static Mutation operationId(long id, long targetId)
+	{
+		Mutation m = new Mutation(OPERATION_ID);
+		m.operationId = id;
+		m.targetOperationId = targetId;
+		return m;
+	}
+
+	/** True if losing this mutation in a crash would lose user data (rather than cached state that can be fetched again) **/
+	boolean isDurable()
+	{
+		return type == APPEND_OPERATION || type == REMOVE_OPERATION;
+	}
+
+	/**
+	 * Applies the mutation to the target store.
+	 * @param operationIds maps ids of pending operations (as assigned by the in-memory store) to the ids the target assigned them; updated as operations are appended and removed.
+	 */
+	void apply(DerbyMetadataStore target, Map<Long, Long> operationIds)
+	{
+		switch(type)
+		{
+			case PUT_FILE: target.putFile(file); break;
+			case SET_CHILDREN_REFRESHED: target.setChildrenRefreshed(googleId, date); break;
+			case CLEAR_RELATIONSHIPS_REFRESHED: target.clearRelationshipsRefreshed(googleId); break;
+			case SET_CHILD_IDS: target.setChildIds(googleId, ids); break;
+			case REMOVE_FILE: target.removeFile(googleId); break;
+			case SET_PARENT_IDS: target.setParentIds(googleId, ids); break;
+			case SET_PROPERTY: target.setProperty(name, value); break;
+			case INSERT_FRAGMENT: target.insertFragment(fragment); break;
+			case DELETE_FRAGMENTS: target.deleteFragments(localId); break;
+			case DELETE_FRAGMENT_RANGE: target.deleteFragments(localId, start, end); break;
+			case DELETE_FRAGMENTS_AFTER: target.deleteFragmentsStartingAtOrAfter(localId, start); break;
+			case DELETE_CHUNK: target.deleteFragmentsWithChunk(chunkMd5); break;
+			case APPEND_OPERATION:
+				long targetId = target.appendPendingOperation(logId, operation.getCommand(), operation.getDetails());
+				if(targetId != operation.getId()) operationIds.put(operation.getId(), targetId);
+				break;
+			case REMOVE_OPERATION:
+				Long mapped = operationIds.remove(operationId);
+				target.removePendingOperation(mapped != null ? mapped : operationId);
+				break;
+			case OPERATION_ID: operationIds.put(operationId, targetOperationId); break;
+			default: throw new Error("Unknown mutation type: "+type);
+		}
+	}
+
+	void write(DataOutputStream out) throws IOException
+	{
+		out.writeByte(type);
+		switch(type)
+		{
+			case PUT_FILE:
+				writeString(out, file.getGoogleId());
+				writeString(out, file.getLocalId().toString());
+				writeString(out, file.getTitle());
+				writeString(out, file.getMimeType());
+				writeString(out, file.getMd5());
+				writeLong(out, file.getSize());
+				writeDate(out, file.getModifiedTime());
+				writeString(out, file.getDownloadUrl());
+				writeDate(out, file.getMetadataRefreshed());
+				writeDate(out, file.getChildrenRefreshed());
+				writeDate(out, file.getParentsRefreshed());
+				break;
+			case SET_CHILDREN_REFRESHED:
+				writeString(out, googleId);
+				writeDate(out, date);
+				break;
+			case CLEAR_RELATIONSHIPS_REFRESHED:
+				writeString(out, googleId);
+				break;
+			case SET_CHILD_IDS:
+			case SET_PARENT_IDS:
+				writeString(out, googleId);
+				out.writeInt(ids.size());
+				for(String id : ids) writeString(out, id);
+				break;
+			case REMOVE_FILE:
+				writeString(out, googleId);
+				break;
+			case SET_PROPERTY:
+				writeString(out, name);
+				writeString(out, value);
+				break;
+			case INSERT_FRAGMENT:
+				writeString(out, fragment.getLocalId().toString());
+				writeString(out, fragment.getFileMd5());
+				writeString(out, fragment.getChunkMd5());
+				out.writeLong(fragment.getStartByte());
+				out.writeLong(fragment.getEndByte());
+				break;
+			case DELETE_FRAGMENTS:
+				writeString(out, localId.toString());
+				break;
+			case DELETE_FRAGMENT_RANGE:
+				writeString(out, localId.toString());
+				out.writeLong(start);
+				out.writeLong(end);
+				break;
+			case DELETE_FRAGMENTS_AFTER:
+				writeString(out, localId.toString());
+				out.writeLong(start);
+				break;
+			case DELETE_CHUNK:
+				writeString(out, chunkMd5);
+				break;
+			case APPEND_OPERATION:
+				out.writeLong(operation.getId());
+				writeString(out, operation.getCommand());
+				String[] details = operation.getDetails();
+				out.writeInt(details.length);
+				for(String detail : details) writeString(out, detail);
+				writeString(out, logId);
+				break;
+			case REMOVE_OPERATION:
+				out.writeLong(operationId);
+				break;
+			case OPERATION_ID:
+				out.writeLong(operationId);
+				out.writeLong(targetOperationId);
+				break;
+			default: throw new Error("Unknown mutation type: "+type);
+		}
+	}
+
+	static Mutation read(DataInputStream in) throws IOException
+	{
+		Mutation m = new Mutation(in.readByte());
+		switch(m.type)
+		{
+			case PUT_FILE:
+				m.file = new FileRecord(readString(in), UUID.fromString(readString(in)), readString(in), readString(in),
+						readString(in), readLong(in), readDate(in), readString(in), readDate(in), readDate(in), readDate(in));
+				break;
+			case SET_CHILDREN_REFRESHED:
+				m.googleId = readString(in);
+				m.date = readDate(in);
+				break;
+			case CLEAR_RELATIONSHIPS_REFRESHED:
+				m.googleId = readString(in);
+				break;
+			case SET_CHILD_IDS:
+			case SET_PARENT_IDS:
+				m.googleId = readString(in);
+				int count = in.readInt();
+				m.ids = new ArrayList<String>(count);
+				for(int i = 0; i < count; i++) m.ids.add(readString(in));
+				break;
+			case REMOVE_FILE:
+				m.googleId = readString(in);
+				break;
+			case SET_PROPERTY:
+				m.name = readString(in);
+				m.value = readString(in);
+				break;
+			case INSERT_FRAGMENT:
+				m.fragment = new Fragment(UUID.fromString(readString(in)), readString(in), readString(in), in.readLong(), in.readLong());
+				break;
+			case DELETE_FRAGMENTS:
+				m.localId = UUID.fromString(readString(in));
+				break;
+			case DELETE_FRAGMENT_RANGE:
+				m.localId = UUID.fromString(readString(in));
+				m.start = in.readLong();
+				m.end = in.readLong();
+				break;
+			case DELETE_FRAGMENTS_AFTER:
+				m.localId = UUID.fromString(readString(in));
+				m.start = in.readLong();
+				break;
+			case DELETE_CHUNK:
+				m.chunkMd5 = readString(in);
+				break;
+			case APPEND_OPERATION:
+				long id = in.readLong();
+				String command = readString(in);
+				String[] details = new String[in.readInt()];
+				for(int i = 0; i < details.length; i++) details[i] = readString(in);
+				m.operation = new PendingOperation(id, command, details);
+				m.logId = readString(in);
+				break;
+			case REMOVE_OPERATION:
+				m.operationId = in.readLong();
+				break;
+			case OPERATION_ID:
+				m.operationId = in.readLong();
+				m.targetOperationId = in.readLong();
+				break;
+			default: throw new IOException("Unknown mutation type: "+m.type);
+		}
+		return m;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		out.writeBoolean(value != null);
+		if(value == null) return;
+		// writeUTF is limited to 64k, and download urls are stored as CLOBs
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		if(!in.readBoolean()) return null;
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void writeLong(DataOutputStream out, Long value) throws IOException
+	{
+		out.writeBoolean(value != null);
+		if(value != null) out.writeLong(value);
+	}
+
+	private static Long readLong(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readLong() : null;
+	}
+
+	private static void writeDate(DataOutputStream out, Date value) throws IOException
+	{
+		writeLong(out, value != null ? value.getTime() : null);
+	}
+
+	private static Date readDate(DataInputStream in) throws IOException
+	{
+		Long time = readLong(in);
+		return time != null ? new Date(time) : null;
+	}
+}
@@ -0,0 +1,42 @@
+package com.gdrivefs.simplecache.store;
+
+import java.util.Arrays;
+
+/**
+ * An operation that has logically happened on the local model but may not yet have been played on Google's servers.
+ * See the UPDATELOG table for details of how these are replayed.
+ */
+public final class PendingOperation
+{
+	private final long id;
+	private final String command;
+	private final String[] details;
+
+	public PendingOperation(long id, String command, String... details)
+	{
+		this.id = id;
+		this.command = command;
+		this.details = details;
+	}
+
+	public long getId()
+	{
+		return id;
+	}
+
+	public String getCommand()
+	{
+		return command;
+	}
+
+	public String[] getDetails()
+	{
+		return details.clone();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PendingOperation("+id+", "+command+", "+Arrays.toString(details)+")";
+	}
+}
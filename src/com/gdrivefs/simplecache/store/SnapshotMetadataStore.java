@@ -0,0 +1,495 @@
+package com.gdrivefs.simplecache.store;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gdrivefs.simplecache.internal.Histogram;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.StripedCounter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the hot part of the directory tree (file records, children and parents lists) of another store in a bounded in-memory cache,
+ * and persists that cache as a TreeSnapshot every gdrivefs.snapshot.seconds (default 300) and on close.  On the next start, lookups are
+ * answered from the memory-mapped snapshot until the entry is written, so the first listing after a restart doesn't go to the database
+ * row by row.  Everything else (fragments, pending operations, properties) passes straight through.
+ *
+ * The snapshot is only trusted if it is exactly the store's state: it carries a random token that is recorded in the store once it has
+ * been written, and the first tree mutation after that clears the token (before the mutation reaches the store), so a snapshot that is
+ * older than the store (eg. after a crash) is ignored.  Anything else that writes to the store must call discardSnapshot first.
+ */
+public class SnapshotMetadataStore implements MetadataStore
+{
+	private static final Logger logger = LoggerFactory.getLogger(SnapshotMetadataStore.class);
+	/** Token of the snapshot that matches the store, if any **/
+	static final String SNAPSHOT_PROPERTY = "snapshot";
+	private static final int MAX_FILES = Integer.getInteger("gdrivefs.snapshot.maxFiles", 100000);
+	private static final long INTERVAL_SECONDS = Long.getLong("gdrivefs.snapshot.seconds", 300);
+
+	private static final StripedCounter cacheHits = Metrics.get().counter("metadata.cache.hits");
+	private static final StripedCounter cacheMisses = Metrics.get().counter("metadata.cache.misses");
+	private static final StripedCounter snapshotHits = Metrics.get().counter("metadata.snapshot.hits");
+	private static final Histogram snapshotWrites = Metrics.get().histogram("metadata.snapshot.write");
+
+	private final MetadataStore delegate;
+	private final java.io.File path;
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("metadata-snapshot").setDaemon(true).build());
+
+	private final Cache<String, FileRecord> files = CacheBuilder.newBuilder().maximumSize(MAX_FILES).build();
+	private final Cache<String, List<String>> children = CacheBuilder.newBuilder().maximumSize(MAX_FILES).build();
+	private final Cache<String, List<String>> parents = CacheBuilder.newBuilder().maximumSize(MAX_FILES).build();
+
+	/** The snapshot loaded at startup, or null if there wasn't a usable one **/
+	private final TreeSnapshot snapshot;
+	/** Ids whose entries in the loaded snapshot have been superseded by writes **/
+	private final Set<String> superseded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** Incremented by every tree mutation; a lookup only caches what it read if no mutation ran meanwhile **/
+	private final AtomicLong version = new AtomicLong();
+	/** Tree mutations hold the read lock; it's write-locked to order them against recording a snapshot's token **/
+	private final ReentrantReadWriteLock mutationLock = new ReentrantReadWriteLock();
+	/** True while the store's state matches the last snapshot taken (or the one being taken) **/
+	private final AtomicBoolean clean = new AtomicBoolean(false);
+	/** Lookups that have added to the cache since the last snapshot was taken **/
+	private final AtomicLong loads = new AtomicLong();
+
+	public SnapshotMetadataStore(MetadataStore delegate, java.io.File path)
+	{
+		this.delegate = delegate;
+		this.path = path;
+		this.snapshot = load(delegate, path);
+		if(snapshot != null) clean.set(true);
+
+		writer.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if(!clean.get() || loads.get() > 0) writeSnapshot();
+				}
+				catch(Exception e)
+				{
+					logger.warn("Could not write metadata snapshot "+SnapshotMetadataStore.this.path, e);
+				}
+			}
+		}, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private static TreeSnapshot load(MetadataStore store, java.io.File path)
+	{
+		if(!path.exists()) return null;
+		long started = System.nanoTime();
+		try
+		{
+			TreeSnapshot snapshot = TreeSnapshot.open(path);
+			if(!snapshot.getToken().equals(store.getProperty(SNAPSHOT_PROPERTY)))
+			{
+				logger.info("Ignoring metadata snapshot {}, the store has changed since it was taken", path);
+				return null;
+			}
+			logger.info("Loaded metadata snapshot of {} files from {} in {}ms", snapshot.getFileCount(), path, TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-started));
+			return snapshot;
+		}
+		catch(IOException e)
+		{
+			logger.warn("Ignoring unreadable metadata snapshot "+path, e);
+			return null;
+		}
+	}
+
+	/** Marks any snapshot of the store as out of date, for when the store is about to be written to without this wrapper **/
+	public static void discardSnapshot(MetadataStore store)
+	{
+		if(store.getProperty(SNAPSHOT_PROPERTY) != null) store.setProperty(SNAPSHOT_PROPERTY, null);
+	}
+
+	/** Writes the cached tree (and whatever of the loaded snapshot is still current) to the snapshot file **/
+	public synchronized void writeSnapshot() throws IOException
+	{
+		long started = System.nanoTime();
+		String token = UUID.randomUUID().toString();
+
+		mutationLock.writeLock().lock();
+		try
+		{
+			clean.set(true);
+			loads.set(0);
+		}
+		finally
+		{
+			mutationLock.writeLock().unlock();
+		}
+
+		// Any mutation from here on clears clean, so a snapshot that races with one is never recorded as current
+		Map<String, FileRecord> fileSnapshot = new LinkedHashMap<String, FileRecord>(files.asMap());
+		Map<String, List<String>> childSnapshot = new LinkedHashMap<String, List<String>>(children.asMap());
+		Map<String, List<String>> parentSnapshot = new LinkedHashMap<String, List<String>>(parents.asMap());
+		if(snapshot != null)
+		{
+			for(String id : snapshot.getFileIds())
+			{
+				if(fileSnapshot.size() >= MAX_FILES) break;
+				if(!fileSnapshot.containsKey(id) && !superseded.contains(id)) fileSnapshot.put(id, snapshot.getFile(id));
+			}
+			for(String id : snapshot.getParentsWithChildren())
+				if(childSnapshot.size() < MAX_FILES && !childSnapshot.containsKey(id) && !superseded.contains(id)) childSnapshot.put(id, snapshot.getChildIds(id));
+			for(String id : snapshot.getChildrenWithParents())
+				if(parentSnapshot.size() < MAX_FILES && !parentSnapshot.containsKey(id) && !superseded.contains(id)) parentSnapshot.put(id, snapshot.getParentIds(id));
+		}
+		TreeSnapshot.write(path, token, fileSnapshot, childSnapshot, parentSnapshot);
+
+		mutationLock.writeLock().lock();
+		try
+		{
+			if(clean.get()) delegate.setProperty(SNAPSHOT_PROPERTY, token);
+		}
+		finally
+		{
+			mutationLock.writeLock().unlock();
+		}
+		snapshotWrites.recordSince(started);
+		logger.debug("Wrote metadata snapshot of {} files to {}", fileSnapshot.size(), path);
+	}
+
+	// Tree mutations
+
+	/** Called holding the read lock before a tree mutation reaches the delegate **/
+	private void beginMutation()
+	{
+		mutationLock.readLock().lock();
+		if(clean.getAndSet(false)) delegate.setProperty(SNAPSHOT_PROPERTY, null);
+	}
+
+	/** Called after the mutation reached the delegate; forgets everything it may have changed **/
+	private void endMutation(Set<String> fileIds, Set<String> childLists, Set<String> parentLists)
+	{
+		try
+		{
+			if(snapshot != null)
+			{
+				superseded.addAll(fileIds);
+				superseded.addAll(childLists);
+				superseded.addAll(parentLists);
+			}
+			version.incrementAndGet();
+			files.invalidateAll(fileIds);
+			children.invalidateAll(childLists);
+			parents.invalidateAll(parentLists);
+		}
+		finally
+		{
+			mutationLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void putFile(FileRecord file)
+	{
+		beginMutation();
+		delegate.putFile(file);
+		endMutation(Collections.singleton(file.getGoogleId()), Collections.<String>emptySet(), Collections.<String>emptySet());
+	}
+
+	@Override
+	public void putFiles(List<FileRecord> records, Map<String, List<String>> parentIds)
+	{
+		Set<String> fileIds = new LinkedHashSet<String>();
+		for(FileRecord file : records) fileIds.add(file.getGoogleId());
+		Set<String> childLists = new LinkedHashSet<String>();
+		for(Map.Entry<String, List<String>> entry : parentIds.entrySet())
+		{
+			childLists.addAll(getParentIds(entry.getKey()));
+			childLists.addAll(entry.getValue());
+		}
+
+		beginMutation();
+		delegate.putFiles(records, parentIds);
+		endMutation(fileIds, childLists, parentIds.keySet());
+	}
+
+	@Override
+	public void setChildrenRefreshed(String googleId, Date childrenRefreshed)
+	{
+		beginMutation();
+		delegate.setChildrenRefreshed(googleId, childrenRefreshed);
+		endMutation(Collections.singleton(googleId), Collections.<String>emptySet(), Collections.<String>emptySet());
+	}
+
+	@Override
+	public void clearRelationshipsRefreshed(String googleId)
+	{
+		beginMutation();
+		delegate.clearRelationshipsRefreshed(googleId);
+		endMutation(Collections.singleton(googleId), Collections.<String>emptySet(), Collections.<String>emptySet());
+	}
+
+	@Override
+	public void removeFile(String googleId)
+	{
+		Set<String> childLists = new LinkedHashSet<String>(getParentIds(googleId));
+		childLists.add(googleId);
+		Set<String> parentLists = new LinkedHashSet<String>(getChildIds(googleId));
+		parentLists.add(googleId);
+
+		beginMutation();
+		delegate.removeFile(googleId);
+		endMutation(Collections.singleton(googleId), childLists, parentLists);
+	}
+
+	@Override
+	public void setChildIds(String parentGoogleId, List<String> childGoogleIds)
+	{
+		Set<String> parentLists = new LinkedHashSet<String>(getChildIds(parentGoogleId));
+		parentLists.addAll(childGoogleIds);
+
+		beginMutation();
+		delegate.setChildIds(parentGoogleId, childGoogleIds);
+		endMutation(Collections.<String>emptySet(), Collections.singleton(parentGoogleId), parentLists);
+	}
+
+	@Override
+	public void setParentIds(String childGoogleId, List<String> parentGoogleIds)
+	{
+		Set<String> childLists = new LinkedHashSet<String>(getParentIds(childGoogleId));
+		childLists.addAll(parentGoogleIds);
+
+		beginMutation();
+		delegate.setParentIds(childGoogleId, parentGoogleIds);
+		endMutation(Collections.<String>emptySet(), childLists, Collections.singleton(childGoogleId));
+	}
+
+	// Tree lookups
+
+	@Override
+	public FileRecord getFile(String googleId)
+	{
+		if(googleId == null) return delegate.getFile(googleId);
+		FileRecord file = files.getIfPresent(googleId);
+		if(file != null)
+		{
+			cacheHits.increment();
+			return file;
+		}
+
+		long seen = version.get();
+		if(snapshot != null && !superseded.contains(googleId)) file = snapshot.getFile(googleId);
+		if(file != null) snapshotHits.increment();
+		else
+		{
+			cacheMisses.increment();
+			file = delegate.getFile(googleId);
+		}
+		if(file != null && version.get() == seen)
+		{
+			files.put(googleId, file);
+			loads.incrementAndGet();
+		}
+		return file;
+	}
+
+	@Override
+	public boolean hasFile(String googleId)
+	{
+		return getFile(googleId) != null;
+	}
+
+	@Override
+	public UUID getLocalId(String googleId)
+	{
+		FileRecord file = getFile(googleId);
+		return file != null ? file.getLocalId() : null;
+	}
+
+	@Override
+	public List<String> getChildIds(String parentGoogleId)
+	{
+		if(parentGoogleId == null) return delegate.getChildIds(parentGoogleId);
+		List<String> ids = children.getIfPresent(parentGoogleId);
+		if(ids != null)
+		{
+			cacheHits.increment();
+			return ids;
+		}
+
+		long seen = version.get();
+		if(snapshot != null && !superseded.contains(parentGoogleId)) ids = snapshot.getChildIds(parentGoogleId);
+		if(ids != null) snapshotHits.increment();
+		else
+		{
+			cacheMisses.increment();
+			ids = ImmutableList.copyOf(delegate.getChildIds(parentGoogleId));
+		}
+		if(version.get() == seen)
+		{
+			children.put(parentGoogleId, ids);
+			loads.incrementAndGet();
+		}
+		return ids;
+	}
+
+	@Override
+	public List<String> getParentIds(String childGoogleId)
+	{
+		if(childGoogleId == null) return delegate.getParentIds(childGoogleId);
+		List<String> ids = parents.getIfPresent(childGoogleId);
+		if(ids != null)
+		{
+			cacheHits.increment();
+			return ids;
+		}
+
+		long seen = version.get();
+		if(snapshot != null && !superseded.contains(childGoogleId)) ids = snapshot.getParentIds(childGoogleId);
+		if(ids != null) snapshotHits.increment();
+		else
+		{
+			cacheMisses.increment();
+			ids = ImmutableList.copyOf(delegate.getParentIds(childGoogleId));
+		}
+		if(version.get() == seen)
+		{
+			parents.put(childGoogleId, ids);
+			loads.incrementAndGet();
+		}
+		return ids;
+	}
+
+	@Override
+	public String getGoogleId(UUID localId)
+	{
+		return delegate.getGoogleId(localId);
+	}
+
+	@Override
+	public List<String> getGoogleIdsWithMimeType(String mimeType)
+	{
+		return delegate.getGoogleIdsWithMimeType(mimeType);
+	}
+
+	// Fragments
+
+	@Override
+	public List<Fragment> getFragments(UUID localId)
+	{
+		return delegate.getFragments(localId);
+	}
+
+	@Override
+	public List<Fragment> getFragments(UUID localId, long start, long end)
+	{
+		return delegate.getFragments(localId, start, end);
+	}
+
+	@Override
+	public void insertFragment(Fragment fragment)
+	{
+		delegate.insertFragment(fragment);
+	}
+
+	@Override
+	public void deleteFragments(UUID localId)
+	{
+		delegate.deleteFragments(localId);
+	}
+
+	@Override
+	public void deleteFragments(UUID localId, long start, long end)
+	{
+		delegate.deleteFragments(localId, start, end);
+	}
+
+	@Override
+	public void deleteFragmentsStartingAtOrAfter(UUID localId, long offset)
+	{
+		delegate.deleteFragmentsStartingAtOrAfter(localId, offset);
+	}
+
+	@Override
+	public void deleteFragmentsWithChunk(String chunkMd5)
+	{
+		delegate.deleteFragmentsWithChunk(chunkMd5);
+	}
+
+	// Pending operations
+
+	@Override
+	public long appendPendingOperation(String command, String... details)
+	{
+		return delegate.appendPendingOperation(command, details);
+	}
+
+	@Override
+	public PendingOperation peekPendingOperation()
+	{
+		return delegate.peekPendingOperation();
+	}
+
+	@Override
+	public List<PendingOperation> peekPendingOperations(int limit)
+	{
+		return delegate.peekPendingOperations(limit);
+	}
+
+	@Override
+	public List<PendingOperation> getPendingOperations(String... commands)
+	{
+		return delegate.getPendingOperations(commands);
+	}
+
+	@Override
+	public void removePendingOperation(long id)
+	{
+		delegate.removePendingOperation(id);
+	}
+
+	// Properties
+
+	@Override
+	public String getProperty(String name)
+	{
+		return delegate.getProperty(name);
+	}
+
+	@Override
+	public void setProperty(String name, String value)
+	{
+		delegate.setProperty(name, value);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		writer.shutdownNow();
+		try
+		{
+			writeSnapshot();
+		}
+		catch(IOException e)
+		{
+			logger.warn("Could not write metadata snapshot "+path, e);
+		}
+		delegate.close();
+	}
+}
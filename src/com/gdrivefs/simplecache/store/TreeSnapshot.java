@@ -0,0 +1,276 @@
+package com.gdrivefs.simplecache.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Read-only, memory-mapped copy of part of the directory tree: file records, and children and parents lists, keyed by google id.
+ *
+ * The file is [magic][version][token][crc32 of the rest][three sections], where each section is [count] followed by that many
+ * [key][body length][body] entries, so opening only decodes keys; bodies are decoded from the mapping when they are looked up.
+ * The token ties the snapshot to the state of the store it was taken from (see SnapshotMetadataStore).
+ */
+final class TreeSnapshot
+{
+	private static final int MAGIC = 0x67647473; // "gdts"
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String token;
+	private final ByteBuffer buffer;
+	private final Map<String, Integer> files;
+	private final Map<String, Integer> children;
+	private final Map<String, Integer> parents;
+
+	private TreeSnapshot(String token, ByteBuffer buffer, Map<String, Integer> files, Map<String, Integer> children, Map<String, Integer> parents)
+	{
+		this.token = token;
+		this.buffer = buffer;
+		this.files = files;
+		this.children = children;
+		this.parents = parents;
+	}
+
+	/** Maps the snapshot at the given path; throws IOException if it is missing, truncated or corrupt **/
+	static TreeSnapshot open(java.io.File path) throws IOException
+	{
+		MappedByteBuffer buffer;
+		try(RandomAccessFile file = new RandomAccessFile(path, "r"))
+		{
+			// The mapping stays valid after the channel is closed
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+
+		try
+		{
+			if(buffer.getInt() != MAGIC) throw new IOException(path+" is not a tree snapshot");
+			if(buffer.getInt() != VERSION) throw new IOException(path+" is from an unsupported version");
+			String token = readString(buffer);
+			long checksum = buffer.getLong();
+
+			CRC32 crc = new CRC32();
+			ByteBuffer rest = buffer.slice();
+			byte[] chunk = new byte[64*1024];
+			while(rest.hasRemaining())
+			{
+				int length = Math.min(chunk.length, rest.remaining());
+				rest.get(chunk, 0, length);
+				crc.update(chunk, 0, length);
+			}
+			if(crc.getValue() != checksum) throw new IOException(path+" is corrupt");
+
+			Map<String, Integer> files = index(buffer);
+			Map<String, Integer> children = index(buffer);
+			Map<String, Integer> parents = index(buffer);
+			return new TreeSnapshot(token, buffer, files, children, parents);
+		}
+		catch(BufferUnderflowException e)
+		{
+			throw new IOException(path+" is truncated", e);
+		}
+	}
+
+	/** Writes a snapshot of the given records and relationships to the path, replacing any existing snapshot atomically **/
+	static void write(java.io.File path, String token, Map<String, FileRecord> files, Map<String, List<String>> children, Map<String, List<String>> parents) throws IOException
+	{
+		java.io.File temp = new java.io.File(path.getPath()+".tmp");
+		try(FileOutputStream stream = new FileOutputStream(temp))
+		{
+			DataOutputStream header = new DataOutputStream(stream);
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			writeString(header, token);
+			header.writeLong(0); // Filled in once the rest has been written
+			header.flush();
+			long checksumOffset = stream.getChannel().position()-8;
+
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(stream, 64*1024), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+
+			out.writeInt(files.size());
+			for(FileRecord file : files.values())
+			{
+				writeString(out, file.getGoogleId());
+				java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream(128);
+				writeRecord(new DataOutputStream(bytes), file);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+			writeLists(out, children);
+			writeLists(out, parents);
+			out.flush();
+
+			ByteBuffer checksum = ByteBuffer.allocate(8);
+			checksum.putLong(checked.getChecksum().getValue());
+			checksum.flip();
+			stream.getChannel().write(checksum, checksumOffset);
+			stream.getChannel().force(false);
+		}
+		if(!temp.renameTo(path)) throw new IOException("Could not replace "+path);
+	}
+
+	String getToken()
+	{
+		return token;
+	}
+
+	int getFileCount()
+	{
+		return files.size();
+	}
+
+	@Nullable FileRecord getFile(String googleId)
+	{
+		Integer offset = files.get(googleId);
+		if(offset == null) return null;
+		ByteBuffer in = buffer.duplicate();
+		in.position(offset);
+		return new FileRecord(googleId, new UUID(in.getLong(), in.getLong()), readString(in), readString(in),
+				readString(in), readLong(in), readDate(in), readString(in), readDate(in), readDate(in), readDate(in));
+	}
+
+	@Nullable List<String> getChildIds(String parentGoogleId)
+	{
+		return readList(children.get(parentGoogleId));
+	}
+
+	@Nullable List<String> getParentIds(String childGoogleId)
+	{
+		return readList(parents.get(childGoogleId));
+	}
+
+	/** Every id with a file record in the snapshot **/
+	Iterable<String> getFileIds()
+	{
+		return Collections.unmodifiableSet(files.keySet());
+	}
+
+	Iterable<String> getParentsWithChildren()
+	{
+		return Collections.unmodifiableSet(children.keySet());
+	}
+
+	Iterable<String> getChildrenWithParents()
+	{
+		return Collections.unmodifiableSet(parents.keySet());
+	}
+
+	private List<String> readList(Integer offset)
+	{
+		if(offset == null) return null;
+		ByteBuffer in = buffer.duplicate();
+		in.position(offset);
+		int count = in.getInt();
+		List<String> ids = new ArrayList<String>(count);
+		for(int i = 0; i < count; i++) ids.add(readString(in));
+		return Collections.unmodifiableList(ids);
+	}
+
+	/** Reads a section's keys, leaving the buffer after the section; values are the offsets of the bodies **/
+	private static Map<String, Integer> index(ByteBuffer in) throws IOException
+	{
+		int count = in.getInt();
+		if(count < 0) throw new IOException("Corrupt section count: "+count);
+		Map<String, Integer> offsets = new HashMap<String, Integer>(count*4/3+1);
+		for(int i = 0; i < count; i++)
+		{
+			String key = readString(in);
+			int length = in.getInt();
+			offsets.put(key, in.position());
+			in.position(in.position()+length);
+		}
+		return offsets;
+	}
+
+	private static void writeLists(DataOutputStream out, Map<String, List<String>> lists) throws IOException
+	{
+		out.writeInt(lists.size());
+		for(Map.Entry<String, List<String>> entry : lists.entrySet())
+		{
+			writeString(out, entry.getKey());
+			java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream(16+entry.getValue().size()*48);
+			DataOutputStream body = new DataOutputStream(bytes);
+			body.writeInt(entry.getValue().size());
+			for(String id : entry.getValue()) writeString(body, id);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, FileRecord file) throws IOException
+	{
+		out.writeLong(file.getLocalId().getMostSignificantBits());
+		out.writeLong(file.getLocalId().getLeastSignificantBits());
+		writeString(out, file.getTitle());
+		writeString(out, file.getMimeType());
+		writeString(out, file.getMd5());
+		writeLong(out, file.getSize());
+		writeDate(out, file.getModifiedTime());
+		writeString(out, file.getDownloadUrl());
+		writeDate(out, file.getMetadataRefreshed());
+		writeDate(out, file.getChildrenRefreshed());
+		writeDate(out, file.getParentsRefreshed());
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		if(value == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in)
+	{
+		int length = in.getInt();
+		if(length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeLong(DataOutputStream out, Long value) throws IOException
+	{
+		out.writeBoolean(value != null);
+		if(value != null) out.writeLong(value);
+	}
+
+	private static Long readLong(ByteBuffer in)
+	{
+		return in.get() != 0 ? in.getLong() : null;
+	}
+
+	private static void writeDate(DataOutputStream out, Date value) throws IOException
+	{
+		writeLong(out, value != null ? value.getTime() : null);
+	}
+
+	private static Date readDate(ByteBuffer in)
+	{
+		Long time = readLong(in);
+		return time != null ? new Date(time) : null;
+	}
+}
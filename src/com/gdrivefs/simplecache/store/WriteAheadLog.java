@@ -0,0 +1,118 @@
+package com.gdrivefs.simplecache.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of mutations that have been applied in memory but may not yet have reached the backing store.
+ * Each record is framed as [length][crc32][payload]; a torn record at the tail (eg. from a crash mid-append) ends the log.
+ */
+final class WriteAheadLog implements Closeable
+{
+	private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+	private final java.io.File path;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	WriteAheadLog(java.io.File path) throws IOException
+	{
+		this.path = path;
+		this.file = new RandomAccessFile(path, "rw");
+		this.channel = file.getChannel();
+		channel.position(channel.size());
+	}
+
+	/** Reads every intact record in the log **/
+	synchronized List<Mutation> read() throws IOException
+	{
+		List<Mutation> mutations = new ArrayList<Mutation>();
+		DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(new java.io.FileInputStream(path)));
+		try
+		{
+			while(true)
+			{
+				byte[] payload;
+				long checksum;
+				try
+				{
+					int length = in.readInt();
+					checksum = in.readLong();
+					if(length < 0) break;
+					payload = new byte[length];
+					in.readFully(payload);
+				}
+				catch(EOFException e)
+				{
+					break;
+				}
+
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if(crc.getValue() != checksum)
+				{
+					logger.warn("Ignoring corrupt tail of write-ahead log {}", path);
+					break;
+				}
+				mutations.add(Mutation.read(new DataInputStream(new ByteArrayInputStream(payload))));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return mutations;
+	}
+
+	/** Appends the mutation, forcing it to disk first if the mutation is durable **/
+	synchronized void append(Mutation mutation) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		mutation.write(new DataOutputStream(bytes));
+		byte[] payload = bytes.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(12+payload.length);
+		record.putInt(payload.length);
+		record.putLong(crc.getValue());
+		record.put(payload);
+		record.flip();
+		while(record.hasRemaining()) channel.write(record);
+
+		if(mutation.isDurable()) channel.force(false);
+	}
+
+	/** Discards every record in the log **/
+	synchronized void truncate() throws IOException
+	{
+		channel.truncate(0);
+		channel.position(0);
+		channel.force(false);
+	}
+
+	synchronized long size() throws IOException
+	{
+		return channel.size();
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		file.close();
+	}
+}
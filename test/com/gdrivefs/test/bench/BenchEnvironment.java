@@ -0,0 +1,72 @@
+package com.gdrivefs.test.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+
+import com.gdrivefs.simplecache.Drive;
+import com.gdrivefs.simplecache.store.DerbyMetadataStore;
+import com.gdrivefs.simplecache.store.MemoryMetadataStore;
+import com.gdrivefs.test.util.FakeDriveServer;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+/**
+ * A cache backed by an in-memory metadata store, talking to a FakeDriveServer rather than Google, so benchmarks need no account or network.
+ */
+public class BenchEnvironment implements Closeable
+{
+	final java.io.File dir = new java.io.File(System.getProperty("java.io.tmpdir"), "gdrivefs-bench-"+UUID.randomUUID());
+	final FakeDriveServer server;
+	final MemoryMetadataStore store;
+	final Drive drive;
+
+	public BenchEnvironment() throws Exception
+	{
+		this(new FakeDriveServer());
+	}
+
+	public BenchEnvironment(FakeDriveServer server) throws Exception
+	{
+		dir.mkdirs();
+		this.server = server;
+		store = new MemoryMetadataStore(DerbyMetadataStore.open(DerbyMetadataStore.MEMORY_URL_PREFIX+dir.getName()), new java.io.File(dir, "db.wal"));
+		NetHttpTransport transport = new NetHttpTransport();
+		drive = new Drive(server.newRemote(transport), transport, store);
+	}
+
+	public FakeDriveServer getServer()
+	{
+		return server;
+	}
+
+	public MemoryMetadataStore getStore()
+	{
+		return store;
+	}
+
+	public Drive getDrive()
+	{
+		return drive;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			drive.flush(true);
+			drive.close();
+		}
+		catch(InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+		finally
+		{
+			server.close();
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+}
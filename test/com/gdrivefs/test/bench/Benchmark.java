@@ -0,0 +1,31 @@
+package com.gdrivefs.test.bench;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A single operation to be timed by BenchmarkRunner, once for every combination of its parameters.
+ * setUp and tearDown are not timed; run is called repeatedly in between.
+ */
+public abstract class Benchmark
+{
+	/** Parameter names to the values each should take (all combinations are run) **/
+	public Map<String, int[]> getParameters()
+	{
+		return Collections.emptyMap();
+	}
+
+	public String getName()
+	{
+		return getClass().getSimpleName().replaceFirst("Benchmark$", "");
+	}
+
+	public abstract void setUp(Map<String, Integer> parameters) throws Exception;
+
+	/** Performs the operation being measured, once **/
+	public abstract void run() throws Exception;
+
+	public void tearDown() throws Exception
+	{
+	}
+}
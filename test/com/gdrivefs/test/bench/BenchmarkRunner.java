@@ -0,0 +1,226 @@
+package com.gdrivefs.test.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * Runs the simplecache benchmarks and appends the results, keyed by commit, to a CSV file so they can be compared across commits.
+ *
+ * Each benchmark is run for every combination of its parameters: some warmup iterations, then some measured ones, each calling the
+ * operation repeatedly for a fixed time.  If a baseline commit is given, any result more than the tolerance slower than that commit's
+ * is reported as a regression and the runner exits with status 1.
+ *
+ * Settings are system properties: bench.filter (regex on benchmark names), bench.warmup, bench.iterations, bench.millis (per iteration),
+ * bench.results (CSV file), bench.commit (defaults to the git HEAD), bench.baseline (a commit in the results file), bench.tolerance.
+ */
+public class BenchmarkRunner
+{
+	static final String HEADER = "commit,date,benchmark,parameters,ns_per_op,error_ns,operations";
+
+	public static List<Benchmark> all()
+	{
+		return Arrays.<Benchmark>asList(
+				new FileBenchmarks.Read(),
+				new FileBenchmarks.Write(),
+				new FileBenchmarks.StoreFragment(),
+				new FileBenchmarks.ConcurrentRead(),
+				new PathResolutionBenchmark(),
+				new LogReplayBenchmark(),
+				new PendingOperationBenchmark(),
+				new ConnectionPoolBenchmark());
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Pattern filter = Pattern.compile(System.getProperty("bench.filter", ".*"));
+		int warmup = Integer.getInteger("bench.warmup", 3);
+		int iterations = Integer.getInteger("bench.iterations", 5);
+		long millis = Long.getLong("bench.millis", 1000);
+		java.io.File results = new java.io.File(System.getProperty("bench.results", "bench-results.csv"));
+		String commit = System.getProperty("bench.commit", currentCommit());
+		String baseline = System.getProperty("bench.baseline");
+		double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.2"));
+
+		Map<String, Double> baselines = baseline == null ? new HashMap<String, Double>() : readResults(results, baseline);
+		if(baseline != null && baselines.isEmpty()) System.out.println("No results for baseline "+baseline+" in "+results);
+
+		// The cache is chatty on stdout, which would otherwise be part of what we measure
+		PrintStream report = silenceStdout();
+
+		List<String> rows = new ArrayList<String>();
+		List<String> regressions = new ArrayList<String>();
+		try
+		{
+			for(Benchmark benchmark : all())
+			{
+				if(!filter.matcher(benchmark.getName()).find()) continue;
+				for(Map<String, Integer> parameters : combinations(benchmark.getParameters()))
+				{
+					String key = benchmark.getName()+","+format(parameters);
+					Result result = measure(benchmark, parameters, warmup, iterations, millis);
+					report.println(String.format("%-60s %14.1f ns/op  +- %.1f", key.replace(',', ' '), result.nanosPerOp, result.error));
+					rows.add(commit+","+new Date().getTime()+","+key+","+String.format("%.1f,%.1f,%d", result.nanosPerOp, result.error, result.operations));
+
+					Double previous = baselines.get(key);
+					if(previous != null && result.nanosPerOp > previous*(1+tolerance))
+						regressions.add(String.format("%s: %.1f ns/op, was %.1f at %s", key.replace(',', ' '), result.nanosPerOp, previous, baseline));
+				}
+			}
+		}
+		finally
+		{
+			System.setOut(report);
+		}
+
+		if(!results.exists()) rows.add(0, HEADER);
+		FileUtils.writeLines(results, "UTF-8", rows, true);
+
+		for(String regression : regressions) System.out.println("REGRESSION "+regression);
+		System.exit(regressions.isEmpty() ? 0 : 1);
+	}
+
+	/** Discards anything written to System.out until it is restored to the returned stream **/
+	static PrintStream silenceStdout()
+	{
+		PrintStream previous = System.out;
+		System.setOut(new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		}));
+		return previous;
+	}
+
+	static Result measure(Benchmark benchmark, Map<String, Integer> parameters, int warmup, int iterations, long millis) throws Exception
+	{
+		benchmark.setUp(parameters);
+		try
+		{
+			for(int i = 0; i < warmup; i++) iterate(benchmark, millis);
+
+			Result result = new Result();
+			double[] samples = new double[iterations];
+			for(int i = 0; i < iterations; i++)
+			{
+				long[] timing = iterate(benchmark, millis);
+				samples[i] = timing[1]/(double)timing[0];
+				result.operations += timing[0];
+			}
+
+			for(double sample : samples) result.nanosPerOp += sample/iterations;
+			double variance = 0;
+			for(double sample : samples) variance += (sample-result.nanosPerOp)*(sample-result.nanosPerOp)/Math.max(1, iterations-1);
+			result.error = Math.sqrt(variance);
+			return result;
+		}
+		finally
+		{
+			benchmark.tearDown();
+		}
+	}
+
+	/** Calls the operation until the time is up, returning the number of calls and the nanoseconds they took **/
+	static long[] iterate(Benchmark benchmark, long millis) throws Exception
+	{
+		long operations = 0;
+		long start = System.nanoTime();
+		long end = start+millis*1000000;
+		long now;
+		do
+		{
+			benchmark.run();
+			operations++;
+			now = System.nanoTime();
+		}
+		while(now < end);
+		return new long[]{operations, now-start};
+	}
+
+	static List<Map<String, Integer>> combinations(Map<String, int[]> parameters)
+	{
+		List<Map<String, Integer>> combinations = new ArrayList<Map<String, Integer>>();
+		combinations.add(new LinkedHashMap<String, Integer>());
+		for(Map.Entry<String, int[]> parameter : parameters.entrySet())
+		{
+			List<Map<String, Integer>> extended = new ArrayList<Map<String, Integer>>();
+			for(Map<String, Integer> combination : combinations)
+				for(int value : parameter.getValue())
+				{
+					Map<String, Integer> copy = new LinkedHashMap<String, Integer>(combination);
+					copy.put(parameter.getKey(), value);
+					extended.add(copy);
+				}
+			combinations = extended;
+		}
+		return combinations;
+	}
+
+	static String format(Map<String, Integer> parameters)
+	{
+		return Joiner.on(';').withKeyValueSeparator("=").join(parameters);
+	}
+
+	/** Benchmark and parameters to nanoseconds per operation, for the latest run of the given commit **/
+	static Map<String, Double> readResults(java.io.File results, String commit) throws IOException
+	{
+		Map<String, Double> found = new HashMap<String, Double>();
+		if(!results.exists()) return found;
+		for(String line : FileUtils.readLines(results, "UTF-8"))
+		{
+			String[] columns = line.split(",");
+			if(columns.length < 5 || !columns[0].equals(commit)) continue;
+			found.put(columns[2]+","+columns[3], Double.parseDouble(columns[4]));
+		}
+		return found;
+	}
+
+	static String currentCommit()
+	{
+		try
+		{
+			Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").start();
+			InputStream out = git.getInputStream();
+			String commit = IOUtils.toString(out, Charsets.UTF_8).trim();
+			if(git.waitFor() == 0 && !commit.isEmpty()) return commit;
+		}
+		catch(IOException e)
+		{
+			// Not in a git checkout
+		}
+		catch(InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+		return "unknown";
+	}
+
+	static class Result
+	{
+		double nanosPerOp;
+		double error;
+		long operations;
+	}
+}
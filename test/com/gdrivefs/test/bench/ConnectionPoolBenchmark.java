@@ -0,0 +1,123 @@
+package com.gdrivefs.test.bench;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.derby.jdbc.EmbeddedDriver;
+
+import com.gdrivefs.simplecache.internal.ConnectionPool;
+
+/**
+ * One lookup of a file row by id on each of the given number of threads, against embedded Derby, either through ConnectionPool (pooled=1)
+ * or on a single connection shared under a lock (pooled=0, which is how every lookup used to be served).
+ */
+public class ConnectionPoolBenchmark extends Benchmark
+{
+	static final int ROWS = 10000;
+	static final String LOOKUP = "SELECT LOCALID FROM FILES WHERE ID=?";
+
+	java.io.File dir;
+	ConnectionPool pool;
+	Connection shared;
+	ExecutorService workers;
+	int threads;
+	boolean pooled;
+	int next = 0;
+
+	@Override
+	public Map<String, int[]> getParameters()
+	{
+		Map<String, int[]> parameters = new LinkedHashMap<String, int[]>();
+		parameters.put("threads", new int[]{1, 2, 4, 8});
+		parameters.put("pooled", new int[]{0, 1});
+		return parameters;
+	}
+
+	@Override
+	public void setUp(Map<String, Integer> parameters) throws SQLException
+	{
+		threads = parameters.get("threads");
+		pooled = parameters.get("pooled") != 0;
+		dir = new java.io.File(System.getProperty("java.io.tmpdir"), "gdrivefs-bench-"+UUID.randomUUID());
+		pool = new ConnectionPool(EmbeddedDriver.class.getCanonicalName(), "jdbc:derby:"+dir.getAbsolutePath()+";create=true", "APP", "APP", 16);
+
+		shared = pool.getConnection();
+		Statement statement = shared.createStatement();
+		statement.execute("CREATE TABLE FILES(ID VARCHAR(255), LOCALID CHAR(36) NOT NULL, TITLE VARCHAR(255) NOT NULL)");
+		statement.execute("CREATE UNIQUE INDEX FILE_ID ON FILES(ID)");
+		statement.close();
+		PreparedStatement insert = shared.prepareStatement("INSERT INTO FILES(ID, LOCALID, TITLE) VALUES(?,?,?)");
+		for(int i = 0; i < ROWS; i++)
+		{
+			insert.setString(1, "id"+i);
+			insert.setString(2, UUID.randomUUID().toString());
+			insert.setString(3, "title"+i);
+			insert.addBatch();
+		}
+		insert.executeBatch();
+		insert.close();
+
+		workers = Executors.newFixedThreadPool(threads);
+	}
+
+	@Override
+	public void run() throws Exception
+	{
+		List<Future<String>> lookups = new ArrayList<Future<String>>();
+		for(int t = 0; t < threads; t++)
+		{
+			final String id = "id"+(next++ % ROWS);
+			lookups.add(workers.submit(new Callable<String>()
+			{
+				@Override
+				public String call() throws SQLException
+				{
+					return pooled ? pool.queryFirst(LOOKUP, ConnectionPool.STRING, id) : lookupShared(id);
+				}
+			}));
+		}
+		for(Future<String> lookup : lookups)
+			if(lookup.get() == null) throw new Error("Missing row");
+	}
+
+	private String lookupShared(String id) throws SQLException
+	{
+		synchronized(shared)
+		{
+			PreparedStatement statement = shared.prepareStatement(LOOKUP);
+			try
+			{
+				statement.setString(1, id);
+				ResultSet result = statement.executeQuery();
+				return result.next() ? result.getString(1) : null;
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+	}
+
+	@Override
+	public void tearDown() throws IOException, SQLException
+	{
+		workers.shutdown();
+		shared.close();
+		pool.close();
+		FileUtils.deleteQuietly(dir);
+	}
+}
@@ -0,0 +1,202 @@
+package com.gdrivefs.test.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.gdrivefs.simplecache.File;
+import com.gdrivefs.test.util.FakeDriveServer;
+
+/**
+ * Reads and writes of a file's content through the cache.
+ */
+public class FileBenchmarks
+{
+	/** Cached reads of a whole file of the given size **/
+	public static class Read extends Benchmark
+	{
+		BenchEnvironment environment;
+		File file;
+		int size;
+
+		@Override
+		public Map<String, int[]> getParameters()
+		{
+			return Collections.singletonMap("size", new int[]{4<<10, 1<<20});
+		}
+
+		@Override
+		public void setUp(Map<String, Integer> parameters) throws Exception
+		{
+			size = parameters.get("size");
+			byte[] content = new byte[size];
+			new Random(42).nextBytes(content);
+
+			environment = new BenchEnvironment();
+			environment.getServer().addFile(FakeDriveServer.ROOT_ID, "read.bin", content);
+			file = environment.getDrive().getRoot().getChildren("read.bin").get(0);
+			file.read(size, 0); // pull it into the cache
+		}
+
+		@Override
+		public void run() throws Exception
+		{
+			file.read(size, 0);
+		}
+
+		@Override
+		public void tearDown() throws Exception
+		{
+			environment.close();
+		}
+	}
+
+	/** Writes of the given size, cycling over the first sixteen such blocks of a new file **/
+	public static class Write extends Benchmark
+	{
+		BenchEnvironment environment;
+		File file;
+		byte[] block;
+		int next = 0;
+
+		@Override
+		public Map<String, int[]> getParameters()
+		{
+			return Collections.singletonMap("size", new int[]{4<<10, 64<<10});
+		}
+
+		@Override
+		public void setUp(Map<String, Integer> parameters) throws Exception
+		{
+			block = new byte[parameters.get("size")];
+			new Random(42).nextBytes(block);
+
+			environment = new BenchEnvironment();
+			file = environment.getDrive().getRoot().createFile("write.bin");
+		}
+
+		@Override
+		public void run() throws Exception
+		{
+			file.write(block, (next++ % 16)*(long)block.length);
+		}
+
+		@Override
+		public void tearDown() throws Exception
+		{
+			environment.close();
+		}
+	}
+
+	/**
+	 * Small writes into a file already holding the given number of separate fragments, each write replacing one of them.
+	 * Goes through File.write, so the difference from Write is the cost of FileContent.storeFragment finding and merging overlaps.
+	 */
+	public static class StoreFragment extends Benchmark
+	{
+		static final int FRAGMENT = 1<<10;
+
+		BenchEnvironment environment;
+		File file;
+		byte[] fragment = new byte[FRAGMENT];
+		int fragments;
+		int next = 0;
+
+		@Override
+		public Map<String, int[]> getParameters()
+		{
+			return Collections.singletonMap("fragments", new int[]{1, 16, 256});
+		}
+
+		@Override
+		public void setUp(Map<String, Integer> parameters) throws Exception
+		{
+			fragments = parameters.get("fragments");
+			new Random(42).nextBytes(fragment);
+
+			environment = new BenchEnvironment();
+			file = environment.getDrive().getRoot().createFile("fragments.bin");
+			// Leave a gap after each fragment so they aren't merged together
+			for(int i = 0; i < fragments; i++) file.write(fragment, i*2L*FRAGMENT);
+		}
+
+		@Override
+		public void run() throws Exception
+		{
+			file.write(fragment, (next++ % fragments)*2L*FRAGMENT);
+		}
+
+		@Override
+		public void tearDown() throws Exception
+		{
+			environment.close();
+		}
+	}
+
+	/**
+	 * One cached read of a 64 KiB file by each of the given number of threads, each reading its own file.  If reads of different files
+	 * don't contend, the time per operation stays flat as threads are added (up to the number of cores).
+	 */
+	public static class ConcurrentRead extends Benchmark
+	{
+		static final int SIZE = 64<<10;
+
+		BenchEnvironment environment;
+		final List<File> files = new ArrayList<File>();
+		ExecutorService readers;
+
+		@Override
+		public Map<String, int[]> getParameters()
+		{
+			return Collections.singletonMap("threads", new int[]{1, 2, 4, 8});
+		}
+
+		@Override
+		public void setUp(Map<String, Integer> parameters) throws Exception
+		{
+			int threads = parameters.get("threads");
+			byte[] content = new byte[SIZE];
+			new Random(42).nextBytes(content);
+
+			environment = new BenchEnvironment();
+			files.clear();
+			for(int i = 0; i < threads; i++) environment.getServer().addFile(FakeDriveServer.ROOT_ID, "read"+i+".bin", content);
+			for(int i = 0; i < threads; i++)
+			{
+				File file = environment.getDrive().getRoot().getChildren("read"+i+".bin").get(0);
+				file.read(SIZE, 0); // pull it into the cache
+				files.add(file);
+			}
+			readers = Executors.newFixedThreadPool(threads);
+		}
+
+		@Override
+		public void run() throws Exception
+		{
+			List<Future<byte[]>> reads = new ArrayList<Future<byte[]>>();
+			for(final File file : files)
+				reads.add(readers.submit(new Callable<byte[]>()
+				{
+					@Override
+					public byte[] call() throws Exception
+					{
+						return file.read(SIZE, 0);
+					}
+				}));
+			for(Future<byte[]> read : reads) read.get();
+		}
+
+		@Override
+		public void tearDown() throws Exception
+		{
+			readers.shutdown();
+			environment.close();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.gdrivefs.test.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.gdrivefs.simplecache.File;
+import com.gdrivefs.simplecache.SimpleFileMetadata;
+import com.gdrivefs.test.util.FakeDriveServer;
+
+/**
+ * Replays the pending operation log onto a file's metadata, with the given number of operations pending (half of them for the file,
+ * half for some other file).  The operations are added straight to the store, so the log player never sees them.
+ */
+public class LogReplayBenchmark extends Benchmark
+{
+	BenchEnvironment environment;
+	File file;
+	List<Long> added = new ArrayList<Long>();
+
+	@Override
+	public Map<String, int[]> getParameters()
+	{
+		return Collections.singletonMap("operations", new int[]{10, 1000});
+	}
+
+	@Override
+	public void setUp(Map<String, Integer> parameters) throws Exception
+	{
+		environment = new BenchEnvironment();
+		environment.getServer().addFile(FakeDriveServer.ROOT_ID, "replay.bin", new byte[0]);
+		file = environment.getDrive().getRoot().getChildren("replay.bin").get(0);
+
+		String other = UUID.randomUUID().toString();
+		String chunkMd5 = DigestUtils.md5Hex(new byte[1<<10]);
+		for(int i = 0; i < parameters.get("operations"); i++)
+		{
+			String id = i % 2 == 0 ? file.getLocalId().toString() : other;
+			added.add(environment.getStore().appendPendingOperation("write", id, Long.toString(i*1024L), "1024", chunkMd5, "null"));
+		}
+	}
+
+	@Override
+	public void run() throws Exception
+	{
+		new SimpleFileMetadata().playLogOnMetadata(file);
+	}
+
+	@Override
+	public void tearDown() throws Exception
+	{
+		for(long id : added) environment.getStore().removePendingOperation(id);
+		added.clear();
+		environment.close();
+	}
+}
@@ -0,0 +1,57 @@
+package com.gdrivefs.test.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.gdrivefs.simplecache.File;
+import com.gdrivefs.test.util.FakeDriveServer;
+
+/**
+ * Resolves a path, one getChildren(title) lookup per element, through nested directories of the given depth that each hold the
+ * given number of entries.  The directories are listed once beforehand, so this measures lookups served from the cache.
+ */
+public class PathResolutionBenchmark extends Benchmark
+{
+	BenchEnvironment environment;
+	int depth;
+
+	@Override
+	public Map<String, int[]> getParameters()
+	{
+		Map<String, int[]> parameters = new LinkedHashMap<String, int[]>();
+		parameters.put("depth", new int[]{4});
+		parameters.put("width", new int[]{10, 1000});
+		return parameters;
+	}
+
+	@Override
+	public void setUp(Map<String, Integer> parameters) throws Exception
+	{
+		depth = parameters.get("depth");
+		int width = parameters.get("width");
+
+		environment = new BenchEnvironment();
+		FakeDriveServer server = environment.getServer();
+		String parent = FakeDriveServer.ROOT_ID;
+		for(int level = 0; level < depth; level++)
+		{
+			for(int i = 1; i < width; i++) server.addFile(parent, "file-"+i, new byte[0]);
+			parent = server.addFolder(parent, "directory");
+		}
+		run();
+	}
+
+	@Override
+	public void run() throws Exception
+	{
+		File current = environment.getDrive().getRoot();
+		for(int level = 0; level < depth; level++)
+			current = current.getChildren("directory").get(0);
+	}
+
+	@Override
+	public void tearDown() throws Exception
+	{
+		environment.close();
+	}
+}
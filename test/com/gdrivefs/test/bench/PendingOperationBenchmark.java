@@ -0,0 +1,54 @@
+package com.gdrivefs.test.bench;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+import com.gdrivefs.simplecache.store.DerbyMetadataStore;
+import com.gdrivefs.simplecache.store.MemoryMetadataStore;
+
+/**
+ * Appends to the pending operation log of an in-memory metadata store (including its write-ahead log), with the given number of
+ * operations already pending.  Stands alone rather than under a Drive, so nothing plays the operations.
+ */
+public class PendingOperationBenchmark extends Benchmark
+{
+	java.io.File dir;
+	MemoryMetadataStore store;
+	String localId = UUID.randomUUID().toString();
+	String chunkMd5 = DigestUtils.md5Hex(new byte[1<<10]);
+	long offset = 0;
+
+	@Override
+	public Map<String, int[]> getParameters()
+	{
+		return Collections.singletonMap("pending", new int[]{0, 10000});
+	}
+
+	@Override
+	public void setUp(Map<String, Integer> parameters) throws IOException
+	{
+		dir = new java.io.File(System.getProperty("java.io.tmpdir"), "gdrivefs-bench-"+UUID.randomUUID());
+		dir.mkdirs();
+		store = new MemoryMetadataStore(DerbyMetadataStore.open(DerbyMetadataStore.MEMORY_URL_PREFIX+dir.getName()), new java.io.File(dir, "db.wal"));
+		for(int i = 0; i < parameters.get("pending"); i++) run();
+	}
+
+	@Override
+	public void run()
+	{
+		store.appendPendingOperation("write", localId, Long.toString(offset), "1024", chunkMd5, "null");
+		offset += 1024;
+	}
+
+	@Override
+	public void tearDown() throws IOException
+	{
+		store.close();
+		FileUtils.deleteQuietly(dir);
+	}
+}
@@ -0,0 +1,320 @@
+package com.gdrivefs.test.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import net.fusejna.DirectoryFiller;
+import net.fusejna.StructFuseFileInfo;
+import net.fusejna.StructFuseFileInfo.FileInfoWrapper;
+import net.fusejna.types.TypeMode.ModeWrapper;
+
+import com.gdrivefs.GoogleDriveLinuxFs;
+import com.gdrivefs.RecordingLinuxFs;
+import com.gdrivefs.internal.ControlNamespace;
+import com.gdrivefs.internal.WorkloadTrace;
+import com.gdrivefs.internal.WorkloadTrace.Call;
+import com.gdrivefs.internal.WorkloadTrace.Op;
+import com.gdrivefs.simplecache.internal.Histogram;
+import com.gdrivefs.test.util.FakeDriveServer;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+/**
+ * Replays a workload trace (recorded with MountGoogleDrive -r, see RecordingLinuxFs) against a cache backed by a FakeDriveServer, and
+ * reports the latency of each operation as recorded and as replayed, so changes to the cache can be compared on real workloads.
+ *
+ * Whatever the workload found already in place is created on the fake first; file contents are deterministic noise, as long as the
+ * workload's reads suggest.  Calls are replayed one at a time in the order they started, so replays are repeatable (concurrency in the
+ * original workload is not reproduced).  With replay.pace=original each call waits for its original start time; by default they run
+ * back to back.  The fake can be slowed down with the gdrivefs.fake.* properties (see FakeDriveServer.fromSystemProperties).
+ *
+ * Usage: WorkloadReplayer <trace>
+ */
+public class WorkloadReplayer
+{
+	private static final long FILE_MODE = 0100644;
+	private static final long DIRECTORY_MODE = 040755;
+
+	private final GoogleDriveLinuxFs filesystem;
+	/** Recorded handle to the open file it now stands for **/
+	private final Map<Long, FileInfoWrapper> handles = new HashMap<Long, FileInfoWrapper>();
+	private final Map<Op, Histogram> recorded = new EnumMap<Op, Histogram>(Op.class);
+	private final Map<Op, Histogram> replayed = new EnumMap<Op, Histogram>(Op.class);
+	private final List<String> mismatches = new ArrayList<String>();
+	private int skipped = 0;
+	private long elapsedNanos = 0;
+
+	public WorkloadReplayer(GoogleDriveLinuxFs filesystem)
+	{
+		this.filesystem = filesystem;
+		for(Op op : Op.values())
+		{
+			recorded.put(op, new Histogram());
+			replayed.put(op, new Histogram());
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length != 1)
+		{
+			System.err.println("Usage: WorkloadReplayer <trace>");
+			System.exit(2);
+		}
+		boolean originalPace = "original".equals(System.getProperty("replay.pace", "fast"));
+		List<Call> calls = load(new java.io.File(args[0]));
+
+		// The cache is chatty on stdout; keep it out of the report
+		PrintStream report = BenchmarkRunner.silenceStdout();
+		WorkloadReplayer replayer;
+		BenchEnvironment environment = new BenchEnvironment(FakeDriveServer.fromSystemProperties());
+		try
+		{
+			populate(environment.getServer(), calls);
+			replayer = new WorkloadReplayer(new GoogleDriveLinuxFs(environment.getDrive(), new NetHttpTransport()));
+			replayer.replay(calls, originalPace);
+		}
+		finally
+		{
+			environment.close();
+			System.setOut(report);
+		}
+		System.out.print(replayer.report());
+		System.exit(0);
+	}
+
+	/** Every call in the trace, in the order they started **/
+	public static List<Call> load(java.io.File trace) throws IOException
+	{
+		List<Call> calls = new ArrayList<Call>();
+		WorkloadTrace.Reader reader = new WorkloadTrace.Reader(trace);
+		try
+		{
+			for(Call call = reader.next(); call != null; call = reader.next()) calls.add(call);
+		}
+		finally
+		{
+			reader.close();
+		}
+		Collections.sort(calls, new Comparator<Call>()
+		{
+			@Override
+			public int compare(Call a, Call b)
+			{
+				return Long.compare(a.startMicros, b.startMicros);
+			}
+		});
+		return calls;
+	}
+
+	/** Creates, on the server, the files and directories the workload used without having created them itself **/
+	public static void populate(FakeDriveServer server, List<Call> calls)
+	{
+		Set<String> created = new HashSet<String>();
+		Map<String, Boolean> directories = new TreeMap<String, Boolean>();
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		for(Call call : calls)
+		{
+			if(call.result < 0) continue;
+			if((call.op == Op.CREATE || call.op == Op.MKDIR) && !within(call.path, created)) created.add(call.path);
+			if(call.op == Op.RENAME) created.add(call.newPath);
+			if(within(call.path, created) || isControl(call.path)) continue;
+
+			boolean directory = call.op == Op.READDIR || call.op == Op.RMDIR || (call.op == Op.GETATTR && call.size < 0);
+			if(!directories.containsKey(call.path) || directory) directories.put(call.path, directory);
+			if(call.op == Op.READ)
+			{
+				Long size = sizes.get(call.path);
+				sizes.put(call.path, Math.max(size == null ? 0 : size, call.offset+call.result));
+			}
+		}
+
+		// Parents first (the map is sorted by path), and every parent is a directory
+		Map<String, String> ids = new HashMap<String, String>();
+		ids.put("", FakeDriveServer.ROOT_ID);
+		for(String path : new ArrayList<String>(directories.keySet()))
+			for(String parent = parentOf(path); !parent.isEmpty(); parent = parentOf(parent)) directories.put(parent, true);
+		for(Map.Entry<String, Boolean> entry : directories.entrySet())
+		{
+			String path = entry.getKey();
+			if(path.equals("/")) continue;
+			String parentId = ids.get(parentOf(path));
+			String title = path.substring(path.lastIndexOf('/')+1);
+			if(entry.getValue())
+			{
+				ids.put(path, server.addFolder(parentId, title));
+			}
+			else
+			{
+				Long size = sizes.get(path);
+				byte[] content = new byte[size == null ? 0 : (int)(long)size];
+				new Random(path.hashCode()).nextBytes(content);
+				server.addFile(parentId, title, content);
+			}
+		}
+	}
+
+	public void replay(List<Call> calls, boolean originalPace) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		for(Call call : calls)
+		{
+			if(originalPace)
+			{
+				long wait = TimeUnit.MICROSECONDS.toNanos(call.startMicros)-(System.nanoTime()-start);
+				if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+			}
+
+			long started = System.nanoTime();
+			Integer result;
+			try
+			{
+				result = perform(call);
+			}
+			catch(RuntimeException e)
+			{
+				result = RecordingLinuxFs.THREW;
+			}
+			if(result == null)
+			{
+				skipped++;
+				continue;
+			}
+			replayed.get(call.op).recordSince(started);
+			recorded.get(call.op).record(TimeUnit.MICROSECONDS.toNanos(call.elapsedMicros));
+			if((result < 0) != (call.result < 0)) mismatches.add(call+" (replayed: "+result+")");
+		}
+		elapsedNanos = System.nanoTime()-start;
+	}
+
+	/** Replays one call, returning its result, or null if it can't be replayed (its file handle wasn't opened) **/
+	private Integer perform(Call call)
+	{
+		FileInfoWrapper info = handles.get(call.handle);
+		switch(call.op)
+		{
+			case GETATTR: return filesystem.getattr(call.path, null);
+			case READDIR: return filesystem.readdir(call.path, DISCARD);
+			case MKDIR: return filesystem.mkdir(call.path, new ModeWrapper(DIRECTORY_MODE));
+			case RMDIR: return filesystem.rmdir(call.path);
+			case UNLINK: return filesystem.unlink(call.path);
+			case RENAME: return filesystem.rename(call.path, call.newPath);
+			case TRUNCATE: return filesystem.truncate(call.path, call.offset);
+			case OPEN:
+			case CREATE:
+				info = newFileInfo(call.path, call.flags);
+				int result = call.op == Op.OPEN ? filesystem.open(call.path, info) : filesystem.create(call.path, new ModeWrapper(FILE_MODE), info);
+				if(result == 0) handles.put(call.handle, info);
+				return result;
+			default:
+		}
+
+		// Everything else is done through an open file (a read may also be made without one)
+		if(info == null && !(call.op == Op.READ && call.handle == 0)) return null;
+		if(info == null) info = newFileInfo(call.path, 0);
+		switch(call.op)
+		{
+			case READ: return filesystem.read(call.path, ByteBuffer.allocate((int)call.size), call.size, call.offset, info);
+			case WRITE:
+				byte[] bytes = new byte[(int)call.size];
+				new Random(call.startMicros).nextBytes(bytes);
+				return filesystem.write(call.path, ByteBuffer.wrap(bytes), call.size, call.offset, info);
+			case FTRUNCATE: return filesystem.ftruncate(call.path, call.offset, info);
+			case FLUSH: return filesystem.flush(call.path, info);
+			case FSYNC: return filesystem.fsync(call.path, call.flags, info);
+			case RELEASE:
+				handles.remove(call.handle);
+				return filesystem.release(call.path, info);
+			default: throw new Error("Unexpected operation "+call.op);
+		}
+	}
+
+	public List<String> getMismatches()
+	{
+		return mismatches;
+	}
+
+	public int getSkipped()
+	{
+		return skipped;
+	}
+
+	/** Latency of each operation, recorded and replayed (in microseconds), and any calls whose outcome differed **/
+	public String report()
+	{
+		StringBuilder out = new StringBuilder(String.format("%-10s %8s  %10s %10s %10s  %10s %10s %10s%n", "operation", "count",
+				"rec p50us", "rec p99us", "rec maxus", "p50us", "p99us", "maxus"));
+		for(Op op : Op.values())
+		{
+			Histogram before = recorded.get(op);
+			Histogram after = replayed.get(op);
+			if(after.getCount() == 0) continue;
+			out.append(String.format("%-10s %8d  %10d %10d %10d  %10d %10d %10d%n", op.name().toLowerCase(), after.getCount(),
+					before.getPercentile(0.5, TimeUnit.MICROSECONDS), before.getPercentile(0.99, TimeUnit.MICROSECONDS), before.getMax(TimeUnit.MICROSECONDS),
+					after.getPercentile(0.5, TimeUnit.MICROSECONDS), after.getPercentile(0.99, TimeUnit.MICROSECONDS), after.getMax(TimeUnit.MICROSECONDS)));
+		}
+		out.append(String.format("Replayed in %dms; %d calls skipped, %d with a different outcome%n", TimeUnit.NANOSECONDS.toMillis(elapsedNanos), skipped, mismatches.size()));
+		for(String mismatch : mismatches.subList(0, Math.min(mismatches.size(), 20))) out.append("  ").append(mismatch).append('\n');
+		return out.toString();
+	}
+
+	private static final DirectoryFiller DISCARD = new DirectoryFiller()
+	{
+		@Override
+		public boolean add(Iterable<String> names)
+		{
+			return true;
+		}
+
+		@Override
+		public boolean add(String... names)
+		{
+			return true;
+		}
+	};
+
+	/** FileInfoWrapper has no public constructor, since FUSE always provides one; its struct can be made without FUSE, though **/
+	private static FileInfoWrapper newFileInfo(String path, int flags)
+	{
+		try
+		{
+			Constructor<FileInfoWrapper> constructor = FileInfoWrapper.class.getDeclaredConstructor(String.class, StructFuseFileInfo.class);
+			constructor.setAccessible(true);
+			return constructor.newInstance(path, new StructFuseFileInfo()).flags(flags);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static boolean within(String path, Set<String> roots)
+	{
+		for(String candidate = path; !candidate.isEmpty(); candidate = parentOf(candidate))
+			if(roots.contains(candidate)) return true;
+		return false;
+	}
+
+	private static boolean isControl(String path)
+	{
+		return path.equals(ControlNamespace.DIRECTORY) || path.startsWith(ControlNamespace.DIRECTORY+"/");
+	}
+
+	private static String parentOf(String path)
+	{
+		return path.substring(0, Math.max(0, path.lastIndexOf('/')));
+	}
+}
@@ -0,0 +1,150 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.derby.jdbc.EmbeddedDriver;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.internal.ConnectionPool;
+
+public class ConnectionPoolTests
+{
+	private static final int ROWS = 100;
+	private static final int MAX_READERS = 4;
+
+	static java.io.File dbdir;
+	static ConnectionPool pool;
+
+	@BeforeClass
+	public static void createDatabase() throws SQLException
+	{
+		dbdir = new java.io.File(System.getProperty("java.io.tmpdir"), "gdrivefs-pool-"+UUID.randomUUID());
+		String url = "jdbc:derby:"+dbdir.getAbsolutePath()+";create=true";
+		pool = new ConnectionPool(EmbeddedDriver.class.getCanonicalName(), url, "APP", "APP", MAX_READERS);
+
+		Connection connection = pool.getConnection();
+		try
+		{
+			Statement statement = connection.createStatement();
+			statement.execute("CREATE TABLE FILES(ID VARCHAR(255), LOCALID CHAR(36) NOT NULL, TITLE VARCHAR(255) NOT NULL)");
+			statement.execute("CREATE UNIQUE INDEX FILE_ID ON FILES(ID)");
+			statement.close();
+
+			PreparedStatement insert = connection.prepareStatement("INSERT INTO FILES(ID, LOCALID, TITLE) VALUES(?,?,?)");
+			for(int i = 0; i < ROWS; i++)
+			{
+				insert.setString(1, "id"+i);
+				insert.setString(2, UUID.randomUUID().toString());
+				insert.setString(3, "title"+i);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	@AfterClass
+	public static void deleteDatabase() throws IOException
+	{
+		pool.close();
+		org.apache.commons.io.FileUtils.deleteQuietly(dbdir);
+	}
+
+	/** A background refresh holds its rows locked until it commits; lookups of those rows must not wait for it **/
+	@Test
+	public void testLookupFinishesWhileWriteTransactionIsOpen() throws Exception
+	{
+		Connection writer = pool.getConnection();
+		try
+		{
+			writer.setAutoCommit(false);
+			PreparedStatement update = writer.prepareStatement("UPDATE FILES SET TITLE=? WHERE ID=?");
+			update.setString(1, "refreshed");
+			update.setString(2, "id0");
+			Assert.assertEquals(1, update.executeUpdate());
+
+			ExecutorService reader = Executors.newSingleThreadExecutor();
+			try
+			{
+				Future<String> title = reader.submit(new Callable<String>()
+				{
+					@Override
+					public String call()
+					{
+						return pool.queryFirst("SELECT TITLE FROM FILES WHERE ID=?", ConnectionPool.STRING, "id0");
+					}
+				});
+				Assert.assertNotNull(title.get(10, TimeUnit.SECONDS));
+			}
+			finally
+			{
+				reader.shutdown();
+			}
+			writer.rollback();
+		}
+		finally
+		{
+			writer.close();
+		}
+		Assert.assertEquals("title0", pool.queryFirst("SELECT TITLE FROM FILES WHERE ID=?", ConnectionPool.STRING, "id0"));
+	}
+
+	/** Connections go back to the pool after each lookup, so more long-lived threads than connections can all keep looking things up **/
+	@Test
+	public void testMoreThreadsThanReaders() throws Exception
+	{
+		final int threads = MAX_READERS*4;
+		final CountDownLatch started = new CountDownLatch(threads);
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for(int t = 0; t < threads; t++)
+			{
+				final int seed = t;
+				futures.add(workers.submit(new Callable<Integer>()
+				{
+					@Override
+					public Integer call()
+					{
+						// Every thread looks something up before any of them finishes
+						Assert.assertNotNull(pool.queryFirst("SELECT LOCALID FROM FILES WHERE ID=?", ConnectionPool.STRING, "id"+seed));
+						started.countDown();
+						try { started.await(); }
+						catch(InterruptedException e) { throw new RuntimeException(e); }
+
+						int found = 0;
+						for(int i = 0; i < ROWS; i++)
+							if(pool.queryFirst("SELECT LOCALID FROM FILES WHERE ID=?", ConnectionPool.STRING, "id"+i) != null) found++;
+						return found;
+					}
+				}));
+			}
+			for(Future<Integer> future : futures) Assert.assertEquals(ROWS, (int)future.get(1, TimeUnit.MINUTES));
+		}
+		finally
+		{
+			workers.shutdown();
+		}
+		Assert.assertEquals(0, pool.getActiveReaders());
+	}
+}
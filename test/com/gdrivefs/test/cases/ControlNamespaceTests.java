@@ -0,0 +1,182 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.gdrivefs.internal.ControlNamespace;
+import com.gdrivefs.internal.PathCache;
+import com.gdrivefs.simplecache.Drive;
+import com.gdrivefs.simplecache.File;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.test.util.FakeDriveServer;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+public class ControlNamespaceTests
+{
+	final List<String> performed = new ArrayList<String>();
+	boolean evictable = true;
+
+	final ControlNamespace control = new ControlNamespace(new ControlNamespace.Actions()
+	{
+		@Override
+		public void flush()
+		{
+			performed.add("flush");
+		}
+
+		@Override
+		public boolean evict(String path)
+		{
+			performed.add("evict "+path);
+			return evictable;
+		}
+
+		@Override
+		public void prefetch(String path)
+		{
+			performed.add("prefetch "+path);
+		}
+
+		@Override
+		public void pin(String path)
+		{
+			performed.add("pin "+path);
+		}
+
+		@Override
+		public void unpin(String path)
+		{
+			performed.add("unpin "+path);
+		}
+	}, new PathCache(10));
+
+	@Test
+	public void testLayout()
+	{
+		Assert.assertTrue(control.contains("/.gdrivefs"));
+		Assert.assertTrue(control.contains("/.gdrivefs/stats"));
+		Assert.assertFalse(control.contains("/.gdrivefsx"));
+		Assert.assertFalse(control.contains("/directory/.gdrivefs"));
+
+		Assert.assertTrue(control.isDirectory("/.gdrivefs"));
+		Assert.assertTrue(control.exists("/.gdrivefs/latency"));
+		Assert.assertFalse(control.exists("/.gdrivefs/missing"));
+		Assert.assertTrue(control.isWritable("/.gdrivefs/evict"));
+		Assert.assertFalse(control.isWritable("/.gdrivefs/stats"));
+		Assert.assertTrue(control.list().contains("queues"));
+	}
+
+	@Test
+	public void testReportsAreSnapshotAtOpen()
+	{
+		Metrics.get().counter("test.control").add(5);
+		control.open("/.gdrivefs/stats", 1);
+		Metrics.get().counter("test.control").add(5);
+
+		String stats = read(1);
+		Assert.assertTrue(stats, stats.contains("test.control 5\n"));
+		control.release(1);
+		Assert.assertFalse(control.isOpen(1));
+		Assert.assertTrue(control.getSize("/.gdrivefs/stats") > 0);
+	}
+
+	@Test
+	public void testLatencyReport()
+	{
+		Metrics.get().histogram("test.operation").record(2000000);
+		control.open("/.gdrivefs/latency", 2);
+		String latency = read(2);
+		Assert.assertTrue(latency, latency.startsWith("operation"));
+		Assert.assertTrue(latency, latency.matches("(?s).*\ntest\\.operation +1 .*"));
+	}
+
+	@Test
+	public void testControlFiles() throws IOException, InterruptedException
+	{
+		Assert.assertTrue(control.write("/.gdrivefs/flush", "1\n"));
+		Assert.assertTrue(control.write("/.gdrivefs/prefetch", "/a/b\n/c\n"));
+		evictable = false;
+		Assert.assertFalse(control.write("/.gdrivefs/evict", "/a/b\n"));
+		Assert.assertEquals("[flush, prefetch /a/b, prefetch /c, evict /a/b]", performed.toString());
+
+		try
+		{
+			control.write("/.gdrivefs/evict", "relative\n");
+			Assert.fail("Expected relative paths to be refused");
+		}
+		catch(IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void testEvictedContentIsDownloadedAgain() throws Exception
+	{
+		FakeDriveServer server = new FakeDriveServer();
+		NetHttpTransport transport = new NetHttpTransport();
+		Drive drive = new Drive(server.newRemote(transport), transport);
+		try
+		{
+			server.addFile(FakeDriveServer.ROOT_ID, "hello.txt", "Hello World!".getBytes());
+			File hello = drive.getRoot().getChildren("hello.txt").get(0);
+			long downloads = Metrics.get().counter("download.bytes").sum();
+
+			Assert.assertEquals("Hello World!", new String(hello.read(12, 0)));
+			Assert.assertEquals("Hello World!", new String(hello.read(12, 0)));
+			Assert.assertEquals(downloads+12, Metrics.get().counter("download.bytes").sum());
+
+			Assert.assertTrue(hello.evictContent());
+			Assert.assertEquals("Hello World!", new String(hello.read(12, 0)));
+			Assert.assertEquals(downloads+24, Metrics.get().counter("download.bytes").sum());
+			Assert.assertFalse(drive.getRoot().evictContent());
+		}
+		finally
+		{
+			drive.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testPendingChangesOnlyBlockEvictingTheirOwnFile() throws Exception
+	{
+		FakeDriveServer server = new FakeDriveServer();
+		NetHttpTransport transport = new NetHttpTransport();
+		Drive drive = new Drive(server.newRemote(transport), transport);
+		try
+		{
+			server.addFile(FakeDriveServer.ROOT_ID, "hello.txt", "Hello World!".getBytes());
+			File hello = drive.getRoot().getChildren("hello.txt").get(0);
+			Assert.assertEquals("Hello World!", new String(hello.read(12, 0)));
+
+			// Keep the new file's changes from reaching Google while we evict
+			server.setLatency(2000);
+			File draft = drive.getRoot().createFile("draft.txt");
+			draft.write("Draft".getBytes(), 0);
+			Assert.assertTrue(drive.hasPendingOperations(draft));
+			Assert.assertFalse(drive.hasPendingOperations(hello));
+
+			Assert.assertFalse(draft.evictContent());
+			Assert.assertTrue(hello.evictContent());
+			server.setLatency(0);
+		}
+		finally
+		{
+			drive.close();
+			server.close();
+		}
+	}
+
+	private String read(long handle)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(1<<16);
+		int length = control.read(handle, buffer, buffer.capacity(), 0);
+		return new String(buffer.array(), 0, length);
+	}
+}
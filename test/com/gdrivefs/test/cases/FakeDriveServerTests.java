@@ -0,0 +1,92 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.Drive;
+import com.gdrivefs.simplecache.File;
+import com.gdrivefs.test.util.FakeDriveServer;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+/**
+ * Checks the cache copes with the fake server's injected errors and quotas (no Google account required).
+ */
+public class FakeDriveServerTests
+{
+	FakeDriveServer server;
+	NetHttpTransport transport = new NetHttpTransport();
+
+	@Before
+	public void startServer() throws Exception
+	{
+		server = new FakeDriveServer();
+	}
+
+	@After
+	public void stopServer() throws IOException
+	{
+		server.close();
+	}
+
+	@Test
+	public void testInjectedErrorsAreRetried() throws IOException
+	{
+		String directory = server.addFolder(FakeDriveServer.ROOT_ID, "directory");
+		server.addFile(directory, "hello.txt", "Hello World!".getBytes());
+
+		Drive drive = new Drive(server.newRemote(transport), transport);
+		try
+		{
+			server.failNext(2, 503);
+			File hello = drive.getRoot().getChildren("directory").get(0).getChildren("hello.txt").get(0);
+			Assert.assertEquals("Hello World!", new String(hello.read((int)hello.getSize(), 0)));
+			Assert.assertEquals(2, server.getInjectedErrors());
+		}
+		finally
+		{
+			drive.close();
+		}
+	}
+
+	@Test
+	public void testRequestQuota() throws IOException
+	{
+		server.setRequestQuota(2);
+		com.google.api.services.drive.Drive remote = server.newRemote(transport);
+		remote.about().get().execute();
+		remote.about().get().execute();
+		try
+		{
+			remote.about().get().execute();
+			Assert.fail("Expected the third request in a second to be refused");
+		}
+		catch(GoogleJsonResponseException e)
+		{
+			Assert.assertEquals(403, e.getStatusCode());
+			Assert.assertEquals("userRateLimitExceeded", e.getDetails().getErrors().get(0).getReason());
+		}
+		Assert.assertEquals(1, server.getRateLimited());
+	}
+
+	@Test
+	public void testLatencyAndBandwidth() throws IOException
+	{
+		server.setLatency(200);
+		server.setBandwidth(64<<10);
+		String id = server.addFile(FakeDriveServer.ROOT_ID, "big.bin", new byte[64<<10]);
+		com.google.api.services.drive.Drive remote = server.newRemote(transport);
+
+		long start = System.currentTimeMillis();
+		GenericUrl url = new GenericUrl(remote.files().get(id).execute().getDownloadUrl());
+		Assert.assertEquals(64<<10, remote.getRequestFactory().buildGetRequest(url).execute().parseAsString().length());
+		// Two requests' latency, and a second to send the content
+		long elapsed = System.currentTimeMillis()-start;
+		Assert.assertTrue("Took "+elapsed+"ms", elapsed >= 1300);
+	}
+}
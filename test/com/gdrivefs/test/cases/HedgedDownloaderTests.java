@@ -0,0 +1,116 @@
+package com.gdrivefs.test.cases;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.internal.HedgedDownloader;
+import com.gdrivefs.simplecache.internal.HedgedDownloader.RangeBuffer;
+import com.gdrivefs.simplecache.internal.RemoteExecutor;
+import com.gdrivefs.simplecache.internal.RemoteExecutor.Pool;
+import com.gdrivefs.test.util.LatencyInjectingServer;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Exercises hedged range downloads against a local server that stalls on request (no Google account required).
+ */
+public class HedgedDownloaderTests
+{
+	static final int SIZE = 1<<16;
+
+	byte[] content = new byte[SIZE];
+	LatencyInjectingServer server;
+	RemoteExecutor executor;
+	HedgedDownloader.RangeSource source;
+
+	@Before
+	public void startServer() throws Exception
+	{
+		new Random(42).nextBytes(content);
+		server = new LatencyInjectingServer(content);
+		executor = new RemoteExecutor(1000, 1, 4, 1, 1, 1, 1);
+		source = new HedgedDownloader.RangeSource()
+		{
+			@Override
+			public ListenableFuture<?> download(final long start, final long end, final RangeBuffer into)
+			{
+				return executor.submit(Pool.DOWNLOAD, true, new Callable<Void>()
+				{
+					@Override
+					public Void call() throws IOException
+					{
+						final HttpURLConnection connection = (HttpURLConnection)new URL(server.getUrl()).openConnection();
+						connection.setRequestProperty("Range", "bytes="+start+"-"+(end-1));
+						into.readFrom(connection.getInputStream(), new Closeable()
+						{
+							@Override
+							public void close()
+							{
+								connection.disconnect();
+							}
+						});
+						return null;
+					}
+				});
+			}
+		};
+	}
+
+	@After
+	public void stopServer() throws Exception
+	{
+		executor.shutdownNow();
+		server.stop();
+	}
+
+	@Test
+	public void testFastDownloadsAreNotHedged() throws IOException
+	{
+		HedgedDownloader downloader = new HedgedDownloader(10, 0.95, 2000, 0.05, 1);
+		for(int i = 0; i < 5; i++)
+			Assert.assertArrayEquals(Arrays.copyOfRange(content, 100, 5000), downloader.download(source, 100, 5000));
+		Assert.assertEquals(5, downloader.getDownloadCount());
+		Assert.assertEquals(0, downloader.getHedgeCount());
+		Assert.assertEquals(5, server.getRanges().size());
+	}
+
+	@Test
+	public void testStalledDownloadIsHedgedForRemainingBytes() throws IOException
+	{
+		HedgedDownloader downloader = new HedgedDownloader(10, 0.95, 200, 0.05, 1);
+		server.stall(1, SIZE/4, 30000);
+
+		long start = System.currentTimeMillis();
+		Assert.assertArrayEquals(content, downloader.download(source, 0, SIZE));
+		long elapsed = System.currentTimeMillis()-start;
+
+		Assert.assertTrue("Took "+elapsed+"ms", elapsed < 10000);
+		Assert.assertEquals(1, downloader.getHedgeCount());
+		Assert.assertEquals(1, downloader.getHedgeWinCount());
+		// The hedge only asks for what the stalled request had not yet delivered
+		Assert.assertEquals(Arrays.asList("bytes=0-"+(SIZE-1), "bytes="+(SIZE/4)+"-"+(SIZE-1)), server.getRanges());
+	}
+
+	@Test
+	public void testHedgesAreLimitedByBudget() throws IOException
+	{
+		// No budget saved up, and each download earns only a tenth of a hedge
+		HedgedDownloader downloader = new HedgedDownloader(10, 0.95, 100, 0.1, 0);
+		server.stall(1, 0, 1000);
+
+		long start = System.currentTimeMillis();
+		Assert.assertArrayEquals(content, downloader.download(source, 0, SIZE));
+		Assert.assertTrue(System.currentTimeMillis()-start >= 900);
+		Assert.assertEquals(0, downloader.getHedgeCount());
+		Assert.assertEquals(1, server.getRanges().size());
+	}
+}
@@ -0,0 +1,82 @@
+package com.gdrivefs.test.cases;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.internal.LockStats;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.ProfiledLock;
+
+public class LockStatsTests
+{
+	@Test
+	public void testWaitAndHoldTimes() throws InterruptedException
+	{
+		final ProfiledLock lock = new ProfiledLock(new LockStats("test.contended"));
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread holder = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				lock.lock();
+				try
+				{
+					locked.countDown();
+					Thread.sleep(300);
+				}
+				catch(InterruptedException e)
+				{
+					throw new RuntimeException(e);
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			}
+		};
+		holder.start();
+		locked.await();
+		lock.lock();
+		lock.unlock();
+		holder.join();
+
+		Assert.assertEquals(2, Metrics.get().histogram("lock.test.contended.hold").getCount());
+		Assert.assertTrue(Metrics.get().histogram("lock.test.contended.wait").getMax(TimeUnit.MILLISECONDS) >= 100);
+		Assert.assertTrue(Metrics.get().histogram("lock.test.contended.hold").getMax(TimeUnit.MILLISECONDS) >= 300);
+		Assert.assertEquals(1, Metrics.get().counter("lock.test.contended.slowHolds").sum());
+	}
+
+	@Test
+	public void testReentrantHoldsCountOnce() throws InterruptedException
+	{
+		ProfiledLock lock = new ProfiledLock(new LockStats("test.reentrant"));
+		lock.lock();
+		Assert.assertTrue(lock.tryLock(1, TimeUnit.SECONDS));
+		lock.unlock();
+		lock.unlock();
+		Assert.assertEquals(1, Metrics.get().histogram("lock.test.reentrant.wait").getCount());
+		Assert.assertEquals(1, Metrics.get().histogram("lock.test.reentrant.hold").getCount());
+	}
+
+	@Test
+	public void testNetworkIoWhileLocked()
+	{
+		ProfiledLock lock = new ProfiledLock(new LockStats("test.io"));
+		LockStats.checkNetworkIo();
+		lock.lock();
+		try
+		{
+			LockStats.checkNetworkIo();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		LockStats.checkNetworkIo();
+		Assert.assertEquals(1, Metrics.get().counter("lock.test.io.networkIo").sum());
+	}
+}
@@ -0,0 +1,319 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.store.DerbyMetadataStore;
+import com.gdrivefs.simplecache.store.FileRecord;
+import com.gdrivefs.simplecache.store.Fragment;
+import com.gdrivefs.simplecache.store.MemoryMetadataStore;
+import com.gdrivefs.simplecache.store.MetadataStore;
+import com.gdrivefs.simplecache.store.PendingOperation;
+import com.gdrivefs.simplecache.store.SnapshotMetadataStore;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Runs the same writes against both metadata store implementations, against embedded Derby in a temp directory.
+ */
+public class MetadataStoreTests
+{
+	static final String CHUNK1 = DigestUtils.md5Hex("1");
+	static final String CHUNK2 = DigestUtils.md5Hex("2");
+	static final String CHUNK3 = DigestUtils.md5Hex("3");
+
+	java.io.File dir;
+
+	@Before
+	public void createDirectory()
+	{
+		dir = new java.io.File(System.getProperty("java.io.tmpdir"), "gdrivefs-store-"+UUID.randomUUID());
+		dir.mkdirs();
+	}
+
+	@After
+	public void deleteDirectory()
+	{
+		FileUtils.deleteQuietly(dir);
+	}
+
+	private DerbyMetadataStore openDerby()
+	{
+		return DerbyMetadataStore.open("jdbc:derby:"+new java.io.File(dir, "db").getAbsolutePath());
+	}
+
+	private MemoryMetadataStore openMemory() throws IOException
+	{
+		return new MemoryMetadataStore(openDerby(), new java.io.File(dir, "db.wal"));
+	}
+
+	private SnapshotMetadataStore openSnapshot()
+	{
+		return new SnapshotMetadataStore(openDerby(), new java.io.File(dir, "db.snapshot"));
+	}
+
+	private static FileRecord file(String googleId, UUID localId, String title)
+	{
+		String mimeType = title.contains(".") ? "application/octet-stream" : "inode/directory";
+		return new FileRecord(googleId, localId, title, mimeType, null, 0L, new Date(1000), null, new Date(2000), null, null);
+	}
+
+	/** Writes a small tree, a few fragments and a few pending operations; returns the id of the operation left at the head of the log **/
+	private static long populate(MetadataStore store, UUID fileLocalId)
+	{
+		store.putFile(file("root", UUID.randomUUID(), "My Drive"));
+		store.putFile(file("a", fileLocalId, "a.txt"));
+		store.putFile(file("b", UUID.randomUUID(), "b.txt"));
+		store.setChildIds("root", Arrays.asList("a", "b"));
+		store.setChildrenRefreshed("root", new Date(3000));
+		store.putFile(file("c", UUID.randomUUID(), "c.txt"));
+		store.setParentIds("c", Arrays.asList("root"));
+		store.removeFile("c");
+		store.putFiles(Arrays.asList(file("d", UUID.randomUUID(), "d"), file("e", UUID.randomUUID(), "e.txt")),
+				ImmutableMap.<String, List<String>>of("d", Arrays.asList("root"), "e", Arrays.asList("d")));
+		store.setProperty("cursor", "42");
+
+		store.insertFragment(new Fragment(fileLocalId, null, CHUNK2, 10, 20));
+		store.insertFragment(new Fragment(fileLocalId, null, CHUNK1, 0, 10));
+		store.insertFragment(new Fragment(fileLocalId, null, CHUNK3, 20, 30));
+		store.deleteFragmentsStartingAtOrAfter(fileLocalId, 20);
+
+		long first = store.appendPendingOperation("setTitle", fileLocalId.toString(), "a.txt", "c.txt");
+		long second = store.appendPendingOperation("trash", fileLocalId.toString(), "root");
+		store.removePendingOperation(first);
+		return second;
+	}
+
+	private static void verify(MetadataStore store, UUID fileLocalId, long headOperation)
+	{
+		Assert.assertEquals("a.txt", store.getFile("a").getTitle());
+		Assert.assertEquals(fileLocalId, store.getLocalId("a"));
+		Assert.assertEquals("a", store.getGoogleId(fileLocalId));
+		Assert.assertFalse(store.hasFile("missing"));
+		Assert.assertEquals(new Date(3000), store.getFile("root").getChildrenRefreshed());
+
+		Assert.assertEquals(Arrays.asList("a", "b", "d"), sorted(store.getChildIds("root")));
+		Assert.assertEquals(Arrays.asList("d"), store.getParentIds("e"));
+		Assert.assertEquals(Arrays.asList("d", "root"), sorted(store.getGoogleIdsWithMimeType("inode/directory")));
+		Assert.assertEquals(Arrays.asList("root"), store.getParentIds("b"));
+		Assert.assertFalse(store.hasFile("c"));
+		Assert.assertEquals("42", store.getProperty("cursor"));
+		Assert.assertNull(store.getProperty("missing"));
+
+		List<Fragment> fragments = store.getFragments(fileLocalId);
+		Assert.assertEquals(2, fragments.size());
+		Assert.assertEquals(CHUNK1, fragments.get(0).getChunkMd5());
+		Assert.assertEquals(CHUNK2, fragments.get(1).getChunkMd5());
+		Assert.assertEquals(1, store.getFragments(fileLocalId, 12, 15).size());
+
+		PendingOperation head = store.peekPendingOperation();
+		Assert.assertEquals(headOperation, head.getId());
+		Assert.assertEquals("trash", head.getCommand());
+		Assert.assertEquals(Arrays.asList(fileLocalId.toString(), "root"), Arrays.asList(head.getDetails()));
+		Assert.assertEquals(1, store.getPendingOperations("trash", "mkdir").size());
+		Assert.assertEquals(1, store.peekPendingOperations(10).size());
+		Assert.assertEquals(headOperation, store.peekPendingOperations(1).get(0).getId());
+		Assert.assertEquals(0, store.getPendingOperations("setTitle").size());
+	}
+
+	private static List<String> sorted(List<String> ids)
+	{
+		String[] array = ids.toArray(new String[ids.size()]);
+		Arrays.sort(array);
+		return Arrays.asList(array);
+	}
+
+	@Test
+	public void testDerbyStore() throws IOException
+	{
+		UUID localId = UUID.randomUUID();
+		DerbyMetadataStore store = openDerby();
+		try
+		{
+			verify(store, localId, populate(store, localId));
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	@Test
+	public void testMemoryStore() throws IOException
+	{
+		UUID localId = UUID.randomUUID();
+		MemoryMetadataStore store = openMemory();
+		try
+		{
+			verify(store, localId, populate(store, localId));
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	@Test
+	public void testMemoryStorePersistsToDerby() throws IOException
+	{
+		UUID localId = UUID.randomUUID();
+		MemoryMetadataStore memory = openMemory();
+		long head;
+		try
+		{
+			head = populate(memory, localId);
+		}
+		finally
+		{
+			memory.close();
+		}
+		Assert.assertEquals(0, memory.getUnpersistedMutations());
+
+		DerbyMetadataStore derby = openDerby();
+		try
+		{
+			verify(derby, localId, head);
+			derby.removePendingOperation(head);
+		}
+		finally
+		{
+			derby.close();
+		}
+
+		// Reloading picks up the working set (and the change made directly to Derby)
+		memory = openMemory();
+		try
+		{
+			Assert.assertEquals("a.txt", memory.getFile("a").getTitle());
+			Assert.assertNull(memory.peekPendingOperation());
+			Assert.assertEquals(Collections.<String>emptyList(), memory.getChildIds("a"));
+		}
+		finally
+		{
+			memory.close();
+		}
+	}
+
+	@Test
+	public void testMemoryStoreReplaysPersistedWritesOnce() throws Exception
+	{
+		UUID localId = UUID.randomUUID();
+		MemoryMetadataStore memory = openMemory();
+		long id = memory.appendPendingOperation("mkdir", localId.toString(), "root", "new");
+		memory.insertFragment(new Fragment(localId, null, CHUNK1, 0, 10));
+		while(memory.getUnpersistedMutations() > 0) Thread.sleep(10);
+
+		// Crash (ie. no close) after the writes were persisted but while they are still in the log; the log is replayed on startup
+		DerbyMetadataStore derby = openDerby();
+		MemoryMetadataStore recovered = new MemoryMetadataStore(derby, new java.io.File(dir, "db.wal"));
+		try
+		{
+			Assert.assertEquals(1, derby.getAllPendingOperations().size());
+			Assert.assertEquals(1, derby.getFragments(localId).size());
+			Assert.assertEquals(1, recovered.peekPendingOperations(10).size());
+			recovered.removePendingOperation(recovered.peekPendingOperation().getId());
+		}
+		finally
+		{
+			recovered.close();
+		}
+		Assert.assertTrue(id > 0);
+
+		derby = openDerby();
+		try
+		{
+			Assert.assertEquals(0, derby.getAllPendingOperations().size());
+		}
+		finally
+		{
+			derby.close();
+		}
+	}
+
+	@Test
+	public void testSnapshotStore() throws IOException
+	{
+		UUID localId = UUID.randomUUID();
+		SnapshotMetadataStore store = openSnapshot();
+		try
+		{
+			verify(store, localId, populate(store, localId));
+			// Cached lookups see later writes
+			store.putFile(file("a", localId, "renamed.txt"));
+			store.setParentIds("b", Arrays.asList("d"));
+			Assert.assertEquals("renamed.txt", store.getFile("a").getTitle());
+			Assert.assertEquals(Arrays.asList("a", "d"), sorted(store.getChildIds("root")));
+			Assert.assertEquals(Arrays.asList("b", "e"), sorted(store.getChildIds("d")));
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	@Test
+	public void testSnapshotStoreWarmStart() throws IOException
+	{
+		UUID localId = UUID.randomUUID();
+		SnapshotMetadataStore store = openSnapshot();
+		long head;
+		try
+		{
+			head = populate(store, localId);
+			verify(store, localId, head);
+		}
+		finally
+		{
+			store.close();
+		}
+
+		// The tree read last time is served from the snapshot
+		long hits = Metrics.get().counter("metadata.snapshot.hits").sum();
+		store = openSnapshot();
+		try
+		{
+			verify(store, localId, head);
+			Assert.assertTrue(Metrics.get().counter("metadata.snapshot.hits").sum() > hits);
+			store.setChildIds("d", Collections.<String>emptyList());
+			Assert.assertEquals(Collections.<String>emptyList(), store.getChildIds("d"));
+			Assert.assertEquals(Collections.<String>emptyList(), store.getParentIds("e"));
+		}
+		finally
+		{
+			store.close();
+		}
+
+		// Writes made without the wrapper make the snapshot stale, so it is ignored
+		DerbyMetadataStore derby = openDerby();
+		try
+		{
+			SnapshotMetadataStore.discardSnapshot(derby);
+			derby.putFile(file("a", localId, "changed.txt"));
+		}
+		finally
+		{
+			derby.close();
+		}
+		store = openSnapshot();
+		try
+		{
+			Assert.assertEquals("changed.txt", store.getFile("a").getTitle());
+			Assert.assertEquals(Collections.<String>emptyList(), store.getChildIds("d"));
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.gdrivefs.test.cases;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.internal.Histogram;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.StripedCounter;
+
+public class MetricsTests
+{
+	@Test
+	public void testHistogramPercentiles()
+	{
+		Histogram histogram = new Histogram();
+		for(int i = 1; i <= 1000; i++) histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+
+		Assert.assertEquals(1000, histogram.getCount());
+		Assert.assertEquals(1000, histogram.getMax(TimeUnit.MICROSECONDS));
+		Assert.assertEquals(500, histogram.getMean(TimeUnit.MICROSECONDS), 1);
+		// Buckets are a quarter of a power of two wide
+		Assert.assertEquals(500, histogram.getPercentile(0.5, TimeUnit.MICROSECONDS), 125);
+		Assert.assertEquals(990, histogram.getPercentile(0.99, TimeUnit.MICROSECONDS), 125);
+		Assert.assertEquals(0, new Histogram().getPercentile(0.5, TimeUnit.MICROSECONDS));
+	}
+
+	@Test
+	public void testCounterFromManyThreads() throws InterruptedException
+	{
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for(int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(){
+				@Override
+				public void run()
+				{
+					for(int j = 0; j < 100000; j++) counter.increment();
+				}};
+			threads[i].start();
+		}
+		for(Thread thread : threads) thread.join();
+		Assert.assertEquals(800000, counter.sum());
+	}
+
+	@Test
+	public void testExportedOverJmx() throws Exception
+	{
+		Metrics.get().counter("test.counter").add(42);
+		Metrics.get().histogram("test.latency").record(TimeUnit.MILLISECONDS.toNanos(3));
+		Metrics.Gauge gauge = new Metrics.Gauge(){
+			@Override
+			public long get()
+			{
+				return 7;
+			}};
+		Metrics.get().gauge("test.gauge", gauge);
+		Metrics.get().exportToJmx();
+
+		ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+		Assert.assertEquals(42L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "test.counter"));
+		Assert.assertEquals(7L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "test.gauge"));
+		Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "test.latency.count"));
+
+		Metrics.get().removeGauge("test.gauge", gauge);
+		Assert.assertFalse(Metrics.get().snapshot().containsKey("test.gauge"));
+	}
+}
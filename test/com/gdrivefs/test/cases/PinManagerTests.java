@@ -0,0 +1,111 @@
+package com.gdrivefs.test.cases;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.Drive;
+import com.gdrivefs.simplecache.File;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.test.util.FakeDriveServer;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+public class PinManagerTests
+{
+	FakeDriveServer server;
+	Drive drive;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		server = new FakeDriveServer();
+		NetHttpTransport transport = new NetHttpTransport();
+		drive = new Drive(server.newRemote(transport), transport);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		drive.close();
+		server.close();
+	}
+
+	@Test
+	public void testPinnedSubtreeIsDownloaded() throws Exception
+	{
+		String project = server.addFolder(FakeDriveServer.ROOT_ID, "project");
+		server.addFile(project, "a.txt", "Hello World!".getBytes());
+		String sub = server.addFolder(project, "sub");
+		server.addFile(sub, "b.txt", "Goodbye!".getBytes());
+		server.addFile(FakeDriveServer.ROOT_ID, "elsewhere.txt", "Not pinned".getBytes());
+
+		File directory = drive.getRoot().getChildren("project").get(0);
+		File a = directory.getChildren("a.txt").get(0);
+		File b = directory.getChildren("sub").get(0).getChildren("b.txt").get(0);
+		File elsewhere = drive.getRoot().getChildren("elsewhere.txt").get(0);
+		long downloads = Metrics.get().counter("download.bytes").sum();
+
+		drive.getPins().pin(directory);
+		drive.getPins().awaitIdle(30, TimeUnit.SECONDS);
+		Assert.assertTrue(a.isContentCached());
+		Assert.assertTrue(b.isContentCached());
+		Assert.assertFalse(elsewhere.isContentCached());
+		Assert.assertEquals(downloads+20, Metrics.get().counter("download.bytes").sum());
+		Assert.assertEquals("Goodbye!", new String(b.read(8, 0)));
+		Assert.assertEquals(downloads+20, Metrics.get().counter("download.bytes").sum());
+
+		// Pinned content can't be evicted until it's unpinned
+		Assert.assertTrue(drive.getPins().isPinned(b));
+		Assert.assertFalse(drive.getPins().isPinnedDirectly(b));
+		Assert.assertFalse(b.evictContent());
+		drive.getPins().unpin(directory);
+		Assert.assertFalse(drive.getPins().isPinned(b));
+		Assert.assertTrue(b.evictContent());
+		Assert.assertFalse(b.isContentCached());
+	}
+
+	@Test
+	public void testChangedContentIsFetchedAgain() throws Exception
+	{
+		String id = server.addFile(FakeDriveServer.ROOT_ID, "notes.txt", "version one".getBytes());
+		File notes = drive.getRoot().getChildren("notes.txt").get(0);
+		drive.getPins().pin(notes);
+		drive.getPins().awaitIdle(30, TimeUnit.SECONDS);
+		Assert.assertTrue(notes.isContentCached());
+		Assert.assertEquals(1, drive.getPins().getPinnedIds().size());
+
+		server.updateContent(id, "version two".getBytes());
+		notes.refresh();
+		Assert.assertFalse(notes.isContentCached());
+		drive.getPins().prefetch(notes);
+		drive.getPins().awaitIdle(30, TimeUnit.SECONDS);
+		Assert.assertTrue(notes.isContentCached());
+		Assert.assertEquals("version two", new String(notes.read(11, 0)));
+	}
+
+	@Test
+	public void testChangedContentIsFetchedAgainWhileOtherFilesHavePendingChanges() throws Exception
+	{
+		String id = server.addFile(FakeDriveServer.ROOT_ID, "notes.txt", "version one".getBytes());
+		File notes = drive.getRoot().getChildren("notes.txt").get(0);
+		drive.getPins().pin(notes);
+		drive.getPins().awaitIdle(30, TimeUnit.SECONDS);
+		Assert.assertTrue(notes.isContentCached());
+
+		server.updateContent(id, "version two".getBytes());
+		notes.refresh();
+
+		// An unrelated local change is still on its way to Google while the pinned file is refetched
+		server.setLatency(1000);
+		drive.getRoot().createFile("draft.txt").write("Draft".getBytes(), 0);
+		Assert.assertTrue(drive.hasPendingOperations());
+		drive.getPins().prefetch(notes);
+		drive.getPins().awaitIdle(30, TimeUnit.SECONDS);
+		server.setLatency(0);
+		Assert.assertTrue(notes.isContentCached());
+		Assert.assertEquals("version two", new String(notes.read(11, 0)));
+	}
+}
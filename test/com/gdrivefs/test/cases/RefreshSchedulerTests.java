@@ -0,0 +1,114 @@
+package com.gdrivefs.test.cases;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.internal.RefreshScheduler;
+import com.gdrivefs.simplecache.internal.RefreshScheduler.Priority;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Exercises the refresh scheduler with a single worker, held busy by a blocker task while the queue is set up.
+ */
+public class RefreshSchedulerTests
+{
+	RefreshScheduler scheduler;
+	CountDownLatch release;
+	List<String> ran;
+
+	@Before
+	public void blockWorker() throws InterruptedException
+	{
+		scheduler = new RefreshScheduler(1, 3, new ThreadFactoryBuilder().setDaemon(true).build());
+		ran = Collections.synchronizedList(new ArrayList<String>());
+		release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		scheduler.schedule("blocker", Priority.NORMAL, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				started.countDown();
+				try { release.await(); }
+				catch(InterruptedException e) { throw new RuntimeException(e); }
+			}
+		});
+		started.await();
+	}
+
+	@After
+	public void shutdown()
+	{
+		release.countDown();
+		scheduler.shutdownNow();
+	}
+
+	private Runnable record(final String name)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ran.add(name);
+			}
+		};
+	}
+
+	private void drain() throws InterruptedException
+	{
+		release.countDown();
+		long end = System.currentTimeMillis()+10000;
+		while((scheduler.getQueueDepth() > 0 || scheduler.getActiveCount() > 0) && System.currentTimeMillis() < end) Thread.sleep(10);
+		scheduler.shutdownNow();
+		scheduler.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testDuplicatesCoalesce() throws InterruptedException
+	{
+		for(int i = 0; i < 1000; i++) Assert.assertTrue(scheduler.schedule("a", Priority.NORMAL, record("a"+i)));
+		Assert.assertEquals(1, scheduler.getQueueDepth());
+		Assert.assertEquals(999, scheduler.getCoalescedCount());
+
+		drain();
+		Assert.assertEquals(Collections.singletonList("a999"), ran);
+	}
+
+	@Test
+	public void testHigherPriorityRunsFirst() throws InterruptedException
+	{
+		scheduler.schedule("prefetch", Priority.PREFETCH, record("prefetch"));
+		scheduler.schedule("normal", Priority.NORMAL, record("normal"));
+		scheduler.schedule("visible", Priority.USER_VISIBLE, record("visible"));
+		// Asking again at a higher priority moves a task up the queue
+		scheduler.schedule("prefetch", Priority.USER_VISIBLE, record("prefetch"));
+
+		drain();
+		Assert.assertEquals(Arrays.asList("prefetch", "visible", "normal"), ran);
+	}
+
+	@Test
+	public void testQueueIsBounded() throws InterruptedException
+	{
+		scheduler.schedule("a", Priority.NORMAL, record("a"));
+		scheduler.schedule("b", Priority.PREFETCH, record("b"));
+		scheduler.schedule("c", Priority.NORMAL, record("c"));
+		Assert.assertFalse(scheduler.schedule("d", Priority.PREFETCH, record("d")));
+		Assert.assertTrue(scheduler.schedule("e", Priority.USER_VISIBLE, record("e")));
+		Assert.assertEquals(3, scheduler.getQueueDepth());
+		Assert.assertEquals(2, scheduler.getDroppedCount());
+
+		drain();
+		Assert.assertEquals(Arrays.asList("e", "a", "c"), ran);
+	}
+}
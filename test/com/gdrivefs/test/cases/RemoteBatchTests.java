@@ -0,0 +1,87 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.RemoteBatch;
+import com.gdrivefs.test.util.FakeBatchEndpoint;
+import com.google.api.services.drive.model.File;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Exercises RemoteBatch against a local fake of the batch endpoint (no Google account required).
+ */
+public class RemoteBatchTests
+{
+	@Test
+	public void testMixedBatch() throws IOException, InterruptedException, ExecutionException
+	{
+		FakeBatchEndpoint endpoint = new FakeBatchEndpoint();
+		endpoint.addFile("root", "My Drive");
+		endpoint.addFile("a", "a.txt");
+		endpoint.addFile("b", "b.txt");
+		endpoint.addFile("old", "old");
+
+		RemoteBatch batch = new RemoteBatch(endpoint.newDrive());
+		ListenableFuture<File> a = batch.getFileMetadata("a");
+		batch.insertParent("b", "root");
+		batch.insertParent("old", "root");
+		batch.setTitle("a", "renamed.txt");
+		batch.trash("old");
+		ListenableFuture<File> missing = batch.getFileMetadata("missing");
+		Assert.assertEquals(6, batch.size());
+		Assert.assertFalse(a.isDone());
+
+		batch.flush();
+		Assert.assertEquals(0, batch.size());
+		Assert.assertEquals(1, endpoint.getRoundTrips());
+		Assert.assertEquals("a.txt", a.get().getTitle());
+		Assert.assertEquals("renamed.txt", endpoint.getTitle("a"));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("root")), endpoint.getParents("b"));
+		Assert.assertTrue(endpoint.isTrashed("old"));
+
+		// A failed request fails only its own future
+		try
+		{
+			missing.get();
+			Assert.fail("Expected the request for a missing file to fail");
+		}
+		catch(ExecutionException e)
+		{
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+
+		batch.deleteParent("b", "root");
+		batch.flush();
+		Assert.assertEquals(2, endpoint.getRoundTrips());
+		Assert.assertTrue(endpoint.getParents("b").isEmpty());
+
+		// Metadata responses are projected to the fields the cache uses, and compressed
+		for(String url : endpoint.getUrls()) if(!url.contains("/parents/")) Assert.assertTrue(url, url.contains("fields="));
+		Assert.assertEquals(endpoint.getRoundTrips(), endpoint.getGzippedResponses());
+	}
+
+	@Test
+	public void testLargeBatchIsSplit() throws IOException, InterruptedException, ExecutionException
+	{
+		FakeBatchEndpoint endpoint = new FakeBatchEndpoint();
+		int count = 2*RemoteBatch.MAX_BATCH_SIZE+1;
+		for(int i = 0; i < count; i++) endpoint.addFile("file"+i, "title"+i);
+
+		RemoteBatch batch = new RemoteBatch(endpoint.newDrive());
+		List<ListenableFuture<File>> results = new ArrayList<ListenableFuture<File>>();
+		for(int i = 0; i < count; i++) results.add(batch.getFileMetadata("file"+i));
+		batch.flush();
+
+		Assert.assertEquals(3, endpoint.getRoundTrips());
+		Assert.assertEquals(count, endpoint.getRequests());
+		for(int i = 0; i < count; i++) Assert.assertEquals("title"+i, results.get(i).get().getTitle());
+	}
+}
@@ -0,0 +1,96 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.Drive;
+import com.gdrivefs.simplecache.File;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer.Call;
+import com.gdrivefs.simplecache.internal.RemoteCallTracer.Caller;
+import com.gdrivefs.test.util.FakeDriveServer;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+/**
+ * Checks remote calls are timed and attributed to whoever made them (no Google account required).
+ */
+public class RemoteCallTracerTests
+{
+	FakeDriveServer server;
+	NetHttpTransport transport = new NetHttpTransport();
+	Drive drive;
+
+	@Before
+	public void start() throws Exception
+	{
+		server = new FakeDriveServer();
+		drive = new Drive(server.newRemote(transport), transport);
+	}
+
+	@After
+	public void stop() throws IOException
+	{
+		drive.close();
+		server.close();
+	}
+
+	@Test
+	public void testTraceOfOneOperation() throws IOException
+	{
+		String directory = server.addFolder(FakeDriveServer.ROOT_ID, "directory");
+		server.addFile(directory, "hello.txt", "Hello World!".getBytes());
+		long before = count("remote.calls.fuse.download");
+
+		RemoteCallTracer.Context previous = RemoteCallTracer.enter(Caller.FUSE, "read /directory/hello.txt");
+		List<Call> trace;
+		try
+		{
+			RemoteCallTracer.startTrace();
+			File hello = drive.getRoot().getChildren("directory").get(0).getChildren("hello.txt").get(0);
+			Assert.assertEquals("Hello World!", new String(hello.read((int)hello.getSize(), 0)));
+			trace = RemoteCallTracer.stopTrace();
+		}
+		finally
+		{
+			RemoteCallTracer.exit(previous);
+		}
+
+		List<String> types = new ArrayList<String>();
+		for(Call call : trace)
+		{
+			types.add(call.getType());
+			Assert.assertEquals(Caller.FUSE, call.getCaller());
+			Assert.assertEquals("read /directory/hello.txt", call.getOperation());
+			Assert.assertTrue(call.toString(), call.getElapsed(TimeUnit.NANOSECONDS) >= 0);
+			Assert.assertFalse(call.toString(), call.isFailed());
+		}
+		Assert.assertTrue(types.toString(), types.contains("files.list"));
+		Assert.assertTrue(types.toString(), types.contains("download"));
+		Assert.assertEquals(before+1, count("remote.calls.fuse.download"));
+		Assert.assertTrue(RemoteCallTracer.stopTrace().isEmpty());
+	}
+
+	@Test
+	public void testUntaggedCallsAreOther() throws IOException
+	{
+		long before = count("remote.calls.other.files.list");
+		long failures = count("remote.files.list.failures");
+		drive.getRoot().getChildren();
+		Assert.assertEquals(before+1, count("remote.calls.other.files.list"));
+		Assert.assertEquals(failures, count("remote.files.list.failures"));
+	}
+
+	private static long count(String name)
+	{
+		Long value = Metrics.get().snapshot().get(name);
+		return value == null ? 0 : value;
+	}
+}
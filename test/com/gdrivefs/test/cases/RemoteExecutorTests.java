@@ -0,0 +1,187 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.gdrivefs.simplecache.internal.RemoteExecutor;
+import com.gdrivefs.simplecache.internal.RemoteExecutor.Pool;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Exercises RemoteExecutor's throttling and retries against scripted responses (no Google account required).
+ */
+public class RemoteExecutorTests
+{
+	static final String FILE = "{\"id\": \"a\", \"title\": \"a.txt\"}";
+
+	static String error(int code, String reason)
+	{
+		return "{\"error\": {\"code\": "+code+", \"message\": \""+reason+"\", \"errors\": [{\"domain\": \"usageLimits\", \"reason\": \""+reason+"\"}]}}";
+	}
+
+	static RemoteExecutor newExecutor(double requestsPerSecond)
+	{
+		return new RemoteExecutor(requestsPerSecond, 2, 1, 1, 5, 1, 4);
+	}
+
+	@Test
+	public void testRetriesRateLimitsAndServerErrors() throws IOException
+	{
+		ScriptedTransport transport = new ScriptedTransport();
+		transport.respond(403, error(403, "rateLimitExceeded"));
+		transport.respond(403, error(403, "userRateLimitExceeded"));
+		transport.respond(429, error(429, "rateLimitExceeded"));
+		transport.respond(503, error(503, "backendError"));
+		transport.respond(200, FILE);
+
+		RemoteExecutor executor = newExecutor(1000);
+		try
+		{
+			Assert.assertEquals("a.txt", RemoteExecutor.await(executor.submit(Pool.METADATA, true, transport.newDrive().files().get("a"))).getTitle());
+			Assert.assertEquals(5, transport.getRequests());
+			Assert.assertEquals(5, executor.getAttemptCount());
+			Assert.assertEquals(4, executor.getRetryCount());
+			Assert.assertEquals(3, executor.getRateLimitedCount());
+			Assert.assertEquals(0, executor.getFailureCount());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDoesNotRetryPermanentFailures() throws IOException
+	{
+		ScriptedTransport transport = new ScriptedTransport();
+		transport.respond(403, error(403, "insufficientPermissions"));
+		transport.respond(503, error(503, "backendError"));
+		transport.respond(200, FILE);
+
+		RemoteExecutor executor = newExecutor(1000);
+		try
+		{
+			// A 403 that isn't about quota won't go away by retrying
+			assertFailsWith(403, executor, transport.newDrive().files().get("a"), true);
+			Assert.assertEquals(1, transport.getRequests());
+
+			// Server errors are only retried when repeating the request is harmless
+			assertFailsWith(503, executor, transport.newDrive().files().get("a"), false);
+			Assert.assertEquals(2, transport.getRequests());
+			Assert.assertEquals(0, executor.getRetryCount());
+			Assert.assertEquals(2, executor.getFailureCount());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testGivesUpAfterMaxAttempts() throws IOException
+	{
+		ScriptedTransport transport = new ScriptedTransport();
+		for(int i = 0; i < 10; i++) transport.respond(429, error(429, "rateLimitExceeded"));
+
+		RemoteExecutor executor = newExecutor(1000);
+		try
+		{
+			assertFailsWith(429, executor, transport.newDrive().files().get("a"), true);
+			Assert.assertEquals(5, transport.getRequests());
+			Assert.assertEquals(4, executor.getRetryCount());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testRequestsAreSpacedByRateLimiter() throws IOException
+	{
+		ScriptedTransport transport = new ScriptedTransport();
+		for(int i = 0; i < 11; i++) transport.respond(200, FILE);
+
+		RemoteExecutor executor = newExecutor(20);
+		try
+		{
+			Drive drive = transport.newDrive();
+			long start = System.nanoTime();
+			for(int i = 0; i < 11; i++) executor.call(true, drive.files().get("a"));
+			long elapsedMillis = (System.nanoTime()-start)/1000000;
+
+			// Ten intervals of 50ms after the first request, which goes straight through (less a permit or two saved up while idle)
+			Assert.assertTrue("Took only "+elapsedMillis+"ms", elapsedMillis >= 350);
+			Assert.assertEquals(11, transport.getRequests());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	static void assertFailsWith(int status, RemoteExecutor executor, Drive.Files.Get request, boolean idempotent) throws IOException
+	{
+		try
+		{
+			RemoteExecutor.await(executor.submit(Pool.METADATA, idempotent, request));
+			Assert.fail("Expected the request to fail with "+status);
+		}
+		catch(GoogleJsonResponseException e)
+		{
+			Assert.assertEquals(status, e.getStatusCode());
+		}
+	}
+
+	/** Answers each request with the next scripted response **/
+	static class ScriptedTransport extends MockHttpTransport
+	{
+		final Deque<MockLowLevelHttpResponse> responses = new ArrayDeque<MockLowLevelHttpResponse>();
+		final AtomicInteger requests = new AtomicInteger();
+
+		Drive newDrive()
+		{
+			return new Drive.Builder(this, JacksonFactory.getDefaultInstance(), null).setApplicationName("gdrivefs-test").build();
+		}
+
+		synchronized void respond(int status, String body)
+		{
+			responses.add(new MockLowLevelHttpResponse().setStatusCode(status).setContentType(Json.MEDIA_TYPE).setContent(body));
+		}
+
+		int getRequests()
+		{
+			return requests.get();
+		}
+
+		@Override
+		public LowLevelHttpRequest buildRequest(String method, String url) throws IOException
+		{
+			return new MockLowLevelHttpRequest(url)
+			{
+				@Override
+				public LowLevelHttpResponse execute() throws IOException
+				{
+					requests.incrementAndGet();
+					synchronized(ScriptedTransport.this)
+					{
+						return responses.remove();
+					}
+				}
+			};
+		}
+	}
+}
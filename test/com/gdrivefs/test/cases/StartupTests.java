@@ -0,0 +1,85 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gdrivefs.internal.StartupTimer;
+import com.gdrivefs.simplecache.Drive;
+import com.gdrivefs.simplecache.internal.Metrics;
+import com.gdrivefs.test.util.FakeDriveServer;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+public class StartupTests
+{
+	FakeDriveServer server;
+	java.io.File dir;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		server = new FakeDriveServer();
+		dir = new java.io.File(System.getProperty("java.io.tmpdir"), "gdrivefs-startup-"+UUID.randomUUID());
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		server.close();
+		FileUtils.deleteQuietly(dir);
+	}
+
+	private Drive open() throws IOException
+	{
+		NetHttpTransport transport = new NetHttpTransport();
+		return new Drive(server.newRemote(transport), transport, new java.io.File(dir, "db"), false);
+	}
+
+	@Test
+	public void testRootIsListedFromStoreAfterRestart() throws IOException
+	{
+		server.addFile(FakeDriveServer.ROOT_ID, "a.txt", "Hello World!".getBytes());
+		Drive drive = open();
+		try
+		{
+			Assert.assertEquals(1, drive.getRoot().getChildren().size());
+		}
+		finally
+		{
+			drive.close();
+		}
+
+		// Neither the root's id nor its children need a remote call
+		int requests = server.getRequests();
+		drive = open();
+		try
+		{
+			Assert.assertEquals("a.txt", drive.getRoot().getChildren().get(0).getTitle());
+			Assert.assertEquals(requests, server.getRequests());
+			Assert.assertTrue(drive.checkRootId());
+		}
+		finally
+		{
+			drive.close();
+		}
+	}
+
+	@Test
+	public void testPhaseTimings()
+	{
+		StartupTimer timer = new StartupTimer();
+		timer.end("test.phase", timer.begin());
+		timer.listed();
+		timer.listed();
+		Assert.assertEquals(2, timer.getPhases().size());
+		Assert.assertTrue(timer.getPhases().containsKey("test.phase"));
+		Assert.assertTrue(timer.getPhases().get("firstReaddir") >= 0);
+		Assert.assertEquals(1, Metrics.get().histogram("startup.test.phase").getCount());
+	}
+}
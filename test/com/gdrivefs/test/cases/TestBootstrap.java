@@ -0,0 +1,40 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.gdrivefs.simplecache.File;
+import com.gdrivefs.test.util.DriveBuilder;
+import com.gdrivefs.test.util.GoogleFilesystemRunner;
+import com.google.api.services.drive.model.ParentReference;
+
+@RunWith(GoogleFilesystemRunner.class)
+public class TestBootstrap
+{
+	@Test
+	public void testBootstrapFindsNestedFiles(DriveBuilder builder) throws IOException, GeneralSecurityException, InterruptedException
+	{
+			File test = builder.cleanDriveDirectory();
+			test.mkdir("foo").mkdir("bar");
+			builder.flush();
+
+			// Made behind the cache's back, so only a listing can find it
+			com.google.api.services.drive.model.File remote = new com.google.api.services.drive.model.File();
+			remote.setTitle("remote");
+			remote.setMimeType(File.MIME_FOLDER);
+			remote.setParents(Arrays.asList(new ParentReference().setId(test.getId())));
+			builder.getRemote().files().insert(remote).execute();
+
+			test = builder.uncleanDriveDirectory();
+			builder.getDrive().bootstrap(true);
+
+			Assert.assertEquals(2, test.getChildren().size());
+			Assert.assertEquals(1, test.getChildren("remote").size());
+			Assert.assertEquals(1, test.getChildren("foo").get(0).getChildren("bar").size());
+	}
+}
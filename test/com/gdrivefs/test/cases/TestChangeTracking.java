@@ -0,0 +1,82 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.gdrivefs.simplecache.File;
+import com.gdrivefs.test.util.DriveBuilder;
+import com.gdrivefs.test.util.GoogleFilesystemRunner;
+import com.google.api.services.drive.model.ParentReference;
+
+@RunWith(GoogleFilesystemRunner.class)
+public class TestChangeTracking
+{
+	private static final long TIMEOUT_MILLIS = 60000;
+
+	private static com.google.api.services.drive.model.File remoteMkdir(DriveBuilder builder, File parent, String title) throws IOException
+	{
+		com.google.api.services.drive.model.File directory = new com.google.api.services.drive.model.File();
+		directory.setTitle(title);
+		directory.setMimeType(File.MIME_FOLDER);
+		directory.setParents(Arrays.asList(new ParentReference().setId(parent.getId())));
+		return builder.getRemote().files().insert(directory).execute();
+	}
+
+	private static void awaitChildren(File directory, String title, int expected) throws IOException, InterruptedException
+	{
+		long end = System.currentTimeMillis()+TIMEOUT_MILLIS;
+		while(directory.getChildren(title).size() != expected && System.currentTimeMillis() < end) Thread.sleep(500);
+		Assert.assertEquals(expected, directory.getChildren(title).size());
+	}
+
+	@Test
+	public void testRemoteCreate(DriveBuilder builder) throws IOException, GeneralSecurityException, InterruptedException
+	{
+			File test = builder.cleanDriveDirectory();
+			Assert.assertEquals(0, test.getChildren().size());
+
+			builder.getDrive().startTrackingChanges(1, TimeUnit.SECONDS);
+			Thread.sleep(2000);
+
+			remoteMkdir(builder, test, "remote");
+			awaitChildren(test, "remote", 1);
+	}
+
+	@Test
+	public void testRemoteTrash(DriveBuilder builder) throws IOException, GeneralSecurityException, InterruptedException
+	{
+			File test = builder.cleanDriveDirectory();
+			com.google.api.services.drive.model.File remote = remoteMkdir(builder, test, "remote");
+			test.refresh();
+			Assert.assertEquals(1, test.getChildren("remote").size());
+
+			builder.getDrive().startTrackingChanges(1, TimeUnit.SECONDS);
+			Thread.sleep(2000);
+
+			builder.getRemote().files().trash(remote.getId()).execute();
+			awaitChildren(test, "remote", 0);
+	}
+
+	@Test
+	public void testRemoteRename(DriveBuilder builder) throws IOException, GeneralSecurityException, InterruptedException
+	{
+			File test = builder.cleanDriveDirectory();
+			com.google.api.services.drive.model.File remote = remoteMkdir(builder, test, "before");
+			test.refresh();
+			Assert.assertEquals(1, test.getChildren("before").size());
+
+			builder.getDrive().startTrackingChanges(1, TimeUnit.SECONDS);
+			Thread.sleep(2000);
+
+			remote.setTitle("after");
+			builder.getRemote().files().update(remote.getId(), remote).execute();
+			awaitChildren(test, "after", 1);
+			Assert.assertEquals(0, test.getChildren("before").size());
+	}
+}
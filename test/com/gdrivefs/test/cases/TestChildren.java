@@ -162,4 +162,24 @@ public class TestChildren
 			
 			Assert.assertEquals(10, parent.getChildren().size());
 	}
+
+	@Test
+	public void testGetChildrenByTitleFollowsChanges(DriveBuilder builder) throws IOException, GeneralSecurityException, InterruptedException
+	{
+			File test = builder.cleanDriveDirectory();
+	
+			File foo = test.mkdir("foo");
+			Assert.assertEquals(1, test.getChildren("foo").size());
+			Assert.assertEquals(0, test.getChildren("bar").size());
+
+			foo.setTitle("bar");
+			Assert.assertEquals(0, test.getChildren("foo").size());
+			Assert.assertEquals(1, test.getChildren("bar").size());
+
+			test.mkdir("foo");
+			Assert.assertEquals(1, test.getChildren("foo").size());
+
+			foo.trash();
+			Assert.assertEquals(0, test.getChildren("bar").size());
+	}
 }
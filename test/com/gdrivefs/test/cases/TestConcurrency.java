@@ -10,12 +10,17 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import com.gdrivefs.simplecache.File;
+import com.gdrivefs.simplecache.internal.Metrics;
 import com.gdrivefs.test.util.DriveBuilder;
 import com.gdrivefs.test.util.GoogleFilesystemRunner;
 
@@ -63,4 +68,133 @@ public class TestConcurrency
 				Assert.assertTrue(future.get());
 	}
 
+	/** Reads of one file complete while another file is in the middle of a write (which holds that file's write lock) **/
+	@Test
+	public void readsFinishDuringAnotherFilesWrite(DriveBuilder builder) throws IOException, GeneralSecurityException, InterruptedException, ExecutionException
+	{
+		final File test = builder.cleanDriveDirectory();
+		final int fileSize = 1<<16;
+		final File reading = test.createFile("reading");
+		reading.write(new byte[fileSize], 0);
+		final File writing = test.createFile("writing");
+
+		// Odd while a write is in progress; a read that starts and ends on the same odd value ran entirely inside one write
+		final AtomicLong writes = new AtomicLong();
+		final AtomicBoolean done = new AtomicBoolean();
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		Future<Long> written = writer.submit(new Callable<Long>()
+		{
+			@Override
+			public Long call() throws Exception
+			{
+				byte[] block = new byte[1<<20];
+				while(!done.get())
+				{
+					writes.incrementAndGet();
+					writing.write(block, 0);
+					writes.incrementAndGet();
+				}
+				return writes.get()/2;
+			}
+		});
+
+		int overlapping = 0;
+		try
+		{
+			long deadline = System.currentTimeMillis()+TimeUnit.SECONDS.toMillis(30);
+			while(overlapping == 0 && System.currentTimeMillis() < deadline)
+			{
+				long before = writes.get();
+				Assert.assertEquals(fileSize, reading.read(fileSize, 0).length);
+				if(before % 2 == 1 && writes.get() == before) overlapping++;
+			}
+		}
+		finally
+		{
+			done.set(true);
+		}
+		Assert.assertTrue(written.get() > 0);
+		writer.shutdown();
+		Assert.assertTrue("no read completed during a write of another file", overlapping > 0);
+	}
+
+	@Test
+	public void gettersSeeWholeSnapshotsDuringWrites(DriveBuilder builder) throws IOException, GeneralSecurityException, InterruptedException, ExecutionException
+	{
+		final File test = builder.cleanDriveDirectory();
+		final File file = test.createFile("growing");
+		final int appends = 500;
+
+		// Readers never block on the appender, and (since each snapshot is replaced whole) never see the size go backwards
+		ExecutorService readers = Executors.newFixedThreadPool(4);
+		final AtomicBoolean done = new AtomicBoolean();
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for(int i = 0; i < 4; i++)
+			futures.add(readers.submit(new Callable<Long>()
+			{
+				@Override
+				public Long call() throws Exception
+				{
+					long last = 0;
+					while(!done.get())
+					{
+						long size = file.getSize();
+						Assert.assertTrue("size went from "+last+" to "+size, size >= last);
+						Assert.assertEquals("growing", file.getTitle());
+						Assert.assertFalse(file.isDirectory());
+						last = size;
+					}
+					return last;
+				}
+			}));
+
+		try
+		{
+			for(int i = 0; i < appends; i++) file.write(new byte[]{(byte)i}, i);
+		}
+		finally
+		{
+			done.set(true);
+		}
+		for(Future<Long> future : futures) Assert.assertTrue(future.get() <= appends);
+		Assert.assertEquals(appends, file.getSize());
+		readers.shutdown();
+	}
+
+	/** Parents built after their child can still be linked to it, concurrently, without deadlocking or taking locks out of order **/
+	@Test
+	public void crossFileOperationsOnParentsBuiltAfterTheirChild(DriveBuilder builder) throws IOException, GeneralSecurityException, InterruptedException, ExecutionException, TimeoutException
+	{
+		final File test = builder.cleanDriveDirectory();
+		final File child = test.createFile("child");
+		final List<File> parents = new ArrayList<File>();
+		for(int i = 0; i < 10; i++) parents.add(test.mkdir("parent"+i));
+		long violations = Metrics.get().counter("lock.file.orderViolations").sum();
+
+		ExecutorService worker = Executors.newFixedThreadPool(parents.size());
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for(final File parent : parents)
+			futures.add(worker.submit(new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call() throws Exception
+				{
+					parent.addChild(child);
+					return true;
+				}
+			}));
+		for(Future<Boolean> future : futures)
+			Assert.assertTrue(future.get(1, TimeUnit.MINUTES));
+		worker.shutdown();
+		Assert.assertEquals(parents.size()+1, child.getParents().size());
+
+		test.removeChild(child);
+		for(File parent : parents.subList(1, parents.size())) parent.removeChild(child);
+		child.setTitle("renamed");
+		Assert.assertEquals(1, parents.get(0).getChildren("renamed").size());
+		child.trash();
+		Assert.assertEquals(0, parents.get(0).getChildren().size());
+		parents.get(0).trash();
+		Assert.assertEquals(violations, Metrics.get().counter("lock.file.orderViolations").sum());
+	}
 }
@@ -64,4 +64,21 @@ public class TestSize
 				fileHandle.close();
 			}
 	}
+
+	@Test
+	public void testAttributesFollowLocalWrites(DriveBuilder builder) throws IOException, GeneralSecurityException, InterruptedException
+	{
+			com.gdrivefs.simplecache.File test = builder.cleanDriveDirectory();
+			com.gdrivefs.simplecache.File helloFile = test.createFile("hello.txt");
+			Assert.assertEquals(0, helloFile.getAttributes().getSize());
+			Assert.assertFalse(helloFile.getAttributes().isDirectory());
+
+			helloFile.write("123456789".getBytes(), 0);
+			Assert.assertEquals(9, helloFile.getAttributes().getSize());
+
+			helloFile.truncate(4);
+			Assert.assertEquals(4, helloFile.getAttributes().getSize());
+
+			Assert.assertTrue(test.getAttributes().isDirectory());
+	}
 }
@@ -0,0 +1,86 @@
+package com.gdrivefs.test.cases;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.gdrivefs.GoogleDriveLinuxFs;
+import com.gdrivefs.internal.WorkloadTrace;
+import com.gdrivefs.internal.WorkloadTrace.Call;
+import com.gdrivefs.internal.WorkloadTrace.Op;
+import com.gdrivefs.test.bench.BenchEnvironment;
+import com.gdrivefs.test.bench.WorkloadReplayer;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+public class WorkloadTraceTests
+{
+	private static final int ENOENT = 2;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		java.io.File file = folder.newFile("trace");
+		WorkloadTrace.Writer writer = new WorkloadTrace.Writer(file);
+		writer.write(Op.GETATTR, 10, "/a", null, 0, -1, 0, 0, 0);
+		writer.write(Op.READ, 5, "/a/b", null, 1L<<33, 4096, 17, 0, 4096);
+		writer.write(Op.RENAME, 20, "/a/b", "/a/c", 0, 0, 0, 0, -ENOENT);
+		writer.close();
+
+		List<Call> calls = WorkloadReplayer.load(file);
+		Assert.assertEquals(3, calls.size());
+		Assert.assertEquals(Op.READ, calls.get(0).op);
+		Assert.assertEquals(5, calls.get(0).startMicros);
+		Assert.assertEquals(1L<<33, calls.get(0).offset);
+		Assert.assertEquals(17, calls.get(0).handle);
+		Assert.assertEquals(-1, calls.get(1).size);
+		Assert.assertEquals("/a/b", calls.get(2).path);
+		Assert.assertEquals("/a/c", calls.get(2).newPath);
+		Assert.assertEquals(-ENOENT, calls.get(2).result);
+	}
+
+	@Test
+	public void testReplayAgainstFake() throws Exception
+	{
+		java.io.File file = folder.newFile("trace");
+		WorkloadTrace.Writer writer = new WorkloadTrace.Writer(file);
+		writer.write(Op.GETATTR, 0, "/docs", null, 0, -1, 0, 0, 0);
+		writer.write(Op.READDIR, 1, "/docs", null, 0, 0, 0, 0, 0);
+		writer.write(Op.OPEN, 2, "/docs/report.txt", null, 0, 0, 7, 0, 0);
+		writer.write(Op.READ, 3, "/docs/report.txt", null, 0, 4096, 7, 0, 4096);
+		writer.write(Op.READ, 4, "/docs/report.txt", null, 4096, 4096, 7, 0, 904);
+		writer.write(Op.RELEASE, 5, "/docs/report.txt", null, 0, 0, 7, 0, 0);
+		writer.write(Op.MKDIR, 7, "/notes", null, 0, 0, 0, 0, 0);
+		writer.write(Op.CREATE, 8, "/notes/today.txt", null, 0, 0, 8, 0, 0);
+		writer.write(Op.WRITE, 9, "/notes/today.txt", null, 0, 10, 8, 0, 10);
+		writer.write(Op.RELEASE, 10, "/notes/today.txt", null, 0, 0, 8, 0, 0);
+		writer.write(Op.RENAME, 11, "/notes/today.txt", "/notes/yesterday.txt", 0, 0, 0, 0, 0);
+		writer.write(Op.UNLINK, 12, "/notes/yesterday.txt", null, 0, 0, 0, 0, 0);
+		writer.close();
+		List<Call> calls = WorkloadReplayer.load(file);
+
+		BenchEnvironment environment = new BenchEnvironment();
+		try
+		{
+			WorkloadReplayer.populate(environment.getServer(), calls);
+			WorkloadReplayer replayer = new WorkloadReplayer(new GoogleDriveLinuxFs(environment.getDrive(), new NetHttpTransport()));
+			replayer.replay(calls, false);
+
+			Assert.assertEquals(0, replayer.getSkipped());
+			Assert.assertEquals(replayer.getMismatches().toString(), 0, replayer.getMismatches().size());
+			String report = replayer.report();
+			Assert.assertTrue(report, report.contains("\nread "));
+			Assert.assertTrue(report, report.contains("\nrename "));
+		}
+		finally
+		{
+			environment.close();
+		}
+	}
+}
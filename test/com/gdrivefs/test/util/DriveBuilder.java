@@ -7,6 +7,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import net.fusejna.FuseException;
 import net.fusejna.FuseJna;
 
@@ -19,6 +21,7 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.ExponentialBackOff;
@@ -28,10 +31,18 @@ import com.google.api.services.drive.model.FileList;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
+/**
+ * Sets up drives and mounts for the tests, against a scratch directory in a real Google account, or (with -Dgdrivefs.test.fake=true)
+ * against an in-process FakeDriveServer, so the tests can run offline.  The fake is configured from gdrivefs.fake.* properties
+ * (see FakeDriveServer.fromSystemProperties).
+ */
 public class DriveBuilder implements Closeable
 {
+	public static final String FAKE_PROPERTY = "gdrivefs.test.fake";
+
 	// Google Connection
 	com.google.api.services.drive.Drive remote;
+	@Nullable FakeDriveServer fake;
 	HttpTransport httpTransport;
 	com.gdrivefs.simplecache.Drive drive;
 	java.io.File mountPoint;
@@ -41,6 +52,22 @@ public class DriveBuilder implements Closeable
 	
 	public DriveBuilder() throws GeneralSecurityException, IOException
 	{
+		if(Boolean.getBoolean(FAKE_PROPERTY))
+		{
+			try
+			{
+				fake = FakeDriveServer.fromSystemProperties();
+			}
+			catch(Exception e)
+			{
+				throw new IOException("Could not start fake drive server", e);
+			}
+			fake.addFolder(FakeDriveServer.ROOT_ID, unitTestDirectoryName);
+			httpTransport = new NetHttpTransport();
+			remote = fake.newRemote(httpTransport);
+			return;
+		}
+
 		// Setup google connection
 		httpTransport = GoogleNetHttpTransport.newTrustedTransport();
 		FileDataStoreFactory dataStoreFactory = new FileDataStoreFactory(new java.io.File(new java.io.File(System.getProperty("user.home"), ".googlefs"), "auth"));
@@ -50,6 +77,23 @@ public class DriveBuilder implements Closeable
 		remote = new com.google.api.services.drive.Drive.Builder(httpTransport, JSON_FACTORY, credential).setApplicationName("GDrive").build();
 	}
 
+	/** Direct access to Google, for making changes behind the cache's back **/
+	public com.google.api.services.drive.Drive getRemote()
+	{
+		return remote;
+	}
+	
+	/** The fake server the builder is using, or null if it is using Google **/
+	public @Nullable FakeDriveServer getFakeServer()
+	{
+		return fake;
+	}
+	
+	public com.gdrivefs.simplecache.Drive getDrive()
+	{
+		return drive;
+	}
+
 	public void flush() throws InterruptedException
 	{
 		if(filesystem != null) {
@@ -223,4 +267,17 @@ public class DriveBuilder implements Closeable
 		if(exception != null) throw exception;
 	}
 	
+	/** Closes the builder for good, stopping the fake server if there is one **/
+	public void shutdown() throws IOException
+	{
+		try
+		{
+			close();
+		}
+		finally
+		{
+			if(fake != null) fake.close();
+			fake = null;
+		}
+	}
 }
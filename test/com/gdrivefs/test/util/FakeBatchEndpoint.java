@@ -0,0 +1,190 @@
+package com.gdrivefs.test.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.common.base.Charsets;
+
+/**
+ * A local stand-in for Google's multipart batch endpoint, backed by a tiny in-memory set of files.
+ * Understands just the requests RemoteBatch sends: files.get, files.patch (title), files.trash, parents.insert and parents.delete.
+ */
+public class FakeBatchEndpoint extends MockHttpTransport
+{
+	private static final Pattern REQUEST_LINE = Pattern.compile("^(GET|POST|PATCH|PUT|DELETE) (\\S+)", Pattern.MULTILINE);
+	private static final Pattern FILE_PATH = Pattern.compile("/drive/v2/files/([^/?]+)(/trash|/parents(?:/([^/?]+))?)?");
+	private static final Pattern TITLE = Pattern.compile("\"title\"\\s*:\\s*\"([^\"]*)\"");
+	private static final Pattern PARENT_ID = Pattern.compile("\"id\"\\s*:\\s*\"([^\"]*)\"");
+
+	final JsonFactory json = JacksonFactory.getDefaultInstance();
+	final Map<String, String> titles = new HashMap<String, String>();
+	final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+	final Set<String> trashed = new HashSet<String>();
+	final AtomicInteger roundTrips = new AtomicInteger();
+	final AtomicInteger requests = new AtomicInteger();
+	final AtomicInteger gzippedResponses = new AtomicInteger();
+	final List<String> urls = new ArrayList<String>();
+
+	public Drive newDrive()
+	{
+		return new Drive.Builder(this, json, null).setApplicationName("gdrivefs-test").build();
+	}
+
+	public synchronized void addFile(String id, String title)
+	{
+		titles.put(id, title);
+		parents.put(id, new LinkedHashSet<String>());
+	}
+
+	public synchronized String getTitle(String id)
+	{
+		return titles.get(id);
+	}
+
+	public synchronized Set<String> getParents(String id)
+	{
+		return new HashSet<String>(parents.get(id));
+	}
+
+	public synchronized boolean isTrashed(String id)
+	{
+		return trashed.contains(id);
+	}
+
+	/** Number of HTTP requests made to the batch endpoint **/
+	public int getRoundTrips()
+	{
+		return roundTrips.get();
+	}
+
+	/** Number of API requests received, across all batches **/
+	public int getRequests()
+	{
+		return requests.get();
+	}
+
+	/** Number of batch responses sent gzip-compressed (because the client said it accepts gzip) **/
+	public int getGzippedResponses()
+	{
+		return gzippedResponses.get();
+	}
+
+	/** Urls of every API request received, in order **/
+	public synchronized List<String> getUrls()
+	{
+		return new ArrayList<String>(urls);
+	}
+
+	@Override
+	public LowLevelHttpRequest buildRequest(String method, final String url) throws IOException
+	{
+		return new MockLowLevelHttpRequest(url)
+		{
+			@Override
+			public LowLevelHttpResponse execute() throws IOException
+			{
+				if(!url.contains("/batch")) throw new IOException("Only batch requests are supported: "+url);
+				roundTrips.incrementAndGet();
+
+				String contentType = getContentType();
+				String boundary = contentType.substring(contentType.indexOf("boundary=")+"boundary=".length()).replace("\"", "");
+				StringBuilder response = new StringBuilder();
+				for(String part : getContentAsString().split("--"+Pattern.quote(boundary)))
+				{
+					Matcher request = REQUEST_LINE.matcher(part);
+					if(!request.find()) continue;
+					int body = part.indexOf("\r\n\r\n", request.end());
+					response.append("--response\r\nContent-Type: application/http\r\n\r\n");
+					response.append(handle(request.group(1), request.group(2), body < 0 ? "" : part.substring(body)));
+					response.append("\r\n");
+				}
+				response.append("--response--\r\n");
+
+				MockLowLevelHttpResponse result = new MockLowLevelHttpResponse().setContentType("multipart/mixed; boundary=response");
+				String acceptEncoding = getFirstHeaderValue("Accept-Encoding");
+				if(acceptEncoding == null || !acceptEncoding.contains("gzip")) return result.setContent(response.toString());
+
+				gzippedResponses.incrementAndGet();
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+				GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+				gzip.write(response.toString().getBytes(Charsets.UTF_8));
+				gzip.close();
+				return result.setContentEncoding("gzip").setContent(compressed.toByteArray());
+			}
+		};
+	}
+
+	synchronized String handle(String method, String url, String body) throws IOException
+	{
+		requests.incrementAndGet();
+		urls.add(url);
+		Matcher path = FILE_PATH.matcher(url);
+		if(!path.find()) return status(404, "Not Found");
+		String id = path.group(1);
+		if(!titles.containsKey(id)) return status(404, "Not Found");
+
+		if("GET".equals(method) && path.group(2) == null) return ok(describe(id));
+		if("PATCH".equals(method) && path.group(2) == null)
+		{
+			Matcher title = TITLE.matcher(body);
+			if(title.find()) titles.put(id, title.group(1));
+			return ok(describe(id));
+		}
+		if("POST".equals(method) && "/trash".equals(path.group(2)))
+		{
+			trashed.add(id);
+			return ok(describe(id));
+		}
+		if("POST".equals(method) && "/parents".equals(path.group(2)))
+		{
+			Matcher parent = PARENT_ID.matcher(body);
+			if(!parent.find()) return status(400, "Bad Request");
+			parents.get(id).add(parent.group(1));
+			return ok("{\"id\":\""+parent.group(1)+"\"}");
+		}
+		if("DELETE".equals(method) && path.group(3) != null)
+		{
+			if(!parents.get(id).remove(path.group(3))) return status(404, "Not Found");
+			return "HTTP/1.1 204 No Content\r\n\r\n";
+		}
+		return status(400, "Bad Request");
+	}
+
+	private String describe(String id) throws IOException
+	{
+		File file = new File().setId(id).setTitle(titles.get(id));
+		file.setFactory(json);
+		return file.toString();
+	}
+
+	private static String ok(String json)
+	{
+		return "HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=UTF-8\r\n\r\n"+json+"\r\n";
+	}
+
+	private static String status(int code, String reason)
+	{
+		String error = "{\"error\":{\"code\":"+code+",\"message\":\""+reason+"\",\"errors\":[]}}";
+		return "HTTP/1.1 "+code+" "+reason+"\r\nContent-Type: application/json; charset=UTF-8\r\n\r\n"+error+"\r\n";
+	}
+}
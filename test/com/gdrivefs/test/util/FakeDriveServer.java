@@ -0,0 +1,678 @@
+package com.gdrivefs.test.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+import com.google.api.services.drive.model.User;
+import com.google.common.base.Charsets;
+
+/**
+ * An in-process stand-in for the parts of the Drive v2 API the cache uses, serving an in-memory drive over local HTTP.
+ * Supports about, changes, files list/get/insert/update/patch/trash/delete, parents insert/delete, the batch endpoint,
+ * resumable media uploads, and Range downloads.  Point a Drive client at it with newRemote.
+ *
+ * Can be made to behave more like the real thing under load: added latency per HTTP request, limited bandwidth for bodies,
+ * injected errors, and request rate and storage quotas (answered with Google's 403 reasons, so clients retry as they would).
+ * fromSystemProperties reads these settings from gdrivefs.fake.* properties.
+ */
+public class FakeDriveServer implements Closeable
+{
+	public static final String ROOT_ID = "root";
+	static final String MIME_FOLDER = "application/vnd.google-apps.folder";
+
+	private static final Pattern API_PATH = Pattern.compile("^/drive/v2/(about|changes|files)(?:/([^/]+)(?:/(trash|parents)(?:/([^/]+))?)?)?$");
+	private static final Pattern UPLOAD_PATH = Pattern.compile("^/upload/drive/v2/files(?:/([^/]+))?$");
+	private static final Pattern SESSION_PATH = Pattern.compile("^/upload/session/(\\d+)$");
+	private static final Pattern DOWNLOAD_PATH = Pattern.compile("^/download/([^/]+)$");
+	private static final Pattern IN_PARENTS = Pattern.compile("'([^']+)' in parents");
+	private static final Pattern TITLE_IS = Pattern.compile("title\\s*=\\s*'([^']*)'");
+	private static final Pattern TRASHED_IS = Pattern.compile("trashed\\s*=\\s*(true|false)");
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+|\\*)");
+	private static final Pattern METHOD_OVERRIDE = Pattern.compile("^x-http-method-override:\\s*(\\S+)", Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+	private static final Pattern REQUEST_LINE = Pattern.compile("^(GET|POST|PATCH|PUT|DELETE) (\\S+)", Pattern.MULTILINE);
+
+	/** Response bodies are written in chunks of this size, so limited bandwidth is felt part way through a download **/
+	static final int CHUNK = 1<<14;
+
+	private static final Logger logger = LoggerFactory.getLogger(FakeDriveServer.class);
+
+	final JsonFactory json = JacksonFactory.getDefaultInstance();
+	final Server server = new Server(0);
+	final Map<String, File> files = new LinkedHashMap<String, File>();
+	final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+	final Map<Integer, UploadSession> uploads = new HashMap<Integer, UploadSession>();
+	final List<Change> changes = new ArrayList<Change>();
+	final AtomicInteger requests = new AtomicInteger();
+	final AtomicInteger injectedErrors = new AtomicInteger();
+	final AtomicInteger rateLimited = new AtomicInteger();
+	final Random random = new Random();
+	int nextId = 0;
+
+	volatile long latencyMillis = 0;
+	volatile long bytesPerSecond = 0;
+	volatile double errorRate = 0;
+	volatile int errorStatus = 503;
+	int failNext = 0;
+	double quotaRequestsPerSecond = 0;
+	long quotaWindowStart = 0;
+	int quotaWindowRequests = 0;
+	long storageQuotaBytes = 0;
+
+	public FakeDriveServer() throws Exception
+	{
+		File root = new File().setId(ROOT_ID).setTitle("My Drive").setMimeType(MIME_FOLDER).setParents(new ArrayList<ParentReference>());
+		root.setModifiedDate(new DateTime(System.currentTimeMillis()));
+		files.put(ROOT_ID, root);
+
+		server.setHandler(new AbstractHandler()
+		{
+			@Override
+			public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException
+			{
+				Map<String, String> headers = new HashMap<String, String>();
+				for(Enumeration<?> names = request.getHeaderNames(); names.hasMoreElements();)
+				{
+					String name = (String)names.nextElement();
+					headers.put(name.toLowerCase(), request.getHeader(name));
+				}
+				String method = headers.containsKey("x-http-method-override") ? headers.get("x-http-method-override") : request.getMethod();
+				Reply reply;
+				try
+				{
+					byte[] body = IOUtils.toByteArray(request.getInputStream());
+					sleep(latencyMillis+transferMillis(body.length));
+					if("gzip".equals(headers.get("content-encoding"))) body = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(body)));
+					reply = dispatch(method, request.getRequestURI(), request.getQueryString(), headers, body);
+				}
+				catch(Exception e)
+				{
+					logger.warn("Fake drive failed to handle {} {}", method, request.getRequestURI(), e);
+					reply = error(500, e.toString());
+				}
+
+				response.setStatus(reply.status);
+				for(Map.Entry<String, String> header : reply.headers.entrySet()) response.setHeader(header.getKey(), header.getValue());
+				if(reply.contentType != null) response.setContentType(reply.contentType);
+				response.setContentLength(reply.body.length);
+				OutputStream out = response.getOutputStream();
+				for(int offset = 0; offset < reply.body.length; offset += CHUNK)
+				{
+					int length = Math.min(CHUNK, reply.body.length-offset);
+					sleep(transferMillis(length));
+					out.write(reply.body, offset, length);
+					if(bytesPerSecond > 0) out.flush();
+				}
+				((Request)request).setHandled(true);
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * A server configured from system properties: gdrivefs.fake.latency (ms per HTTP request), gdrivefs.fake.bandwidth (bytes per second),
+	 * gdrivefs.fake.errorRate (0 to 1), gdrivefs.fake.errorStatus, gdrivefs.fake.qps and gdrivefs.fake.storage (bytes).
+	 */
+	public static FakeDriveServer fromSystemProperties() throws Exception
+	{
+		FakeDriveServer server = new FakeDriveServer();
+		server.setLatency(Long.getLong("gdrivefs.fake.latency", 0));
+		server.setBandwidth(Long.getLong("gdrivefs.fake.bandwidth", 0));
+		server.setErrorRate(Double.parseDouble(System.getProperty("gdrivefs.fake.errorRate", "0")), Integer.getInteger("gdrivefs.fake.errorStatus", 503));
+		server.setRequestQuota(Double.parseDouble(System.getProperty("gdrivefs.fake.qps", "0")));
+		server.setStorageQuota(Long.getLong("gdrivefs.fake.storage", 0));
+		return server;
+	}
+
+	/** Delay added to every HTTP request (a batch is one request) **/
+	public void setLatency(long millis)
+	{
+		latencyMillis = millis;
+	}
+
+	/** Limits the rate request and response bodies are transferred at; 0 for unlimited **/
+	public void setBandwidth(long bytesPerSecond)
+	{
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/** Fails this fraction of API requests, chosen at random, with the given status **/
+	public void setErrorRate(double rate, int status)
+	{
+		errorRate = rate;
+		errorStatus = status;
+	}
+
+	/** Fails the next count API requests with the given status **/
+	public synchronized void failNext(int count, int status)
+	{
+		failNext = count;
+		errorStatus = status;
+	}
+
+	/** API requests allowed per second; those over it are refused with 403 userRateLimitExceeded.  0 for unlimited. **/
+	public synchronized void setRequestQuota(double requestsPerSecond)
+	{
+		quotaRequestsPerSecond = requestsPerSecond;
+	}
+
+	/** Total bytes of content the drive may hold; uploads that would exceed it are refused with 403 quotaExceeded.  0 for unlimited. **/
+	public synchronized void setStorageQuota(long bytes)
+	{
+		storageQuotaBytes = bytes;
+	}
+
+	/** Requests failed by failNext or the error rate **/
+	public int getInjectedErrors()
+	{
+		return injectedErrors.get();
+	}
+
+	/** Requests refused for exceeding the request quota **/
+	public int getRateLimited()
+	{
+		return rateLimited.get();
+	}
+
+	public String getRootUrl()
+	{
+		return "http://localhost:"+server.getConnectors()[0].getLocalPort()+"/";
+	}
+
+	/** A Drive API client that talks to this server **/
+	public Drive newRemote(HttpTransport transport)
+	{
+		return new Drive.Builder(transport, json, null).setRootUrl(getRootUrl()).setApplicationName("gdrivefs-fake").build();
+	}
+
+	/** Number of API requests received (each request in a batch counts) **/
+	public int getRequests()
+	{
+		return requests.get();
+	}
+
+	public synchronized String addFolder(String parentId, String title)
+	{
+		return add(parentId, new File().setTitle(title).setMimeType(MIME_FOLDER), null).getId();
+	}
+
+	public synchronized String addFile(String parentId, String title, byte[] content)
+	{
+		return add(parentId, new File().setTitle(title).setMimeType("application/octet-stream"), content).getId();
+	}
+
+	/** Replaces the file's content, as if another client had uploaded a new version **/
+	public synchronized void updateContent(String id, byte[] content)
+	{
+		setContent(files.get(id), content);
+		changed(id, false);
+	}
+
+	/** Ids of the (untrashed) children of the folder **/
+	public synchronized List<String> getChildIds(String parentId)
+	{
+		List<String> ids = new ArrayList<String>();
+		for(File file : files.values())
+			if(!isTrashed(file) && hasParent(file, parentId)) ids.add(file.getId());
+		return ids;
+	}
+
+	public synchronized File getFile(String id)
+	{
+		return files.get(id);
+	}
+
+	public synchronized byte[] getContent(String id)
+	{
+		return contents.get(id);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			server.stop();
+		}
+		catch(Exception e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	/** Handles a single API request, whether it arrived on its own or inside a batch **/
+	Reply dispatch(String method, String path, String query, Map<String, String> headers, byte[] body) throws IOException
+	{
+		if("/batch".equals(path)) return batch(headers.get("content-type"), body);
+		requests.incrementAndGet();
+		Reply refused = refuse();
+		if(refused != null) return refused;
+		Map<String, String> parameters = parseQuery(query);
+
+		Matcher download = DOWNLOAD_PATH.matcher(path);
+		if(download.matches()) return download(download.group(1), headers.get("range"));
+
+		Matcher session = SESSION_PATH.matcher(path);
+		if(session.matches()) return uploadContent(Integer.parseInt(session.group(1)), headers.get("content-range"), body);
+
+		Matcher upload = UPLOAD_PATH.matcher(path);
+		if(upload.matches())
+		{
+			if(!"resumable".equals(parameters.get("uploadType"))) return error(400, "Only resumable uploads are supported");
+			return startUpload(upload.group(1), body);
+		}
+
+		Matcher api = API_PATH.matcher(path);
+		if(!api.matches()) return error(404, "Not Found");
+		String collection = api.group(1);
+		String id = api.group(2);
+		String sub = api.group(3);
+		synchronized(this)
+		{
+			if("about".equals(collection))
+			{
+				About about = new About().setRootFolderId(ROOT_ID).setLargestChangeId((long)changes.size())
+						.setUser(new User().setDisplayName("Fake").setEmailAddress("fake@localhost"))
+						.setQuotaBytesTotal(storageQuotaBytes).setQuotaBytesUsed(storedBytes());
+				return ok(about);
+			}
+			if("changes".equals(collection)) return listChanges(parameters);
+			if(id == null)
+			{
+				if("GET".equals(method)) return list(parameters);
+				if("POST".equals(method)) return ok(add(null, json.fromString(new String(body, Charsets.UTF_8), File.class), null));
+				return error(405, "Method Not Allowed");
+			}
+
+			File file = files.get(id);
+			if(file == null) return error(404, "File not found: "+id);
+			if(sub == null)
+			{
+				if("GET".equals(method)) return ok(file);
+				if("PATCH".equals(method) || "PUT".equals(method))
+				{
+					patch(file, json.fromString(new String(body, Charsets.UTF_8), File.class));
+					return ok(file);
+				}
+				if("DELETE".equals(method))
+				{
+					files.remove(id);
+					contents.remove(id);
+					changed(id, true);
+					return noContent();
+				}
+			}
+			else if("trash".equals(sub) && "POST".equals(method))
+			{
+				file.getLabels().setTrashed(true);
+				changed(id, false);
+				return ok(file);
+			}
+			else if("parents".equals(sub))
+			{
+				String parentId = api.group(4);
+				if(parentId == null && "POST".equals(method))
+				{
+					ParentReference parent = json.fromString(new String(body, Charsets.UTF_8), ParentReference.class);
+					if(!files.containsKey(parent.getId())) return error(404, "File not found: "+parent.getId());
+					if(!hasParent(file, parent.getId())) file.getParents().add(new ParentReference().setId(parent.getId()));
+					changed(id, false);
+					return ok(new ParentReference().setId(parent.getId()));
+				}
+				if(parentId != null && "DELETE".equals(method))
+				{
+					for(ParentReference parent : file.getParents())
+						if(parentId.equals(parent.getId()))
+						{
+							file.getParents().remove(parent);
+							changed(id, false);
+							return noContent();
+						}
+					return error(404, "Parent not found: "+parentId);
+				}
+			}
+			return error(405, "Method Not Allowed");
+		}
+	}
+
+	/** An injected error or quota refusal for the next API request, if it gets one **/
+	private synchronized Reply refuse()
+	{
+		if(quotaRequestsPerSecond > 0)
+		{
+			long now = System.currentTimeMillis();
+			if(now-quotaWindowStart >= 1000)
+			{
+				quotaWindowStart = now;
+				quotaWindowRequests = 0;
+			}
+			if(++quotaWindowRequests > quotaRequestsPerSecond)
+			{
+				rateLimited.incrementAndGet();
+				return error(403, "userRateLimitExceeded", "User Rate Limit Exceeded");
+			}
+		}
+		if(failNext > 0 || (errorRate > 0 && random.nextDouble() < errorRate))
+		{
+			if(failNext > 0) failNext--;
+			injectedErrors.incrementAndGet();
+			if(errorStatus == 403) return error(403, "rateLimitExceeded", "Rate Limit Exceeded");
+			return error(errorStatus, "backendError", "Injected error");
+		}
+		return null;
+	}
+
+	private long storedBytes()
+	{
+		long total = 0;
+		for(byte[] content : contents.values()) total += content.length;
+		return total;
+	}
+
+	private long transferMillis(long bytes)
+	{
+		long bandwidth = bytesPerSecond;
+		return bandwidth <= 0 ? 0 : bytes*1000/bandwidth;
+	}
+
+	private static void sleep(long millis)
+	{
+		if(millis <= 0) return;
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch(InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Reply list(Map<String, String> parameters) throws IOException
+	{
+		String q = parameters.get("q") == null ? "" : parameters.get("q");
+		Matcher inParents = IN_PARENTS.matcher(q);
+		Matcher title = TITLE_IS.matcher(q);
+		Matcher trashed = TRASHED_IS.matcher(q);
+		String parentId = inParents.find() ? inParents.group(1) : null;
+		String titleIs = title.find() ? title.group(1) : null;
+		Boolean trashedIs = trashed.find() ? Boolean.valueOf(trashed.group(1)) : null;
+
+		List<File> matches = new ArrayList<File>();
+		for(File file : files.values())
+		{
+			if(parentId != null && !hasParent(file, parentId)) continue;
+			if(titleIs != null && !titleIs.equals(file.getTitle())) continue;
+			if(trashedIs != null && trashedIs.booleanValue() != isTrashed(file)) continue;
+			matches.add(file);
+		}
+
+		int start = parameters.get("pageToken") == null ? 0 : Integer.parseInt(parameters.get("pageToken"));
+		int max = parameters.get("maxResults") == null ? 100 : Integer.parseInt(parameters.get("maxResults"));
+		int end = Math.min(matches.size(), start+max);
+		FileList list = new FileList().setItems(new ArrayList<File>(matches.subList(start, end)));
+		if(end < matches.size()) list.setNextPageToken(Integer.toString(end));
+		return ok(list);
+	}
+
+	private Reply listChanges(Map<String, String> parameters) throws IOException
+	{
+		int start = parameters.get("pageToken") != null ? Integer.parseInt(parameters.get("pageToken"))
+				: parameters.get("startChangeId") != null ? Integer.parseInt(parameters.get("startChangeId"))-1 : 0;
+		int max = parameters.get("maxResults") == null ? 100 : Integer.parseInt(parameters.get("maxResults"));
+		start = Math.max(0, start);
+		int end = Math.min(changes.size(), start+max);
+		ChangeList list = new ChangeList().setItems(new ArrayList<Change>(changes.subList(start, end))).setLargestChangeId((long)changes.size());
+		if(end < changes.size()) list.setNextPageToken(Integer.toString(end));
+		return ok(list);
+	}
+
+	private Reply download(String id, String range)
+	{
+		byte[] content;
+		synchronized(this)
+		{
+			content = contents.get(id);
+		}
+		if(content == null) return error(404, "File not found: "+id);
+		if(range == null) return new Reply(200, "application/octet-stream", content);
+
+		Matcher matcher = RANGE.matcher(range);
+		if(!matcher.matches()) return error(400, "Unsupported range: "+range);
+		int start = Integer.parseInt(matcher.group(1));
+		int end = matcher.group(2).isEmpty() ? content.length : Math.min(content.length, Integer.parseInt(matcher.group(2))+1);
+		if(start >= content.length && content.length > 0) return error(416, "Requested range not satisfiable");
+		Reply reply = new Reply(206, "application/octet-stream", Arrays.copyOfRange(content, start, Math.max(start, end)));
+		reply.headers.put("Content-Range", "bytes "+start+"-"+(end-1)+"/"+content.length);
+		return reply;
+	}
+
+	private synchronized Reply startUpload(String id, byte[] body) throws IOException
+	{
+		if(id != null && !files.containsKey(id)) return error(404, "File not found: "+id);
+		File metadata = body.length == 0 ? new File() : json.fromString(new String(body, Charsets.UTF_8), File.class);
+		int session = uploads.size()+1;
+		uploads.put(session, new UploadSession(id, metadata));
+		Reply reply = new Reply(200, null, new byte[0]);
+		reply.headers.put("Location", getRootUrl()+"upload/session/"+session);
+		return reply;
+	}
+
+	private synchronized Reply uploadContent(int sessionId, String contentRange, byte[] body) throws IOException
+	{
+		UploadSession session = uploads.get(sessionId);
+		if(session == null) return error(404, "Upload session not found");
+		session.received.write(body);
+
+		long total = -1;
+		if(contentRange != null)
+		{
+			Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+			if(matcher.matches() && !"*".equals(matcher.group(3))) total = Long.parseLong(matcher.group(3));
+		}
+		if(total >= 0 && session.received.size() < total)
+		{
+			Reply reply = new Reply(308, null, new byte[0]);
+			reply.headers.put("Range", "bytes=0-"+(session.received.size()-1));
+			return reply;
+		}
+
+		uploads.remove(sessionId);
+		byte[] content = session.received.toByteArray();
+		byte[] replaced = session.fileId == null ? null : contents.get(session.fileId);
+		if(storageQuotaBytes > 0 && storedBytes()-(replaced == null ? 0 : replaced.length)+content.length > storageQuotaBytes)
+			return error(403, "quotaExceeded", "The user's Drive storage quota has been exceeded.");
+		if(session.fileId == null) return ok(add(null, session.metadata, content));
+		File file = files.get(session.fileId);
+		if(file == null) return error(404, "File not found: "+session.fileId);
+		patch(file, session.metadata);
+		setContent(file, content);
+		changed(file.getId(), false);
+		return ok(file);
+	}
+
+	private Reply batch(String contentType, byte[] body) throws IOException
+	{
+		String boundary = contentType.substring(contentType.indexOf("boundary=")+"boundary=".length()).replace("\"", "");
+		StringBuilder response = new StringBuilder();
+		for(String part : new String(body, Charsets.UTF_8).split("--"+Pattern.quote(boundary)))
+		{
+			Matcher request = REQUEST_LINE.matcher(part);
+			if(!request.find()) continue;
+			int bodyStart = part.indexOf("\r\n\r\n", request.end());
+			String partBody = bodyStart < 0 ? "" : part.substring(bodyStart+4).trim();
+			String url = request.group(2);
+			int queryStart = url.indexOf('?');
+			String path = url.replaceFirst("^https?://[^/]+", "");
+			path = queryStart < 0 ? path : path.substring(0, path.indexOf('?'));
+			Matcher override = METHOD_OVERRIDE.matcher(bodyStart < 0 ? part : part.substring(0, bodyStart));
+			String method = override.find() ? override.group(1) : request.group(1);
+			Reply reply = dispatch(method, path, queryStart < 0 ? null : url.substring(queryStart+1),
+					Collections.<String, String>emptyMap(), partBody.getBytes(Charsets.UTF_8));
+
+			response.append("--response\r\nContent-Type: application/http\r\n\r\n");
+			response.append("HTTP/1.1 ").append(reply.status).append(" Status\r\n");
+			if(reply.contentType != null) response.append("Content-Type: ").append(reply.contentType).append("\r\n");
+			response.append("\r\n").append(new String(reply.body, Charsets.UTF_8)).append("\r\n");
+		}
+		response.append("--response--\r\n");
+		return new Reply(200, "multipart/mixed; boundary=response", response.toString().getBytes(Charsets.UTF_8));
+	}
+
+	/** Adds the file, under the given parent or (if null) the parents named in its metadata **/
+	File add(String parentId, File file, byte[] content)
+	{
+		File added = file.clone().setId("fake"+(nextId++));
+		List<ParentReference> parents = new ArrayList<ParentReference>();
+		if(parentId != null) parents.add(new ParentReference().setId(parentId));
+		else if(file.getParents() != null) for(ParentReference parent : file.getParents()) parents.add(new ParentReference().setId(parent.getId()));
+		added.setParents(parents);
+		added.setLabels(new File.Labels().setTrashed(false));
+		if(added.getMimeType() == null) added.setMimeType("application/octet-stream");
+		if(!MIME_FOLDER.equals(added.getMimeType())) setContent(added, content == null ? new byte[0] : content);
+		added.setModifiedDate(new DateTime(System.currentTimeMillis()));
+		files.put(added.getId(), added);
+		changed(added.getId(), false);
+		return added;
+	}
+
+	private void patch(File file, File changes)
+	{
+		if(changes.getTitle() != null) file.setTitle(changes.getTitle());
+		if(changes.getMimeType() != null && !MIME_FOLDER.equals(file.getMimeType())) file.setMimeType(changes.getMimeType());
+		if(changes.getDescription() != null) file.setDescription(changes.getDescription());
+		if(changes.getProperties() != null) file.setProperties(changes.getProperties());
+		file.setModifiedDate(new DateTime(System.currentTimeMillis()));
+		changed(file.getId(), false);
+	}
+
+	private void setContent(File file, byte[] content)
+	{
+		contents.put(file.getId(), content);
+		file.setFileSize((long)content.length);
+		file.setMd5Checksum(DigestUtils.md5Hex(content));
+		file.setDownloadUrl(getRootUrl()+"download/"+file.getId());
+		file.setModifiedDate(new DateTime(System.currentTimeMillis()));
+	}
+
+	private void changed(String id, boolean deleted)
+	{
+		Change change = new Change().setId((long)changes.size()+1).setFileId(id).setDeleted(deleted);
+		if(!deleted) change.setFile(files.get(id));
+		changes.add(change);
+	}
+
+	private static boolean hasParent(File file, String parentId)
+	{
+		if(file.getParents() == null) return false;
+		for(ParentReference parent : file.getParents())
+			if(parentId.equals(parent.getId())) return true;
+		return false;
+	}
+
+	private static boolean isTrashed(File file)
+	{
+		return file.getLabels() != null && Boolean.TRUE.equals(file.getLabels().getTrashed());
+	}
+
+	private static Map<String, String> parseQuery(String query) throws IOException
+	{
+		Map<String, String> parameters = new HashMap<String, String>();
+		if(query == null) return parameters;
+		for(String pair : query.split("&"))
+		{
+			int equals = pair.indexOf('=');
+			if(equals < 0) parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+			else parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals+1), "UTF-8"));
+		}
+		return parameters;
+	}
+
+	private Reply ok(Object model) throws IOException
+	{
+		return new Reply(200, "application/json; charset=UTF-8", json.toString(model).getBytes(Charsets.UTF_8));
+	}
+
+	private static Reply noContent()
+	{
+		return new Reply(204, null, new byte[0]);
+	}
+
+	static Reply error(int code, String message)
+	{
+		return error(code, "fake", message);
+	}
+
+	static Reply error(int code, String reason, String message)
+	{
+		String error = "{\"error\":{\"code\":"+code+",\"message\":\""+message.replace("\"", "'")+"\",\"errors\":[{\"reason\":\""+reason+"\",\"message\":\""+message.replace("\"", "'")+"\"}]}}";
+		return new Reply(code, "application/json; charset=UTF-8", error.getBytes(Charsets.UTF_8));
+	}
+
+	static class Reply
+	{
+		final int status;
+		final String contentType;
+		final byte[] body;
+		final Map<String, String> headers = new HashMap<String, String>();
+
+		Reply(int status, String contentType, byte[] body)
+		{
+			this.status = status;
+			this.contentType = contentType;
+			this.body = body;
+		}
+	}
+
+	static class UploadSession
+	{
+		final String fileId;
+		final File metadata;
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+		UploadSession(String fileId, File metadata)
+		{
+			this.fileId = fileId;
+			this.metadata = metadata;
+		}
+	}
+}
@@ -67,7 +67,7 @@ public class GoogleFilesystemRunner extends Runner
 				finally
 				{
 					notifier.fireTestFinished(getDescription());
-					if(builder != null) builder.close();
+					if(builder != null) builder.shutdown();
 				}
 			}
 		}
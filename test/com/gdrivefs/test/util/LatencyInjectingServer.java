@@ -0,0 +1,117 @@
+package com.gdrivefs.test.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+/**
+ * A local HTTP server with a single file, supporting Range requests, that can be told to stall responses part way through.
+ * Stands in for Google's download URLs when testing slow downloads.
+ */
+public class LatencyInjectingServer
+{
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+	final byte[] content;
+	final Server server = new Server(0);
+	final List<String> ranges = new ArrayList<String>();
+	final AtomicInteger requests = new AtomicInteger();
+	final CountDownLatch stopping = new CountDownLatch(1);
+	volatile int stalledRequests = 0;
+	volatile int stallAfterBytes = 0;
+	volatile long stallMillis = 0;
+
+	public LatencyInjectingServer(byte[] content) throws Exception
+	{
+		this.content = content;
+		server.setHandler(new AbstractHandler()
+		{
+			@Override
+			public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException
+			{
+				serve(request, response);
+				((Request)request).setHandled(true);
+			}
+		});
+		server.start();
+	}
+
+	/** The first count requests (from now on) send afterBytes bytes and then stall for the given time before sending the rest **/
+	public void stall(int count, int afterBytes, long millis)
+	{
+		requests.set(0);
+		stallAfterBytes = afterBytes;
+		stallMillis = millis;
+		stalledRequests = count;
+	}
+
+	public String getUrl()
+	{
+		return "http://localhost:"+server.getConnectors()[0].getLocalPort()+"/content";
+	}
+
+	/** Range headers of every request received, in order **/
+	public synchronized List<String> getRanges()
+	{
+		return new ArrayList<String>(ranges);
+	}
+
+	public void stop() throws Exception
+	{
+		stopping.countDown();
+		server.stop();
+	}
+
+	void serve(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		int start = 0;
+		int end = content.length;
+		String range = request.getHeader("Range");
+		synchronized(this)
+		{
+			ranges.add(range);
+		}
+		if(range != null)
+		{
+			Matcher matcher = RANGE.matcher(range);
+			if(!matcher.matches()) throw new IOException("Unsupported range: "+range);
+			start = Integer.parseInt(matcher.group(1));
+			end = Math.min(content.length, Integer.parseInt(matcher.group(2))+1);
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", "bytes "+start+"-"+(end-1)+"/"+content.length);
+		}
+		response.setContentType("application/octet-stream");
+		response.setContentLength(end-start);
+
+		OutputStream out = response.getOutputStream();
+		if(requests.incrementAndGet() <= stalledRequests)
+		{
+			int before = Math.min(end-start, stallAfterBytes);
+			out.write(content, start, before);
+			response.flushBuffer();
+			start += before;
+			try
+			{
+				stopping.await(stallMillis, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+		out.write(content, start, end-start);
+	}
+}